@@ -0,0 +1,191 @@
+package com.milk.ipforward;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+/**
+ * This is one of the target hosts that connections may be forwarded
+ * to. It keeps track of how many connections are currently forwarded
+ * to it, and of whether it seems to be healthy.
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ * @author Copyright 1999 Dan Bornstein, all rights reserved.
+ * @author This code may be used for any purpose whatsoever, so long
+ * as credit is appropriately given to the author.
+ */
+public class Backend
+{
+    /** the host to connect to */
+    private String myHost;
+
+    /** the port to connect to */
+    private int myPort;
+
+    /** the most recently resolved address of the host */
+    private InetSocketAddress myAddress;
+
+    /** the number of connections currently forwarded to this backend */
+    private int myConnectionCount;
+
+    /** the number of consecutive failures to connect */
+    private int myFailureCount;
+
+    /** whether this backend is currently considered healthy */
+    private boolean myHealthy;
+
+    /**
+     * Make a <code>Backend</code>.
+     *
+     * @param host the host to connect to
+     * @param port the port to connect to
+     */
+    public Backend (String host, int port)
+    {
+	if (host == null)
+	{
+	    throw new NullPointerException ("host == null");
+	}
+
+	myHost = host;
+	myPort = port;
+	myConnectionCount = 0;
+	myFailureCount = 0;
+	myHealthy = true;
+	resolve ();
+    }
+
+    /**
+     * Get the string form of this backend.
+     *
+     * @return the string form
+     */
+    public String toString ()
+    {
+	return myHost + ":" + myPort;
+    }
+
+    /**
+     * Look up the address of the host again. This is called by the
+     * health checker, so that changes to the name's address get noticed
+     * without doing lookups when connecting.
+     */
+    public void resolve ()
+    {
+	InetSocketAddress addr = new InetSocketAddress (myHost, myPort);
+
+	synchronized (this)
+	{
+	    if (! addr.isUnresolved () || (myAddress == null))
+	    {
+		myAddress = addr;
+	    }
+	}
+    }
+
+    /**
+     * Get the address to connect to.
+     *
+     * @return the address
+     * @throws UnknownHostException thrown if the host's name has never
+     * been resolved
+     */
+    public synchronized InetSocketAddress getAddress ()
+    throws UnknownHostException
+    {
+	if (myAddress.isUnresolved ())
+	{
+	    throw new UnknownHostException (myHost);
+	}
+
+	return myAddress;
+    }
+
+    /**
+     * Get the number of connections currently forwarded to this backend.
+     *
+     * @return the connection count
+     */
+    public synchronized int getConnectionCount ()
+    {
+	return myConnectionCount;
+    }
+
+    /**
+     * Return whether this backend is currently considered healthy.
+     *
+     * @return whether it is healthy
+     */
+    public synchronized boolean isHealthy ()
+    {
+	return myHealthy;
+    }
+
+    /**
+     * Note that a connection is being forwarded to this backend.
+     */
+    /*package*/ synchronized void connectionStarted ()
+    {
+	myConnectionCount++;
+    }
+
+    /**
+     * Note that a connection forwarded to this backend is done.
+     */
+    /*package*/ synchronized void connectionEnded ()
+    {
+	myConnectionCount--;
+    }
+
+    /**
+     * Note that a connection to this backend (either forwarded or a
+     * health probe) succeeded. This puts the backend back into service
+     * if it had been taken out.
+     */
+    /*package*/ void succeeded ()
+    {
+	boolean reinstated;
+
+	synchronized (this)
+	{
+	    reinstated = ! myHealthy;
+	    myFailureCount = 0;
+	    myHealthy = true;
+	}
+
+	if (reinstated)
+	{
+	    System.err.println ("Backend " + this + " is back in service.");
+	}
+    }
+
+    /**
+     * Note that a connection to this backend (either forwarded or a
+     * health probe) failed. Once there have been the given number of
+     * failures in a row, the backend is taken out of service.
+     *
+     * @param maxFailures the number of consecutive failures at which
+     * to take the backend out of service
+     * @param ex the exception describing the failure
+     */
+    /*package*/ void failed (int maxFailures, IOException ex)
+    {
+	boolean ejected;
+
+	synchronized (this)
+	{
+	    myFailureCount++;
+	    ejected = myHealthy && (myFailureCount >= maxFailures);
+	    if (ejected)
+	    {
+		myHealthy = false;
+	    }
+	}
+
+	if (ejected)
+	{
+	    System.err.println ("Backend " + this + " taken out of " +
+				"service: " + ex);
+	}
+    }
+}
@@ -0,0 +1,414 @@
+package com.milk.ipforward;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * This is the set of backends that connections get forwarded to,
+ * along with the policy for picking which one each connection goes
+ * to. Backends that fail to accept connections a number of times in a
+ * row are taken out of service until a connection to them succeeds
+ * again; an optional background thread probes all the backends
+ * periodically, so that failing ones are noticed (and recovered ones
+ * brought back) without waiting for client traffic. Without the
+ * probes, a backend that has been taken out of service only gets used
+ * again if all the others are out of service too.
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ * @author Copyright 1999 Dan Bornstein, all rights reserved.
+ * @author This code may be used for any purpose whatsoever, so long
+ * as credit is appropriately given to the author.
+ */
+public class BackendPool
+{
+    /** policy constant: take turns */
+    public static final int POLICY_ROUND_ROBIN = 0;
+
+    /** policy constant: pick the backend with the fewest connections */
+    public static final int POLICY_LEAST_CONNECTIONS = 1;
+
+    /** policy constant: consistently map each client address to the
+     * same backend, moving as few clients as possible when backends
+     * come and go */
+    public static final int POLICY_HASH = 2;
+
+    /** the number of points on the hash ring for each backend */
+    static private final int RING_POINTS = 100;
+
+    /** the default number of consecutive failures that take a backend
+     * out of service */
+    static private final int DEFAULT_MAX_FAILURES = 3;
+
+    /** the backends */
+    private Backend[] myBackends;
+
+    /** the policy; one of the <code>POLICY_*</code> constants */
+    private int myPolicy;
+
+    /** the number of consecutive failures that take a backend out of
+     * service */
+    private int myMaxFailures;
+
+    /** the count of picks made, for taking turns */
+    private int myNextIndex;
+
+    /** the hash ring positions, in increasing order */
+    private int[] myRingHashes;
+
+    /** the backend at each hash ring position, parallel to
+     * <code>myRingHashes</code> */
+    private Backend[] myRingBackends;
+
+    /**
+     * Make a <code>BackendPool</code>.
+     *
+     * @param backends the backends; must have at least one element
+     * @param policy the policy for picking backends; one of the
+     * <code>POLICY_*</code> constants
+     */
+    public BackendPool (Backend[] backends, int policy)
+    {
+	if (backends.length == 0)
+	{
+	    throw new IllegalArgumentException ("no backends");
+	}
+
+	if ((policy != POLICY_ROUND_ROBIN) &&
+	    (policy != POLICY_LEAST_CONNECTIONS) &&
+	    (policy != POLICY_HASH))
+	{
+	    throw new IllegalArgumentException ("bad policy: " + policy);
+	}
+
+	myBackends = backends.clone ();
+	myPolicy = policy;
+	myMaxFailures = DEFAULT_MAX_FAILURES;
+	myNextIndex = 0;
+
+	if (policy == POLICY_HASH)
+	{
+	    makeRing ();
+	}
+    }
+
+    /**
+     * Set the number of consecutive failures that take a backend out of
+     * service.
+     *
+     * @param maxFailures the failure count; must be at least 1
+     */
+    public void setMaxFailures (int maxFailures)
+    {
+	if (maxFailures < 1)
+	{
+	    throw new IllegalArgumentException ("maxFailures < 1");
+	}
+
+	myMaxFailures = maxFailures;
+    }
+
+    /**
+     * Start a daemon thread which probes each backend by connecting to
+     * it, every so often.
+     *
+     * @param interval the time between rounds of probes, in msec
+     * @param timeout the time to wait for each probe to connect, in msec
+     */
+    public void startHealthChecks (final int interval, final int timeout)
+    {
+	if (interval <= 0)
+	{
+	    throw new IllegalArgumentException ("interval <= 0");
+	}
+
+	Thread t = new Thread ("ipforward-health")
+	{
+	    public void run ()
+	    {
+		for (;;)
+		{
+		    for (int i = 0; i < myBackends.length; i++)
+		    {
+			probe (myBackends[i], timeout);
+		    }
+
+		    try
+		    {
+			Thread.sleep (interval);
+		    }
+		    catch (InterruptedException ex)
+		    {
+			// ignore it
+		    }
+		}
+	    }
+	};
+
+	t.setDaemon (true);
+	t.start ();
+    }
+
+    /**
+     * Pick a backend for a connection from the given client, and count
+     * the connection as started on it. Only backends that are in service
+     * are considered, unless none are, in which case all of them are.
+     *
+     * @param client the address of the client
+     * @return the backend to forward to
+     */
+    public Backend choose (InetAddress client)
+    {
+	Backend result;
+
+	switch (myPolicy)
+	{
+	    case POLICY_LEAST_CONNECTIONS:
+	    {
+		result = chooseLeastConnections ();
+		break;
+	    }
+	    case POLICY_HASH:
+	    {
+		result = chooseHash (client);
+		break;
+	    }
+	    default:
+	    {
+		result = chooseRoundRobin ();
+		break;
+	    }
+	}
+
+	result.connectionStarted ();
+	return result;
+    }
+
+    /**
+     * Get the backends in this pool.
+     *
+     * @return the backends; must not be modified
+     */
+    /*package*/ Backend[] getBackends ()
+    {
+	return myBackends;
+    }
+
+    /**
+     * Report that a forwarded connection to the given backend succeeded.
+     *
+     * @param backend the backend
+     */
+    /*package*/ void connectSucceeded (Backend backend)
+    {
+	backend.succeeded ();
+    }
+
+    /**
+     * Report that a forwarded connection to the given backend failed.
+     *
+     * @param backend the backend
+     * @param ex the exception describing the failure
+     */
+    /*package*/ void connectFailed (Backend backend, IOException ex)
+    {
+	backend.failed (myMaxFailures, ex);
+    }
+
+    /**
+     * Probe the given backend.
+     *
+     * @param backend the backend to probe
+     * @param timeout the time to wait to connect, in msec
+     */
+    private void probe (Backend backend, int timeout)
+    {
+	backend.resolve ();
+
+	Socket s = new Socket ();
+	try
+	{
+	    s.connect (backend.getAddress (), timeout);
+	    backend.succeeded ();
+	}
+	catch (IOException ex)
+	{
+	    backend.failed (myMaxFailures, ex);
+	}
+	finally
+	{
+	    try
+	    {
+		s.close ();
+	    }
+	    catch (IOException ex)
+	    {
+		// ignore it
+	    }
+	}
+    }
+
+    /**
+     * Pick a backend by taking turns among the ones that are in service,
+     * so that each of those gets an even share.
+     *
+     * @return the backend
+     */
+    private Backend chooseRoundRobin ()
+    {
+	int turn;
+
+	synchronized (this)
+	{
+	    turn = myNextIndex;
+	    myNextIndex = (myNextIndex + 1) & Integer.MAX_VALUE;
+	}
+
+	int healthyCount = 0;
+	for (int i = 0; i < myBackends.length; i++)
+	{
+	    if (myBackends[i].isHealthy ())
+	    {
+		healthyCount++;
+	    }
+	}
+
+	if (healthyCount == 0)
+	{
+	    return myBackends[turn % myBackends.length];
+	}
+
+	int skip = turn % healthyCount;
+	for (int i = 0; i < myBackends.length; i++)
+	{
+	    Backend b = myBackends[i];
+	    if (b.isHealthy ())
+	    {
+		if (skip == 0)
+		{
+		    return b;
+		}
+		skip--;
+	    }
+	}
+
+	// the set of healthy backends changed out from under us
+	return myBackends[turn % myBackends.length];
+    }
+
+    /**
+     * Pick the backend with the fewest connections. Ties are broken by
+     * taking turns.
+     *
+     * @return the backend
+     */
+    private Backend chooseLeastConnections ()
+    {
+	int start;
+
+	synchronized (this)
+	{
+	    start = myNextIndex % myBackends.length;
+	    myNextIndex = (myNextIndex + 1) & Integer.MAX_VALUE;
+	}
+
+	Backend result = null;
+	int resultCount = Integer.MAX_VALUE;
+	boolean resultHealthy = false;
+
+	for (int i = 0; i < myBackends.length; i++)
+	{
+	    Backend b = myBackends[(start + i) % myBackends.length];
+	    boolean healthy = b.isHealthy ();
+	    int count = b.getConnectionCount ();
+
+	    if (   (healthy && ! resultHealthy)
+		|| ((healthy == resultHealthy) && (count < resultCount)))
+	    {
+		result = b;
+		resultCount = count;
+		resultHealthy = healthy;
+	    }
+	}
+
+	return result;
+    }
+
+    /**
+     * Pick the backend for the given client address from the hash ring:
+     * the first in-service backend at or after the address's position.
+     *
+     * @param client the address of the client
+     * @return the backend
+     */
+    private Backend chooseHash (InetAddress client)
+    {
+	int hash = mix (Arrays.hashCode (client.getAddress ()));
+	int at = Arrays.binarySearch (myRingHashes, hash);
+
+	if (at < 0)
+	{
+	    at = -(at + 1);
+	}
+
+	for (int i = 0; i < myRingHashes.length; i++)
+	{
+	    Backend b = myRingBackends[(at + i) % myRingHashes.length];
+	    if (b.isHealthy ())
+	    {
+		return b;
+	    }
+	}
+
+	return myRingBackends[at % myRingHashes.length];
+    }
+
+    /**
+     * Make the hash ring, with a number of points for each backend.
+     */
+    private void makeRing ()
+    {
+	int size = myBackends.length * RING_POINTS;
+	long[] points = new long[size];
+
+	for (int i = 0; i < myBackends.length; i++)
+	{
+	    String name = myBackends[i].toString ();
+	    for (int j = 0; j < RING_POINTS; j++)
+	    {
+		int hash = mix ((name + "#" + j).hashCode ());
+		// sort by hash; the low bits say which backend it is
+		points[i * RING_POINTS + j] = ((long) hash << 32) | i;
+	    }
+	}
+
+	Arrays.sort (points);
+
+	myRingHashes = new int[size];
+	myRingBackends = new Backend[size];
+
+	for (int i = 0; i < size; i++)
+	{
+	    myRingHashes[i] = (int) (points[i] >> 32);
+	    myRingBackends[i] = myBackends[(int) points[i]];
+	}
+    }
+
+    /**
+     * Scramble the bits of the given hash, so that similar inputs end up
+     * spread around the ring.
+     *
+     * @param hash the hash to scramble
+     * @return the scrambled hash
+     */
+    static private int mix (int hash)
+    {
+	hash ^= hash >>> 16;
+	hash *= 0x85ebca6b;
+	hash ^= hash >>> 13;
+	hash *= 0xc2b2ae35;
+	hash ^= hash >>> 16;
+	return hash;
+    }
+}
@@ -1,8 +1,14 @@
 package com.milk.ipforward;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
 
 /**
  * This is the workhorse class for doing the forwarding.
@@ -14,11 +20,30 @@ import java.net.Socket;
  */
 public class ForwardAcceptor
 {
-    /** the host to connect to */
-    private String myConnectHost;
+    /** engine constant: forward each connection with a pair of threads
+     * (see {@link Forwarder}) */
+    public static final int ENGINE_THREADS = 0;
 
-    /** the port to connect to */
-    private int myConnectPort;
+    /** engine constant: forward all connections through a few
+     * event-loop threads (see {@link NioForwarder}) */
+    public static final int ENGINE_NIO = 1;
+
+    /** the listen backlog */
+    static private final int BACKLOG = 1024;
+
+    /** the burst allowed by the connection rate limits, in seconds'
+     * worth of connections */
+    static private final double CONNECTION_BURST = 1.0;
+
+    /** the burst allowed by the bandwidth limits, in seconds' worth of
+     * bytes */
+    static private final double BANDWIDTH_BURST = 0.1;
+
+    /** how often to sweep idle per-client buckets away, in nsec */
+    static private final long SWEEP_NANOS = 10L * 1000 * 1000 * 1000;
+
+    /** the backends to forward to */
+    private BackendPool myBackends;
 
     /** the maximum number of connections to handle */
     private int myMaxConnections;
@@ -29,6 +54,60 @@ public class ForwardAcceptor
     /** the current number of connections */
     private int myConnectionCount;
 
+    /** the engine to use; one of the <code>ENGINE_*</code> constants */
+    private int myEngine;
+
+    /** null-ok; the forwarder to hand connections to, if using the
+     * NIO engine */
+    private NioForwarder myNioForwarder;
+
+    /** the size of the relay buffer for each direction of each
+     * connection; 0 means to use the engine's default */
+    private int myBufferSize;
+
+    /** the size to set the kernel's socket buffers to; 0 means to leave
+     * them alone */
+    private int mySocketBufferSize;
+
+    /** whether to set <code>TCP_NODELAY</code> on forwarded sockets */
+    private boolean myTcpNoDelay;
+
+    /** whether the threads engine should relay via channels and direct
+     * buffers instead of streams */
+    private boolean myUseChannels;
+
+    /** null-ok; the pool of ready-made backend connections, if any */
+    private IdleConnectionPool myIdlePool;
+
+    /** the traffic counters */
+    private TrafficStats myStats;
+
+    /** whether to log a line for each finished connection */
+    private boolean myLogConnections;
+
+    /** null-ok; the limit on new connections overall, if any */
+    private TokenBucket myConnectionBucket;
+
+    /** the limit on new connections from each client address, per
+     * second; 0 means no limit */
+    private double myClientRate;
+
+    /** map from client address to its connection rate
+     * {@link TokenBucket}; only touched by the accepting thread */
+    private HashMap<InetAddress, TokenBucket> myClientBuckets;
+
+    /** when the per-client buckets were last swept, as a
+     * <code>System.nanoTime()</code> value */
+    private long myLastSweep;
+
+    /** the limit on the bandwidth of each connection, in bytes per
+     * second; 0 means no limit */
+    private long myConnectionBandwidth;
+
+    /** null-ok; the limit on the bandwidth of all connections
+     * together, if any */
+    private TokenBucket myTotalBandwidthBucket;
+
     /**
      * Construct a <code>ForwardAcceptor</code>.
      *
@@ -42,14 +121,101 @@ public class ForwardAcceptor
 			    String connectHost, int connectPort,
 			    int maxConnections)
     {
-	myConnectHost = connectHost;
-	myConnectPort = connectPort;
+	this (listenPort, connectHost, connectPort, maxConnections,
+	      ENGINE_THREADS, 0);
+    }
+
+    /**
+     * Construct a <code>ForwardAcceptor</code> which uses the given
+     * engine.
+     *
+     * @param listenPort the port to listen to
+     * @param connectHost the host to connect to
+     * @param connectPort the port to connect to
+     * @param maxConnections the maximum number of connections to handle; if
+     * specified as 0, this means there is no limit
+     * @param engine the engine to use; one of the <code>ENGINE_*</code>
+     * constants
+     * @param loopCount the number of event-loop threads, for the NIO
+     * engine; if specified as 0, this means one per available processor
+     */
+    public ForwardAcceptor (int listenPort, 
+			    String connectHost, int connectPort,
+			    int maxConnections, int engine, int loopCount)
+    {
+	this (listenPort,
+	      new BackendPool (
+		  new Backend[] { new Backend (connectHost, connectPort) },
+		  BackendPool.POLICY_ROUND_ROBIN),
+	      maxConnections, engine, loopCount, 0);
+    }
+
+    /**
+     * Construct a <code>ForwardAcceptor</code> which forwards to the
+     * given pool of backends.
+     *
+     * @param listenPort the port to listen to
+     * @param backends the backends to forward to
+     * @param maxConnections the maximum number of connections to handle; if
+     * specified as 0, this means there is no limit
+     * @param engine the engine to use; one of the <code>ENGINE_*</code>
+     * constants
+     * @param loopCount the number of event-loop threads, for the NIO
+     * engine; if specified as 0, this means one per available processor
+     * @param socketBufferSize the size to set the kernel's send and
+     * receive buffers to for forwarded sockets; if specified as 0, this
+     * means to leave the system default alone. This has to be known up
+     * front, since the receive buffer of accepted sockets is inherited
+     * from the listening socket, and has to be set before it is bound
+     * for sizes over 64K to affect the TCP window.
+     */
+    public ForwardAcceptor (int listenPort, BackendPool backends,
+			    int maxConnections, int engine, int loopCount,
+			    int socketBufferSize)
+    {
+	if (socketBufferSize < 0)
+	{
+	    throw new IllegalArgumentException ("socketBufferSize < 0");
+	}
+
+	if ((engine != ENGINE_THREADS) && (engine != ENGINE_NIO))
+	{
+	    throw new IllegalArgumentException ("bad engine: " + engine);
+	}
+
+	myBackends = backends;
 	myMaxConnections = maxConnections;
+	myEngine = engine;
 
 	myConnectionCount = 0;
+	myBufferSize = 0;
+	mySocketBufferSize = socketBufferSize;
+	myTcpNoDelay = true;
+	myUseChannels = false;
+	myStats = new TrafficStats ();
+	myLogConnections = false;
+	myConnectionBucket = null;
+	myClientRate = 0;
+	myClientBuckets = new HashMap<InetAddress, TokenBucket> ();
+	myLastSweep = System.nanoTime ();
+	myConnectionBandwidth = 0;
+	myTotalBandwidthBucket = null;
+
 	try
 	{
-	    mySocket = new ServerSocket (listenPort);
+	    ServerSocketChannel chan = ServerSocketChannel.open ();
+	    if (socketBufferSize != 0)
+	    {
+		// accepted sockets inherit this from the listening socket
+		chan.socket ().setReceiveBufferSize (socketBufferSize);
+	    }
+	    chan.socket ().bind (new InetSocketAddress (listenPort), BACKLOG);
+	    mySocket = chan.socket ();
+
+	    if (engine == ENGINE_NIO)
+	    {
+		myNioForwarder = new NioForwarder (this, loopCount);
+	    }
 	}
 	catch (IOException ex)
 	{
@@ -58,12 +224,415 @@ public class ForwardAcceptor
 	}
     }
 
+    /**
+     * Set the size of the relay buffer used for each direction of each
+     * connection. This only affects connections accepted after the
+     * call.
+     *
+     * @param size the buffer size in bytes; if specified as 0, this
+     * means to use the engine's default
+     */
+    public void setBufferSize (int size)
+    {
+	if (size < 0)
+	{
+	    throw new IllegalArgumentException ("size < 0");
+	}
+
+	myBufferSize = size;
+    }
+
+    /**
+     * Set whether to set <code>TCP_NODELAY</code> on forwarded sockets.
+     * Since data is always written as soon as it is read, the default is
+     * to do so, so that small writes aren't held up.
+     *
+     * @param noDelay whether to set <code>TCP_NODELAY</code>
+     */
+    public void setTcpNoDelay (boolean noDelay)
+    {
+	myTcpNoDelay = noDelay;
+    }
+
+    /**
+     * Set whether the threads engine should relay data through socket
+     * channels and direct buffers, rather than through socket streams.
+     * Using channels avoids copying each block of data through the Java
+     * heap. This has no effect on the NIO engine, which always uses
+     * channels.
+     *
+     * @param useChannels whether to use channels
+     */
+    public void setUseChannels (boolean useChannels)
+    {
+	myUseChannels = useChannels;
+    }
+
+    /**
+     * Keep a pool of connections to each backend made ahead of time, so
+     * that new client connections don't have to wait for a backend
+     * connection to be made. See {@link IdleConnectionPool} for details,
+     * including the protocols this is suitable for.
+     *
+     * @param minIdle the minimum number of idle connections to keep for
+     * each backend; must be at least 1
+     * @param maxIdle the maximum number of idle connections to keep for
+     * each backend; must be at least <code>minIdle</code>
+     * @param maxAge the maximum time a connection may sit idle before
+     * it is discarded, in msec
+     */
+    public void setIdlePool (int minIdle, int maxIdle, int maxAge)
+    {
+	if (myIdlePool != null)
+	{
+	    throw new IllegalStateException ("idle pool already set");
+	}
+
+	myIdlePool = 
+	    new IdleConnectionPool (this, myBackends, minIdle, maxIdle, maxAge);
+    }
+
+    /**
+     * Get the traffic counters.
+     *
+     * @return the counters
+     */
+    public TrafficStats getStats ()
+    {
+	return myStats;
+    }
+
+    /**
+     * Get a report of the traffic counters and of the state of each
+     * backend, one value per line.
+     *
+     * @return the report
+     */
+    public String getStatus ()
+    {
+	StringBuffer sb = new StringBuffer (myStats.report ());
+	Backend[] backends = myBackends.getBackends ();
+
+	for (int i = 0; i < backends.length; i++)
+	{
+	    Backend b = backends[i];
+	    sb.append ("backend ");
+	    sb.append (b);
+	    sb.append (b.isHealthy () ? " up " : " down ");
+	    sb.append (b.getConnectionCount ());
+	    sb.append ('\n');
+	}
+
+	return sb.toString ();
+    }
+
+    /**
+     * Set whether to log a line (to <code>System.err</code>) for each
+     * finished connection, saying how many bytes went each way and how
+     * long it lasted.
+     *
+     * @param logConnections whether to log connections
+     */
+    public void setLogConnections (boolean logConnections)
+    {
+	myLogConnections = logConnections;
+    }
+
+    /**
+     * Start a daemon thread which logs a summary of the traffic
+     * counters (to <code>System.err</code>) every so often.
+     *
+     * @param interval the time between summaries, in msec
+     */
+    public void startStatsLog (final int interval)
+    {
+	if (interval <= 0)
+	{
+	    throw new IllegalArgumentException ("interval <= 0");
+	}
+
+	Thread t = new Thread ("ipforward-stats")
+	{
+	    public void run ()
+	    {
+		for (;;)
+		{
+		    try
+		    {
+			Thread.sleep (interval);
+		    }
+		    catch (InterruptedException ex)
+		    {
+			// ignore it
+		    }
+
+		    System.err.println ("stats: " + myStats.summarize ());
+		}
+	    }
+	};
+
+	t.setDaemon (true);
+	t.start ();
+    }
+
+    /**
+     * Limit the rate at which new connections get forwarded. Connections
+     * over the limit are closed as soon as they are accepted. Short
+     * bursts of up to a second's worth of connections are allowed.
+     *
+     * @param perSecond the maximum number of new connections per second,
+     * overall; 0 means no limit
+     * @param perClientPerSecond the maximum number of new connections
+     * per second from each client address; 0 means no limit
+     */
+    public void setConnectionRate (double perSecond, 
+				   double perClientPerSecond)
+    {
+	if ((perSecond < 0) || (perClientPerSecond < 0))
+	{
+	    throw new IllegalArgumentException ("rate < 0");
+	}
+
+	myConnectionBucket = (perSecond == 0) ? null :
+	    new TokenBucket (perSecond, 
+			     Math.max (1, perSecond * CONNECTION_BURST));
+	myClientRate = perClientPerSecond;
+    }
+
+    /**
+     * Limit the bandwidth of forwarded connections. Bytes are counted in
+     * both directions together. When a connection is over a limit, it
+     * stops reading until it is back under, so the peers see the
+     * limit as ordinary TCP flow control.
+     *
+     * @param perConnection the maximum bandwidth of each connection, in
+     * bytes per second; 0 means no limit
+     * @param total the maximum bandwidth of all connections together, in
+     * bytes per second; 0 means no limit
+     */
+    public void setBandwidth (long perConnection, long total)
+    {
+	if ((perConnection < 0) || (total < 0))
+	{
+	    throw new IllegalArgumentException ("bandwidth < 0");
+	}
+
+	myConnectionBandwidth = perConnection;
+	myTotalBandwidthBucket = (total == 0) ? null :
+	    new TokenBucket (total, total * BANDWIDTH_BURST);
+    }
+
+    /**
+     * Make the bandwidth limiter for a new connection, if there is a
+     * per-connection limit.
+     *
+     * @return null-ok; the limiter, if any
+     */
+    /*package*/ TokenBucket makeConnectionBandwidthBucket ()
+    {
+	if (myConnectionBandwidth == 0)
+	{
+	    return null;
+	}
+
+	return new TokenBucket (myConnectionBandwidth, 
+				myConnectionBandwidth * BANDWIDTH_BURST);
+    }
+
+    /**
+     * Get the bandwidth limiter for all connections together, if there
+     * is one.
+     *
+     * @return null-ok; the limiter, if any
+     */
+    /*package*/ TokenBucket getTotalBandwidthBucket ()
+    {
+	return myTotalBandwidthBucket;
+    }
+
+    /**
+     * Take the given number of bytes from the given per-connection
+     * bandwidth limiter and from the overall one, and return how long
+     * to wait before relaying any more.
+     *
+     * @param bucket null-ok; the per-connection limiter, if any
+     * @param count the number of bytes relayed
+     * @return the time to wait, in nsec
+     */
+    /*package*/ long throttle (TokenBucket bucket, long count)
+    {
+	if ((bucket == null) && (myTotalBandwidthBucket == null))
+	{
+	    return 0;
+	}
+
+	long now = System.nanoTime ();
+	long wait = 0;
+
+	if (bucket != null)
+	{
+	    wait = bucket.take (count, now);
+	}
+
+	if (myTotalBandwidthBucket != null)
+	{
+	    wait = Math.max (wait, myTotalBandwidthBucket.take (count, now));
+	}
+
+	return wait;
+    }
+
+    /**
+     * Decide whether to forward a new connection from the given client
+     * address, based on the connection rate limits. This is only called
+     * by the accepting thread.
+     *
+     * @param client the client's address
+     * @return whether to forward the connection
+     */
+    private boolean admit (InetAddress client)
+    {
+	if ((myConnectionBucket == null) && (myClientRate == 0))
+	{
+	    return true;
+	}
+
+	long now = System.nanoTime ();
+
+	if (myClientRate != 0)
+	{
+	    if ((now - myLastSweep) > SWEEP_NANOS)
+	    {
+		// forget about clients whose buckets have filled back up
+		Iterator<TokenBucket> i = myClientBuckets.values ().iterator ();
+		while (i.hasNext ())
+		{
+		    if (i.next ().isFull (now))
+		    {
+			i.remove ();
+		    }
+		}
+		myLastSweep = now;
+	    }
+
+	    TokenBucket bucket = myClientBuckets.get (client);
+	    if (bucket == null)
+	    {
+		bucket = 
+		    new TokenBucket (myClientRate,
+				     Math.max (1, myClientRate * 
+					       CONNECTION_BURST));
+		myClientBuckets.put (client, bucket);
+	    }
+
+	    if (! bucket.tryTake (1, now))
+	    {
+		return false;
+	    }
+	}
+
+	if (myConnectionBucket != null)
+	{
+	    return myConnectionBucket.tryTake (1, now);
+	}
+
+	return true;
+    }
+
+    /**
+     * Get the pool of ready-made backend connections, if any.
+     *
+     * @return null-ok; the pool
+     */
+    /*package*/ IdleConnectionPool getIdlePool ()
+    {
+	return myIdlePool;
+    }
+
+    /**
+     * Get the relay buffer size, given the default for the engine asking.
+     *
+     * @param defaultSize the engine's default size
+     * @return the buffer size to use
+     */
+    /*package*/ int getBufferSize (int defaultSize)
+    {
+	return (myBufferSize == 0) ? defaultSize : myBufferSize;
+    }
+
+    /**
+     * Get whether the threads engine should use channels.
+     *
+     * @return whether to use channels
+     */
+    /*package*/ boolean getUseChannels ()
+    {
+	return myUseChannels;
+    }
+
+    /**
+     * Apply the configured socket options to the given accepted
+     * socket. Its receive buffer was already taken care of by the
+     * listening socket.
+     *
+     * @param socket the socket to configure
+     */
+    /*package*/ void configureSocket (Socket socket)
+    throws IOException
+    {
+	socket.setTcpNoDelay (myTcpNoDelay);
+
+	if (mySocketBufferSize != 0)
+	{
+	    socket.setSendBufferSize (mySocketBufferSize);
+	}
+    }
+
+    /**
+     * Apply the configured socket options to the given outgoing socket.
+     * This must be called before connecting, so that the receive buffer
+     * size can affect the TCP window.
+     *
+     * @param socket the socket to configure
+     */
+    /*package*/ void configureOutgoingSocket (Socket socket)
+    throws IOException
+    {
+	configureSocket (socket);
+
+	if (mySocketBufferSize != 0)
+	{
+	    socket.setReceiveBufferSize (mySocketBufferSize);
+	}
+    }
+
     /**
      * This is called by a <code>Forwarder</code> when it's closing
      * up shop.
+     *
+     * @param startTime when the connection was accepted, as a
+     * <code>System.nanoTime()</code> value
+     * @param client the client's address
+     * @param backend null-ok; the backend the connection went to, if
+     * one was picked
+     * @param toHost the number of bytes relayed to the backend
+     * @param toClient the number of bytes relayed to the client
      */
-    /*package*/ void connectionDied ()
+    /*package*/ void connectionDied (long startTime, InetAddress client,
+				     Backend backend, long toHost, 
+				     long toClient)
     {
+	long lifetime = System.nanoTime () - startTime;
+	myStats.connectionClosed (lifetime);
+
+	if (myLogConnections)
+	{
+	    System.err.println ("connection from " + client + " to " +
+				backend + ": " + toHost + " bytes up, " +
+				toClient + " bytes down, " +
+				(lifetime / 1000000) + " ms");
+	}
+
 	synchronized (this)
 	{
 	    myConnectionCount--;
@@ -101,13 +670,31 @@ public class ForwardAcceptor
 		    }
 		}
 
-		Socket s = mySocket.accept ();
-		new Forwarder (this, s, myConnectHost, myConnectPort).doit ();
+		// the backend connection gets made off of this thread, so
+		// a slow backend can't hold up accepting
+		SocketChannel chan = mySocket.getChannel ().accept ();
+
+		if (! admit (chan.socket ().getInetAddress ()))
+		{
+		    myStats.connectionRejected ();
+		    chan.close ();
+		    continue;
+		}
 
 		synchronized (this)
 		{
 		    myConnectionCount++;
 		}
+		myStats.connectionAccepted ();
+
+		if (myEngine == ENGINE_NIO)
+		{
+		    myNioForwarder.forward (chan, myBackends);
+		}
+		else
+		{
+		    new Forwarder (this, chan.socket (), myBackends).doit ();
+		}
 	    }
 	    catch (IOException ex)
 	    {
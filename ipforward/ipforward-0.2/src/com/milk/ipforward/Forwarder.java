@@ -3,7 +3,10 @@ package com.milk.ipforward;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 
 /**
  * This is the class that actually handles a connection once it has
@@ -16,158 +19,355 @@ import java.net.Socket;
  */
 public class Forwarder
 {
+    /** the default size of the relay buffer for each direction */
+    static private final int DEFAULT_BUFFER_SIZE = 65536;
+
     /** the original acceptor */
     private ForwardAcceptor myAcceptor;
 
     /** client socket */
     private Socket myClientSocket;
 
-    /** input from the client */
-    private InputStream myClientInput;
-
-    /** output to the client */
-    private OutputStream myClientOutput;
-
-    /** host socket */
+    /** host socket; set once the host has been connected to */
     private Socket myHostSocket;
 
-    /** input from the target host */
-    private InputStream myHostInput;
+    /** the backends to pick from */
+    private BackendPool myBackends;
 
-    /** output to the target host */
-    private OutputStream myHostOutput;
+    /** the backend picked, once it has been */
+    private Backend myBackend;
 
     /** the thread count for this object (0, 1, 2); used to know
      * when to inform the acceptor that the connection is done */
     private int myThreadCount;
 
+    /** when the connection was accepted, as a
+     * <code>System.nanoTime()</code> value */
+    private long myStartTime;
+
+    /** the client's address */
+    private InetAddress myClientAddress;
+
+    /** null-ok; the bandwidth limiter for this connection, if any */
+    private TokenBucket myBandwidthBucket;
+
+    /** the number of bytes relayed to the host */
+    private long myBytesToHost;
+
+    /** the number of bytes relayed to the client */
+    private long myBytesToClient;
+
+    /** whether the sockets are being closed because of a problem in
+     * one direction; used to keep quiet about the resulting exception in
+     * the other direction */
+    private boolean myAborted;
+
     /**
      * Make a <code>Forwarder</code>.
      *
      * @param acceptor the original acceptor
      * @param socket the client socket
-     * @param host the host to connect to
-     * @param port the port to connect to
+     * @param backends the backends to pick from
      */
     public Forwarder (ForwardAcceptor acceptor, Socket socket,
-		      String host, int port)
-    throws IOException
+		      BackendPool backends)
     {
 	myAcceptor = acceptor;
 	myClientSocket = socket;
-	myClientInput = socket.getInputStream ();
-	myClientOutput = socket.getOutputStream ();
-
-	myHostSocket = new Socket (host, port);
-	myHostInput = myHostSocket.getInputStream ();
-	myHostOutput = myHostSocket.getOutputStream ();
-
+	myBackends = backends;
 	myThreadCount = 0;
+	myStartTime = System.nanoTime ();
+	myClientAddress = socket.getInetAddress ();
+	myBandwidthBucket = acceptor.makeConnectionBandwidthBucket ();
+	myBytesToHost = 0;
+	myBytesToClient = 0;
+	myAborted = false;
     }
 
     /**
-     * Do the actual forwarding thing. This merely sets some threads up
-     * and then returns.
+     * Do the actual forwarding thing. This merely sets a thread up
+     * and then returns. That thread connects to a backend, and then
+     * starts up the thread for the other direction.
      */
     public void doit ()
     {
 	synchronized (this)
 	{
-	    Thread t = new ForwardThread (myClientInput, myHostOutput);
-	    t.setDaemon (true);
-	    t.start ();
-	    
-	    t = new ForwardThread (myHostInput, myClientOutput);
-	    t.setDaemon (true);
-	    t.start ();
+	    myThreadCount = 1;
+	}
+
+	Thread t = new ForwardThread (true);
+	t.setDaemon (true);
+	t.start ();
+    }
+
+    /**
+     * Pick a backend and connect to it, or take a ready-made connection
+     * to it from the idle pool. If connecting fails, the backend gets
+     * told about it.
+     */
+    private void connect ()
+    throws IOException
+    {
+	myBackend = myBackends.choose (myClientAddress);
+	myAcceptor.configureSocket (myClientSocket);
+
+	IdleConnectionPool idle = myAcceptor.getIdlePool ();
+	if (idle != null)
+	{
+	    SocketChannel chan = idle.take (myBackend);
+	    if (chan != null)
+	    {
+		chan.configureBlocking (true);
+		myHostSocket = chan.socket ();
+		myAcceptor.getStats ().connected (System.nanoTime () - 
+						  myStartTime);
+		return;
+	    }
+	}
+
+	try
+	{
+	    SocketChannel chan = SocketChannel.open ();
+	    myHostSocket = chan.socket ();
+	    myAcceptor.configureOutgoingSocket (myHostSocket);
+	    chan.connect (myBackend.getAddress ());
+	}
+	catch (IOException ex)
+	{
+	    myBackends.connectFailed (myBackend, ex);
+	    throw ex;
 	}
+
+	myBackends.connectSucceeded (myBackend);
+	myAcceptor.getStats ().connected (System.nanoTime () - myStartTime);
     }
 
     /**
-     * This is a thread which knows how to read from input and write
-     * to output, ad infinitum.
+     * This is called by each thread when it's done. The last one to
+     * finish closes up shop.
+     */
+    private synchronized void threadDone ()
+    {
+	myThreadCount--;
+	if (myThreadCount == 0)
+	{
+	    myAcceptor.connectionDied (myStartTime, myClientAddress, myBackend,
+				       myBytesToHost, myBytesToClient);
+	    if (myBackend != null)
+	    {
+		myBackend.connectionEnded ();
+	    }
+	    closeSockets ();
+	}
+    }
+
+    /**
+     * Close both sockets, ignoring any problems in doing so.
+     */
+    private void closeSockets ()
+    {
+	try
+	{
+	    myClientSocket.close ();
+	}
+	catch (IOException ex)
+	{
+	    // ignore it
+	}
+
+	if (myHostSocket != null)
+	{
+	    try
+	    {
+		myHostSocket.close ();
+	    }
+	    catch (IOException ex)
+	    {
+		// ignore it
+	    }
+	}
+    }
+
+    /**
+     * This is a thread which knows how to read from one socket and write
+     * to another, until the first one reaches end-of-stream, at which
+     * point it shuts down the output of the second.
      */
     private class ForwardThread
     extends Thread
     {
-	private InputStream myInput;
-	private OutputStream myOutput;
+	private boolean myToHost;
+	private Socket mySource;
+	private Socket mySink;
 
-	public ForwardThread (InputStream input, OutputStream output)
+	public ForwardThread (boolean toHost)
 	{
-	    myInput = input;
-	    myOutput = output;
+	    myToHost = toHost;
 	}
 
 	public void run ()
 	{
-	    try
+	    if (myToHost)
 	    {
+		try
+		{
+		    connect ();
+		}
+		catch (IOException ex)
+		{
+		    System.err.println ("Could not connect to " + myBackend +
+					": " + ex);
+		    myAcceptor.getStats ().connectFailed ();
+		    threadDone ();
+		    return;
+		}
+
 		synchronized (Forwarder.this)
 		{
 		    myThreadCount++;
 		}
-		reallyRun ();
+
+		Thread t = new ForwardThread (false);
+		t.setDaemon (true);
+		t.start ();
+
+		mySource = myClientSocket;
+		mySink = myHostSocket;
 	    }
-	    catch (Exception ex)
+	    else
 	    {
-		System.err.println ("Exception during forward:");
-		ex.printStackTrace ();
+		mySource = myHostSocket;
+		mySink = myClientSocket;
 	    }
 
-	    synchronized (Forwarder.this)
+	    try
 	    {
-		myThreadCount--;
-		if (myThreadCount == 0)
+		if (myAcceptor.getUseChannels ())
 		{
-		    myAcceptor.connectionDied ();
-		    try
-		    {
-			myHostSocket.close ();
-		    }
-		    catch (IOException ex)
-		    {
-			ex.printStackTrace ();
-		    }
-		    try
-		    {
-			myClientSocket.close ();
-		    }
-		    catch (IOException ex)
+		    relayChannels ();
+		}
+		else
+		{
+		    relayStreams ();
+		}
+
+		// pass the half-close along
+		mySink.shutdownOutput ();
+	    }
+	    catch (IOException ex)
+	    {
+		synchronized (Forwarder.this)
+		{
+		    if (! myAborted)
 		    {
-			ex.printStackTrace ();
+			myAborted = true;
+			System.err.println ("Exception during forward: " + ex);
 		    }
 		}
+
+		// wake up the other direction, if it's still going
+		closeSockets ();
 	    }
+
+	    threadDone ();
 	}
 
-	public void reallyRun ()
+	/**
+	 * Relay using the sockets' streams and a heap buffer.
+	 */
+	private void relayStreams ()
 	throws IOException
 	{
-	    byte[] buf = new byte[1024];
+	    InputStream input = mySource.getInputStream ();
+	    OutputStream output = mySink.getOutputStream ();
+	    byte[] buf = 
+		new byte[myAcceptor.getBufferSize (DEFAULT_BUFFER_SIZE)];
 
 	    for (;;)
 	    {
-		int available = myInput.available ();
-		if (available == 0)
+		int count = input.read (buf);
+		if (count == -1)
 		{
-		    int c = myInput.read ();
-		    if (c == -1)
-		    {
-			break;
-		    }
-		    myOutput.write (c);
+		    break;
 		}
-		else
+		pace (count);
+		output.write (buf, 0, count);
+		counted (count);
+	    }
+	}
+
+	/**
+	 * Relay using the sockets' channels and a direct buffer, so that
+	 * the data never gets copied into the Java heap.
+	 */
+	private void relayChannels ()
+	throws IOException
+	{
+	    SocketChannel input = mySource.getChannel ();
+	    SocketChannel output = mySink.getChannel ();
+	    ByteBuffer buf = ByteBuffer.allocateDirect (
+		myAcceptor.getBufferSize (DEFAULT_BUFFER_SIZE));
+
+	    for (;;)
+	    {
+		int count = input.read (buf);
+		if (count == -1)
 		{
-		    if (available > buf.length)
-		    {
-			available = buf.length;
-		    }
-		    available = myInput.read (buf, 0, available);
-		    myOutput.write (buf, 0, available);
+		    break;
+		}
+
+		pace (count);
+		buf.flip ();
+		while (buf.hasRemaining ())
+		{
+		    output.write (buf);
+		}
+		buf.clear ();
+		counted (count);
+	    }
+	}
+
+	/**
+	 * Wait as long as the bandwidth limits say to, given that the
+	 * given number of bytes are about to be relayed.
+	 *
+	 * @param count the number of bytes
+	 */
+	private void pace (int count)
+	{
+	    long wait = myAcceptor.throttle (myBandwidthBucket, count);
+
+	    if (wait > 0)
+	    {
+		try
+		{
+		    Thread.sleep (wait / 1000000, (int) (wait % 1000000));
+		}
+		catch (InterruptedException ex)
+		{
+		    // ignore it
 		}
 	    }
 	}
+
+	/**
+	 * Count some bytes as relayed in this thread's direction.
+	 *
+	 * @param count the number of bytes
+	 */
+	private void counted (int count)
+	{
+	    if (myToHost)
+	    {
+		myBytesToHost += count;
+		myAcceptor.getStats ().addBytesToHost (count);
+	    }
+	    else
+	    {
+		myBytesToClient += count;
+		myAcceptor.getStats ().addBytesToClient (count);
+	    }
+	}
     }
 }
@@ -0,0 +1,310 @@
+package com.milk.ipforward;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * This is a pool of connections to the backends which have been made
+ * ahead of time, so that a client connection can be handed one that is
+ * ready to go instead of waiting for a connection to be made. A daemon
+ * thread keeps each in-service backend topped up to a minimum number of
+ * idle connections, making more (up to a maximum) when they are being
+ * used up quickly, and discards connections that have been sitting
+ * around too long. Before a connection is handed out, it gets checked
+ * to make sure the backend hasn't closed it.
+ *
+ * <p>Since the backend may have been connected to well before the
+ * client shows up, this is only suitable for protocols in which the
+ * client speaks first. A pooled connection on which the backend has
+ * sent something is treated as unusable.</p>
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ * @author Copyright 1999 Dan Bornstein, all rights reserved.
+ * @author This code may be used for any purpose whatsoever, so long
+ * as credit is appropriately given to the author.
+ */
+public class IdleConnectionPool
+{
+    /** the time to wait for each connection to be made, in msec */
+    static private final int CONNECT_TIMEOUT = 5000;
+
+    /** the longest time the refill thread sleeps between rounds, in
+     * msec */
+    static private final int REFILL_INTERVAL = 1000;
+
+    /** the original acceptor, which knows how to configure sockets */
+    private ForwardAcceptor myAcceptor;
+
+    /** the backends to make connections to */
+    private BackendPool myBackends;
+
+    /** the minimum number of idle connections per backend */
+    private int myMinIdle;
+
+    /** the maximum number of idle connections per backend */
+    private int myMaxIdle;
+
+    /** the maximum time a connection may sit idle, in msec */
+    private long myMaxAge;
+
+    /** map from each backend to its list of idle {@link Entry}s, the
+     * most recently made last */
+    private HashMap<Backend, LinkedList<Entry>> myIdle;
+
+    /** map from each backend to the number of connections taken from it
+     * since the last refill round, as an <code>int[1]</code> */
+    private HashMap<Backend, int[]> myTaken;
+
+    /**
+     * Make an <code>IdleConnectionPool</code>, and start its refill
+     * thread.
+     *
+     * @param acceptor the original acceptor
+     * @param backends the backends to make connections to
+     * @param minIdle the minimum number of idle connections to keep for
+     * each backend; must be at least 1
+     * @param maxIdle the maximum number of idle connections to keep for
+     * each backend; must be at least <code>minIdle</code>
+     * @param maxAge the maximum time a connection may sit idle before
+     * it is discarded, in msec
+     */
+    /*package*/ IdleConnectionPool (ForwardAcceptor acceptor,
+				    BackendPool backends,
+				    int minIdle, int maxIdle, int maxAge)
+    {
+	if (minIdle < 1)
+	{
+	    throw new IllegalArgumentException ("minIdle < 1");
+	}
+
+	if (maxIdle < minIdle)
+	{
+	    throw new IllegalArgumentException ("maxIdle < minIdle");
+	}
+
+	if (maxAge <= 0)
+	{
+	    throw new IllegalArgumentException ("maxAge <= 0");
+	}
+
+	myAcceptor = acceptor;
+	myBackends = backends;
+	myMinIdle = minIdle;
+	myMaxIdle = maxIdle;
+	myMaxAge = maxAge;
+	myIdle = new HashMap<Backend, LinkedList<Entry>> ();
+	myTaken = new HashMap<Backend, int[]> ();
+
+	Backend[] all = backends.getBackends ();
+	for (int i = 0; i < all.length; i++)
+	{
+	    myIdle.put (all[i], new LinkedList<Entry> ());
+	    myTaken.put (all[i], new int[1]);
+	}
+
+	Thread t = new Thread ("ipforward-idle-pool")
+	{
+	    public void run ()
+	    {
+		refillLoop ();
+	    }
+	};
+
+	t.setDaemon (true);
+	t.start ();
+    }
+
+    /**
+     * Take an idle connection to the given backend, if there is a live
+     * one. The result is in non-blocking mode.
+     *
+     * @param backend the backend
+     * @return null-ok; a connected channel, or <code>null</code> if there
+     * is no idle connection to hand out
+     */
+    public SocketChannel take (Backend backend)
+    {
+	LinkedList<Entry> idle = myIdle.get (backend);
+	long now = System.currentTimeMillis ();
+
+	synchronized (this)
+	{
+	    // let the refill thread know it has work to do
+	    myTaken.get (backend)[0]++;
+	    notifyAll ();
+	}
+
+	for (;;)
+	{
+	    Entry entry;
+
+	    synchronized (this)
+	    {
+		if (idle.isEmpty ())
+		{
+		    return null;
+		}
+
+		entry = idle.removeLast ();
+	    }
+
+	    if (((now - entry.myMadeAt) < myMaxAge) && isAlive (entry))
+	    {
+		return entry.myChannel;
+	    }
+
+	    close (entry.myChannel);
+	}
+    }
+
+    /**
+     * Return whether the given idle connection is still usable, that is,
+     * whether it is still open and the backend hasn't sent anything on
+     * it.
+     *
+     * @param entry the entry to check
+     * @return whether it is usable
+     */
+    private boolean isAlive (Entry entry)
+    {
+	try
+	{
+	    return entry.myChannel.read (ByteBuffer.allocate (1)) == 0;
+	}
+	catch (IOException ex)
+	{
+	    return false;
+	}
+    }
+
+    /**
+     * Run the refill loop. This never returns.
+     */
+    private void refillLoop ()
+    {
+	Backend[] all = myBackends.getBackends ();
+
+	for (;;)
+	{
+	    for (int i = 0; i < all.length; i++)
+	    {
+		refill (all[i]);
+	    }
+
+	    synchronized (this)
+	    {
+		try
+		{
+		    wait (Math.min (REFILL_INTERVAL, myMaxAge / 2 + 1));
+		}
+		catch (InterruptedException ex)
+		{
+		    // ignore it
+		}
+	    }
+	}
+    }
+
+    /**
+     * Drop stale connections to the given backend, and then make enough
+     * new ones to cover the minimum plus however many were taken since
+     * the last round, up to the maximum. A backend that is out of service
+     * has all its idle connections dropped instead.
+     *
+     * @param backend the backend to refill
+     */
+    private void refill (Backend backend)
+    {
+	LinkedList<Entry> idle = myIdle.get (backend);
+	long now = System.currentTimeMillis ();
+	boolean healthy = backend.isHealthy ();
+	int want;
+
+	synchronized (this)
+	{
+	    while (! idle.isEmpty ())
+	    {
+		Entry entry = idle.getFirst ();
+		if (healthy && ((now - entry.myMadeAt) < myMaxAge))
+		{
+		    break;
+		}
+		idle.removeFirst ();
+		close (entry.myChannel);
+	    }
+
+	    int[] taken = myTaken.get (backend);
+	    want = Math.min (myMinIdle + taken[0], myMaxIdle) - idle.size ();
+	    taken[0] = 0;
+	}
+
+	if (! healthy)
+	{
+	    return;
+	}
+
+	for (int i = 0; i < want; i++)
+	{
+	    SocketChannel chan = null;
+
+	    try
+	    {
+		chan = SocketChannel.open ();
+		myAcceptor.configureOutgoingSocket (chan.socket ());
+		chan.socket ().connect (backend.getAddress (), CONNECT_TIMEOUT);
+		chan.configureBlocking (false);
+	    }
+	    catch (IOException ex)
+	    {
+		if (chan != null)
+		{
+		    close (chan);
+		}
+		myBackends.connectFailed (backend, ex);
+		return;
+	    }
+
+	    myBackends.connectSucceeded (backend);
+
+	    synchronized (this)
+	    {
+		idle.addLast (new Entry (chan, System.currentTimeMillis ()));
+	    }
+	}
+    }
+
+    /**
+     * Close the given channel, ignoring any problems in doing so.
+     *
+     * @param chan the channel to close
+     */
+    static private void close (SocketChannel chan)
+    {
+	try
+	{
+	    chan.close ();
+	}
+	catch (IOException ex)
+	{
+	    // ignore it
+	}
+    }
+
+    /**
+     * This is an idle connection, along with when it was made.
+     */
+    static private class Entry
+    {
+	public SocketChannel myChannel;
+	public long myMadeAt;
+
+	public Entry (SocketChannel channel, long madeAt)
+	{
+	    myChannel = channel;
+	    myMadeAt = madeAt;
+	}
+    }
+}
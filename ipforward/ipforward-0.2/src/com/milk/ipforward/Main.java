@@ -1,5 +1,7 @@
 package com.milk.ipforward;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.StringTokenizer;
 
 /**
@@ -20,10 +22,63 @@ public class Main
      * <dl>
      * <dt>--help</dt><dd>print a brief help message</dd>
      * <dt>--listen <i>port</i></dt><dd>the port to listen on</dd>
-     * <dt>--connect <i>host</i>:<i>port</i></dt><dd>the target host
-     * to connect to</dd>
+     * <dt>--connect <i>host</i>:<i>port</i></dt><dd>a target host
+     * to connect to; may be specified more than once, to spread
+     * connections over several backends</dd>
+     * <dt>--policy <i>name</i></dt><dd>how to pick the backend for each
+     * connection: <code>round-robin</code> (the default),
+     * <code>least-connections</code>, or <code>hash</code>, which
+     * consistently sends each client address to the same backend</dd>
+     * <dt>--health-interval <i>msec</i></dt><dd>the time between health
+     * probes of the backends; 0 turns probing off; defaults to
+     * 5000</dd>
+     * <dt>--health-timeout <i>msec</i></dt><dd>the time to wait for each
+     * health probe to connect; defaults to 2000</dd>
+     * <dt>--max-failures <i>count</i></dt><dd>the number of failures in
+     * a row that take a backend out of service; defaults to 3</dd>
+     * <dt>--idle-min <i>count</i></dt><dd>keep at least this many
+     * connections to each backend made ahead of time, ready to hand to
+     * new clients; only suitable for protocols in which the client
+     * speaks first; defaults to 0, meaning no pool</dd>
+     * <dt>--idle-max <i>count</i></dt><dd>the most ready-made
+     * connections to keep for each backend; defaults to twice the
+     * minimum</dd>
+     * <dt>--idle-age <i>msec</i></dt><dd>the longest a ready-made
+     * connection may sit idle before being replaced; defaults to
+     * 30000</dd>
+     * <dt>--stats-interval <i>msec</i></dt><dd>log a summary of the
+     * traffic counters this often; defaults to 0, meaning never</dd>
+     * <dt>--log-connections</dt><dd>log a line for each finished
+     * connection</dd>
+     * <dt>--status-port <i>port</i></dt><dd>serve a plain-text status
+     * report over HTTP on the given port, on the loopback interface
+     * only</dd>
+     * <dt>--conn-rate <i>count</i></dt><dd>the most new connections to
+     * forward per second; ones over the limit are closed right away</dd>
+     * <dt>--client-conn-rate <i>count</i></dt><dd>the most new
+     * connections to forward per second from each client address</dd>
+     * <dt>--bandwidth <i>bytes</i></dt><dd>the most bytes per second
+     * to relay on each connection, counting both directions</dd>
+     * <dt>--total-bandwidth <i>bytes</i></dt><dd>the most bytes per
+     * second to relay over all connections together</dd>
      * <dt>--max <i>count</i></dt><dd>the maximum number of connections
      * to forward</dd>
+     * <dt>--engine <i>name</i></dt><dd>the forwarding engine to use:
+     * <code>threads</code> (the default) uses two threads per connection,
+     * and <code>nio</code> multiplexes all connections over a few
+     * event-loop threads</dd>
+     * <dt>--loops <i>count</i></dt><dd>the number of event-loop threads
+     * for the <code>nio</code> engine; defaults to the number of
+     * processors</dd>
+     * <dt>--buffer <i>bytes</i></dt><dd>the size of the relay buffer
+     * for each direction of each connection</dd>
+     * <dt>--socket-buffer <i>bytes</i></dt><dd>the size to set the
+     * kernel's socket send and receive buffers to</dd>
+     * <dt>--nodelay <i>on|off</i></dt><dd>whether to set
+     * <code>TCP_NODELAY</code> on forwarded sockets; defaults to
+     * <code>on</code></dd>
+     * <dt>--channels</dt><dd>have the <code>threads</code> engine relay
+     * through socket channels and direct buffers</dd>
      * </dl>
      *
      * @param args the arguments
@@ -31,9 +86,28 @@ public class Main
     public static void main (String[] args)
     {
 	int listenPort = -1;
-	String connectHost = null;
-	int connectPort = -1;
+	ArrayList<Backend> backends = new ArrayList<Backend> ();
+	int policy = BackendPool.POLICY_ROUND_ROBIN;
+	int healthInterval = 5000;
+	int healthTimeout = 2000;
+	int maxFailures = 3;
+	int idleMin = 0;
+	int idleMax = -1;
+	int idleAge = 30000;
+	int statsInterval = 0;
+	boolean logConnections = false;
+	int statusPort = -1;
+	double connRate = 0;
+	double clientConnRate = 0;
+	long bandwidth = 0;
+	long totalBandwidth = 0;
 	int maxConnections = 0;
+	int engine = ForwardAcceptor.ENGINE_THREADS;
+	int loopCount = 0;
+	int bufferSize = 0;
+	int socketBufferSize = 0;
+	boolean tcpNoDelay = true;
+	boolean useChannels = false;
 	boolean showHelp = false;
 
 	for (int i = 0; i < args.length; i++)
@@ -55,14 +129,150 @@ public class Main
 		{
 		    i++;
 		    StringTokenizer st = new StringTokenizer (args[i], ":");
-		    connectHost = st.nextToken ();
-		    connectPort = Integer.parseInt (st.nextToken ());
+		    String connectHost = st.nextToken ();
+		    int connectPort = Integer.parseInt (st.nextToken ());
+		    backends.add (new Backend (connectHost, connectPort));
+		}
+		else if (arg.equals ("--policy"))
+		{
+		    i++;
+		    if (args[i].equals ("round-robin"))
+		    {
+			policy = BackendPool.POLICY_ROUND_ROBIN;
+		    }
+		    else if (args[i].equals ("least-connections"))
+		    {
+			policy = BackendPool.POLICY_LEAST_CONNECTIONS;
+		    }
+		    else if (args[i].equals ("hash"))
+		    {
+			policy = BackendPool.POLICY_HASH;
+		    }
+		    else
+		    {
+			throw new IllegalArgumentException ();
+		    }
+		}
+		else if (arg.equals ("--health-interval"))
+		{
+		    i++;
+		    healthInterval = Integer.parseInt (args[i]);
+		}
+		else if (arg.equals ("--health-timeout"))
+		{
+		    i++;
+		    healthTimeout = Integer.parseInt (args[i]);
+		}
+		else if (arg.equals ("--max-failures"))
+		{
+		    i++;
+		    maxFailures = Integer.parseInt (args[i]);
+		}
+		else if (arg.equals ("--idle-min"))
+		{
+		    i++;
+		    idleMin = Integer.parseInt (args[i]);
+		}
+		else if (arg.equals ("--idle-max"))
+		{
+		    i++;
+		    idleMax = Integer.parseInt (args[i]);
+		}
+		else if (arg.equals ("--idle-age"))
+		{
+		    i++;
+		    idleAge = Integer.parseInt (args[i]);
+		}
+		else if (arg.equals ("--stats-interval"))
+		{
+		    i++;
+		    statsInterval = Integer.parseInt (args[i]);
+		}
+		else if (arg.equals ("--log-connections"))
+		{
+		    logConnections = true;
+		}
+		else if (arg.equals ("--status-port"))
+		{
+		    i++;
+		    statusPort = Integer.parseInt (args[i]);
+		}
+		else if (arg.equals ("--conn-rate"))
+		{
+		    i++;
+		    connRate = Double.parseDouble (args[i]);
+		}
+		else if (arg.equals ("--client-conn-rate"))
+		{
+		    i++;
+		    clientConnRate = Double.parseDouble (args[i]);
+		}
+		else if (arg.equals ("--bandwidth"))
+		{
+		    i++;
+		    bandwidth = Long.parseLong (args[i]);
+		}
+		else if (arg.equals ("--total-bandwidth"))
+		{
+		    i++;
+		    totalBandwidth = Long.parseLong (args[i]);
 		}
 		else if (arg.equals ("--max"))
 		{
 		    i++;
 		    maxConnections = Integer.parseInt (args[i]);
 		}
+		else if (arg.equals ("--engine"))
+		{
+		    i++;
+		    if (args[i].equals ("threads"))
+		    {
+			engine = ForwardAcceptor.ENGINE_THREADS;
+		    }
+		    else if (args[i].equals ("nio"))
+		    {
+			engine = ForwardAcceptor.ENGINE_NIO;
+		    }
+		    else
+		    {
+			throw new IllegalArgumentException ();
+		    }
+		}
+		else if (arg.equals ("--loops"))
+		{
+		    i++;
+		    loopCount = Integer.parseInt (args[i]);
+		}
+		else if (arg.equals ("--buffer"))
+		{
+		    i++;
+		    bufferSize = Integer.parseInt (args[i]);
+		}
+		else if (arg.equals ("--socket-buffer"))
+		{
+		    i++;
+		    socketBufferSize = Integer.parseInt (args[i]);
+		}
+		else if (arg.equals ("--nodelay"))
+		{
+		    i++;
+		    if (args[i].equals ("on"))
+		    {
+			tcpNoDelay = true;
+		    }
+		    else if (args[i].equals ("off"))
+		    {
+			tcpNoDelay = false;
+		    }
+		    else
+		    {
+			throw new IllegalArgumentException ();
+		    }
+		}
+		else if (arg.equals ("--channels"))
+		{
+		    useChannels = true;
+		}
 	    }
 	    catch (Exception ex)
 	    {
@@ -72,7 +282,7 @@ public class Main
 	}
 
 	if (   (listenPort == -1)
-	    || (connectPort == -1))
+	    || (backends.size () == 0))
 	{
 	    System.err.println (
                 "You must specify the \"--listen\" and " +
@@ -86,16 +296,75 @@ public class Main
                 "Options:\n" +
 		"  --help  print this message\n" +
 		"  --listen <port>  the port to listen to\n" +
-		"  --connect <host>:<port>  the target to connect to\n" +
-		"  --max <count>  the maximum number of connections to handle"
+		"  --connect <host>:<port>  a target to connect to (repeatable)\n" +
+		"  --policy round-robin|least-connections|hash  how to pick\n" +
+		"      the target for each connection\n" +
+		"  --health-interval <msec>  time between probes (0 for none)\n" +
+		"  --health-timeout <msec>  time to wait for each probe\n" +
+		"  --max-failures <count>  failures that take a target out\n" +
+		"  --idle-min <count>  ready-made connections per target\n" +
+		"  --idle-max <count>  most ready-made connections per target\n" +
+		"  --idle-age <msec>  longest a ready-made connection may idle\n" +
+		"  --stats-interval <msec>  how often to log traffic stats\n" +
+		"  --log-connections  log each finished connection\n" +
+		"  --status-port <port>  serve a status report over HTTP\n" +
+		"  --conn-rate <count>  most new connections per second\n" +
+		"  --client-conn-rate <count>  most per second per client\n" +
+		"  --bandwidth <bytes>  most bytes per second per connection\n" +
+		"  --total-bandwidth <bytes>  most bytes per second overall\n" +
+		"  --max <count>  the maximum number of connections to handle\n" +
+		"  --engine threads|nio  the forwarding engine to use\n" +
+		"  --loops <count>  the number of event loops for the nio engine\n" +
+		"  --buffer <bytes>  the relay buffer size per direction\n" +
+		"  --socket-buffer <bytes>  the kernel socket buffer size\n" +
+		"  --nodelay on|off  whether to set TCP_NODELAY\n" +
+		"  --channels  relay via channels with the threads engine"
 		);
 	    System.exit (0);
 	}
 
+	BackendPool pool = 
+	    new BackendPool (backends.toArray (new Backend[0]),
+			     policy);
+	pool.setMaxFailures (maxFailures);
+	if (healthInterval > 0)
+	{
+	    pool.startHealthChecks (healthInterval, healthTimeout);
+	}
+
 	ForwardAcceptor fa = 
-	    new ForwardAcceptor (listenPort, 
-				 connectHost, connectPort, 
-				 maxConnections);
+	    new ForwardAcceptor (listenPort, pool,
+				 maxConnections, engine, loopCount,
+				 socketBufferSize);
+	fa.setBufferSize (bufferSize);
+	fa.setTcpNoDelay (tcpNoDelay);
+	fa.setUseChannels (useChannels);
+	fa.setConnectionRate (connRate, clientConnRate);
+	fa.setBandwidth (bandwidth, totalBandwidth);
+	if (idleMin > 0)
+	{
+	    fa.setIdlePool (idleMin, (idleMax < 0) ? (idleMin * 2) : idleMax, 
+			    idleAge);
+	}
+
+	fa.setLogConnections (logConnections);
+	if (statsInterval > 0)
+	{
+	    fa.startStatsLog (statsInterval);
+	}
+
+	if (statusPort != -1)
+	{
+	    try
+	    {
+		new StatusServer (fa, statusPort, true).start ();
+	    }
+	    catch (IOException ex)
+	    {
+		System.err.println ("Could not make socket for status:");
+		ex.printStackTrace ();
+	    }
+	}
 	fa.doit ();
     }
 }
@@ -0,0 +1,814 @@
+package com.milk.ipforward;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * This is the forwarding engine which relays all the connections
+ * through a small, fixed set of event-loop threads, instead of using
+ * two threads per connection the way {@link Forwarder} does. Each
+ * accepted connection is assigned to one of the loops, which connects
+ * to the target host without blocking and then shuttles bytes in
+ * both directions as the sockets become ready. Each direction has its
+ * own buffer, and when one side finishes sending, only that direction
+ * is shut down, so half-closed connections keep working.
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ * @author Copyright 1999 Dan Bornstein, all rights reserved.
+ * @author This code may be used for any purpose whatsoever, so long
+ * as credit is appropriately given to the author.
+ */
+public class NioForwarder
+{
+    /** the default size of the buffer for each direction of each
+     * connection; this is kept small, since there may be a great many
+     * connections */
+    static private final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /** the maximum number of buffers each loop keeps around for reuse
+     * after their connections have closed */
+    static private final int MAX_FREE_BUFFERS = 64;
+
+    /** the original acceptor */
+    private ForwardAcceptor myAcceptor;
+
+    /** the event loops */
+    private EventLoop[] myLoops;
+
+    /** the index of the loop to hand the next connection to */
+    private int myNextLoop;
+
+    /**
+     * Make a <code>NioForwarder</code>, and start its event-loop threads.
+     *
+     * @param acceptor the original acceptor
+     * @param loopCount the number of event-loop threads to use; if
+     * specified as 0, this means one per available processor
+     */
+    public NioForwarder (ForwardAcceptor acceptor, int loopCount)
+    throws IOException
+    {
+	if (loopCount <= 0)
+	{
+	    loopCount = Runtime.getRuntime ().availableProcessors ();
+	}
+
+	myAcceptor = acceptor;
+	myLoops = new EventLoop[loopCount];
+	myNextLoop = 0;
+
+	for (int i = 0; i < loopCount; i++)
+	{
+	    myLoops[i] = new EventLoop (i);
+	    myLoops[i].setDaemon (true);
+	    myLoops[i].start ();
+	}
+    }
+
+    /**
+     * Forward the given newly-accepted client connection to one of the
+     * given backends. This merely hands the connection to one of the
+     * event loops and then returns.
+     *
+     * @param client the client channel
+     * @param backends the backends to pick from
+     */
+    public void forward (SocketChannel client, BackendPool backends)
+    {
+	EventLoop loop;
+
+	synchronized (this)
+	{
+	    loop = myLoops[myNextLoop];
+	    myNextLoop = (myNextLoop + 1) % myLoops.length;
+	}
+
+	loop.add (new Relay (client, backends));
+    }
+
+    /**
+     * This is a thread which runs a selector over some number of
+     * relayed connections.
+     */
+    private class EventLoop
+    extends Thread
+    {
+	/** the selector for this loop */
+	private Selector mySelector;
+
+	/** the relays waiting to be started on this loop */
+	private LinkedList<Relay> myPending;
+
+	/** the directions whose reading is paused by the bandwidth
+	 * limits; only touched by the loop's own thread */
+	private LinkedList<Direction> myPaused;
+
+	/** the buffers of closed connections, ready to be reused, since
+	 * direct buffers only get freed by the garbage collector; only
+	 * touched by the loop's own thread */
+	private LinkedList<ByteBuffer> myFreeBuffers;
+
+	public EventLoop (int index)
+	throws IOException
+	{
+	    super ("ipforward-loop-" + index);
+	    mySelector = Selector.open ();
+	    myPending = new LinkedList<Relay> ();
+	    myPaused = new LinkedList<Direction> ();
+	    myFreeBuffers = new LinkedList<ByteBuffer> ();
+	}
+
+	/**
+	 * Add a relay to this loop. It gets started on the loop's own
+	 * thread.
+	 *
+	 * @param relay the relay to add
+	 */
+	public void add (Relay relay)
+	{
+	    synchronized (myPending)
+	    {
+		myPending.add (relay);
+	    }
+
+	    mySelector.wakeup ();
+	}
+
+	public void run ()
+	{
+	    for (;;)
+	    {
+		try
+		{
+		    long timeout = pauseTimeout ();
+		    if (timeout == 0)
+		    {
+			mySelector.select ();
+		    }
+		    else
+		    {
+			mySelector.select (timeout);
+		    }
+		}
+		catch (IOException ex)
+		{
+		    System.err.println ("Exception during select:");
+		    ex.printStackTrace ();
+		    continue;
+		}
+
+		for (;;)
+		{
+		    Relay relay;
+		    synchronized (myPending)
+		    {
+			if (myPending.isEmpty ())
+			{
+			    break;
+			}
+			relay = myPending.removeFirst ();
+		    }
+		    relay.start (this);
+		}
+
+		resumePaused ();
+
+		Iterator<SelectionKey> keys = mySelector.selectedKeys ().iterator ();
+		while (keys.hasNext ())
+		{
+		    SelectionKey key = keys.next ();
+		    keys.remove ();
+		    End end = (End) key.attachment ();
+		    end.myRelay.handle (key);
+		}
+	    }
+	}
+
+	/**
+	 * Get a buffer for one direction of a connection, reusing one
+	 * from a closed connection if there is one. This must be called on
+	 * the loop's own thread.
+	 *
+	 * @return the buffer, empty
+	 */
+	public ByteBuffer takeBuffer ()
+	{
+	    if (myFreeBuffers.isEmpty ())
+	    {
+		return ByteBuffer.allocateDirect (
+		    myAcceptor.getBufferSize (DEFAULT_BUFFER_SIZE));
+	    }
+
+	    return myFreeBuffers.removeLast ();
+	}
+
+	/**
+	 * Give back a buffer that was gotten from {@link #takeBuffer},
+	 * once its connection has closed. This must be called on the
+	 * loop's own thread.
+	 *
+	 * @param buf null-ok; the buffer, if any
+	 */
+	public void giveBuffer (ByteBuffer buf)
+	{
+	    if ((buf != null) && (myFreeBuffers.size () < MAX_FREE_BUFFERS))
+	    {
+		buf.clear ();
+		myFreeBuffers.add (buf);
+	    }
+	}
+
+	/**
+	 * Pause reading in the given direction until its resume time
+	 * comes. This must be called on the loop's own thread.
+	 *
+	 * @param dir the direction to pause
+	 */
+	public void pause (Direction dir)
+	{
+	    myPaused.add (dir);
+	}
+
+	/**
+	 * Get the time until the earliest paused direction is to be
+	 * resumed.
+	 *
+	 * @return the time in msec, at least 1; or 0 if nothing is paused
+	 */
+	private long pauseTimeout ()
+	{
+	    if (myPaused.isEmpty ())
+	    {
+		return 0;
+	    }
+
+	    long earliest = Long.MAX_VALUE;
+	    Iterator<Direction> dirs = myPaused.iterator ();
+	    while (dirs.hasNext ())
+	    {
+		earliest = Math.min (earliest,
+				     dirs.next ().myResumeAt);
+	    }
+
+	    long wait = (earliest - System.nanoTime ()) / 1000000;
+	    return Math.max (wait, 1);
+	}
+
+	/**
+	 * Resume reading in each paused direction whose time has come, and
+	 * forget about the ones whose relays have been closed.
+	 */
+	private void resumePaused ()
+	{
+	    if (myPaused.isEmpty ())
+	    {
+		return;
+	    }
+
+	    long now = System.nanoTime ();
+	    Iterator<Direction> dirs = myPaused.iterator ();
+	    while (dirs.hasNext ())
+	    {
+		Direction dir = dirs.next ();
+		Relay relay = dir.mySource.myRelay;
+
+		if (relay.isClosed ())
+		{
+		    dirs.remove ();
+		}
+		else if (dir.myResumeAt <= now)
+		{
+		    dirs.remove ();
+		    dir.myResumeAt = 0;
+		    relay.updateInterest ();
+		}
+	    }
+	}
+    }
+
+    /**
+     * This is the state for a single forwarded connection.
+     */
+    private class Relay
+    {
+	/** the backends to pick from */
+	private BackendPool myBackends;
+
+	/** the backend picked, once it has been */
+	private Backend myBackend;
+
+	/** the client side */
+	private End myClient;
+
+	/** the host side */
+	private End myHost;
+
+	/** whether the host connection has been established */
+	private boolean myConnected;
+
+	/** whether this relay has been closed */
+	private boolean myClosed;
+
+	/** when the connection was accepted, as a
+	 * <code>System.nanoTime()</code> value */
+	private long myStartTime;
+
+	/** the client's address */
+	private InetAddress myClientAddress;
+
+	/** null-ok; the bandwidth limiter for this connection, if any */
+	private TokenBucket myBucket;
+
+	/** the loop this relay runs on, once started */
+	private EventLoop myLoop;
+
+	public Relay (SocketChannel client, BackendPool backends)
+	{
+	    myStartTime = System.nanoTime ();
+	    myClientAddress = client.socket ().getInetAddress ();
+	    myBucket = myAcceptor.makeConnectionBandwidthBucket ();
+	    myBackends = backends;
+	    myClient = new End (this, client);
+	    myHost = new End (this, null);
+	    myConnected = false;
+	    myClosed = false;
+
+	    Direction toHost = new Direction (myClient, myHost, true);
+	    Direction toClient = new Direction (myHost, myClient, false);
+	    myClient.myIn = toHost;
+	    myClient.myOut = toClient;
+	    myHost.myIn = toClient;
+	    myHost.myOut = toHost;
+	}
+
+	/**
+	 * Start relaying, on the given loop. This picks a backend and
+	 * initiates the connection to it, or takes a ready-made connection
+	 * to it from the idle pool.
+	 *
+	 * @param loop the loop to run on
+	 */
+	public void start (EventLoop loop)
+	{
+	    Selector selector = loop.mySelector;
+	    myLoop = loop;
+	    SocketChannel client = myClient.myChannel;
+	    myClient.myIn.myBuffer = loop.takeBuffer ();
+	    myHost.myIn.myBuffer = loop.takeBuffer ();
+
+	    try
+	    {
+		myAcceptor.configureSocket (client.socket ());
+		client.configureBlocking (false);
+		myClient.myKey = client.register (selector, 0, myClient);
+	    }
+	    catch (IOException ex)
+	    {
+		close (ex);
+		return;
+	    }
+
+	    myBackend = myBackends.choose (myClientAddress);
+
+	    IdleConnectionPool idle = myAcceptor.getIdlePool ();
+	    if (idle != null)
+	    {
+		SocketChannel host = idle.take (myBackend);
+		if (host != null)
+		{
+		    myHost.myChannel = host;
+		    myConnected = true;
+		    myAcceptor.getStats ().connected (System.nanoTime () -
+						      myStartTime);
+		    try
+		    {
+			myHost.myKey = host.register (selector, 0, myHost);
+		    }
+		    catch (IOException ex)
+		    {
+			close (ex);
+			return;
+		    }
+		    updateInterest ();
+		    return;
+		}
+	    }
+
+	    try
+	    {
+		SocketChannel host = SocketChannel.open ();
+		myHost.myChannel = host;
+		myAcceptor.configureOutgoingSocket (host.socket ());
+		host.configureBlocking (false);
+		myConnected = host.connect (myBackend.getAddress ());
+		myHost.myKey = host.register (selector, 0, myHost);
+	    }
+	    catch (IOException ex)
+	    {
+		connectFailed (ex);
+		close (ex);
+		return;
+	    }
+
+	    if (myConnected)
+	    {
+		connected ();
+	    }
+
+	    updateInterest ();
+	}
+
+	/**
+	 * Handle readiness of the given key, which belongs to one of the
+	 * two ends of this relay.
+	 *
+	 * @param key the key that is ready
+	 */
+	public void handle (SelectionKey key)
+	{
+	    if (myClosed)
+	    {
+		// the other end's key was selected in the same round
+		return;
+	    }
+
+	    End end = (End) key.attachment ();
+
+	    try
+	    {
+		if (key.isConnectable ())
+		{
+		    try
+		    {
+			myHost.myChannel.finishConnect ();
+		    }
+		    catch (IOException ex)
+		    {
+			connectFailed (ex);
+			throw ex;
+		    }
+
+		    connected ();
+		    myHost.myOut.flush ();
+		}
+
+		if (key.isValid () && key.isReadable ())
+		{
+		    end.myIn.read ();
+		}
+
+		if (key.isValid () && key.isWritable ())
+		{
+		    end.myOut.flush ();
+		}
+
+		if (myClient.myIn.isDone () && myHost.myIn.isDone ())
+		{
+		    close (null);
+		}
+		else
+		{
+		    updateInterest ();
+		}
+	    }
+	    catch (IOException ex)
+	    {
+		close (ex);
+	    }
+	}
+
+	/**
+	 * Note that the host connection has been established.
+	 */
+	private void connected ()
+	{
+	    myConnected = true;
+	    myBackends.connectSucceeded (myBackend);
+	    myAcceptor.getStats ().connected (System.nanoTime () - myStartTime);
+	}
+
+	/**
+	 * Note that the host connection couldn't be made.
+	 *
+	 * @param ex the exception describing the failure
+	 */
+	private void connectFailed (IOException ex)
+	{
+	    myBackends.connectFailed (myBackend, ex);
+	    myAcceptor.getStats ().connectFailed ();
+	}
+
+	/**
+	 * Set the interest ops of both ends based on the current state of
+	 * the buffers.
+	 */
+	private void updateInterest ()
+	{
+	    if (myConnected)
+	    {
+		myHost.updateInterest ();
+	    }
+	    else
+	    {
+		myHost.myKey.interestOps (SelectionKey.OP_CONNECT);
+	    }
+
+	    myClient.updateInterest ();
+	}
+
+	/**
+	 * Close both sides of this relay, and let the acceptor know the
+	 * connection is gone.
+	 *
+	 * @param ex null-ok; the exception that caused the close, if any
+	 */
+	private void close (IOException ex)
+	{
+	    if (myClosed)
+	    {
+		return;
+	    }
+
+	    myClosed = true;
+
+	    if (ex != null)
+	    {
+		System.err.println ("Exception during forward: " + ex);
+	    }
+
+	    myClient.close ();
+	    myHost.close ();
+	    myAcceptor.connectionDied (myStartTime, myClientAddress, myBackend, 
+				       myClient.myIn.getTotal (), 
+				       myHost.myIn.getTotal ());
+
+	    myLoop.giveBuffer (myClient.myIn.myBuffer);
+	    myLoop.giveBuffer (myHost.myIn.myBuffer);
+	    myClient.myIn.myBuffer = null;
+	    myHost.myIn.myBuffer = null;
+
+	    if (myBackend != null)
+	    {
+		myBackend.connectionEnded ();
+	    }
+	}
+
+	/**
+	 * Return whether this relay has been closed.
+	 *
+	 * @return whether this relay has been closed
+	 */
+	public boolean isClosed ()
+	{
+	    return myClosed;
+	}
+
+	/**
+	 * Pause reading in the given direction, if the bandwidth limits
+	 * say to, given that the given number of bytes were just read.
+	 *
+	 * @param dir the direction
+	 * @param count the number of bytes read
+	 */
+	public void throttle (Direction dir, int count)
+	{
+	    long wait = myAcceptor.throttle (myBucket, count);
+
+	    if (wait > 0)
+	    {
+		dir.myResumeAt = System.nanoTime () + wait;
+		myLoop.pause (dir);
+	    }
+	}
+
+	/**
+	 * Return whether the host side has connected.
+	 *
+	 * @return whether the host side has connected
+	 */
+	public boolean isConnected ()
+	{
+	    return myConnected;
+	}
+    }
+
+    /**
+     * This is one of the two sockets of a relay.
+     */
+    private class End
+    {
+	/** the relay this is part of */
+	public Relay myRelay;
+
+	/** the channel */
+	public SocketChannel myChannel;
+
+	/** the key of the channel, once registered */
+	public SelectionKey myKey;
+
+	/** the direction that reads from this end */
+	public Direction myIn;
+
+	/** the direction that writes to this end */
+	public Direction myOut;
+
+	public End (Relay relay, SocketChannel channel)
+	{
+	    myRelay = relay;
+	    myChannel = channel;
+	}
+
+	/**
+	 * Set the interest ops of this end based on the state of the
+	 * buffers: read while there is space to read into, and write while
+	 * there is anything to write.
+	 */
+	public void updateInterest ()
+	{
+	    int ops = 0;
+
+	    if (myIn.wantsRead ())
+	    {
+		ops |= SelectionKey.OP_READ;
+	    }
+
+	    if (myOut.wantsWrite ())
+	    {
+		ops |= SelectionKey.OP_WRITE;
+	    }
+
+	    myKey.interestOps (ops);
+	}
+
+	/**
+	 * Close this end, ignoring any problems in doing so.
+	 */
+	public void close ()
+	{
+	    if (myChannel == null)
+	    {
+		return;
+	    }
+
+	    try
+	    {
+		myChannel.close ();
+	    }
+	    catch (IOException ex)
+	    {
+		// ignore it
+	    }
+	}
+    }
+
+    /**
+     * This is one direction of a relay, along with its buffer.
+     */
+    private class Direction
+    {
+	/** the end to read from */
+	private End mySource;
+
+	/** the end to write to */
+	private End mySink;
+
+	/** the buffer, in filling mode; the data to write is between 0
+	 * and the position; this is taken from the loop when the relay
+	 * starts and given back when it closes */
+	private ByteBuffer myBuffer;
+
+	/** whether the source has reached end-of-stream */
+	private boolean myEof;
+
+	/** whether the output of the sink has been shut down */
+	private boolean myShutdown;
+
+	/** whether this is the direction toward the host */
+	private boolean myToHost;
+
+	/** the number of bytes written to the sink */
+	private long myTotal;
+
+	/** when to resume reading, as a <code>System.nanoTime()</code>
+	 * value, if reading is paused by the bandwidth limits; otherwise
+	 * <code>0</code> */
+	private long myResumeAt;
+
+	public Direction (End source, End sink, boolean toHost)
+	{
+	    mySource = source;
+	    mySink = sink;
+	    myToHost = toHost;
+	    myTotal = 0;
+	    myResumeAt = 0;
+	    myBuffer = null;
+	    myEof = false;
+	    myShutdown = false;
+	}
+
+	/**
+	 * Read whatever is available from the source, and then try to
+	 * write it right away.
+	 */
+	public void read ()
+	throws IOException
+	{
+	    int count = mySource.myChannel.read (myBuffer);
+	    if (count < 0)
+	    {
+		myEof = true;
+	    }
+	    else if (count > 0)
+	    {
+		mySource.myRelay.throttle (this, count);
+	    }
+
+	    flush ();
+	}
+
+	/**
+	 * Write as much of the buffer as the sink will take without
+	 * blocking. Once the source has reached end-of-stream and the
+	 * buffer is empty, the sink's output is shut down.
+	 */
+	public void flush ()
+	throws IOException
+	{
+	    if (! mySink.myRelay.isConnected ())
+	    {
+		return;
+	    }
+
+	    if (myBuffer.position () != 0)
+	    {
+		myBuffer.flip ();
+		int count = mySink.myChannel.write (myBuffer);
+		myBuffer.compact ();
+
+		myTotal += count;
+		if (myToHost)
+		{
+		    myAcceptor.getStats ().addBytesToHost (count);
+		}
+		else
+		{
+		    myAcceptor.getStats ().addBytesToClient (count);
+		}
+	    }
+
+	    if (myEof && (myBuffer.position () == 0) && ! myShutdown)
+	    {
+		mySink.myChannel.socket ().shutdownOutput ();
+		myShutdown = true;
+	    }
+	}
+
+	/**
+	 * Get the number of bytes written to the sink so far.
+	 *
+	 * @return the count
+	 */
+	public long getTotal ()
+	{
+	    return myTotal;
+	}
+
+	/**
+	 * Return whether this direction wants to read from its source.
+	 *
+	 * @return whether to read
+	 */
+	public boolean wantsRead ()
+	{
+	    return ! myEof && myBuffer.hasRemaining () && (myResumeAt == 0);
+	}
+
+	/**
+	 * Return whether this direction wants to write to its sink.
+	 *
+	 * @return whether to write
+	 */
+	public boolean wantsWrite ()
+	{
+	    return myBuffer.position () != 0;
+	}
+
+	/**
+	 * Return whether this direction is done, that is, whether its
+	 * source has reached end-of-stream and everything has been
+	 * written to the sink.
+	 *
+	 * @return whether this direction is done
+	 */
+	public boolean isDone ()
+	{
+	    return myShutdown;
+	}
+    }
+}
@@ -0,0 +1,144 @@
+package com.milk.ipforward;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * This is a tiny HTTP server which answers every request with the
+ * status report of a {@link ForwardAcceptor}, as plain text. It runs
+ * on a single daemon thread and handles one request at a time, which
+ * is plenty for something polled by a monitoring system.
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ * @author Copyright 1999 Dan Bornstein, all rights reserved.
+ * @author This code may be used for any purpose whatsoever, so long
+ * as credit is appropriately given to the author.
+ */
+public class StatusServer
+extends Thread
+{
+    /** the time to wait for a request to arrive, in msec */
+    static private final int READ_TIMEOUT = 5000;
+
+    /** the longest request header that will be read */
+    static private final int MAX_REQUEST = 8192;
+
+    /** the acceptor to report on */
+    private ForwardAcceptor myAcceptor;
+
+    /** the socket to listen on */
+    private ServerSocket mySocket;
+
+    /**
+     * Make a <code>StatusServer</code>, listening on the given port. Call
+     * {@link #start} to start serving.
+     *
+     * @param acceptor the acceptor to report on
+     * @param port the port to listen on
+     * @param local whether to only listen on the loopback interface
+     */
+    public StatusServer (ForwardAcceptor acceptor, int port, boolean local)
+    throws IOException
+    {
+	super ("ipforward-status");
+	setDaemon (true);
+
+	myAcceptor = acceptor;
+
+	if (local)
+	{
+	    mySocket =
+		new ServerSocket (port, 50, InetAddress.getLoopbackAddress ());
+	}
+	else
+	{
+	    mySocket = new ServerSocket (port);
+	}
+    }
+
+    public void run ()
+    {
+	for (;;)
+	{
+	    Socket s;
+
+	    try
+	    {
+		s = mySocket.accept ();
+	    }
+	    catch (IOException ex)
+	    {
+		ex.printStackTrace ();
+		continue;
+	    }
+
+	    try
+	    {
+		respond (s);
+	    }
+	    catch (IOException ex)
+	    {
+		// just drop it; the client can always ask again
+	    }
+	    finally
+	    {
+		try
+		{
+		    s.close ();
+		}
+		catch (IOException ex)
+		{
+		    // ignore it
+		}
+	    }
+	}
+    }
+
+    /**
+     * Read the request on the given socket, up through the blank line
+     * that ends its header, and then write the response.
+     *
+     * @param s the socket
+     */
+    private void respond (Socket s)
+    throws IOException
+    {
+	s.setSoTimeout (READ_TIMEOUT);
+	InputStream in = s.getInputStream ();
+	int state = 0;
+
+	for (int i = 0; (i < MAX_REQUEST) && (state < 2); i++)
+	{
+	    int c = in.read ();
+	    if (c == -1)
+	    {
+		break;
+	    }
+	    else if (c == '\n')
+	    {
+		state++;
+	    }
+	    else if (c != '\r')
+	    {
+		state = 0;
+	    }
+	}
+
+	byte[] body = myAcceptor.getStatus ().getBytes ("ISO-8859-1");
+	String header =
+	    "HTTP/1.0 200 OK\r\n" +
+	    "Content-Type: text/plain\r\n" +
+	    "Content-Length: " + body.length + "\r\n" +
+	    "Cache-Control: no-cache\r\n" +
+	    "\r\n";
+
+	OutputStream out = s.getOutputStream ();
+	out.write (header.getBytes ("ISO-8859-1"));
+	out.write (body);
+	out.flush ();
+    }
+}
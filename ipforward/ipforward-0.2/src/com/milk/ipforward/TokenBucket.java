@@ -0,0 +1,125 @@
+package com.milk.ipforward;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is a token bucket, used for limiting rates. Tokens trickle in at
+ * a fixed rate, up to a maximum burst, and each thing being limited
+ * (a connection, a byte) takes one.
+ *
+ * <p>Rather than keeping a count of tokens, this keeps the time at which
+ * all the tokens taken so far will have been paid for, which can be
+ * updated with a single compare-and-set. So, many threads can share an
+ * instance without any locking. Taking more tokens than are available
+ * puts the bucket into debt, and the caller is told how long to wait
+ * for the debt to be paid off.</p>
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ * @author Copyright 1999 Dan Bornstein, all rights reserved.
+ * @author This code may be used for any purpose whatsoever, so long
+ * as credit is appropriately given to the author.
+ */
+public class TokenBucket
+{
+    /** the time it takes for one token to trickle in, in nsec */
+    private double myTokenNanos;
+
+    /** the time it takes for the bucket to fill from empty, in nsec */
+    private long myBurstNanos;
+
+    /** the time (as a <code>System.nanoTime()</code> value) at which
+     * all the tokens taken so far will have been paid for */
+    private AtomicLong myPaidUntil;
+
+    /**
+     * Make a <code>TokenBucket</code>. It starts out full.
+     *
+     * @param rate the rate at which tokens trickle in, per second; must
+     * be positive
+     * @param burst the maximum number of tokens the bucket holds; must
+     * be positive
+     */
+    public TokenBucket (double rate, double burst)
+    {
+	if (rate <= 0)
+	{
+	    throw new IllegalArgumentException ("rate <= 0");
+	}
+
+	if (burst <= 0)
+	{
+	    throw new IllegalArgumentException ("burst <= 0");
+	}
+
+	myTokenNanos = 1.0e9 / rate;
+	myBurstNanos = (long) (burst * myTokenNanos);
+	myPaidUntil = new AtomicLong (System.nanoTime () - myBurstNanos);
+    }
+
+    /**
+     * Take the given number of tokens, whether or not they are available.
+     *
+     * @param count the number of tokens to take
+     * @param now the current <code>System.nanoTime()</code>
+     * @return the time to wait, in nsec, for the tokens to have been paid
+     * for; <code>0</code> if they were available
+     */
+    public long take (long count, long now)
+    {
+	long cost = (long) (count * myTokenNanos);
+
+	for (;;)
+	{
+	    long paidUntil = myPaidUntil.get ();
+	    long start = Math.max (paidUntil, now - myBurstNanos);
+	    long result = start + cost;
+
+	    if (myPaidUntil.compareAndSet (paidUntil, result))
+	    {
+		return Math.max (0, result - now);
+	    }
+	}
+    }
+
+    /**
+     * Take the given number of tokens, but only if they are all
+     * available.
+     *
+     * @param count the number of tokens to take
+     * @param now the current <code>System.nanoTime()</code>
+     * @return whether the tokens were taken
+     */
+    public boolean tryTake (long count, long now)
+    {
+	long cost = (long) (count * myTokenNanos);
+
+	for (;;)
+	{
+	    long paidUntil = myPaidUntil.get ();
+	    long start = Math.max (paidUntil, now - myBurstNanos);
+	    long result = start + cost;
+
+	    if (result > now)
+	    {
+		return false;
+	    }
+
+	    if (myPaidUntil.compareAndSet (paidUntil, result))
+	    {
+		return true;
+	    }
+	}
+    }
+
+    /**
+     * Return whether the bucket is full, which means it is in the same
+     * state as a freshly-made one.
+     *
+     * @param now the current <code>System.nanoTime()</code>
+     * @return whether the bucket is full
+     */
+    public boolean isFull (long now)
+    {
+	return myPaidUntil.get () <= (now - myBurstNanos);
+    }
+}
@@ -0,0 +1,352 @@
+package com.milk.ipforward;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This is the set of traffic counters for a {@link ForwardAcceptor}:
+ * connection counts, bytes relayed in each direction, and distributions
+ * of the time it takes to get a backend connection and of how long
+ * connections last. The counters are striped, so the relaying threads
+ * can bump them without contending with each other.
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ * @author Copyright 1999 Dan Bornstein, all rights reserved.
+ * @author This code may be used for any purpose whatsoever, so long
+ * as credit is appropriately given to the author.
+ */
+public class TrafficStats
+{
+    /** the number of connections accepted */
+    private LongAdder myAccepted;
+
+    /** the number of connections turned away by the rate limits */
+    private LongAdder myRejected;
+
+    /** the number of connections currently being forwarded */
+    private LongAdder myActive;
+
+    /** the number of connections for which no backend connection could
+     * be made */
+    private LongAdder myConnectFailures;
+
+    /** the number of bytes relayed from clients to backends */
+    private LongAdder myBytesToHost;
+
+    /** the number of bytes relayed from backends to clients */
+    private LongAdder myBytesToClient;
+
+    /** the time taken to get a backend connection */
+    private Histogram myConnectTimes;
+
+    /** the lifetimes of finished connections */
+    private Histogram myLifetimes;
+
+    /** the time at which this instance was made, in msec */
+    private long myStartTime;
+
+    /**
+     * Make a <code>TrafficStats</code>, with all counters at zero.
+     */
+    public TrafficStats ()
+    {
+	myAccepted = new LongAdder ();
+	myRejected = new LongAdder ();
+	myActive = new LongAdder ();
+	myConnectFailures = new LongAdder ();
+	myBytesToHost = new LongAdder ();
+	myBytesToClient = new LongAdder ();
+	myConnectTimes = new Histogram ();
+	myLifetimes = new Histogram ();
+	myStartTime = System.currentTimeMillis ();
+    }
+
+    /**
+     * Get the number of connections accepted.
+     *
+     * @return the count
+     */
+    public long getAccepted ()
+    {
+	return myAccepted.sum ();
+    }
+
+    /**
+     * Get the number of connections currently being forwarded.
+     *
+     * @return the count
+     */
+    public long getActive ()
+    {
+	return myActive.sum ();
+    }
+
+    /**
+     * Get the number of bytes relayed from clients to backends.
+     *
+     * @return the count
+     */
+    public long getBytesToHost ()
+    {
+	return myBytesToHost.sum ();
+    }
+
+    /**
+     * Get the number of bytes relayed from backends to clients.
+     *
+     * @return the count
+     */
+    public long getBytesToClient ()
+    {
+	return myBytesToClient.sum ();
+    }
+
+    /**
+     * Note that a connection was accepted.
+     */
+    /*package*/ void connectionAccepted ()
+    {
+	myAccepted.increment ();
+	myActive.increment ();
+    }
+
+    /**
+     * Note that a connection was turned away by the rate limits.
+     */
+    /*package*/ void connectionRejected ()
+    {
+	myRejected.increment ();
+    }
+
+    /**
+     * Note that a connection is done.
+     *
+     * @param lifetime how long the connection lasted, in nsec
+     */
+    /*package*/ void connectionClosed (long lifetime)
+    {
+	myActive.decrement ();
+	myLifetimes.add (lifetime);
+    }
+
+    /**
+     * Note that a backend connection was gotten for a client connection.
+     *
+     * @param time how long it took, in nsec
+     */
+    /*package*/ void connected (long time)
+    {
+	myConnectTimes.add (time);
+    }
+
+    /**
+     * Note that a backend connection couldn't be made for a client
+     * connection.
+     */
+    /*package*/ void connectFailed ()
+    {
+	myConnectFailures.increment ();
+    }
+
+    /**
+     * Note that some bytes were relayed from a client to its backend.
+     *
+     * @param count the number of bytes
+     */
+    /*package*/ void addBytesToHost (long count)
+    {
+	myBytesToHost.add (count);
+    }
+
+    /**
+     * Note that some bytes were relayed from a backend to its client.
+     *
+     * @param count the number of bytes
+     */
+    /*package*/ void addBytesToClient (long count)
+    {
+	myBytesToClient.add (count);
+    }
+
+    /**
+     * Get a one-line summary of the counters, suitable for logging.
+     *
+     * @return the summary
+     */
+    public String summarize ()
+    {
+	return
+	    "active " + myActive.sum () +
+	    ", accepted " + myAccepted.sum () +
+	    ", rejected " + myRejected.sum () +
+	    ", failed " + myConnectFailures.sum () +
+	    ", to host " + myBytesToHost.sum () +
+	    " bytes, to client " + myBytesToClient.sum () +
+	    " bytes, connect ms p50/p99 " +
+	    myConnectTimes.percentileMsec (50) + "/" +
+	    myConnectTimes.percentileMsec (99) +
+	    ", lifetime ms p50/p99 " +
+	    myLifetimes.percentileMsec (50) + "/" +
+	    myLifetimes.percentileMsec (99);
+    }
+
+    /**
+     * Get a full report of the counters, one per line, each line being
+     * a name and a value separated by a space.
+     *
+     * @return the report
+     */
+    public String report ()
+    {
+	StringBuffer sb = new StringBuffer ();
+
+	line (sb, "uptime_ms", System.currentTimeMillis () - myStartTime);
+	line (sb, "connections_active", myActive.sum ());
+	line (sb, "connections_accepted", myAccepted.sum ());
+	line (sb, "connections_rejected", myRejected.sum ());
+	line (sb, "connections_failed", myConnectFailures.sum ());
+	line (sb, "bytes_to_host", myBytesToHost.sum ());
+	line (sb, "bytes_to_client", myBytesToClient.sum ());
+	myConnectTimes.report (sb, "connect_ms");
+	myLifetimes.report (sb, "lifetime_ms");
+
+	return sb.toString ();
+    }
+
+    /**
+     * Append a report line.
+     *
+     * @param sb the buffer to append to
+     * @param name the name of the value
+     * @param value the value
+     */
+    static private void line (StringBuffer sb, String name, long value)
+    {
+	sb.append (name);
+	sb.append (' ');
+	sb.append (value);
+	sb.append ('\n');
+    }
+
+    /**
+     * This is a distribution of times, kept as counts in buckets that
+     * double in size, starting at one microsecond. Percentiles come out
+     * as the upper bound of the bucket they fall in, or the largest time
+     * seen if that is smaller.
+     */
+    static private class Histogram
+    {
+	/** the number of buckets; the last one covers about 40 days */
+	static private final int BUCKET_COUNT = 42;
+
+	/** the count in each bucket */
+	private LongAdder[] myBuckets;
+
+	/** the number of times added */
+	private LongAdder myCount;
+
+	/** the sum of the times added, in nsec */
+	private LongAdder mySum;
+
+	/** the largest time added, in nsec */
+	private LongAccumulator myMax;
+
+	public Histogram ()
+	{
+	    myBuckets = new LongAdder[BUCKET_COUNT];
+	    for (int i = 0; i < BUCKET_COUNT; i++)
+	    {
+		myBuckets[i] = new LongAdder ();
+	    }
+
+	    myCount = new LongAdder ();
+	    mySum = new LongAdder ();
+	    myMax = new LongAccumulator (Math::max, 0);
+	}
+
+	/**
+	 * Add a time.
+	 *
+	 * @param nsec the time, in nsec
+	 */
+	public void add (long nsec)
+	{
+	    long usec = nsec / 1000;
+	    int bucket = 64 - Long.numberOfLeadingZeros (usec);
+
+	    if (bucket >= BUCKET_COUNT)
+	    {
+		bucket = BUCKET_COUNT - 1;
+	    }
+
+	    myBuckets[bucket].increment ();
+	    myCount.increment ();
+	    mySum.add (nsec);
+	    myMax.accumulate (nsec);
+	}
+
+	/**
+	 * Get the given percentile, in msec.
+	 *
+	 * @param percent the percentile
+	 * @return the time, in msec
+	 */
+	public double percentileMsec (int percent)
+	{
+	    long[] counts = new long[BUCKET_COUNT];
+	    long total = 0;
+
+	    for (int i = 0; i < BUCKET_COUNT; i++)
+	    {
+		counts[i] = myBuckets[i].sum ();
+		total += counts[i];
+	    }
+
+	    if (total == 0)
+	    {
+		return 0;
+	    }
+
+	    long rank = (total * percent + 99) / 100;
+	    long seen = 0;
+	    int bucket = BUCKET_COUNT - 1;
+
+	    for (int i = 0; i < BUCKET_COUNT; i++)
+	    {
+		seen += counts[i];
+		if (seen >= rank)
+		{
+		    bucket = i;
+		    break;
+		}
+	    }
+
+	    // bucket i holds times below 2^i usec
+	    double bound = (double) (1L << bucket) / 1000;
+	    return Math.min (bound, (double) myMax.get () / 1000000);
+	}
+
+	/**
+	 * Append report lines for this distribution.
+	 *
+	 * @param sb the buffer to append to
+	 * @param name the prefix for the names of the values
+	 */
+	public void report (StringBuffer sb, String name)
+	{
+	    long count = myCount.sum ();
+
+	    line (sb, name + "_count", count);
+	    sb.append (name + "_mean ");
+	    sb.append ((count == 0) ? 0.0 :
+		       ((double) mySum.sum () / count / 1000000));
+	    sb.append ('\n');
+	    sb.append (name + "_p50 " + percentileMsec (50) + "\n");
+	    sb.append (name + "_p90 " + percentileMsec (90) + "\n");
+	    sb.append (name + "_p99 " + percentileMsec (99) + "\n");
+	    sb.append (name + "_max ");
+	    sb.append ((double) myMax.get () / 1000000);
+	    sb.append ('\n');
+	}
+    }
+}
@@ -24,6 +24,16 @@ import java.util.Map;
  * have two modules, one on the source side and one on the sink side,
  * introducing an explicit propagation delay and hence breaking the cycle.)
  *
+ * <p>For speed, a network may instead be run a block of frames at a time,
+ * by calling {@link #process} on each module in the same order, which has
+ * the same effect as ticking each module that many times in a row. In
+ * that case, each {@link com.milk.plastic.ports.DoublePort} carries a
+ * buffer of values, one per frame. This only works for modules that don't
+ * need to see the other modules' outputs from one frame before producing
+ * their own for the next, which is why modules get to say how many
+ * frames they can be asked to process at once (see {@link
+ * #getMaxFrames}).</p>
+ *
  * <p>Copyright (C) 2000, Dan Bornstein, danfuzz@milk.com. All Rights 
  * Reserved. (Shrill TV degreaser.)</p>
  * 
@@ -97,6 +107,31 @@ public interface Module
      */
     public void tick ();
 
+    /**
+     * Run <code>frames</code> iterations of this module in one go. This
+     * has the same effect as calling {@link #tick} that many times, except
+     * that the inputs and outputs of each iteration are found at
+     * successive frames of the buffers of the ports (see {@link
+     * com.milk.plastic.ports.DoublePort#getBuffer}), starting at frame
+     * <code>0</code>, rather than all at the current frame. This will only
+     * be called with a number of frames no larger than what {@link
+     * #getMaxFrames} returns.
+     *
+     * @param frames the number of frames to process; must be at least 1
+     */
+    public void process (int frames);
+
+    /**
+     * Get the largest number of frames that this module may be asked to
+     * {@link #process} at once. This is <code>1</code> for modules which
+     * pass values from one tick to the next outside of their ports, such
+     * as propagation delay pairs, since a network with feedback has to
+     * be run one frame at a time.
+     *
+     * @return the largest number of frames; at least 1
+     */
+    public int getMaxFrames ();
+
     /**
      * Reset this module to the state it was in immediately after
      * instantiation.
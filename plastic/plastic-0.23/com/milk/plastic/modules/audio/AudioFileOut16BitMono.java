@@ -81,7 +81,39 @@ extends BaseModule
 
 	try
 	{
-	    myStream.write (buf);
+	    myStream.write (buf, 0, 2);
+	}
+	catch (IOException ex)
+	{
+	    throw new PlasticException ("Trouble writing stream", ex);
+	}
+    }
+
+    // interface's comment suffices
+    public void process (int frames)
+    {
+	double[] in = myInPort.getBuffer ();
+	int size = frames * 2;
+
+	// grow the write buffer to hold a whole block, if necessary
+	byte[] buf = myBuffer;
+	if (buf.length < size)
+	{
+	    buf = new byte[size];
+	    myBuffer = buf;
+	}
+
+	int j = 0;
+	for (int i = 0; i < frames; i++)
+	{
+	    short value = (short) (in[i] * 32767);
+	    buf[j++] = (byte) value;
+	    buf[j++] = (byte) (value >> 8);
+	}
+
+	try
+	{
+	    myStream.write (buf, 0, size);
 	}
 	catch (IOException ex)
 	{
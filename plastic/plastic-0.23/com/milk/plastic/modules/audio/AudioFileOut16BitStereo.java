@@ -87,7 +87,43 @@ extends BaseModule
 
 	try
 	{
-	    myStream.write (buf);
+	    myStream.write (buf, 0, 4);
+	}
+	catch (IOException ex)
+	{
+	    throw new PlasticException ("Trouble writing stream", ex);
+	}
+    }
+
+    // interface's comment suffices
+    public void process (int frames)
+    {
+	double[] in0 = myInPort0.getBuffer ();
+	double[] in1 = myInPort1.getBuffer ();
+	int size = frames * 4;
+
+	// grow the write buffer to hold a whole block, if necessary
+	byte[] buf = myBuffer;
+	if (buf.length < size)
+	{
+	    buf = new byte[size];
+	    myBuffer = buf;
+	}
+
+	int j = 0;
+	for (int i = 0; i < frames; i++)
+	{
+	    short value0 = (short) (in0[i] * 32767);
+	    short value1 = (short) (in1[i] * 32767);
+	    buf[j++] = (byte) value0;
+	    buf[j++] = (byte) (value0 >> 8);
+	    buf[j++] = (byte) value1;
+	    buf[j++] = (byte) (value1 >> 8);
+	}
+
+	try
+	{
+	    myStream.write (buf, 0, size);
 	}
 	catch (IOException ex)
 	{
@@ -80,7 +80,37 @@ extends BaseModule
 
 	try
 	{
-	    myStream.write (buf);
+	    myStream.write (buf, 0, 1);
+	}
+	catch (IOException ex)
+	{
+	    throw new PlasticException ("Trouble writing stream", ex);
+	}
+    }
+
+    // interface's comment suffices
+    public void process (int frames)
+    {
+	double[] in = myInPort.getBuffer ();
+	int size = frames * 1;
+
+	// grow the write buffer to hold a whole block, if necessary
+	byte[] buf = myBuffer;
+	if (buf.length < size)
+	{
+	    buf = new byte[size];
+	    myBuffer = buf;
+	}
+
+	int j = 0;
+	for (int i = 0; i < frames; i++)
+	{
+	    buf[j++] = (byte) (in[i] * 127);
+	}
+
+	try
+	{
+	    myStream.write (buf, 0, size);
 	}
 	catch (IOException ex)
 	{
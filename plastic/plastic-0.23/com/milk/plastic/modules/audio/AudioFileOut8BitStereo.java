@@ -85,7 +85,39 @@ extends BaseModule
 
 	try
 	{
-	    myStream.write (buf);
+	    myStream.write (buf, 0, 2);
+	}
+	catch (IOException ex)
+	{
+	    throw new PlasticException ("Trouble writing stream", ex);
+	}
+    }
+
+    // interface's comment suffices
+    public void process (int frames)
+    {
+	double[] in0 = myInPort0.getBuffer ();
+	double[] in1 = myInPort1.getBuffer ();
+	int size = frames * 2;
+
+	// grow the write buffer to hold a whole block, if necessary
+	byte[] buf = myBuffer;
+	if (buf.length < size)
+	{
+	    buf = new byte[size];
+	    myBuffer = buf;
+	}
+
+	int j = 0;
+	for (int i = 0; i < frames; i++)
+	{
+	    buf[j++] = (byte) (in0[i] * 127);
+	    buf[j++] = (byte) (in1[i] * 127);
+	}
+
+	try
+	{
+	    myStream.write (buf, 0, size);
 	}
 	catch (IOException ex)
 	{
@@ -4,8 +4,10 @@ import com.milk.plastic.iface.Factory;
 import com.milk.plastic.iface.PlasticException;
 import com.milk.plastic.iface.Ref;
 import com.milk.plastic.iface.Template;
+import com.milk.plastic.ports.DoublePort;
 import com.milk.plastic.ports.Port;
 import com.milk.plastic.util.BaseModule;
+import java.util.Arrays;
 import java.util.Map;
 
 /**
@@ -59,6 +61,19 @@ extends BaseModule
 	// time during bind1()
     }
 
+    // interface's comment suffices
+    public void process (int frames)
+    {
+	// the value was set at frame 0 during bind1(), and it is the same
+	// for every frame
+	Object outPort = getField ("out");
+	if (outPort instanceof DoublePort)
+	{
+	    double[] out = ((DoublePort) outPort).getBuffer (frames);
+	    Arrays.fill (out, 1, frames, out[0]);
+	}
+    }
+
     // ------------------------------------------------------------------------
     // protected methods the superclass requires us to implement
 
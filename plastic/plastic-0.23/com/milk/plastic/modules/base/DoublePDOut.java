@@ -95,6 +95,19 @@ extends BaseModule
 	myParity = ! parity;
     }
 
+    /**
+     * Get the largest number of frames that this instance may be asked
+     * to process at once. This is always <code>1</code>, since the value
+     * passed between a pd-in and a pd-out has to make it around the
+     * network's loop in between frames.
+     *
+     * @return <code>1</code>, always
+     */
+    public int getMaxFrames ()
+    {
+	return 1;
+    }
+
     // ------------------------------------------------------------------------
     // protected methods the superclass requires us to implement
 
@@ -24,6 +24,9 @@ import java.util.Map;
 final public class Main
 implements Runnable
 {
+    /** the most frames to process at once */
+    static private final int BLOCK_FRAMES = 512;
+
     /** number of iterations to perform */
     private int myIters;
 
@@ -73,10 +76,11 @@ implements Runnable
 	// initialize
 	net.bind ();
 
-	// and run!
-	for (int i = myIters; i > 0; i--)
+	// and run, a block at a time if possible!
+	int block = Math.min (BLOCK_FRAMES, net.getMaxFrames ());
+	for (int i = myIters; i > 0; i -= block)
 	{
-	    net.tick ();
+	    net.process ((i < block) ? i : block);
 	}
 
 	// shut down
@@ -97,6 +97,31 @@ extends BaseFilter
 	myIndex = (index + 1) % myPeriod;
     }
 
+    // interface's comment suffices
+    public void process (int frames)
+    {
+	// use local copies for efficiency
+	double[] in = myInPort.getBuffer ();
+	double[] out = myOutPort.getBuffer (frames);
+	double sum = mySum;
+	int index = myIndex;
+	double[] buf = myBuf;
+	int period = myPeriod;
+	double periodFP = myPeriodFP;
+
+	for (int i = 0; i < frames; i++)
+	{
+	    double value = in[i];
+	    out[i] = value - (sum / periodFP);
+	    sum = sum - buf[index] + value;
+	    buf[index] = value;
+	    index = (index + 1) % period;
+	}
+
+	mySum = sum;
+	myIndex = index;
+    }
+
     // ------------------------------------------------------------------------
     // protected methods the superclass requires us to implement
 
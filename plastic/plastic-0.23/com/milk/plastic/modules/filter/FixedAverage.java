@@ -95,6 +95,31 @@ extends BaseFilter
 	myIndex = (index + 1) % myPeriod;
     }
 
+    // interface's comment suffices
+    public void process (int frames)
+    {
+	// use local copies for efficiency
+	double[] in = myInPort.getBuffer ();
+	double[] out = myOutPort.getBuffer (frames);
+	int index = myIndex;
+	double[] buf = myBuf;
+	double sum = mySum;
+	int period = myPeriod;
+	double periodFP = myPeriodFP;
+
+	for (int i = 0; i < frames; i++)
+	{
+	    double value = in[i];
+	    sum = sum - buf[index] + value;
+	    buf[index] = value;
+	    out[i] = sum / periodFP;
+	    index = (index + 1) % period;
+	}
+
+	mySum = sum;
+	myIndex = index;
+    }
+
     // ------------------------------------------------------------------------
     // protected methods the superclass requires us to implement
 
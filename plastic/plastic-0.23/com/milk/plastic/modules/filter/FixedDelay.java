@@ -87,6 +87,26 @@ extends BaseFilter
 	myIndex = (index + 1) % myPeriod;
     }
 
+    // interface's comment suffices
+    public void process (int frames)
+    {
+	// efficiency dictates that we get local copies of these
+	double[] in = myInPort.getBuffer ();
+	double[] out = myOutPort.getBuffer (frames);
+	double[] buf = myBuf;
+	int index = myIndex;
+	int period = myPeriod;
+
+	for (int i = 0; i < frames; i++)
+	{
+	    out[i] = buf[index];
+	    buf[index] = in[i];
+	    index = (index + 1) % period;
+	}
+
+	myIndex = index;
+    }
+
     // ------------------------------------------------------------------------
     // protected methods the superclass requires us to implement
 
@@ -56,6 +56,19 @@ extends BaseFilter
 	myOutPort.setDouble (Math.atan (myInPort.getDouble ()));
     }
 
+    // interface's comment suffices
+    public void process (int frames)
+    {
+	// efficiency dictates that we get local copies of these
+	double[] in = myInPort.getBuffer ();
+	double[] out = myOutPort.getBuffer (frames);
+
+	for (int i = 0; i < frames; i++)
+	{
+	    out[i] = Math.atan (in[i]);
+	}
+    }
+
     // ------------------------------------------------------------------------
     // protected methods the superclass requires us to implement
 
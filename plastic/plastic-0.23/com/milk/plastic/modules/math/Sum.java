@@ -81,6 +81,25 @@ extends BaseModule
 	myOutPort.setDouble (result);
     }
 
+    // interface's comment suffices
+    public void process (int frames)
+    {
+	// efficiency dictates that we get local copies of these
+	DoublePort[] inPorts = myInPorts;
+	double[] out = myOutPort.getBuffer (frames);
+
+	// accumulate one input at a time, in the same order as tick()
+	System.arraycopy (inPorts[0].getBuffer (), 0, out, 0, frames);
+	for (int i = myCount - 1; i > 0; i--)
+	{
+	    double[] in = inPorts[i].getBuffer ();
+	    for (int j = 0; j < frames; j++)
+	    {
+		out[j] += in[j];
+	    }
+	}
+    }
+
     // ------------------------------------------------------------------------
     // protected methods the superclass requires us to implement
 
@@ -93,6 +93,29 @@ extends BaseFixedWave
 	}
     }
 
+    // interface's comment suffices
+    public void process (int frames)
+    {
+	// we use local copies for the sake of efficiency
+	double[] out = myOutPort.getBuffer (frames);
+	double wlen = myWlen;
+	double index = myIndex;
+	double switchIndex = mySwitchIndex;
+
+	for (int i = 0; i < frames; i++)
+	{
+	    out[i] = (index < switchIndex) ? myV0 : myV1;
+
+	    index++;
+	    if (index >= wlen)
+	    {
+		index -= wlen;
+	    }
+	}
+
+	myIndex = index;
+    }
+
     // ------------------------------------------------------------------------
     // protected methods the superclass requires us to implement
 
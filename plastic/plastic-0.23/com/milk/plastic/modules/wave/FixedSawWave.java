@@ -84,6 +84,29 @@ extends BaseFixedWave
 	}
     }
 
+    // interface's comment suffices
+    public void process (int frames)
+    {
+	// efficiency dictates we get local copies of these
+	double[] out = myOutPort.getBuffer (frames);
+	double index = myIndex;
+	double mul = myMul;
+	double v0 = myV0;
+	double increment = myIncrement;
+
+	for (int i = 0; i < frames; i++)
+	{
+	    out[i] = index * mul + v0;
+	    index += increment;
+	    if (index >= 1.0)
+	    {
+		index -= 1.0;
+	    }
+	}
+
+	myIndex = index;
+    }
+
     // ------------------------------------------------------------------------
     // protected methods the superclass requires us to implement
 
@@ -90,6 +90,29 @@ extends BaseFixedWave
 	}
     }
 
+    // interface's comment suffices
+    public void process (int frames)
+    {
+	// efficiency dictates we get local copies of these
+	double[] out = myOutPort.getBuffer (frames);
+	double index = myIndex;
+	double mul = myMul;
+	double addend = myAdd;
+	double increment = myIncrement;
+
+	for (int i = 0; i < frames; i++)
+	{
+	    out[i] = Math.sin (index) * mul + addend;
+	    index += increment;
+	    if (index >= PI2)
+	    {
+		index -= PI2;
+	    }
+	}
+
+	myIndex = index;
+    }
+
     // ------------------------------------------------------------------------
     // protected methods the superclass requires us to implement
 
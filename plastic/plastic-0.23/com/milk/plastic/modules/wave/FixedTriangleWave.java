@@ -107,6 +107,36 @@ extends BaseFixedWave
 	}
     }
 
+    // interface's comment suffices
+    public void process (int frames)
+    {
+	// get local copies for efficiency sake
+	double[] out = myOutPort.getBuffer (frames);
+	double index = myIndex;
+	double wlen = myWlen;
+	double halfWlen = myHalfWlen;
+
+	for (int i = 0; i < frames; i++)
+	{
+	    if (index < halfWlen)
+	    {
+		out[i] = index * myMul1 + myAdd1;
+	    }
+	    else
+	    {
+		out[i] = index * myMul2 + myAdd2;
+	    }
+
+	    index++;
+	    if (index >= wlen)
+	    {
+		index -= wlen;
+	    }
+	}
+
+	myIndex = index;
+    }
+
     // ------------------------------------------------------------------------
     // protected methods the superclass requires us to implement
 
@@ -4,6 +4,13 @@ package com.milk.plastic.ports;
  * A port for a value of type <code>double</code>. For the generic
  * {@link Port} protocol, it uses instances of {@link Double}.
  *
+ * <p>When a network is processed a block of frames at a time (see {@link
+ * com.milk.plastic.iface.Module#process}), a port carries one value per
+ * frame, in a buffer. Modules that handle whole blocks at once work on
+ * the buffer directly. The single-value methods all refer to one frame
+ * of the buffer, the current frame, which is normally frame
+ * <code>0</code>.</p>
+ *
  * <p>Copyright (C) 2000, Dan Bornstein, danfuzz@milk.com. All Rights 
  * Reserved. (Shrill TV degreaser.)</p>
  * 
@@ -19,8 +26,12 @@ package com.milk.plastic.ports;
 final public class DoublePort
 implements Port
 {
-    /** the current value of the port */
-    private double myValue;
+    /** the values of the port, one per frame; it always has at least
+     * one element */
+    private double[] myValues;
+
+    /** the index of the current frame in <code>myValues</code> */
+    private int myFrame;
 
     // ------------------------------------------------------------------------
     // constructors
@@ -30,7 +41,8 @@ implements Port
      */
     public DoublePort ()
     {
-	myValue = 0.0;
+	myValues = new double[1];
+	myFrame = 0;
     }
 
     // ------------------------------------------------------------------------
@@ -39,13 +51,13 @@ implements Port
     // interface's comment suffices
     public String getString ()
     {
-	return Double.toString (myValue);
+	return Double.toString (myValues[myFrame]);
     }
 
     // interface's comment suffices
     public Object getValue ()
     {
-	return new Double (myValue);
+	return new Double (myValues[myFrame]);
     }
 
     // interface's comment suffices
@@ -53,11 +65,12 @@ implements Port
     {
 	if (value instanceof DoublePort)
 	{
-	    myValue = ((DoublePort) value).myValue;
+	    DoublePort other = (DoublePort) value;
+	    myValues[myFrame] = other.myValues[other.myFrame];
 	}
 	else
 	{
-	    myValue = ((Double) value).doubleValue ();
+	    myValues[myFrame] = ((Double) value).doubleValue ();
 	}
     }
 
@@ -68,7 +81,7 @@ implements Port
      */
     public double getDouble ()
     {
-	return myValue;
+	return myValues[myFrame];
     }
 
     /**
@@ -78,6 +91,54 @@ implements Port
      */
     public void setDouble (double value)
     {
-	myValue = value;
+	myValues[myFrame] = value;
+    }
+
+    /**
+     * Get the buffer of per-frame values, as it currently stands. The
+     * result is shared with this instance, not a copy.
+     *
+     * @return the buffer
+     */
+    public double[] getBuffer ()
+    {
+	return myValues;
+    }
+
+    /**
+     * Get the buffer of per-frame values, first making sure it has room
+     * for at least the given number of frames. The result is shared with
+     * this instance, not a copy. If the buffer has to grow, the values
+     * already in it are kept.
+     *
+     * @param frames the number of frames needed
+     * @return the buffer
+     */
+    public double[] getBuffer (int frames)
+    {
+	if (frames > myValues.length)
+	{
+	    double[] values = new double[frames];
+	    System.arraycopy (myValues, 0, values, 0, myValues.length);
+	    myValues = values;
+	}
+
+	return myValues;
+    }
+
+    /**
+     * Set which frame of the buffer the single-value methods refer to.
+     * The buffer must already have room for it.
+     *
+     * @param frame the frame
+     */
+    public void setFrame (int frame)
+    {
+	if ((frame < 0) || (frame >= myValues.length))
+	{
+	    throw new IllegalArgumentException ("frame = " + frame);
+	}
+
+	myFrame = frame;
     }
 }
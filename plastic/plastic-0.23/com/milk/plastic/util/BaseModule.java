@@ -6,6 +6,9 @@ import com.milk.plastic.iface.Module;
 import com.milk.plastic.iface.PlasticException;
 import com.milk.plastic.iface.Ref;
 import com.milk.plastic.iface.Template;
+import com.milk.plastic.ports.DoublePort;
+import com.milk.plastic.ports.Port;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -15,7 +18,9 @@ import java.util.Map;
  * Abstract implementation of the base functionality of a {@link Module}.
  * It handles keeping track of the associated factory, the initialization
  * arguments and the template, and knows how to initialize empty fields
- * and bind input ports.
+ * and bind input ports. It also provides a default implementation of
+ * {@link #process} which simply ticks the module once per frame, for the
+ * sake of modules which haven't been written to process whole blocks.
  *
  * <p>Copyright (C) 2000, Dan Bornstein, danfuzz@milk.com. All Rights 
  * Reserved. (Shrill TV degreaser.)</p>
@@ -47,6 +52,20 @@ implements Module
     /** map from names to objects bound by {@link #bind} */
     private HashMap myBoundObjects;
 
+    /** null-ok; array of the bound input ports which are {@link
+     * DoublePort}s, set in {@link #bind} and <code>null</code>ed out in
+     * {@link #reset}; used by the default {@link #process} */
+    private DoublePort[] myDoubleInPorts;
+
+    /** null-ok; array of the output ports which are {@link DoublePort}s,
+     * set in {@link #bind} and <code>null</code>ed out in {@link #reset};
+     * used by the default {@link #process} */
+    private DoublePort[] myDoubleOutPorts;
+
+    /** the index of the last frame of the most recent block handled by
+     * the default {@link #process} */
+    private int myLastFrame;
+
     // ------------------------------------------------------------------------
     // constructors
 
@@ -162,6 +181,33 @@ implements Module
 	    one.setValue (resolved);
 	}
 
+	// find the double ports, for the default process()
+	ArrayList ins = new ArrayList ();
+	i = myBoundObjects.values ().iterator ();
+	while (i.hasNext ())
+	{
+	    Object one = i.next ();
+	    if (one instanceof DoublePort)
+	    {
+		ins.add (one);
+	    }
+	}
+
+	ArrayList outs = new ArrayList ();
+	for (int j = 0; j < myFields.length; j++)
+	{
+	    if (myFields[j] instanceof DoublePort)
+	    {
+		outs.add (myFields[j]);
+	    }
+	}
+
+	myDoubleInPorts = 
+	    (DoublePort[]) ins.toArray (new DoublePort[ins.size ()]);
+	myDoubleOutPorts = 
+	    (DoublePort[]) outs.toArray (new DoublePort[outs.size ()]);
+	myLastFrame = 0;
+
 	// now, provide the subclass an opportunity to do something
 	// useful with all the above
 
@@ -179,12 +225,102 @@ implements Module
 	    one.setValue (null);
 	}
 
+	myDoubleInPorts = null;
+	myDoubleOutPorts = null;
+	myLastFrame = 0;
+
 	// now, provide the subclass an opportunity to do whatever
 	// resetting it needs to do
 
 	reset1 ();
     }
 
+    /**
+     * Run <code>frames</code> iterations of this instance in one go (see
+     * {@link Module#process}). This implementation ticks this instance once
+     * per frame, pointing all of its {@link DoublePort}s at the frame in
+     * question first. Each output starts out each frame holding its value
+     * from the previous frame, just as it would when ticking, for the sake
+     * of modules that only set an output when its value changes.
+     * Subclasses should override this to handle the whole block at once
+     * where they can.
+     *
+     * @param frames the number of frames to process; must be at least 1
+     */
+    public void process (int frames)
+    {
+	// efficiency dictates that we get local copies of these
+	DoublePort[] ins = myDoubleInPorts;
+	DoublePort[] outs = myDoubleOutPorts;
+	int inCount = ins.length;
+	int outCount = outs.length;
+
+	// the outputs pick up where the previous block left off
+	for (int i = 0; i < outCount; i++)
+	{
+	    double[] buf = outs[i].getBuffer (frames);
+	    buf[0] = buf[myLastFrame];
+	}
+
+	for (int f = 0; f < frames; f++)
+	{
+	    for (int i = 0; i < inCount; i++)
+	    {
+		ins[i].setFrame (f);
+	    }
+
+	    for (int i = 0; i < outCount; i++)
+	    {
+		DoublePort out = outs[i];
+		if (f != 0)
+		{
+		    double[] buf = out.getBuffer ();
+		    buf[f] = buf[f - 1];
+		}
+		out.setFrame (f);
+	    }
+
+	    tick ();
+	}
+
+	// leave all the ports at the usual frame
+	for (int i = 0; i < inCount; i++)
+	{
+	    ins[i].setFrame (0);
+	}
+
+	for (int i = 0; i < outCount; i++)
+	{
+	    outs[i].setFrame (0);
+	}
+
+	myLastFrame = frames - 1;
+    }
+
+    /**
+     * Get the largest number of frames that this instance may be asked
+     * to process at once (see {@link Module#getMaxFrames}). This
+     * implementation returns <code>1</code> if any of the fields of this
+     * instance is a {@link Port} other than a {@link DoublePort}, since
+     * only <code>DoublePort</code>s can carry a value per frame; otherwise
+     * it places no limit.
+     *
+     * @return the largest number of frames; at least 1
+     */
+    public int getMaxFrames ()
+    {
+	for (int i = 0; i < myFields.length; i++)
+	{
+	    Object one = myFields[i];
+	    if ((one instanceof Port) && ! (one instanceof DoublePort))
+	    {
+		return 1;
+	    }
+	}
+
+	return Integer.MAX_VALUE;
+    }
+
     // ------------------------------------------------------------------------
     // public methods that must be overridden by subclasses
 
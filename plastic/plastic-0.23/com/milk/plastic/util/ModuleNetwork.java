@@ -5,6 +5,7 @@ import com.milk.plastic.iface.FieldRef;
 import com.milk.plastic.iface.Module;
 import com.milk.plastic.iface.PlasticException;
 import com.milk.plastic.iface.Template;
+import com.milk.plastic.ports.DoublePort;
 import java.util.ArrayList;
 import java.util.Map;
 
@@ -21,6 +22,13 @@ import java.util.Map;
  * of is an explicit loop in the network, as opposed to one constructed
  * using a propagagation delay pair.)</p>
  *
+ * <p>The network may also be run a block of frames at a time, via {@link
+ * #process}, which is much faster than ticking it frame by frame, since
+ * each module gets to work through the whole block in a tight loop. Only
+ * networks without feedback can be run that way, though; a network
+ * which contains a module that can only go one frame at a time (see
+ * {@link Module#getMaxFrames}) gets ticked for each frame instead.</p>
+ *
  * <p>Copyright (C) 2000, Dan Bornstein, danfuzz@milk.com. All Rights 
  * Reserved. (Shrill TV degreaser.)</p>
  * 
@@ -39,6 +47,10 @@ final public class ModuleNetwork
      * be ticked */
     private Module[] myModules;
 
+    /** the largest number of frames that all the modules can process at
+     * once */
+    private int myMaxFrames;
+
     // ------------------------------------------------------------------------
     // constructors
 
@@ -57,6 +69,16 @@ final public class ModuleNetwork
 	}
 
 	myModules = moduleList (sinks);
+
+	myMaxFrames = Integer.MAX_VALUE;
+	for (int i = 0; i < myModules.length; i++)
+	{
+	    int max = myModules[i].getMaxFrames ();
+	    if (max < myMaxFrames)
+	    {
+		myMaxFrames = max;
+	    }
+	}
     }
 
     // ------------------------------------------------------------------------
@@ -91,20 +113,64 @@ final public class ModuleNetwork
     }
 
     /**
-     * Tell all of the modules controlled by this network to tick.
+     * Get the largest number of frames that this network can {@link
+     * #process} at once. This is <code>1</code> if the network has
+     * feedback in it.
+     *
+     * @return the largest number of frames; at least 1
+     */
+    public int getMaxFrames ()
+    {
+	return myMaxFrames;
+    }
+
+    /**
+     * Tell all of the modules controlled by this network to tick. This is
+     * the same as processing a single frame.
      *
      * @see Module#tick
      */
     public void tick ()
     {
+	process (1);
+    }
+
+    /**
+     * Tell all of the modules controlled by this network to process the
+     * given number of frames. Once this returns, the values for each
+     * frame are in the buffers of the modules' ports (see {@link
+     * DoublePort#getBuffer}).
+     *
+     * @param frames the number of frames to process; must be at least 1
+     * and no more than {@link #getMaxFrames}
+     * @see Module#process
+     */
+    public void process (int frames)
+    {
+	if ((frames < 1) || (frames > myMaxFrames))
+	{
+	    throw new IllegalArgumentException ("frames = " + frames);
+	}
+
 	// efficiency paranoia dictates that these be held in local
 	// variables
 	Module[] modules = myModules;
 	int len = modules.length;
 
-	for (int i = 0; i < len; i++)
+	if (myMaxFrames == 1)
 	{
-	    modules[i].tick ();
+	    // the modules may be depending on being ticked, so do that
+	    for (int i = 0; i < len; i++)
+	    {
+		modules[i].tick ();
+	    }
+	}
+	else
+	{
+	    for (int i = 0; i < len; i++)
+	    {
+		modules[i].process (frames);
+	    }
 	}
     }
     
@@ -0,0 +1,758 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log, which writes a line per response to a file, in either the
+ * Common Log Format or the Combined Log Format (the same, plus the
+ * <code>Referer</code> and <code>User-Agent</code> of the request).
+ * Logging a response does no I/O and takes no locks; it just captures
+ * the particulars of the response and drops them into a fixed-size
+ * ring buffer. A background thread wakes up periodically and formats
+ * and writes whatever has accumulated, as a single batch. If the buffer
+ * fills up faster than it gets written, then new entries either get
+ * dropped (and counted) or the threads logging them wait for room,
+ * depending on the policy the instance was made with. The file may
+ * optionally be rolled over when it gets too big, keeping a given
+ * number of old files around, with suffixes <code>.1</code> (the most
+ * recent), <code>.2</code>, and so on.
+ *
+ * <p>Instances get hooked up to servers with {@link
+ * TinyWebServer#setAccessLog}. An instance may be shared between
+ * servers.</p>
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+final public class AccessLog
+{
+    /** format constant for the Common Log Format */
+    static public final int FORMAT_COMMON = 0;
+
+    /** format constant for the Combined Log Format */
+    static public final int FORMAT_COMBINED = 1;
+
+    /** policy constant indicating that entries get dropped when the
+     * buffer is full */
+    static public final int POLICY_DROP = 0;
+
+    /** policy constant indicating that threads logging entries wait
+     * when the buffer is full (unless the writer thread has died, in
+     * which case they get dropped after all) */
+    static public final int POLICY_BLOCK = 1;
+
+    /** the default number of entries the buffer holds */
+    static private final int DEFAULT_CAPACITY = 8192;
+
+    /** how long (nsec) the writer thread waits between batches */
+    static private final long FLUSH_NANOS = 500L * 1000 * 1000;
+
+    /** how long (nsec) a thread waiting for room in the buffer waits
+     * between checks */
+    static private final long BLOCK_NANOS = 100L * 1000;
+
+    /** date formatter for log timestamps; see the Apache documentation
+     * for the Common Log Format */
+    static private final DateTimeFormatter TheDateFormatter =
+	DateTimeFormatter.ofPattern ("dd/MMM/yyyy:HH:mm:ss Z", Locale.US)
+	.withZone (ZoneId.systemDefault ());
+
+    /** non-null; the file to write to */
+    private final File myFile;
+
+    /** the format to write in; one of the <code>FORMAT_</code>
+     * constants */
+    private final int myFormat;
+
+    /** the policy for when the buffer is full; one of the
+     * <code>POLICY_</code> constants */
+    private final int myPolicy;
+
+    /** the size at which the file gets rolled over, or <code>0</code>
+     * if it never gets rolled over */
+    private final long myMaxFileSize;
+
+    /** the number of rolled-over files to keep */
+    private final int myMaxBackups;
+
+    /** non-null; the ring buffer of {@link Entry}s; an element is
+     * <code>null</code> if it's free or if it has been claimed but not
+     * yet filled in */
+    private final AtomicReferenceArray myBuffer;
+
+    /** the mask to apply to a sequence number to get a buffer index */
+    private final int myMask;
+
+    /** the sequence number of the next entry to be claimed */
+    private final AtomicLong myHead;
+
+    /** the sequence number of the next entry to be written; only
+     * changed by the writer thread */
+    private volatile long myTail;
+
+    /** the sequence number up to which entries have been written and
+     * flushed; only changed by the writer thread */
+    private volatile long myFlushed;
+
+    /** the number of entries dropped because the buffer was full */
+    private final LongAdder myDropCount;
+
+    /** non-null; the logger to report trouble to */
+    private final TinyWebLogger myLogger;
+
+    /** non-null; the thread which writes the entries */
+    private final Thread myWriter;
+
+    /** whether this instance has been closed */
+    private volatile boolean myClosed;
+
+    /** null-ok; the stream to the file, if open; only used by the
+     * writer thread */
+    private OutputStream myStream;
+
+    /** the size of the file being written; only used by the writer
+     * thread */
+    private long myFileSize;
+
+    /** the second of the most recently formatted timestamp; only used by
+     * the writer thread */
+    private long myDateSecond;
+
+    /** null-ok; the most recently formatted timestamp; only used by
+     * the writer thread */
+    private String myDateString;
+
+
+
+    // ------------------------------------------------------------------------
+    // constructors
+
+    /**
+     * Construct an instance which appends to the given file, never
+     * rolls it over, and drops entries if they come in faster than they
+     * can be written.
+     *
+     * @param file non-null; the file to write to
+     * @param format the format to write in; one of the
+     * <code>FORMAT_</code> constants
+     */
+    public AccessLog (File file, int format)
+	throws IOException
+    {
+	this (file, format, DEFAULT_CAPACITY, POLICY_DROP, 0, 0);
+    }
+
+    /**
+     * Construct an instance which appends to the given file. The file
+     * gets opened (and created if need be) immediately, so that
+     * trouble with it gets noticed right away.
+     *
+     * @param file non-null; the file to write to
+     * @param format the format to write in; one of the
+     * <code>FORMAT_</code> constants
+     * @param capacity the number of entries the buffer holds; must be
+     * <code>&gt; 0</code> and gets rounded up to a power of two
+     * @param policy the policy for when the buffer is full; one of the
+     * <code>POLICY_</code> constants
+     * @param maxFileSize the size at which the file gets rolled over, or
+     * <code>0</code> if it should never be rolled over; must be
+     * <code>&gt;= 0</code>
+     * @param maxBackups the number of rolled-over files to keep; must be
+     * <code>&gt;= 0</code>
+     */
+    public AccessLog (File file, int format, int capacity, int policy,
+		      long maxFileSize, int maxBackups)
+	throws IOException
+    {
+	if (file == null)
+	{
+	    throw new NullPointerException ("file == null");
+	}
+
+	if ((format != FORMAT_COMMON) && (format != FORMAT_COMBINED))
+	{
+	    throw new IllegalArgumentException ("bad format");
+	}
+
+	if ((capacity <= 0) || (capacity > (1 << 30)))
+	{
+	    throw new IllegalArgumentException ("capacity out of range");
+	}
+
+	if ((policy != POLICY_DROP) && (policy != POLICY_BLOCK))
+	{
+	    throw new IllegalArgumentException ("bad policy");
+	}
+
+	if (maxFileSize < 0)
+	{
+	    throw new IllegalArgumentException ("maxFileSize < 0");
+	}
+
+	if (maxBackups < 0)
+	{
+	    throw new IllegalArgumentException ("maxBackups < 0");
+	}
+
+	int size = 1;
+	while (size < capacity)
+	{
+	    size <<= 1;
+	}
+
+	myFile = file;
+	myFormat = format;
+	myPolicy = policy;
+	myMaxFileSize = maxFileSize;
+	myMaxBackups = maxBackups;
+	myBuffer = new AtomicReferenceArray (size);
+	myMask = size - 1;
+	myHead = new AtomicLong (0);
+	myTail = 0;
+	myFlushed = 0;
+	myDropCount = new LongAdder ();
+	myLogger = new StandardLogger ();
+	myClosed = false;
+	myDateSecond = -1;
+	myDateString = null;
+
+	openFile ();
+
+	myWriter = new Thread ("AccessLog: " + file)
+	{
+	    public void run ()
+	    {
+		writeLoop ();
+	    }
+	};
+
+	myWriter.setDaemon (true);
+	myWriter.start ();
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // public instance methods
+
+    // superclass's javadoc suffices
+    public String toString ()
+    {
+	return "AccessLog[" + myFile + "]";
+    }
+
+    /**
+     * Log a response. This returns quickly, leaving the actual writing to
+     * the background thread, except that it may wait for room in the
+     * buffer if this instance was made with {@link #POLICY_BLOCK}. Entries
+     * logged after this instance has been closed are ignored.
+     *
+     * @param address null-ok; the address of the client, if known
+     * @param request null-ok; the request being responded to, or
+     * <code>null</code> if the request couldn't be read at all
+     * @param resultCode the result code of the response
+     * @param bytes the number of bytes of the response that were sent
+     * after the headers, or <code>-1</code> if not known
+     */
+    public void log (InetAddress address, HttpRequest request, 
+		     int resultCode, long bytes)
+    {
+	long seq = claim ();
+
+	if (seq == -1)
+	{
+	    return;
+	}
+
+	Entry entry = new Entry (System.currentTimeMillis (), address, 
+				 request, resultCode, bytes,
+				 myFormat == FORMAT_COMBINED);
+	myBuffer.set ((int) seq & myMask, entry);
+    }
+
+    /**
+     * Wait until everything logged so far has been written out to the
+     * file.
+     */
+    public void flush ()
+    {
+	long target = myHead.get ();
+
+	while ((myFlushed < target) && myWriter.isAlive ())
+	{
+	    LockSupport.unpark (myWriter);
+	    LockSupport.parkNanos (BLOCK_NANOS);
+	}
+    }
+
+    /**
+     * Close this instance. Everything logged so far gets written, and
+     * then the file gets closed. It is safe to call this on an
+     * already-closed instance.
+     */
+    public void close ()
+    {
+	myClosed = true;
+	LockSupport.unpark (myWriter);
+
+	try
+	{
+	    myWriter.join ();
+	}
+	catch (InterruptedException ex)
+	{
+	    // just pass it on
+	    Thread.currentThread ().interrupt ();
+	}
+    }
+
+    /**
+     * Get the number of entries dropped because the buffer was full.
+     *
+     * @return the number of dropped entries
+     */
+    public long getDropCount ()
+    {
+	return myDropCount.sum ();
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private instance methods
+
+    /**
+     * Claim the next slot in the buffer, dealing with the buffer being
+     * full according to the policy of this instance.
+     *
+     * @return the sequence number of the claimed slot, or <code>-1</code>
+     * if none was claimed
+     */
+    private long claim ()
+    {
+	for (;;)
+	{
+	    if (myClosed)
+	    {
+		return -1;
+	    }
+
+	    long seq = myHead.get ();
+
+	    if ((seq - myTail) > myMask)
+	    {
+		// full
+		if ((myPolicy == POLICY_DROP) || !myWriter.isAlive ())
+		{
+		    // if the writer is gone, there will never be room
+		    myDropCount.increment ();
+		    return -1;
+		}
+
+		LockSupport.unpark (myWriter);
+		LockSupport.parkNanos (BLOCK_NANOS);
+		continue;
+	    }
+
+	    if (myHead.compareAndSet (seq, seq + 1))
+	    {
+		return seq;
+	    }
+	}
+    }
+
+    /**
+     * Write batches of entries until this instance is closed. This is
+     * what the writer thread runs.
+     */
+    private void writeLoop ()
+    {
+	for (;;)
+	{
+	    boolean closing = myClosed;
+
+	    writeBatch ();
+
+	    if (closing && (myTail == myHead.get ()))
+	    {
+		break;
+	    }
+
+	    LockSupport.parkNanos (this, closing ? BLOCK_NANOS : FLUSH_NANOS);
+	}
+
+	closeFile ();
+    }
+
+    /**
+     * Write all the entries that are ready in the buffer, and flush
+     * the file.
+     */
+    private void writeBatch ()
+    {
+	long tail = myTail;
+	StringBuffer sb = new StringBuffer (2000);
+
+	for (;;)
+	{
+	    int at = (int) tail & myMask;
+	    Entry entry = (Entry) myBuffer.get (at);
+
+	    if (entry == null)
+	    {
+		// either there's nothing more, or the next entry is still
+		// being filled in
+		break;
+	    }
+
+	    myBuffer.set (at, null);
+	    tail++;
+	    myTail = tail;
+
+	    int mark = sb.length ();
+	    try
+	    {
+		append (sb, entry);
+	    }
+	    catch (RuntimeException ex)
+	    {
+		// skip just this entry, rather than letting the writer
+		// thread die and leave the buffer to fill up for good
+		sb.setLength (mark);
+		myLogger.error (this + " couldn't format entry", ex);
+	    }
+	}
+
+	if (sb.length () == 0)
+	{
+	    return;
+	}
+
+	try
+	{
+	    if ((myMaxFileSize != 0) 
+		&& (myFileSize != 0) 
+		&& ((myFileSize + sb.length ()) > myMaxFileSize))
+	    {
+		rollOver ();
+	    }
+
+	    if (myStream == null)
+	    {
+		openFile ();
+	    }
+
+	    byte[] bytes = sb.toString ().getBytes ("ISO-8859-1");
+	    myStream.write (bytes);
+	    myStream.flush ();
+	    myFileSize += bytes.length;
+	}
+	catch (IOException ex)
+	{
+	    myLogger.error (this + " couldn't write", ex);
+	    closeFile ();
+	}
+	catch (RuntimeException ex)
+	{
+	    myLogger.error (this + " couldn't write", ex);
+	    closeFile ();
+	}
+
+	myFlushed = tail;
+    }
+
+    /**
+     * Append the log line for the given entry to the given buffer.
+     *
+     * @param sb non-null; the buffer to append to
+     * @param entry non-null; the entry
+     */
+    private void append (StringBuffer sb, Entry entry)
+    {
+	long second = entry.myTime / 1000;
+	if (second != myDateSecond)
+	{
+	    myDateSecond = second;
+	    myDateString = 
+		TheDateFormatter.format (Instant.ofEpochMilli (entry.myTime));
+	}
+
+	if (entry.myAddress == null)
+	{
+	    sb.append ('-');
+	}
+	else
+	{
+	    sb.append (entry.myAddress.getHostAddress ());
+	}
+
+	sb.append (" - - [");
+	sb.append (myDateString);
+	sb.append ("] \"");
+
+	switch (entry.myMethod)
+	{
+	    case HttpRequest.REQUEST_GET:  sb.append ("GET ");  break;
+	    case HttpRequest.REQUEST_HEAD: sb.append ("HEAD "); break;
+	    case HttpRequest.REQUEST_POST: sb.append ("POST "); break;
+	}
+
+	if (entry.myPath == null)
+	{
+	    sb.append ('-');
+	}
+	else
+	{
+	    appendEscaped (sb, entry.myPath);
+	    sb.append (" HTTP/");
+	    sb.append (entry.myVersion);
+	}
+
+	sb.append ("\" ");
+	sb.append (entry.myResultCode);
+	sb.append (' ');
+
+	if (entry.myLength <= 0)
+	{
+	    sb.append ('-');
+	}
+	else
+	{
+	    sb.append (entry.myLength);
+	}
+
+	if (myFormat == FORMAT_COMBINED)
+	{
+	    sb.append (" \"");
+	    appendEscaped (sb, entry.myReferer);
+	    sb.append ("\" \"");
+	    appendEscaped (sb, entry.myUserAgent);
+	    sb.append ('"');
+	}
+
+	sb.append ('\n');
+    }
+
+    /**
+     * Open the file for appending.
+     */
+    private void openFile ()
+	throws IOException
+    {
+	myStream = new FileOutputStream (myFile, true);
+	myFileSize = myFile.length ();
+    }
+
+    /**
+     * Close the file, if open.
+     */
+    private void closeFile ()
+    {
+	if (myStream == null)
+	{
+	    return;
+	}
+
+	try
+	{
+	    myStream.close ();
+	}
+	catch (IOException ex)
+	{
+	    myLogger.error (this + " couldn't close", ex);
+	}
+
+	myStream = null;
+    }
+
+    /**
+     * Roll the file over, shifting the old files down by one, and
+     * open a fresh one.
+     */
+    private void rollOver ()
+	throws IOException
+    {
+	closeFile ();
+
+	if (myMaxBackups == 0)
+	{
+	    myFile.delete ();
+	}
+	else
+	{
+	    String base = myFile.getPath () + '.';
+	    new File (base + myMaxBackups).delete ();
+
+	    for (int i = myMaxBackups - 1; i > 0; i--)
+	    {
+		new File (base + i).renameTo (new File (base + (i + 1)));
+	    }
+
+	    myFile.renameTo (new File (base + 1));
+	}
+
+	openFile ();
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private static methods
+
+    /**
+     * Append the given string to the given buffer, escaping the
+     * characters that would confuse a reader of the log: quotes,
+     * backslashes, and anything that isn't printable ASCII. A
+     * <code>null</code> string is written as <code>"-"</code>.
+     *
+     * @param sb non-null; the buffer to append to
+     * @param s null-ok; the string to append
+     */
+    static private void appendEscaped (StringBuffer sb, String s)
+    {
+	if (s == null)
+	{
+	    sb.append ('-');
+	    return;
+	}
+
+	int len = s.length ();
+	for (int i = 0; i < len; i++)
+	{
+	    char c = s.charAt (i);
+
+	    if ((c == '"') || (c == '\\'))
+	    {
+		sb.append ('\\');
+		sb.append (c);
+	    }
+	    else if ((c < ' ') || (c > '~'))
+	    {
+		sb.append ("\\x");
+		sb.append (Character.forDigit ((c >> 4) & 0xf, 16));
+		sb.append (Character.forDigit (c & 0xf, 16));
+	    }
+	    else
+	    {
+		sb.append (c);
+	    }
+	}
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private static classes
+
+    /**
+     * The particulars of a logged response, captured so that the
+     * formatting can be done later, by the writer thread.
+     */
+    static private final class Entry
+    {
+	/** when the response was logged */
+	public final long myTime;
+
+	/** null-ok; the address of the client */
+	public final InetAddress myAddress;
+
+	/** the request method */
+	public final int myMethod;
+
+	/** null-ok; the path requested, or <code>null</code> if there was
+	 * no valid request */
+	public final String myPath;
+
+	/** null-ok; the HTTP version of the request */
+	public final String myVersion;
+
+	/** the result code of the response */
+	public final int myResultCode;
+
+	/** the number of bytes sent after the headers, or
+	 * <code>-1</code> if not known */
+	public final long myLength;
+
+	/** null-ok; the <code>Referer</code> of the request */
+	public final String myReferer;
+
+	/** null-ok; the <code>User-Agent</code> of the request */
+	public final String myUserAgent;
+
+	/**
+	 * Construct an instance.
+	 *
+	 * @param time when the response was logged
+	 * @param address null-ok; the address of the client
+	 * @param request null-ok; the request
+	 * @param resultCode the result code of the response
+	 * @param length the number of bytes sent after the headers
+	 * @param combined whether to capture the headers needed for the
+	 * Combined Log Format
+	 */
+	public Entry (long time, InetAddress address, HttpRequest request,
+		      int resultCode, long length, boolean combined)
+	{
+	    myTime = time;
+	    myAddress = address;
+	    myResultCode = resultCode;
+	    myLength = length;
+
+	    if ((request == null) 
+		|| (request.getRequestMethod () == HttpRequest.REQUEST_ERROR))
+	    {
+		myMethod = HttpRequest.REQUEST_ERROR;
+		myPath = null;
+		myVersion = null;
+	    }
+	    else
+	    {
+		myMethod = request.getRequestMethod ();
+		myPath = request.getPath ();
+		myVersion = request.getHttpVersion ();
+	    }
+
+	    if (combined && (request != null))
+	    {
+		myReferer = request.getHeader ("referer");
+		myUserAgent = request.getHeader ("user-agent");
+	    }
+	    else
+	    {
+		myReferer = null;
+		myUserAgent = null;
+	    }
+	}
+    }
+}
@@ -0,0 +1,334 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Tool which makes a bundle, for serving with a {@link BundleHandler},
+ * out of a directory tree. Optionally, the files of textual content
+ * types also get stored in <code>gzip</code>ped form (when that's
+ * actually smaller), so that they can be served compressed without
+ * being compressed per request. It can be run from the command line:
+ *
+ * <pre>
+ *     java com.milk.tinyweb.BundleBuilder [--gzip] <i>dir</i> <i>bundle</i>
+ * </pre>
+ *
+ * <p>A bundle consists of a header (the magic number and the format
+ * version), the contents of all the files one after another, an index,
+ * and a trailer (the offset of the index and the magic number again).
+ * The index is a count followed by, for each file, its path (relative
+ * to the directory, with slashes as separators), content type, and
+ * modification date, and the offsets and lengths of its content and
+ * of its <code>gzip</code>ped content (<code>-1</code> for both if
+ * there is none). All numbers are big-endian, and strings are in the
+ * form written by <code>DataOutputStream.writeUTF()</code>.</p>
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+final public class BundleBuilder
+{
+    /** the size of the buffer to copy files through */
+    static private final int BUF_SIZE = 65536;
+
+    /** non-null; the stream to write the bundle to */
+    private final DataOutputStream myOut;
+
+    /** whether to store <code>gzip</code>ped forms of textual files */
+    private final boolean myCompress;
+
+    /** non-null; buffer to copy files through */
+    private final byte[] myBuffer;
+
+    /** non-null; the index, as it's built up */
+    private final ByteArrayOutputStream myIndexBytes;
+
+    /** non-null; stream writing to {@link #myIndexBytes} */
+    private final DataOutputStream myIndex;
+
+    /** the number of files added so far */
+    private int myCount;
+
+    /** the number of bytes written to the bundle so far */
+    private long myOffset;
+
+
+
+    // ------------------------------------------------------------------------
+    // constructors
+
+    /**
+     * Construct an instance.
+     *
+     * @param out non-null; the stream to write the bundle to
+     * @param compress whether to store <code>gzip</code>ped forms of
+     * textual files
+     */
+    private BundleBuilder (OutputStream out, boolean compress)
+    {
+	myOut = new DataOutputStream (out);
+	myCompress = compress;
+	myBuffer = new byte[BUF_SIZE];
+	myIndexBytes = new ByteArrayOutputStream ();
+	myIndex = new DataOutputStream (myIndexBytes);
+	myCount = 0;
+	myOffset = 0;
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // public static methods
+
+    /**
+     * Run the tool from the command line.
+     *
+     * @param args non-null; the command line arguments
+     */
+    static public void main (String[] args)
+	throws IOException
+    {
+	boolean compress = false;
+	int at = 0;
+
+	if ((args.length > 0) && args[0].equals ("--gzip"))
+	{
+	    compress = true;
+	    at++;
+	}
+
+	if ((args.length - at) != 2)
+	{
+	    System.err.println ("usage: BundleBuilder [--gzip] " +
+				"<directory> <bundle>");
+	    System.exit (1);
+	}
+
+	File dir = new File (args[at]);
+	File bundle = new File (args[at + 1]);
+	int count = build (dir, bundle, compress);
+
+	System.out.println ("Wrote " + count + " files to " + bundle);
+    }
+
+    /**
+     * Make a bundle of all the readable files in the given directory
+     * tree.
+     *
+     * @param directory non-null; the directory
+     * @param bundle non-null; the file to write the bundle to
+     * @param compress whether to store <code>gzip</code>ped forms of
+     * textual files
+     * @return the number of files written to the bundle
+     */
+    static public int build (File directory, File bundle, boolean compress)
+	throws IOException
+    {
+	if (! directory.isDirectory ())
+	{
+	    throw new IOException ("not a directory: " + directory);
+	}
+
+	OutputStream out =
+	    new BufferedOutputStream (new FileOutputStream (bundle), BUF_SIZE);
+	boolean ok = false;
+
+	try
+	{
+	    BundleBuilder bb = new BundleBuilder (out, compress);
+	    bb.writeHeader ();
+	    bb.addDirectory (directory, "");
+	    bb.writeIndex ();
+	    out.close ();
+	    ok = true;
+	    return bb.myCount;
+	}
+	finally
+	{
+	    if (! ok)
+	    {
+		out.close ();
+		bundle.delete ();
+	    }
+	}
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private instance methods
+
+    /**
+     * Write the header of the bundle.
+     */
+    private void writeHeader ()
+	throws IOException
+    {
+	myOut.writeInt (BundleHandler.MAGIC);
+	myOut.writeInt (BundleHandler.VERSION);
+	myOffset += 8;
+    }
+
+    /**
+     * Add the files in the given directory, recursively.
+     *
+     * @param dir non-null; the directory
+     * @param prefix non-null; the path of the directory within the
+     * bundle; either empty or ending with a slash
+     */
+    private void addDirectory (File dir, String prefix)
+	throws IOException
+    {
+	File[] files = dir.listFiles ();
+
+	if (files == null)
+	{
+	    throw new IOException ("can't list directory: " + dir);
+	}
+
+	Arrays.sort (files);
+
+	for (int i = 0; i < files.length; i++)
+	{
+	    File one = files[i];
+	    String path = prefix + one.getName ();
+
+	    if (one.isDirectory ())
+	    {
+		addDirectory (one, path + "/");
+	    }
+	    else if (one.isFile () && one.canRead ())
+	    {
+		addFile (one, path);
+	    }
+	}
+    }
+
+    /**
+     * Add the given file.
+     *
+     * @param file non-null; the file
+     * @param path non-null; the path of the file within the bundle
+     */
+    private void addFile (File file, String path)
+	throws IOException
+    {
+	String contentType = FileDocument.nameToContentType (file.getName ());
+	long lastModified = file.lastModified ();
+	long offset = myOffset;
+	long length = copyFile (file, myOut);
+	long gzipOffset = -1;
+	long gzipLength = -1;
+
+	if (myCompress
+	    && (length >= CompressedDocument.MIN_LENGTH)
+	    && CompressedDocument.isCompressible (contentType))
+	{
+	    ByteArrayOutputStream baos = new ByteArrayOutputStream ();
+	    GZIPOutputStream gos = new GZIPOutputStream (baos);
+	    copyFile (file, gos);
+	    gos.close ();
+
+	    if (baos.size () < length)
+	    {
+		gzipOffset = myOffset;
+		gzipLength = baos.size ();
+		baos.writeTo (myOut);
+		myOffset += gzipLength;
+	    }
+	}
+
+	myIndex.writeUTF (path);
+	myIndex.writeUTF (contentType);
+	myIndex.writeLong (lastModified);
+	myIndex.writeLong (offset);
+	myIndex.writeLong (length);
+	myIndex.writeLong (gzipOffset);
+	myIndex.writeLong (gzipLength);
+	myCount++;
+    }
+
+    /**
+     * Copy the contents of the given file to the given stream. When the
+     * stream is the bundle itself, this keeps track of the offset.
+     *
+     * @param file non-null; the file
+     * @param out non-null; the stream to copy to
+     * @return the number of bytes copied
+     */
+    private long copyFile (File file, OutputStream out)
+	throws IOException
+    {
+	InputStream in = new FileInputStream (file);
+	long result = 0;
+
+	try
+	{
+	    for (;;)
+	    {
+		int amt = in.read (myBuffer);
+		if (amt == -1)
+		{
+		    break;
+		}
+		out.write (myBuffer, 0, amt);
+		result += amt;
+	    }
+	}
+	finally
+	{
+	    in.close ();
+	}
+
+	if (out == myOut)
+	{
+	    myOffset += result;
+	}
+
+	return result;
+    }
+
+    /**
+     * Write the index and trailer of the bundle, and flush it.
+     */
+    private void writeIndex ()
+	throws IOException
+    {
+	long indexAt = myOffset;
+
+	myOut.writeInt (myCount);
+	myIndexBytes.writeTo (myOut);
+	myOut.writeLong (indexAt);
+	myOut.writeInt (BundleHandler.MAGIC);
+	myOut.flush ();
+    }
+}
@@ -0,0 +1,450 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Handler which serves files out of a bundle, which is a single file
+ * holding the contents of a whole directory tree along with an index of
+ * them, as made by {@link BundleBuilder}. The bundle is memory-mapped
+ * and its index read just once, when an instance is constructed, so
+ * serving a request takes nothing more than a hash lookup of the path,
+ * without touching the file system at all, and the content gets written
+ * to the connection straight out of the mapped file.
+ *
+ * <p>A request for a path that ends with a slash (or for the handler
+ * itself) gets the <code>index.html</code> at that path, if there is
+ * one; there are no directory listings. If the bundle holds the
+ * <code>gzip</code>ped form of a file, then that gets served instead
+ * (with a <code>Content-Encoding</code> header) to clients that can take
+ * <code>gzip</code>. Query parameters are ignored.</p>
+ *
+ * <p>Since the bundle is mapped, it must not be modified while an
+ * instance is using it. To deploy a new bundle, write it to a new file
+ * and put a new instance in place of the old one.</p>
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+final public class BundleHandler
+implements DocumentHandler
+{
+    /** the magic number at the start and end of a bundle */
+    static final int MAGIC = 0x5457424e; // "TWBN"
+
+    /** the version number of the bundle format */
+    static final int VERSION = 1;
+
+    /** the size of the trailer at the end of a bundle; that is, the
+     * offset of the index followed by the magic number */
+    static final int TRAILER_SIZE = 12;
+
+    /** non-null; the bundle file */
+    private final File myFile;
+
+    /** non-null; map from paths to {@link Entry}s */
+    private final HashMap myEntries;
+
+
+
+    // ------------------------------------------------------------------------
+    // constructors
+
+    /**
+     * Construct an instance, serving files as uncacheable, just like
+     * any other document.
+     *
+     * @param file non-null; the bundle file
+     */
+    public BundleHandler (File file)
+	throws IOException
+    {
+	this (file, null);
+    }
+
+    /**
+     * Construct an instance with the given caching policy for the files
+     * it serves, in the form of a <code>Cache-Control</code> header value
+     * (see {@link FileSystemHandler#setCacheControl}).
+     *
+     * @param file non-null; the bundle file
+     * @param cacheControl null-ok; the <code>Cache-Control</code> header
+     * value to use, or <code>null</code> to use the server's default
+     */
+    public BundleHandler (File file, String cacheControl)
+	throws IOException
+    {
+	if (file == null)
+	{
+	    throw new NullPointerException ("file == null");
+	}
+
+	Map headers = null;
+
+	if (cacheControl != null)
+	{
+	    TreeMap tm = new TreeMap ();
+	    tm.put ("Cache-Control", cacheControl);
+	    headers = tm;
+	}
+
+	Map gzipHeaders =
+	    CompressedDocument.encodingHeaders (headers,
+						CompressedDocument.GZIP);
+
+	myFile = file;
+	myEntries = readBundle (file, headers, gzipHeaders);
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // public instance methods
+
+    // superclass's javadoc suffices
+    public String toString ()
+    {
+	return "BundleHandler[" + myFile + ", " + myEntries.size () +
+	    " files]";
+    }
+
+    /**
+     * Get the number of files in the bundle.
+     *
+     * @return the number of files
+     */
+    public int getFileCount ()
+    {
+	return myEntries.size ();
+    }
+
+    // interface's javadoc suffices
+    public Document handleRequest (String query, String partialPath,
+				   HttpRequest request)
+    {
+	String path = (partialPath == null) ? "" : partialPath;
+
+	if ((path.length () == 0) || path.endsWith ("/"))
+	{
+	    path += "index.html";
+	}
+
+	Entry entry = (Entry) myEntries.get (path);
+
+	if ((entry == null) && (path.indexOf ('%') != -1))
+	{
+	    path = URLUtils.expandPercent (path);
+	    if (path != null)
+	    {
+		entry = (Entry) myEntries.get (path);
+	    }
+	}
+
+	if (entry == null)
+	{
+	    return null;
+	}
+
+	if ((entry.myGzipDocument != null)
+	    && (request != null)
+	    && CompressedDocument.acceptsEncoding (request,
+						   CompressedDocument.GZIP))
+	{
+	    return entry.myGzipDocument;
+	}
+
+	return entry.myDocument;
+    }
+
+    // interface's javadoc suffices
+    public void putDocument (String partialPath, DocumentHandler doc)
+    {
+	throw new RuntimeException ("putDocument() not supported.");
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private static methods
+
+    /**
+     * Map the given bundle and read its index.
+     *
+     * @param file non-null; the bundle file
+     * @param headers null-ok; the extra headers for plain documents
+     * @param gzipHeaders non-null; the extra headers for
+     * <code>gzip</code>ped documents
+     * @return non-null; map from paths to {@link Entry}s
+     */
+    static private HashMap readBundle (File file, Map headers,
+				       Map gzipHeaders)
+	throws IOException
+    {
+	MappedByteBuffer mapped;
+	RandomAccessFile raf = new RandomAccessFile (file, "r");
+
+	try
+	{
+	    FileChannel fc = raf.getChannel ();
+	    long size = fc.size ();
+
+	    if (size > Integer.MAX_VALUE)
+	    {
+		throw new IOException ("bundle too big: " + file);
+	    }
+
+	    // the mapping stays valid after the channel is closed
+	    mapped = fc.map (FileChannel.MapMode.READ_ONLY, 0, size);
+	}
+	finally
+	{
+	    raf.close ();
+	}
+
+	int size = mapped.capacity ();
+
+	if ((size < (8 + TRAILER_SIZE))
+	    || (mapped.getInt (0) != MAGIC)
+	    || (mapped.getInt (size - 4) != MAGIC))
+	{
+	    throw new IOException ("not a bundle: " + file);
+	}
+
+	if (mapped.getInt (4) != VERSION)
+	{
+	    throw new IOException ("unsupported bundle version: " + file);
+	}
+
+	long indexAt = mapped.getLong (size - TRAILER_SIZE);
+
+	if ((indexAt < 8) || (indexAt > (size - TRAILER_SIZE)))
+	{
+	    throw new IOException ("corrupt bundle: " + file);
+	}
+
+	byte[] index = new byte[size - TRAILER_SIZE - (int) indexAt];
+	ByteBuffer ib = mapped.duplicate ();
+	ib.position ((int) indexAt);
+	ib.get (index);
+
+	DataInputStream dis =
+	    new DataInputStream (new ByteArrayInputStream (index));
+	int count = dis.readInt ();
+	HashMap result = new HashMap (count * 2);
+
+	for (int i = 0; i < count; i++)
+	{
+	    String path = dis.readUTF ();
+	    String contentType = dis.readUTF ();
+	    long lastModified = dis.readLong ();
+	    long offset = dis.readLong ();
+	    long length = dis.readLong ();
+	    long gzipOffset = dis.readLong ();
+	    long gzipLength = dis.readLong ();
+
+	    Document doc =
+		new BundleDocument (contentType, lastModified, headers,
+				    slice (mapped, offset, length, file));
+	    Document gzipDoc = null;
+
+	    if (gzipLength >= 0)
+	    {
+		gzipDoc =
+		    new BundleDocument (contentType, lastModified, gzipHeaders,
+					slice (mapped, gzipOffset, gzipLength,
+					       file));
+	    }
+
+	    result.put (path, new Entry (doc, gzipDoc));
+	}
+
+	return result;
+    }
+
+    /**
+     * Get a read-only slice of the given buffer.
+     *
+     * @param buf non-null; the buffer
+     * @param offset the offset of the slice
+     * @param length the length of the slice
+     * @param file non-null; the bundle file, for error messages
+     * @return non-null; the slice
+     */
+    static private ByteBuffer slice (ByteBuffer buf, long offset, long length,
+				     File file)
+	throws IOException
+    {
+	if ((offset < 0) || (length < 0)
+	    || ((offset + length) > buf.capacity ()))
+	{
+	    throw new IOException ("corrupt bundle: " + file);
+	}
+
+	ByteBuffer result = buf.duplicate ();
+	result.limit ((int) (offset + length));
+	result.position ((int) offset);
+	return result.slice ().asReadOnlyBuffer ();
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private static classes
+
+    /**
+     * The documents for a single file in a bundle.
+     */
+    static private final class Entry
+    {
+	/** non-null; the document for the file */
+	public final Document myDocument;
+
+	/** null-ok; the document for the <code>gzip</code>ped form of the
+	 * file, if the bundle has it */
+	public final Document myGzipDocument;
+
+	/**
+	 * Construct an instance.
+	 *
+	 * @param document non-null; the document for the file
+	 * @param gzipDocument null-ok; the document for the
+	 * <code>gzip</code>ped form of the file
+	 */
+	public Entry (Document document, Document gzipDocument)
+	{
+	    myDocument = document;
+	    myGzipDocument = gzipDocument;
+	}
+    }
+
+    /**
+     * Document whose content is a slice of a mapped bundle.
+     */
+    static private final class BundleDocument
+	extends Document
+    {
+	/** the size of the chunks to copy through when writing to a
+	 * stream */
+	static private final int BUF_SIZE = 8192;
+
+	/** non-null; the content; this is never itself read from, only
+	 * duplicated, so it can be shared between threads */
+	private final ByteBuffer myContent;
+
+	/**
+	 * Construct an instance.
+	 *
+	 * @param contentType non-null; the content type
+	 * @param lastModified the last modified date
+	 * @param extraHeaders null-ok; map of additional response headers
+	 * @param content non-null; the content
+	 */
+	public BundleDocument (String contentType, long lastModified,
+			       Map extraHeaders, ByteBuffer content)
+	{
+	    super (contentType, lastModified, 200, "OK", extraHeaders);
+	    myContent = content;
+	}
+
+	// superclass's javadoc suffices
+	public long getContentLength ()
+	{
+	    return myContent.capacity ();
+	}
+
+	// superclass's javadoc suffices
+	public void writeBytes (OutputStream stream, long contentLength)
+	    throws IOException
+	{
+	    writeRange (stream, contentLength, 0, contentLength);
+	}
+
+	// superclass's javadoc suffices
+	public void writeBytes (WritableByteChannel channel,
+				long contentLength)
+	    throws IOException
+	{
+	    writeRange (channel, contentLength, 0, contentLength);
+	}
+
+	// superclass's javadoc suffices
+	public void writeRange (OutputStream stream, long contentLength,
+				long offset, long count)
+	    throws IOException
+	{
+	    ByteBuffer buf = range (offset, count);
+	    byte[] chunk = new byte[Math.min (BUF_SIZE, buf.remaining ())];
+
+	    while (buf.hasRemaining ())
+	    {
+		int amt = Math.min (chunk.length, buf.remaining ());
+		buf.get (chunk, 0, amt);
+		stream.write (chunk, 0, amt);
+	    }
+	}
+
+	// superclass's javadoc suffices
+	public void writeRange (WritableByteChannel channel,
+				long contentLength, long offset, long count)
+	    throws IOException
+	{
+	    ByteBuffer buf = range (offset, count);
+
+	    while (buf.hasRemaining ())
+	    {
+		channel.write (buf);
+	    }
+	}
+
+	// superclass's javadoc suffices
+	ByteBuffer getContentBuffer ()
+	{
+	    return myContent.duplicate ();
+	}
+
+	/**
+	 * Get a fresh view of the given range of the content.
+	 *
+	 * @param offset the offset of the range
+	 * @param count the number of bytes in the range
+	 * @return non-null; the view
+	 */
+	private ByteBuffer range (long offset, long count)
+	{
+	    ByteBuffer result = myContent.duplicate ();
+	    result.limit ((int) (offset + count));
+	    result.position ((int) offset);
+	    return result;
+	}
+    }
+}
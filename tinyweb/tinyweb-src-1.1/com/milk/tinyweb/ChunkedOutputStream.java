@@ -0,0 +1,286 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that writes its data using the chunked transfer coding
+ * (see rfc2616 sec 3.6.1), which is how a response whose length isn't
+ * known in advance can be delimited without closing the connection
+ * after it. Data gets collected into chunks of up to a fixed size, each
+ * of which goes to the underlying stream in a single write; flushing an
+ * instance sends along whatever has been collected so far as a short
+ * chunk. Once all the data has been written, {@link #finish} must be
+ * called to write the terminating zero-length chunk. Neither it nor
+ * {@link #close} closes the underlying stream, since that is typically
+ * a connection which is to be kept open.
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+public final class ChunkedOutputStream
+extends OutputStream
+{
+    /** the default maximum chunk size */
+    static private final int DEFAULT_CHUNK_SIZE = 8192;
+
+    /** the number of bytes reserved at the front of the buffer for the
+     * chunk size line (eight hex digits plus crlf) */
+    static private final int HEADER_ROOM = 10;
+
+    /** non-null; the bytes of the last chunk, followed by the (empty)
+     * trailer */
+    static private final byte[] LAST_CHUNK = 
+	{ '0', '\r', '\n', '\r', '\n' };
+
+    /** non-null; hex digits, for writing chunk sizes */
+    static private final byte[] HEX_DIGITS = 
+	{ '0', '1', '2', '3', '4', '5', '6', '7', 
+	  '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+    /** null-ok; the underlying stream, or <code>null</code> if this
+     * instance has been finished */
+    private OutputStream myOut;
+
+    /** non-null; the buffer for the chunk being collected, with room
+     * for the chunk size line before the data and the crlf after it */
+    private byte[] myBuffer;
+
+    /** the maximum chunk size */
+    private int myChunkSize;
+
+    /** the number of bytes of data collected in the buffer */
+    private int myCount;
+
+
+
+    // ------------------------------------------------------------------------
+    // constructors
+
+    /**
+     * Construct an instance with the default maximum chunk size.
+     *
+     * @param out non-null; the stream to write to
+     */
+    public ChunkedOutputStream (OutputStream out)
+    {
+	this (out, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Construct an instance.
+     *
+     * @param out non-null; the stream to write to
+     * @param chunkSize the maximum chunk size; must be <code>&gt; 0</code>
+     */
+    public ChunkedOutputStream (OutputStream out, int chunkSize)
+    {
+	if (out == null)
+	{
+	    throw new NullPointerException ("out = null");
+	}
+
+	if (chunkSize <= 0)
+	{
+	    throw new IllegalArgumentException ("chunkSize <= 0");
+	}
+
+	myOut = out;
+	myBuffer = new byte[HEADER_ROOM + chunkSize + 2];
+	myChunkSize = chunkSize;
+	myCount = 0;
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // public instance methods
+
+    // superclass's documentation suffices
+    public void write (int b)
+	throws IOException
+    {
+	checkNotFinished ();
+
+	if (myCount == myChunkSize)
+	{
+	    writeChunk ();
+	}
+
+	myBuffer[HEADER_ROOM + myCount] = (byte) b;
+	myCount++;
+    }
+
+    // superclass's documentation suffices
+    public void write (byte[] b, int off, int len)
+	throws IOException
+    {
+	if (b == null)
+	{
+	    throw new NullPointerException ("b = null");
+	}
+
+	if ((off < 0) || (len < 0) || ((off + len) > b.length))
+	{
+	    throw new IndexOutOfBoundsException ();
+	}
+
+	checkNotFinished ();
+
+	if ((myCount == 0) && (len >= myChunkSize))
+	{
+	    // no point in copying through the buffer
+	    int at = writeSizeLine (len);
+	    myOut.write (myBuffer, at, HEADER_ROOM - at);
+	    myOut.write (b, off, len);
+	    myOut.write (LAST_CHUNK, 1, 2);
+	    return;
+	}
+
+	while (len > 0)
+	{
+	    if (myCount == myChunkSize)
+	    {
+		writeChunk ();
+	    }
+
+	    int amt = myChunkSize - myCount;
+	    if (amt > len)
+	    {
+		amt = len;
+	    }
+
+	    System.arraycopy (b, off, myBuffer, HEADER_ROOM + myCount, amt);
+	    myCount += amt;
+	    off += amt;
+	    len -= amt;
+	}
+    }
+
+    // superclass's documentation suffices
+    public void flush ()
+	throws IOException
+    {
+	if (myOut == null)
+	{
+	    // already finished
+	    return;
+	}
+
+	writeChunk ();
+	myOut.flush ();
+    }
+
+    /**
+     * Write out any data collected so far, followed by the last chunk.
+     * This must be called once all the data has been written, and after
+     * that, no more may be written. Calling it more than once is
+     * harmless. This neither flushes nor closes the underlying stream.
+     */
+    public void finish ()
+	throws IOException
+    {
+	if (myOut == null)
+	{
+	    return;
+	}
+
+	writeChunk ();
+	myOut.write (LAST_CHUNK);
+	myOut = null;
+    }
+
+    /**
+     * Finish (see {@link #finish}) and flush this instance. This doesn't
+     * close the underlying stream.
+     */
+    public void close ()
+	throws IOException
+    {
+	OutputStream out = myOut;
+
+	if (out != null)
+	{
+	    finish ();
+	    out.flush ();
+	}
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private instance methods
+
+    /**
+     * Throw an exception if this instance has been finished.
+     */
+    private void checkNotFinished ()
+	throws IOException
+    {
+	if (myOut == null)
+	{
+	    throw new IOException ("stream is finished");
+	}
+    }
+
+    /**
+     * Write out the data collected so far as a chunk, if there is any.
+     */
+    private void writeChunk ()
+	throws IOException
+    {
+	if (myCount == 0)
+	{
+	    return;
+	}
+
+	int at = writeSizeLine (myCount);
+	int end = HEADER_ROOM + myCount;
+	myBuffer[end] = '\r';
+	myBuffer[end + 1] = '\n';
+	myOut.write (myBuffer, at, end + 2 - at);
+	myCount = 0;
+    }
+
+    /**
+     * Write the chunk size line for a chunk of the given size into the
+     * front of the buffer, so that it ends just where the data starts.
+     *
+     * @param size the chunk size; must be <code>&gt; 0</code>
+     * @return the offset in the buffer where the line starts
+     */
+    private int writeSizeLine (int size)
+    {
+	int at = HEADER_ROOM - 2;
+	myBuffer[at] = '\r';
+	myBuffer[at + 1] = '\n';
+
+	while (size != 0)
+	{
+	    at--;
+	    myBuffer[at] = HEX_DIGITS[size & 0xf];
+	    size >>>= 4;
+	}
+
+	return at;
+    }
+}
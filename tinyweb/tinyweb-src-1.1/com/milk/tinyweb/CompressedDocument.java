@@ -0,0 +1,566 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb;
+
+import com.milk.util.EmbeddedException;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Document which is the compressed form of another document, that is,
+ * the other document with a content coding applied (see rfc2616 sec 3.5
+ * and sec 14.11). Instances are made by {@link #forRequest}, which only
+ * bothers for documents of a textual content type, and only for clients
+ * which list <code>gzip</code> or <code>deflate</code> in their
+ * <code>Accept-Encoding</code> header (see rfc2616 sec 14.3). The
+ * content of a {@link StaticDocument} gets compressed up front (and
+ * just once per document; see {@link
+ * StaticDocument#getCompressedBytes}), so its compressed length is
+ * known. (The selector-based engine has that done for documents held
+ * by a {@link FileCache} by a thread of its own rather than by an event
+ * loop, and sends them uncompressed until it's done.) Anything else
+ * gets compressed on the fly as it is written, so its compressed
+ * length isn't known, which means that it gets sent with
+ * the chunked transfer coding (see {@link ChunkedOutputStream}), and
+ * that is why that only happens for HTTP/1.1 clients (and only if the
+ * server allows it; see {@link TinyWebServer#setOnTheFlyCompression}).
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+final class CompressedDocument
+extends Document
+{
+    /** the name of the <code>gzip</code> content coding */
+    static final String GZIP = "gzip";
+
+    /** the name of the <code>deflate</code> content coding */
+    static final String DEFLATE = "deflate";
+
+    /** the size of the content below which compression isn't worth
+     * bothering with */
+    static final int MIN_LENGTH = 256;
+
+    /** the buffer size for the compressing streams */
+    static private final int BUF_SIZE = 8192;
+
+    /** non-null; the extra headers for <code>gzip</code>ped documents
+     * that don't have any of their own */
+    static private final Map TheGzipHeaders = 
+	encodingHeaders (null, GZIP);
+
+    /** non-null; the extra headers for <code>deflate</code>d documents
+     * that don't have any of their own */
+    static private final Map TheDeflateHeaders = 
+	encodingHeaders (null, DEFLATE);
+
+    /** non-null; the document whose content gets compressed */
+    private final Document myTarget;
+
+    /** the content length of the target */
+    private final long myTargetLength;
+
+    /** non-null; the content coding; either {@link #GZIP} or {@link
+     * #DEFLATE} */
+    private final String myEncoding;
+
+    /** null-ok; the compressed content, if it was compressed up front */
+    private final byte[] myBytes;
+
+    // ------------------------------------------------------------------------
+    // constructors
+
+    /**
+     * Construct an instance.
+     *
+     * @param target non-null; the document whose content gets compressed
+     * @param targetLength the content length of the target
+     * @param encoding non-null; the content coding
+     * @param bytes null-ok; the compressed content, if already known
+     */
+    private CompressedDocument (Document target, long targetLength,
+				String encoding, byte[] bytes)
+    {
+	super (target.getContentType (), target.getLastModified (),
+	       target.getResultCode (), target.getResultMsg (),
+	       headersFor (target.getExtraHeaders (), encoding));
+
+	myTarget = target;
+	myTargetLength = targetLength;
+	myEncoding = encoding;
+	myBytes = bytes;
+    }
+
+    // ------------------------------------------------------------------------
+    // public instance methods
+
+    // superclass's javadoc suffices
+    public long getContentLength ()
+    {
+	if (myBytes != null)
+	{
+	    return myBytes.length;
+	}
+
+	return CONTENT_LENGTH_UNKNOWN;
+    }
+
+    // superclass's javadoc suffices
+    public String getETag ()
+    {
+	String tag = myTarget.getETag ();
+
+	if (tag == null)
+	{
+	    return null;
+	}
+
+	// the compressed form is a different entity from the
+	// uncompressed one, so it gets a different tag; it's still
+	// determined by the target's tag, though, so it stays good for as
+	// long as the target's does
+	return tag.substring (0, tag.length () - 1) + '-' + myEncoding + '"';
+    }
+
+    // superclass's javadoc suffices
+    public void writeBytes (OutputStream stream, long contentLength)
+	throws IOException
+    {
+	if (myBytes != null)
+	{
+	    stream.write (myBytes);
+	    return;
+	}
+
+	// the compressor has to get closed to finish it and release its
+	// resources, but the stream it writes to mustn't get closed
+	OutputStream os = makeCompressor (new UnclosableOutputStream (stream),
+					  myEncoding);
+	myTarget.writeBytes (os, myTargetLength);
+	os.close ();
+    }
+
+    // ------------------------------------------------------------------------
+    // package static methods
+
+    /**
+     * Get the document to respond to the given request with, which is
+     * either a compressed form of the given document or, if the
+     * document isn't suitable for compression or the client can't take
+     * it, just the given document. Documents get compressed only if they
+     * have result code <code>200</code>, a textual content type (see
+     * {@link #isCompressible}), and at least a couple hundred bytes of
+     * content, and aren't already content-coded. Requests with a
+     * <code>Range</code> header get the uncompressed form, so that the
+     * ranges refer to the bytes of the document proper.
+     *
+     * @param request non-null; the request
+     * @param doc non-null; the document that was found for the request
+     * @param onTheFly whether documents other than {@link
+     * StaticDocument}s may get compressed as they're written
+     * @param background null-ok; where to compress a {@link
+     * StaticDocument} held by a {@link FileCache} whose compressed form
+     * hasn't been made yet, if that shouldn't be done on the calling
+     * thread, in which case the document gets sent uncompressed this
+     * time (and if the executor won't take the task, it'll be tried
+     * again next time); other documents are likely made afresh for
+     * each request, so they always get compressed on the calling thread
+     * @return non-null; the document to respond with
+     */
+    static Document forRequest (HttpRequest request, Document doc,
+				boolean onTheFly, Executor background)
+    {
+	if ((doc.getResultCode () != 200)
+	    || (request.getHeader ("range") != null)
+	    || !isCompressible (doc.getContentType ())
+	    || TinyWebServer.hasExtraHeader (doc, "content-encoding"))
+	{
+	    return doc;
+	}
+
+	long len = doc.getContentLength ();
+	if ((len == CONTENT_LENGTH_NONE)
+	    || ((len >= 0) && (len < MIN_LENGTH)))
+	{
+	    return doc;
+	}
+
+	String encoding = chooseEncoding (request);
+	if (encoding == null)
+	{
+	    return doc;
+	}
+
+	if (doc instanceof StaticDocument)
+	{
+	    final StaticDocument sdoc = (StaticDocument) doc;
+	    final String enc = encoding;
+	    byte[] bytes = sdoc.peekCompressedBytes (encoding);
+
+	    if (bytes == null)
+	    {
+		if ((background == null) || !sdoc.isCached ())
+		{
+		    bytes = sdoc.getCompressedBytes (encoding);
+		}
+		else
+		{
+		    try
+		    {
+			background.execute (new Runnable ()
+			{
+			    public void run ()
+			    {
+				sdoc.getCompressedBytes (enc);
+			    }
+			});
+		    }
+		    catch (RejectedExecutionException ex)
+		    {
+			// no room; it'll get tried again next time
+		    }
+		    return doc;
+		}
+	    }
+
+	    if (bytes.length >= len)
+	    {
+		// not worth it
+		return doc;
+	    }
+	    return new CompressedDocument (doc, len, encoding, bytes);
+	}
+
+	if (! onTheFly)
+	{
+	    return doc;
+	}
+
+	if (request.getHttpVersion () == "1.0")
+	{
+	    // it'd have to be close-delimited, which isn't worth it
+	    return doc;
+	}
+
+	return new CompressedDocument (doc, len, encoding, null);
+    }
+
+    /**
+     * Return whether a document of the given content type is worth
+     * compressing. That's the case for all <code>text/</code> types, as
+     * well as the common non-<code>text/</code> types that are textual
+     * (such as JavaScript, JSON, and XML).
+     *
+     * @param contentType non-null; the content type, possibly with
+     * parameters
+     * @return <code>true</code> if documents of the type should be
+     * compressed
+     */
+    static boolean isCompressible (String contentType)
+    {
+	String type = contentType.toLowerCase ();
+
+	return type.startsWith ("text/")
+	    || (type.indexOf ("javascript") != -1)
+	    || (type.indexOf ("json") != -1)
+	    || (type.indexOf ("xml") != -1);
+    }
+
+    /**
+     * Choose the content coding to compress a response to the given
+     * request with, based on its <code>Accept-Encoding</code> header, or
+     * return <code>null</code> if the client can't take any that are
+     * supported. When the client is indifferent, <code>gzip</code> is
+     * preferred.
+     *
+     * @param request non-null; the request
+     * @return null-ok; the content coding, either {@link #GZIP} or
+     * {@link #DEFLATE}, or <code>null</code> if there isn't one to use
+     */
+    static String chooseEncoding (HttpRequest request)
+    {
+	String accept = request.getHeader ("accept-encoding");
+
+	if (accept == null)
+	{
+	    return null;
+	}
+
+	double gzipQ = codingQuality (accept, GZIP);
+	double deflateQ = codingQuality (accept, DEFLATE);
+
+	if ((gzipQ <= 0) && (deflateQ <= 0))
+	{
+	    return null;
+	}
+
+	return (gzipQ >= deflateQ) ? GZIP : DEFLATE;
+    }
+
+    /**
+     * Return whether the given request says that the client can take
+     * the given content coding.
+     *
+     * @param request non-null; the request
+     * @param coding non-null; the content coding
+     * @return <code>true</code> if the client can take it
+     */
+    static boolean acceptsEncoding (HttpRequest request, String coding)
+    {
+	String accept = request.getHeader ("accept-encoding");
+
+	return (accept != null) && (codingQuality (accept, coding) > 0);
+    }
+
+    /**
+     * Get the extra headers for a document which is the given content
+     * coding of a document with the given extra headers. That is, the
+     * result has the original headers along with
+     * <code>Content-Encoding</code> and <code>Vary</code>.
+     *
+     * @param extraHeaders null-ok; the extra headers of the original
+     * document
+     * @param encoding non-null; the content coding
+     * @return non-null; the extra headers for the coded document
+     */
+    static Map encodingHeaders (Map extraHeaders, String encoding)
+    {
+	TreeMap result = new TreeMap ();
+	String vary = "Accept-Encoding";
+
+	if (extraHeaders != null)
+	{
+	    Iterator i = extraHeaders.keySet ().iterator ();
+	    while (i.hasNext ())
+	    {
+		String one = (String) i.next ();
+		String value = (String) extraHeaders.get (one);
+		if (one.equalsIgnoreCase ("vary"))
+		{
+		    vary = value + ", " + vary;
+		}
+		else
+		{
+		    result.put (one, value);
+		}
+	    }
+	}
+
+	result.put ("Content-Encoding", encoding);
+	result.put ("Vary", vary);
+	return Collections.unmodifiableMap (result);
+    }
+
+    /**
+     * Compress the given bytes with the given content coding.
+     *
+     * @param bytes non-null; the bytes to compress
+     * @param encoding non-null; the content coding
+     * @return non-null; the compressed bytes
+     */
+    static byte[] compress (byte[] bytes, String encoding)
+    {
+	try
+	{
+	    ByteArrayOutputStream baos = 
+		new ByteArrayOutputStream (bytes.length / 3 + 100);
+	    OutputStream os = makeCompressor (baos, encoding);
+	    os.write (bytes);
+	    os.close ();
+	    return baos.toByteArray ();
+	}
+	catch (IOException ex)
+	{
+	    // shouldn't happen; it's a byte array
+	    throw new EmbeddedException ("shouldn't happen", ex);
+	}
+    }
+
+    // ------------------------------------------------------------------------
+    // private static methods
+
+    /**
+     * Get the extra headers for an instance which compresses a document
+     * with the given extra headers, using the shared maps when
+     * possible.
+     *
+     * @param extraHeaders null-ok; the extra headers of the target
+     * @param encoding non-null; the content coding
+     * @return non-null; the extra headers for the instance
+     */
+    static private Map headersFor (Map extraHeaders, String encoding)
+    {
+	if (extraHeaders != null)
+	{
+	    return encodingHeaders (extraHeaders, encoding);
+	}
+
+	return encoding.equals (GZIP) ? TheGzipHeaders : TheDeflateHeaders;
+    }
+
+    /**
+     * Get the quality value (see rfc2616 sec 3.9) that the given
+     * <code>Accept-Encoding</code> header value gives to the given
+     * content coding. A coding that isn't mentioned gets the quality of
+     * <code>"*"</code> if that's present, or <code>0</code> if not.
+     *
+     * @param accept non-null; the header value
+     * @param coding non-null; the content coding
+     * @return the quality value, from <code>0</code> (not acceptable) to
+     * <code>1</code>
+     */
+    static private double codingQuality (String accept, String coding)
+    {
+	double starQ = 0;
+	int at = 0;
+	int len = accept.length ();
+
+	while (at < len)
+	{
+	    int end = accept.indexOf (',', at);
+	    if (end == -1)
+	    {
+		end = len;
+	    }
+
+	    String one = accept.substring (at, end);
+	    at = end + 1;
+
+	    double q = 1;
+	    int semi = one.indexOf (';');
+	    if (semi != -1)
+	    {
+		String param = one.substring (semi + 1).trim ();
+		one = one.substring (0, semi);
+		if (param.startsWith ("q=") || param.startsWith ("Q="))
+		{
+		    try
+		    {
+			q = Double.parseDouble (param.substring (2).trim ());
+		    }
+		    catch (NumberFormatException ex)
+		    {
+			// be lenient; treat it as if it weren't there
+		    }
+		}
+	    }
+
+	    one = one.trim ();
+	    if (one.equalsIgnoreCase (coding)
+		|| one.equalsIgnoreCase ("x-" + coding))
+	    {
+		return q;
+	    }
+	    else if (one.equals ("*"))
+	    {
+		starQ = q;
+	    }
+	}
+
+	return starQ;
+    }
+
+    /**
+     * Make a stream which compresses what is written to it with the
+     * given content coding, writing the result to the given stream.
+     * Flushing the result flushes all the compressed data written so
+     * far. Closing it finishes the compressed data and closes the given
+     * stream.
+     *
+     * @param out non-null; the stream to write to
+     * @param encoding non-null; the content coding
+     * @return non-null; the compressing stream
+     */
+    static private OutputStream makeCompressor (OutputStream out,
+						String encoding)
+	throws IOException
+    {
+	if (encoding.equals (GZIP))
+	{
+	    return new GZIPOutputStream (out, BUF_SIZE, true);
+	}
+
+	// the "deflate" coding is actually the zlib format, which is what
+	// DeflaterOutputStream produces by default; the Deflater is
+	// passed explicitly so as to specify the buffer size, which means
+	// it has to be explicitly released, too
+	return new DeflaterOutputStream (out, new Deflater (), BUF_SIZE, true)
+	{
+	    public void close ()
+		throws IOException
+	    {
+		try
+		{
+		    super.close ();
+		}
+		finally
+		{
+		    def.end ();
+		}
+	    }
+	};
+    }
+
+    // ------------------------------------------------------------------------
+    // private static classes
+
+    /**
+     * Output stream filter which passes everything through except for
+     * closing, which it turns into flushing.
+     */
+    static private final class UnclosableOutputStream
+	extends FilterOutputStream
+    {
+	/**
+	 * Construct an instance.
+	 *
+	 * @param out non-null; the stream to write to
+	 */
+	public UnclosableOutputStream (OutputStream out)
+	{
+	    super (out);
+	}
+
+	// superclass's javadoc suffices
+	public void write (byte[] b, int off, int len)
+	    throws IOException
+	{
+	    out.write (b, off, len);
+	}
+
+	// superclass's javadoc suffices
+	public void close ()
+	    throws IOException
+	{
+	    out.flush ();
+	}
+    }
+}
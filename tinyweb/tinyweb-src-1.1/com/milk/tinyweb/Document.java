@@ -21,9 +21,14 @@
 package com.milk.tinyweb;
 
 import com.milk.util.EmbeddedException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Map;
 
 /**
@@ -201,6 +206,102 @@ implements DocumentHandler
 	return myExtraHeaders;
     }
 
+    /**
+     * Write the bytes of this instance to the given channel. This is
+     * just like {@link #writeBytes(OutputStream,long)}, and it is used
+     * instead of that method when the server has a channel for the
+     * connection being responded to. The given channel will be in
+     * blocking mode. The default implementation just wraps the channel
+     * in a stream and calls the stream version, but subclasses may
+     * override this to deliver the content more efficiently (for
+     * example, without copying it through the heap).
+     *
+     * @param channel the channel to write to 
+     * @param contentLength the number of bytes that should be written
+     */
+    public void writeBytes (WritableByteChannel channel, long contentLength)
+	throws IOException
+    {
+	OutputStream os = Channels.newOutputStream (channel);
+	writeBytes (os, contentLength);
+	os.flush ();
+    }
+
+    /**
+     * Get the entity tag for this instance, suitable for use as the value
+     * of an <code>ETag</code> header (that is, including the surrounding
+     * double quotes), or <code>null</code> if this instance has no
+     * entity tag. The default implementation derives a tag from the
+     * content length and modification date, for contentful documents
+     * with result code <code>200</code> and a known content length;
+     * subclasses whose content can change without either of those
+     * changing should override this method.
+     *
+     * @return null-ok; the entity tag for this instance
+     */
+    public String getETag ()
+    {
+	if (myResultCode != 200)
+	{
+	    return null;
+	}
+
+	long len = getContentLength ();
+
+	if (len < 0)
+	{
+	    return null;
+	}
+
+	return '"' + Long.toHexString (len) + '-' + 
+	    Long.toHexString (myLastModified) + '"';
+    }
+
+    /**
+     * Write a range of the bytes of this instance to the given stream.
+     * This is used to respond to requests with a <code>Range</code>
+     * header. The given content length will have been returned from a
+     * previous call to {@link #getContentLength} on this instance, and
+     * the range will lie within it. The default implementation writes
+     * the entire content through a filter that drops the bytes outside
+     * the range, which works for any document but is wasteful for
+     * documents that can get at an arbitrary range of their content
+     * directly; such subclasses should override this method.
+     *
+     * @param stream the stream to write to 
+     * @param contentLength the full content length of this instance
+     * @param offset the offset of the first byte to write
+     * @param count the number of bytes to write
+     */
+    public void writeRange (OutputStream stream, long contentLength,
+			    long offset, long count)
+	throws IOException
+    {
+	RangeOutputStream ros = new RangeOutputStream (stream, offset, count);
+	writeBytes (ros, contentLength);
+	ros.flush ();
+    }
+
+    /**
+     * Write a range of the bytes of this instance to the given channel.
+     * This is just like {@link #writeRange(OutputStream,long,long,long)},
+     * in the same way that {@link #writeBytes(WritableByteChannel,long)}
+     * is just like {@link #writeBytes(OutputStream,long)}.
+     *
+     * @param channel the channel to write to 
+     * @param contentLength the full content length of this instance
+     * @param offset the offset of the first byte to write
+     * @param count the number of bytes to write
+     */
+    public void writeRange (WritableByteChannel channel, long contentLength,
+			    long offset, long count)
+	throws IOException
+    {
+	OutputStream os = Channels.newOutputStream (channel);
+	writeRange (os, contentLength, offset, count);
+	os.flush ();
+    }
+
 
 
     // ------------------------------------------------------------------------
@@ -233,6 +334,55 @@ implements DocumentHandler
     abstract public void writeBytes (OutputStream stream, long contentLength)
 	throws IOException;
 
+
+
+    // ------------------------------------------------------------------------
+    // package instance methods
+
+    /**
+     * Open a channel for transferring the bytes of this instance
+     * directly, or return <code>null</code> if this instance can't be
+     * transferred that way, which is what the default implementation
+     * does. The bytes to transfer start at the position returned by
+     * {@link #getTransferStart}. The caller is responsible for closing
+     * the channel.
+     *
+     * @return null-ok; the channel, or <code>null</code> if this instance
+     * can't be transferred directly
+     */
+    FileChannel openTransferChannel ()
+	throws IOException
+    {
+	return null;
+    }
+
+    /**
+     * Get the position in the channel returned by {@link
+     * #openTransferChannel} at which the bytes of this instance start.
+     *
+     * @return the position to start transferring at
+     */
+    long getTransferStart ()
+    {
+	return 0;
+    }
+
+    /**
+     * Get a buffer holding the bytes of this instance, for writing them
+     * directly, or return <code>null</code> if this instance doesn't keep
+     * its bytes in a buffer, which is what the default implementation
+     * does. The bytes are the ones between the position and limit of
+     * the result, which is a fresh view of the buffer, so the caller may
+     * do whatever it likes with its position and limit.
+     *
+     * @return null-ok; the buffer, or <code>null</code> if this instance
+     * doesn't have one
+     */
+    ByteBuffer getContentBuffer ()
+    {
+	return null;
+    }
+
     // ------------------------------------------------------------------------
     // static public methods
 
@@ -354,4 +504,76 @@ implements DocumentHandler
 				   resultMsg,
 				   extraHeaders);
     }
+
+
+
+    // ------------------------------------------------------------------------
+    // private static classes
+
+    /**
+     * Output stream filter which only passes through a given range of
+     * the bytes written to it, quietly dropping the rest.
+     */
+    static private final class RangeOutputStream
+	extends FilterOutputStream
+    {
+	/** the number of bytes yet to drop before the range starts */
+	private long mySkip;
+
+	/** the number of bytes in the range yet to pass through */
+	private long myLeft;
+
+	/**
+	 * Construct an instance.
+	 *
+	 * @param out non-null; the stream to write the range to
+	 * @param offset the offset of the first byte to pass through
+	 * @param count the number of bytes to pass through
+	 */
+	public RangeOutputStream (OutputStream out, long offset, long count)
+	{
+	    super (out);
+	    mySkip = offset;
+	    myLeft = count;
+	}
+
+	// superclass's javadoc suffices
+	public void write (int b)
+	    throws IOException
+	{
+	    if (mySkip > 0)
+	    {
+		mySkip--;
+	    }
+	    else if (myLeft > 0)
+	    {
+		out.write (b);
+		myLeft--;
+	    }
+	}
+
+	// superclass's javadoc suffices
+	public void write (byte[] b, int off, int len)
+	    throws IOException
+	{
+	    if (mySkip > 0)
+	    {
+		int amt = (mySkip < len) ? (int) mySkip : len;
+		mySkip -= amt;
+		off += amt;
+		len -= amt;
+	    }
+
+	    if (len > myLeft)
+	    {
+		len = (int) myLeft;
+	    }
+
+	    if (len > 0)
+	    {
+		out.write (b, off, len);
+		myLeft -= len;
+	    }
+	}
+    }
 }
@@ -0,0 +1,451 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded in-memory cache of the contents of files, as {@link
+ * StaticDocument}s. It is limited both in the number of files and the
+ * total number of bytes it holds (which includes the compressed forms
+ * of the files, once they've been made; see {@link
+ * TinyWebServer#setCompression}), and when either limit is exceeded,
+ * the least recently used files get evicted. Files larger than a given size
+ * are never cached. Every lookup checks the modification date and length
+ * of the file, and a cached copy that doesn't match is thrown away, so
+ * the cache never serves stale content for longer than it takes to
+ * notice a change. An instance may be shared between any number of
+ * {@link FileSystemHandler}s (see {@link
+ * FileSystemHandler#setFileCache}), and it keeps count of its hits,
+ * misses, and evictions, to help in choosing the limits.
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+final public class FileCache
+{
+    /** the maximum number of files to hold */
+    private final int myMaxCount;
+
+    /** the maximum total number of bytes to hold */
+    private final long myMaxBytes;
+
+    /** the maximum size of an individual file to hold */
+    private final long myMaxFileSize;
+
+    /** non-null; map from file paths to {@link Entry}s, in
+     * least-recently-used order; also used for synchronization */
+    private final LinkedHashMap myEntries;
+
+    /** the total number of bytes currently held */
+    private long myByteCount;
+
+    /** the number of lookups which found a current entry */
+    private long myHitCount;
+
+    /** the number of lookups which didn't find a current entry */
+    private long myMissCount;
+
+    /** the number of entries evicted to keep within the limits */
+    private long myEvictionCount;
+
+
+
+    // ------------------------------------------------------------------------
+    // constructors
+
+    /**
+     * Construct an instance.
+     *
+     * @param maxCount the maximum number of files to hold; must be
+     * <code>&gt; 0</code>
+     * @param maxBytes the maximum total number of bytes to hold; must be
+     * <code>&gt; 0</code>
+     * @param maxFileSize the maximum size of an individual file to hold;
+     * must be <code>&gt;= 0</code> and no greater than
+     * <code>maxBytes</code>
+     */
+    public FileCache (int maxCount, long maxBytes, long maxFileSize)
+    {
+	if (maxCount <= 0)
+	{
+	    throw new IllegalArgumentException ("maxCount <= 0");
+	}
+
+	if (maxBytes <= 0)
+	{
+	    throw new IllegalArgumentException ("maxBytes <= 0");
+	}
+
+	if ((maxFileSize < 0) || (maxFileSize > maxBytes))
+	{
+	    throw new IllegalArgumentException ("maxFileSize out of range");
+	}
+
+	myMaxCount = maxCount;
+	myMaxBytes = maxBytes;
+	myMaxFileSize = maxFileSize;
+	myEntries = new LinkedHashMap (16, 0.75f, true);
+	myByteCount = 0;
+	myHitCount = 0;
+	myMissCount = 0;
+	myEvictionCount = 0;
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // public instance methods
+
+    /**
+     * Get a document with the current contents of the given file, with
+     * the given extra headers, reading it into the cache if it's not
+     * already there (or if what's there is out of date). This returns
+     * <code>null</code> if the file is too big to cache or can't be read,
+     * in which case the caller should fall back to serving it some other
+     * way (such as with a {@link FileDocument}).
+     *
+     * @param file non-null; the file to get
+     * @param extraHeaders null-ok; map of additional response headers to
+     * associate with the document; it is compared by identity with the
+     * map that a cached document was made with, so it must not be
+     * modified once it is handed to this method
+     * @return null-ok; the document for the file, or <code>null</code> if
+     * it couldn't be cached
+     */
+    public Document getDocument (File file, Map extraHeaders)
+    {
+	String key = file.getPath ();
+	long lastModified = file.lastModified ();
+	long length = file.length ();
+
+	synchronized (myEntries)
+	{
+	    Entry entry = (Entry) myEntries.get (key);
+	    if (entry != null)
+	    {
+		if ((entry.myLastModified == lastModified)
+		    && (entry.myLength == length)
+		    && (entry.myExtraHeaders == extraHeaders))
+		{
+		    myHitCount++;
+		    return entry.myDoc;
+		}
+
+		// out of date
+		myEntries.remove (key);
+		myByteCount -= entry.mySize;
+	    }
+
+	    myMissCount++;
+	}
+
+	if ((length > myMaxFileSize) || (lastModified == 0))
+	{
+	    // too big, or nonexistent
+	    return null;
+	}
+
+	byte[] bytes = readFile (file, length);
+
+	if ((bytes == null) || (file.lastModified () != lastModified))
+	{
+	    // couldn't read it or it changed out from under us
+	    return null;
+	}
+
+	String contentType = FileDocument.nameToContentType (file.getName ());
+	StaticDocument doc = 
+	    new StaticDocument (contentType, lastModified, bytes,
+				200, "OK", extraHeaders);
+	Entry entry = new Entry (lastModified, length, extraHeaders, doc);
+	doc.setCache (this, key);
+
+	synchronized (myEntries)
+	{
+	    Entry old = (Entry) myEntries.put (key, entry);
+	    if (old != null)
+	    {
+		// someone else got here at the same time
+		myByteCount -= old.mySize;
+	    }
+
+	    myByteCount += entry.mySize;
+	    evictAsNeeded ();
+	}
+
+	return doc;
+    }
+
+    /**
+     * Remove everything from this instance. The counters are left alone.
+     */
+    public void clear ()
+    {
+	synchronized (myEntries)
+	{
+	    myEntries.clear ();
+	    myByteCount = 0;
+	}
+    }
+
+    /**
+     * Get the number of files currently held.
+     *
+     * @return the number of files currently held
+     */
+    public int getCount ()
+    {
+	synchronized (myEntries)
+	{
+	    return myEntries.size ();
+	}
+    }
+
+    /**
+     * Get the total number of bytes currently held.
+     *
+     * @return the total number of bytes currently held
+     */
+    public long getByteCount ()
+    {
+	synchronized (myEntries)
+	{
+	    return myByteCount;
+	}
+    }
+
+    /**
+     * Get the number of lookups which were satisfied from the cache.
+     *
+     * @return the hit count
+     */
+    public long getHitCount ()
+    {
+	synchronized (myEntries)
+	{
+	    return myHitCount;
+	}
+    }
+
+    /**
+     * Get the number of lookups which weren't satisfied from the cache,
+     * including lookups of files that turned out not to be cacheable.
+     *
+     * @return the miss count
+     */
+    public long getMissCount ()
+    {
+	synchronized (myEntries)
+	{
+	    return myMissCount;
+	}
+    }
+
+    /**
+     * Get the number of files which have been evicted to keep within
+     * the limits of this instance. Files thrown away because they were
+     * out of date don't count.
+     *
+     * @return the eviction count
+     */
+    public long getEvictionCount ()
+    {
+	synchronized (myEntries)
+	{
+	    return myEvictionCount;
+	}
+    }
+
+    // superclass's javadoc suffices
+    public String toString ()
+    {
+	synchronized (myEntries)
+	{
+	    return "FileCache[" + myEntries.size () + " files, " +
+		myByteCount + " bytes, " + myHitCount + " hits, " +
+		myMissCount + " misses, " + myEvictionCount + " evictions]";
+	}
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // package instance methods
+
+    /**
+     * Count the given number of additional bytes as held by the given
+     * document, which was cached under the given key, evicting other
+     * entries as needed. This is called when a compressed form of the
+     * document gets made. If the document has since been evicted or
+     * replaced, this does nothing.
+     *
+     * @param key non-null; the key the document was cached under
+     * @param doc non-null; the document
+     * @param count the number of additional bytes
+     */
+    void addBytes (String key, Document doc, long count)
+    {
+	synchronized (myEntries)
+	{
+	    Entry entry = (Entry) myEntries.get (key);
+	    if ((entry == null) || (entry.myDoc != doc))
+	    {
+		return;
+	    }
+
+	    entry.mySize += count;
+	    myByteCount += count;
+	    evictAsNeeded ();
+	}
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private instance methods
+
+    /**
+     * Evict least-recently-used entries until this instance is within
+     * its limits. This must only be called while synchronized on
+     * {@link #myEntries}.
+     */
+    private void evictAsNeeded ()
+    {
+	Iterator i = myEntries.values ().iterator ();
+
+	while (((myEntries.size () > myMaxCount) || (myByteCount > myMaxBytes))
+	       && i.hasNext ())
+	{
+	    Entry one = (Entry) i.next ();
+	    i.remove ();
+	    myByteCount -= one.mySize;
+	    myEvictionCount++;
+	}
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private static methods
+
+    /**
+     * Read the given file, which is expected to be of the given length,
+     * returning <code>null</code> if it couldn't be read or turned out
+     * to be of a different length.
+     *
+     * @param file non-null; the file to read
+     * @param length the expected length
+     * @return null-ok; the contents of the file, or <code>null</code>
+     * if there was trouble
+     */
+    static private byte[] readFile (File file, long length)
+    {
+	byte[] result = new byte[(int) length];
+
+	try
+	{
+	    FileInputStream fis = new FileInputStream (file);
+
+	    try
+	    {
+		int at = 0;
+		while (at < result.length)
+		{
+		    int amt = fis.read (result, at, result.length - at);
+		    if (amt == -1)
+		    {
+			// it shrunk
+			return null;
+		    }
+		    at += amt;
+		}
+
+		if (fis.read () != -1)
+		{
+		    // it grew
+		    return null;
+		}
+	    }
+	    finally
+	    {
+		fis.close ();
+	    }
+	}
+	catch (IOException ex)
+	{
+	    return null;
+	}
+
+	return result;
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private static classes
+
+    /**
+     * A cached file.
+     */
+    static private final class Entry
+    {
+	/** the modification date of the file when it was read */
+	public final long myLastModified;
+
+	/** the length of the file */
+	public final long myLength;
+
+	/** the number of bytes held for the file, which is its length
+	 * plus the length of any compressed forms of it; this must only
+	 * be accessed while synchronized on {@link #myEntries} */
+	public long mySize;
+
+	/** null-ok; the extra headers the document was made with */
+	public final Map myExtraHeaders;
+
+	/** non-null; the document */
+	public final Document myDoc;
+
+	/**
+	 * Construct an instance.
+	 *
+	 * @param lastModified the modification date of the file
+	 * @param length the length of the file
+	 * @param extraHeaders null-ok; the extra headers the document
+	 * was made with
+	 * @param doc non-null; the document
+	 */
+	public Entry (long lastModified, long length, Map extraHeaders,
+		      Document doc)
+	{
+	    myLastModified = lastModified;
+	    myLength = length;
+	    mySize = length;
+	    myExtraHeaders = extraHeaders;
+	    myDoc = doc;
+	}
+    }
+}
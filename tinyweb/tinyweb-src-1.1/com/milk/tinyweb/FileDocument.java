@@ -27,6 +27,9 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
 
 /**
  * Document whose content comes from a named file. It can optionally
@@ -71,7 +74,48 @@ extends Document
      */
     public FileDocument (File file, String query)
     {
-	super (nameToContentType (file.getName ()), file.lastModified ());
+	this (file, query, null);
+    }
+
+    /**
+     * Construct an instance with extra headers. This is just like
+     * {@link #FileDocument(File,String)}, except that the given headers
+     * are sent along with the content (for example, to specify a caching
+     * policy). Note that it is not appropriate to hold on to the
+     * <code>extraHeaders</code> parameter after constructing an instance.
+     *
+     * @param file non-null; the file to use for the content
+     * @param query null-ok; query parameters to determine offset and
+     * dynamism
+     * @param extraHeaders null-ok; map of additional response headers, if
+     * any; if non-<code>null</code>, must be a map of <code>String</code>s
+     * to <code>String</code>s
+     */
+    public FileDocument (File file, String query, Map extraHeaders)
+    {
+	this (file, nameToContentType (file.getName ()), query, extraHeaders);
+    }
+
+    /**
+     * Construct an instance with an explicit content type. This is just
+     * like {@link #FileDocument(File,String,Map)}, except that the
+     * content type isn't determined from the name of the file. This is
+     * useful for files whose contents are some other file with a content
+     * coding applied (for example, <code>"foo.html.gz"</code> as the
+     * <code>gzip</code>ped form of <code>"foo.html"</code>).
+     *
+     * @param file non-null; the file to use for the content
+     * @param contentType non-null; the MIME content type of the document
+     * @param query null-ok; query parameters to determine offset and
+     * dynamism
+     * @param extraHeaders null-ok; map of additional response headers, if
+     * any; if non-<code>null</code>, must be a map of <code>String</code>s
+     * to <code>String</code>s
+     */
+    public FileDocument (File file, String contentType, String query, 
+			 Map extraHeaders)
+    {
+	super (contentType, file.lastModified (), 200, "OK", extraHeaders);
 
 	if (file == null)
 	{
@@ -217,6 +261,163 @@ extends Document
 	}
     }
 
+    /**
+     * Write the bytes of this instance to the given channel. For
+     * non-dynamic documents, this has the file channel transfer the
+     * bytes directly, which (for socket channels, in particular) means
+     * they needn't be copied through the heap at all. Dynamic documents
+     * are written the same way as for {@link #writeBytes(OutputStream,
+     * long)}.
+     *
+     * @param channel the channel to write to 
+     * @param contentLength the number of bytes that should be written
+     */
+    public void writeBytes (WritableByteChannel channel, long contentLength)
+	throws IOException
+    {
+	if (myDynamic)
+	{
+	    super.writeBytes (channel, contentLength);
+	    return;
+	}
+
+	writeRange (channel, contentLength, 0, contentLength);
+    }
+
+    /**
+     * Write a range of the bytes of this instance to the given stream.
+     * This reads just the bytes in the range from the file. This should
+     * not be called on dynamic documents, as their content length is
+     * never known.
+     *
+     * @param stream the stream to write to 
+     * @param contentLength the full content length of this instance
+     * @param offset the offset of the first byte to write
+     * @param count the number of bytes to write
+     */
+    public void writeRange (OutputStream stream, long contentLength,
+			    long offset, long count)
+	throws IOException
+    {
+	if (count == 0)
+	{
+	    return;
+	}
+
+	FileInputStream fis = new FileInputStream (myFile);
+
+	try
+	{
+	    fis.skip (getStartAt () + offset);
+
+	    byte[] buf = new byte[(count < BUF_SIZE) ? (int) count : BUF_SIZE];
+
+	    while (count > 0)
+	    {
+		int amt = (count > buf.length) ? buf.length : (int) count;
+
+		try
+		{
+		    amt = fis.read (buf, 0, amt);
+		}
+		catch (IOException ex)
+		{
+		    throw new EmbeddedException ("trouble reading file: " + 
+						 myFile, ex);
+		}
+
+		if (amt == -1)
+		{
+		    // the file must have shrunk out from under us; the
+		    // content length has already been promised, so the
+		    // connection can't be kept in sync
+		    throw new IOException ("file shrank while being sent: " +
+					   myFile);
+		}
+
+		stream.write (buf, 0, amt);
+		count -= amt;
+	    }
+	}
+	finally
+	{
+	    fis.close ();
+	}
+    }
+
+    /**
+     * Write a range of the bytes of this instance to the given channel.
+     * This has the file channel transfer the bytes directly, as with
+     * {@link #writeBytes(WritableByteChannel,long)}. This should not be
+     * called on dynamic documents, as their content length is never
+     * known.
+     *
+     * @param channel the channel to write to 
+     * @param contentLength the full content length of this instance
+     * @param offset the offset of the first byte to write
+     * @param count the number of bytes to write
+     */
+    public void writeRange (WritableByteChannel channel, long contentLength,
+			    long offset, long count)
+	throws IOException
+    {
+	if (count == 0)
+	{
+	    return;
+	}
+
+	FileChannel fc = openTransferChannel ();
+
+	try
+	{
+	    long at = getStartAt () + offset;
+
+	    while (count > 0)
+	    {
+		long amt = fc.transferTo (at, count, channel);
+
+		if (amt <= 0)
+		{
+		    // the file must have shrunk out from under us; the
+		    // content length has already been promised, so the
+		    // connection can't be kept in sync
+		    throw new IOException ("file shrank while being sent: " +
+					   myFile);
+		}
+
+		at += amt;
+		count -= amt;
+	    }
+	}
+	finally
+	{
+	    fc.close ();
+	}
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // package instance methods
+
+    // superclass's javadoc suffices
+    FileChannel openTransferChannel ()
+	throws IOException
+    {
+	if (myDynamic)
+	{
+	    return null;
+	}
+
+	return new FileInputStream (myFile).getChannel ();
+    }
+
+    // superclass's javadoc suffices
+    long getTransferStart ()
+    {
+	return getStartAt ();
+    }
+
 
 
     // ------------------------------------------------------------------------
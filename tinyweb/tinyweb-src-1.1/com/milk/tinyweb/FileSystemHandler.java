@@ -22,6 +22,8 @@ package com.milk.tinyweb;
 
 import java.io.File;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * This class is used to mirror a real file system hierarchy as a hierarchy
@@ -39,6 +41,23 @@ import java.util.Arrays;
  * from the end of the file. This is also useful for things like logfiles.</dd>
  * </dl>
  *
+ * <p>By default, files are served as uncacheable, just like any other
+ * document, although clients may still revalidate their copies with
+ * conditional requests. Use {@link #setCacheControl} to allow clients
+ * and proxies to cache them.</p>
+ *
+ * <p>Files are normally read afresh for each request. Use {@link
+ * #setFileCache} to have small, frequently-requested files served from
+ * memory instead. Requests with query parameters always bypass the
+ * cache.</p>
+ *
+ * <p>If a file has a sibling with the same name plus <code>".gz"</code>
+ * which is at least as new as it is, then that sibling is taken to be
+ * the <code>gzip</code>ped form of the file, and it gets served instead
+ * (as-is, with a <code>Content-Encoding</code> header) to clients that
+ * can take <code>gzip</code>. This saves the server from having to
+ * compress such files itself for each request.</p>
+ *
  * @author Dan Bornstein, danfuzz@milk.com
  */
 final public class FileSystemHandler
@@ -50,6 +69,16 @@ implements DocumentHandler
     /** the base directory that this instance uses */
     private File myBaseDirectory;
 
+    /** null-ok; the extra headers to send along with files, if any */
+    private Map myFileHeaders;
+
+    /** non-null; the extra headers to send along with the
+     * <code>gzip</code>ped forms of files */
+    private Map myGzipFileHeaders;
+
+    /** null-ok; the cache to serve files from, if any */
+    private FileCache myFileCache;
+
     // ------------------------------------------------------------------------
     // constructors
 
@@ -70,11 +99,54 @@ implements DocumentHandler
 	}
 
 	myBaseDirectory = baseDirectory;
+	myGzipFileHeaders = 
+	    CompressedDocument.encodingHeaders (null, CompressedDocument.GZIP);
     }
 
     // ------------------------------------------------------------------------
     // public instance methods
 
+    /**
+     * Set the caching policy for the files served by this instance, in
+     * the form of a <code>Cache-Control</code> header value (see rfc2616
+     * sec 14.9), such as <code>"public, max-age=3600"</code>. Passing
+     * <code>null</code> reverts to the server's default policy, which is
+     * to mark documents as uncacheable. Directory listings always get
+     * the default policy.
+     *
+     * @param cacheControl null-ok; the <code>Cache-Control</code> header
+     * value to use, or <code>null</code> to use the server's default
+     */
+    public void setCacheControl (String cacheControl)
+    {
+	TreeMap headers = null;
+
+	if (cacheControl != null)
+	{
+	    // documents mustn't have their extra headers change out from
+	    // under them, so this is always a fresh map
+	    headers = new TreeMap ();
+	    headers.put ("Cache-Control", cacheControl);
+	}
+
+	myFileHeaders = headers;
+	myGzipFileHeaders = 
+	    CompressedDocument.encodingHeaders (headers, 
+						CompressedDocument.GZIP);
+    }
+
+    /**
+     * Set the cache to serve files from, or <code>null</code> to serve
+     * files directly from the file system, which is the default. A
+     * cache may be shared between instances.
+     *
+     * @param cache null-ok; the cache to use
+     */
+    public void setFileCache (FileCache cache)
+    {
+	myFileCache = cache;
+    }
+
     // interface's javadoc suffices
     public Document handleRequest (String query, String partialPath,
 				   HttpRequest request)
@@ -108,7 +180,7 @@ implements DocumentHandler
 			&& curFile.canRead ()
 			&& (curFile != myBaseDirectory))
 		    {
-			return new FileDocument (curFile, query);
+			return makeFileDocument (curFile, query, request);
 		    }
 
 		    // file not found or not readable or (weird case)
@@ -144,6 +216,55 @@ implements DocumentHandler
 	throw new RuntimeException ("putDocument() not supported.");
     }
 
+    // ------------------------------------------------------------------------
+    // private instance methods
+
+    /**
+     * Create and return a document for the given (regular, readable)
+     * file, using its <code>gzip</code>ped sibling or taking it from the
+     * cache when possible.
+     *
+     * @param file non-null; the file
+     * @param query null-ok; query parameters to determine offset and
+     * dynamism
+     * @param request null-ok; the request being served
+     * @return non-null; a document for the file
+     */
+    private Document makeFileDocument (File file, String query,
+				       HttpRequest request)
+    {
+	FileCache cache = myFileCache;
+	Map headers = myFileHeaders;
+
+	if ((query == null)
+	    && (request != null)
+	    && CompressedDocument.acceptsEncoding (request, 
+						   CompressedDocument.GZIP))
+	{
+	    File gz = new File (file.getPath () + ".gz");
+	    if (gz.isFile () 
+		&& gz.canRead ()
+		&& (gz.lastModified () >= file.lastModified ()))
+	    {
+		String contentType = 
+		    FileDocument.nameToContentType (file.getName ());
+		return new FileDocument (gz, contentType, null, 
+					 myGzipFileHeaders);
+	    }
+	}
+
+	if ((cache != null) && (query == null))
+	{
+	    Document doc = cache.getDocument (file, headers);
+	    if (doc != null)
+	    {
+		return doc;
+	    }
+	}
+
+	return new FileDocument (file, query, headers);
+    }
+
     // ------------------------------------------------------------------------
     // private static methods
 
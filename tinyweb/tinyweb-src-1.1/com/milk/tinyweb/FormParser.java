@@ -0,0 +1,949 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Incremental parser for the entity of a form submission, either of type
+ * <code>application/x-www-form-urlencoded</code> or of type
+ * <code>multipart/form-data</code> (see RFC2388). Each call to {@link
+ * #next} reads just as far into the entity as it needs to in order to
+ * produce the next field or file, as a {@link FormPart}, so at no point
+ * is the entity as a whole held in memory. The content of any part
+ * bigger than a given threshold gets written to a temporary file instead
+ * of being kept in memory.
+ *
+ * <p>Names of urlencoded fields are decoded as UTF-8, as are the headers
+ * of multipart parts; this is what browsers do in practice. The parser
+ * doesn't delete the files of parts it has returned, so a caller that
+ * abandons parsing partway through should still {@link FormPart#delete}
+ * the parts it was handed.</p>
+ *
+ * <p>Only the thread-per-connection engines hand the entity to the
+ * parser straight off the socket. The selector-based engine ({@link
+ * TinyWebServer#ENGINE_NIO}) reads each request, entity and all, into
+ * memory before dispatching it, and rejects requests bigger than a
+ * megabyte with a <code>413</code>; under that engine, the parser only
+ * spares the handler from holding another copy of the entity.</p>
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+final public class FormParser
+{
+    /** the default threshold above which part content is kept in a
+     * file */
+    static public final int DEFAULT_MEMORY_THRESHOLD = 64 * 1024;
+
+    /** the size of the read buffer, before accounting for the boundary */
+    static private final int BUFFER_SIZE = 8192;
+
+    /** the maximum length of a urlencoded field name or of the headers
+     * of a multipart part */
+    static private final int MAX_HEADER_LENGTH = 8192;
+
+    /** the content type for urlencoded forms */
+    static private final String URLENCODED_TYPE =
+	"application/x-www-form-urlencoded";
+
+    /** the content type for multipart forms */
+    static private final String MULTIPART_TYPE = "multipart/form-data";
+
+    /** non-null; the stream to read the entity from */
+    private final InputStream myInput;
+
+    /** null-ok; the delimiter that precedes each multipart part, that is,
+     * <code>CR LF "--"</code> followed by the boundary, or
+     * <code>null</code> if this instance parses a urlencoded form */
+    private final byte[] myDelimiter;
+
+    /** the size above which part content is kept in a file */
+    private final int myMemoryThreshold;
+
+    /** null-ok; the directory to make temporary files in, or
+     * <code>null</code> to use the system default */
+    private final File mySpillDirectory;
+
+    /** non-null; the read buffer */
+    private final byte[] myBuffer;
+
+    /** the index of the first unconsumed byte in the buffer */
+    private int myStart;
+
+    /** the index just past the last valid byte in the buffer */
+    private int myEnd;
+
+    /** whether the end of the input has been reached */
+    private boolean myInputDone;
+
+    /** whether the last part has been returned */
+    private boolean myDone;
+
+    /** whether the preamble of a multipart entity has been skipped */
+    private boolean myPreambleSkipped;
+
+
+
+    // ------------------------------------------------------------------------
+    // constructors
+
+    /**
+     * Construct an instance.
+     *
+     * @param input non-null; the stream to read the entity from
+     * @param contentType non-null; the content type of the entity, which
+     * must be one for which {@link #isFormContentType} returns
+     * <code>true</code>; for <code>multipart/form-data</code> it must
+     * have a <code>boundary</code> parameter
+     * @param memoryThreshold the size above which part content is written
+     * to a file instead of being kept in memory; must be <code>&gt;=
+     * 0</code>
+     * @param spillDirectory null-ok; the directory to make temporary
+     * files in, or <code>null</code> to use the system default
+     */
+    public FormParser (InputStream input, String contentType,
+		       int memoryThreshold, File spillDirectory)
+    {
+	if (input == null)
+	{
+	    throw new NullPointerException ("input = null");
+	}
+
+	if (memoryThreshold < 0)
+	{
+	    throw new IllegalArgumentException ("memoryThreshold < 0");
+	}
+
+	String type = baseType (contentType);
+
+	if (type.equals (URLENCODED_TYPE))
+	{
+	    myDelimiter = null;
+	    myBuffer = new byte[BUFFER_SIZE];
+	    myStart = 0;
+	    myEnd = 0;
+	}
+	else if (type.equals (MULTIPART_TYPE))
+	{
+	    String boundary = getParameter (contentType, "boundary");
+	    if ((boundary == null) || (boundary.length () == 0) ||
+		(boundary.length () > 70))
+	    {
+		throw new IllegalArgumentException ("bad or missing boundary");
+	    }
+
+	    byte[] bbytes = boundary.getBytes (StandardCharsets.ISO_8859_1);
+	    myDelimiter = new byte[bbytes.length + 4];
+	    myDelimiter[0] = '\r';
+	    myDelimiter[1] = '\n';
+	    myDelimiter[2] = '-';
+	    myDelimiter[3] = '-';
+	    System.arraycopy (bbytes, 0, myDelimiter, 4, bbytes.length);
+	    myBuffer = new byte[BUFFER_SIZE + myDelimiter.length];
+
+	    // the first boundary need not be preceded by a CR LF, so
+	    // pretend that it was, so that it can be found the same way as
+	    // all the others
+	    myBuffer[0] = '\r';
+	    myBuffer[1] = '\n';
+	    myStart = 0;
+	    myEnd = 2;
+	}
+	else
+	{
+	    throw new IllegalArgumentException ("not a form content type: " +
+						contentType);
+	}
+
+	myInput = input;
+	myMemoryThreshold = memoryThreshold;
+	mySpillDirectory = spillDirectory;
+	myInputDone = false;
+	myDone = false;
+	myPreambleSkipped = false;
+    }
+
+    /**
+     * Construct an instance which parses the entity of the given request,
+     * using the content type given in its headers. A request without an
+     * entity is treated as having an empty one.
+     *
+     * @param request non-null; the request whose entity is to be parsed
+     * @param memoryThreshold the size above which part content is written
+     * to a file instead of being kept in memory; must be <code>&gt;=
+     * 0</code>
+     * @param spillDirectory null-ok; the directory to make temporary
+     * files in, or <code>null</code> to use the system default
+     */
+    public FormParser (HttpRequest request, int memoryThreshold,
+		       File spillDirectory)
+    {
+	this (entityOf (request), request.getHeader ("content-type"),
+	      memoryThreshold, spillDirectory);
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // public static methods
+
+    /**
+     * Return whether the given content type is one that this class knows
+     * how to parse.
+     *
+     * @param contentType null-ok; the content type
+     * @return <code>true</code> if it is a form content type, or
+     * <code>false</code> if not
+     */
+    static public boolean isFormContentType (String contentType)
+    {
+	if (contentType == null)
+	{
+	    return false;
+	}
+
+	String type = baseType (contentType);
+	return type.equals (URLENCODED_TYPE) || type.equals (MULTIPART_TYPE);
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // public instance methods
+
+    /**
+     * Read and return the next part of the form. This returns
+     * <code>null</code> once there are no more parts. If the entity is
+     * malformed, this throws an <code>IOException</code> and no partly
+     * read part is left behind on disk.
+     *
+     * @return null-ok; the next part, or <code>null</code> if there are
+     * no more
+     */
+    public FormPart next ()
+	throws IOException
+    {
+	if (myDone)
+	{
+	    return null;
+	}
+
+	FormPart result;
+
+	if (myDelimiter == null)
+	{
+	    result = nextUrlEncoded ();
+	}
+	else
+	{
+	    result = nextMultipart ();
+	}
+
+	if (result == null)
+	{
+	    myDone = true;
+	}
+
+	return result;
+    }
+
+    /**
+     * Close the underlying stream. For an entity stream from a request,
+     * this skips whatever of the entity hasn't yet been read, so that the
+     * connection can go on to the next request.
+     */
+    public void close ()
+	throws IOException
+    {
+	myDone = true;
+	myInput.close ();
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private static methods
+
+    /**
+     * Get the entity input stream of the given request, or an empty
+     * stream if it doesn't have one.
+     *
+     * @param request non-null; the request
+     * @return non-null; the entity stream
+     */
+    static private InputStream entityOf (HttpRequest request)
+    {
+	InputStream result = request.getEntityInputStream ();
+
+	if (result == null)
+	{
+	    result = new ByteArrayInputStream (new byte[0]);
+	}
+
+	return result;
+    }
+
+    /**
+     * Get the type and subtype of the given content type, lower-cased and
+     * without any parameters.
+     *
+     * @param contentType null-ok; the content type
+     * @return non-null; the base type
+     */
+    static private String baseType (String contentType)
+    {
+	if (contentType == null)
+	{
+	    return "";
+	}
+
+	int semiAt = contentType.indexOf (';');
+	if (semiAt != -1)
+	{
+	    contentType = contentType.substring (0, semiAt);
+	}
+
+	return contentType.trim ().toLowerCase ();
+    }
+
+    /**
+     * Get the value of the named parameter of the given header value,
+     * such as the <code>boundary</code> of a content type or the
+     * <code>filename</code> of a content disposition. Quoted values are
+     * unquoted. The parameter name is compared case-insensitively.
+     *
+     * @param header non-null; the header value
+     * @param name non-null; the parameter name
+     * @return null-ok; the parameter value, or <code>null</code> if there
+     * is no such parameter
+     */
+    static private String getParameter (String header, String name)
+    {
+	int len = header.length ();
+	int at = header.indexOf (';');
+
+	while ((at != -1) && (at < len))
+	{
+	    // skip the semicolon and any whitespace
+	    at++;
+	    while ((at < len) && (header.charAt (at) <= ' '))
+	    {
+		at++;
+	    }
+
+	    int equalsAt = header.indexOf ('=', at);
+	    if (equalsAt == -1)
+	    {
+		return null;
+	    }
+
+	    String key = header.substring (at, equalsAt).trim ();
+	    StringBuilder value = new StringBuilder ();
+	    at = equalsAt + 1;
+
+	    if ((at < len) && (header.charAt (at) == '\"'))
+	    {
+		at++;
+		while (at < len)
+		{
+		    char c = header.charAt (at);
+		    if (c == '\"')
+		    {
+			at++;
+			break;
+		    }
+		    else if ((c == '\\') && ((at + 1) < len))
+		    {
+			at++;
+			c = header.charAt (at);
+		    }
+		    value.append (c);
+		    at++;
+		}
+		at = header.indexOf (';', at);
+	    }
+	    else
+	    {
+		int semiAt = header.indexOf (';', at);
+		int valueEnd = (semiAt == -1) ? len : semiAt;
+		value.append (header.substring (at, valueEnd).trim ());
+		at = semiAt;
+	    }
+
+	    if (key.equalsIgnoreCase (name))
+	    {
+		return value.toString ();
+	    }
+	}
+
+	return null;
+    }
+
+    /**
+     * Get the numeric value of the given hex digit, or <code>-1</code>
+     * if it isn't one.
+     *
+     * @param b the byte to interpret
+     * @return the value, or <code>-1</code>
+     */
+    static private int hexValue (int b)
+    {
+	if ((b >= '0') && (b <= '9'))
+	{
+	    return b - '0';
+	}
+	else if ((b >= 'a') && (b <= 'f'))
+	{
+	    return b - 'a' + 10;
+	}
+	else if ((b >= 'A') && (b <= 'F'))
+	{
+	    return b - 'A' + 10;
+	}
+
+	return -1;
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private instance methods
+
+    /**
+     * Read more of the input into the buffer, first moving what's left
+     * in it to the start. Does nothing once the input is done.
+     */
+    private void fill ()
+	throws IOException
+    {
+	if (myInputDone)
+	{
+	    return;
+	}
+
+	if (myStart != 0)
+	{
+	    System.arraycopy (myBuffer, myStart, myBuffer, 0, myEnd - myStart);
+	    myEnd -= myStart;
+	    myStart = 0;
+	}
+
+	int amt = myInput.read (myBuffer, myEnd, myBuffer.length - myEnd);
+	if (amt == -1)
+	{
+	    myInputDone = true;
+	}
+	else
+	{
+	    myEnd += amt;
+	}
+    }
+
+    /**
+     * Read a single byte of the input.
+     *
+     * @return the byte, or <code>-1</code> at the end of the input
+     */
+    private int readByte ()
+	throws IOException
+    {
+	while (myStart == myEnd)
+	{
+	    if (myInputDone)
+	    {
+		return -1;
+	    }
+	    fill ();
+	}
+
+	return myBuffer[myStart++] & 0xff;
+    }
+
+    /**
+     * Read and decode one byte of urlencoded input, stopping at a
+     * field separator or, if so requested, a key/value separator.
+     *
+     * @param stopAtEquals whether an <code>=</code> ends the current item
+     * @return the decoded byte, <code>-1</code> at the end of the input,
+     * or <code>-2</code> at a separator
+     */
+    private int readEncodedByte (boolean stopAtEquals)
+	throws IOException
+    {
+	int b = readByte ();
+
+	switch (b)
+	{
+	    case -1:
+	    {
+		return -1;
+	    }
+	    case '&':
+	    {
+		return -2;
+	    }
+	    case '=':
+	    {
+		return stopAtEquals ? -2 : b;
+	    }
+	    case '+':
+	    {
+		return ' ';
+	    }
+	    case '%':
+	    {
+		int d1 = hexValue (readByte ());
+		int d2 = hexValue (readByte ());
+		if ((d1 == -1) || (d2 == -1))
+		{
+		    throw new IOException ("bad % form in form data");
+		}
+		return (d1 << 4) | d2;
+	    }
+	}
+
+	return b;
+    }
+
+    /**
+     * Read the next field of a urlencoded form.
+     *
+     * @return null-ok; the field, or <code>null</code> if there are no
+     * more
+     */
+    private FormPart nextUrlEncoded ()
+	throws IOException
+    {
+	ByteArrayOutputStream nameBytes = new ByteArrayOutputStream ();
+	int b;
+
+	for (;;)
+	{
+	    b = readEncodedByte (true);
+	    if (b >= 0)
+	    {
+		if (nameBytes.size () >= MAX_HEADER_LENGTH)
+		{
+		    throw new IOException ("form field name too long");
+		}
+		nameBytes.write (b);
+	    }
+	    else if ((b == -2) && (nameBytes.size () == 0) &&
+		     (myBuffer[myStart - 1] == '&'))
+	    {
+		// empty field (as in "a=1&&b=2"); just skip it
+		continue;
+	    }
+	    else
+	    {
+		break;
+	    }
+	}
+
+	if ((b == -1) && (nameBytes.size () == 0))
+	{
+	    return null;
+	}
+
+	// a field with no "=" (as in "flag&x=1") has an empty value
+	boolean hasValue = (b != -1) && (myBuffer[myStart - 1] == '=');
+	String name =
+	    new String (nameBytes.toByteArray (), StandardCharsets.UTF_8);
+	Sink sink = new Sink ();
+
+	try
+	{
+	    byte[] chunk = new byte[256];
+	    int chunkAt = 0;
+
+	    while (hasValue)
+	    {
+		b = readEncodedByte (false);
+		if (b < 0)
+		{
+		    break;
+		}
+
+		chunk[chunkAt] = (byte) b;
+		chunkAt++;
+		if (chunkAt == chunk.length)
+		{
+		    sink.write (chunk, 0, chunkAt);
+		    chunkAt = 0;
+		}
+	    }
+
+	    sink.write (chunk, 0, chunkAt);
+	    return sink.finish (name, null, null, null);
+	}
+	finally
+	{
+	    sink.abandon ();
+	}
+    }
+
+    /**
+     * Read the next part of a multipart form.
+     *
+     * @return null-ok; the part, or <code>null</code> if there are no
+     * more
+     */
+    private FormPart nextMultipart ()
+	throws IOException
+    {
+	if (! myPreambleSkipped)
+	{
+	    // discard everything up to and including the first delimiter
+	    copyToDelimiter (null);
+	    myPreambleSkipped = true;
+	}
+
+	// after a delimiter is either "--" to mark the end or a CR LF
+	// (possibly preceded by whitespace) to start a part
+	int b1 = readByte ();
+	int b2 = readByte ();
+	if ((b1 == '-') && (b2 == '-'))
+	{
+	    return null;
+	}
+
+	while ((b1 == ' ') || (b1 == '\t'))
+	{
+	    b1 = b2;
+	    b2 = readByte ();
+	}
+
+	if ((b1 != '\r') || (b2 != '\n'))
+	{
+	    throw new IOException ("bad multipart boundary line");
+	}
+
+	HashMap headers = readPartHeaders ();
+	String disposition = (String) headers.get ("content-disposition");
+	String name = null;
+	String fileName = null;
+
+	if (disposition != null)
+	{
+	    name = getParameter (disposition, "name");
+	    fileName = getParameter (disposition, "filename");
+	}
+
+	Sink sink = new Sink ();
+
+	try
+	{
+	    copyToDelimiter (sink);
+	    return sink.finish (name, fileName,
+				(String) headers.get ("content-type"),
+				headers);
+	}
+	finally
+	{
+	    sink.abandon ();
+	}
+    }
+
+    /**
+     * Read the headers of a multipart part, up to and including the
+     * blank line that ends them.
+     *
+     * @return non-null; map from lower-cased header names to values
+     */
+    private HashMap readPartHeaders ()
+	throws IOException
+    {
+	HashMap result = new HashMap ();
+	ByteArrayOutputStream line = new ByteArrayOutputStream ();
+	int total = 0;
+
+	for (;;)
+	{
+	    int b = readByte ();
+	    if (b == -1)
+	    {
+		throw new IOException ("unexpected end of multipart headers");
+	    }
+
+	    total++;
+	    if (total > MAX_HEADER_LENGTH)
+	    {
+		throw new IOException ("multipart headers too long");
+	    }
+
+	    if (b != '\n')
+	    {
+		line.write (b);
+		continue;
+	    }
+
+	    byte[] lineBytes = line.toByteArray ();
+	    int len = lineBytes.length;
+	    if ((len > 0) && (lineBytes[len - 1] == '\r'))
+	    {
+		len--;
+	    }
+
+	    String text = new String (lineBytes, 0, len, StandardCharsets.UTF_8);
+	    line.reset ();
+
+	    if (text.length () == 0)
+	    {
+		return result;
+	    }
+
+	    int colonAt = text.indexOf (':');
+	    if (colonAt == -1)
+	    {
+		throw new IOException ("bad multipart header line");
+	    }
+
+	    result.put (text.substring (0, colonAt).trim ().toLowerCase (),
+			text.substring (colonAt + 1).trim ());
+	}
+    }
+
+    /**
+     * Find the index of the multipart delimiter in the buffer, starting
+     * at the current start point.
+     *
+     * @return the index, or <code>-1</code> if it isn't there
+     */
+    private int findDelimiter ()
+    {
+	byte[] buf = myBuffer;
+	byte[] delim = myDelimiter;
+	int last = myEnd - delim.length;
+
+    outer:
+	for (int i = myStart; i <= last; i++)
+	{
+	    if (buf[i] != '\r')
+	    {
+		continue;
+	    }
+
+	    for (int j = 1; j < delim.length; j++)
+	    {
+		if (buf[i + j] != delim[j])
+		{
+		    continue outer;
+		}
+	    }
+
+	    return i;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Copy input to the given sink up to the next multipart delimiter,
+     * and consume the delimiter. Only as much of the input is held at
+     * once as fits in the buffer.
+     *
+     * @param sink null-ok; where to write the data, or <code>null</code>
+     * to discard it
+     */
+    private void copyToDelimiter (Sink sink)
+	throws IOException
+    {
+	int delimLen = myDelimiter.length;
+
+	for (;;)
+	{
+	    int found = findDelimiter ();
+
+	    if (found != -1)
+	    {
+		if (sink != null)
+		{
+		    sink.write (myBuffer, myStart, found - myStart);
+		}
+		myStart = found + delimLen;
+		return;
+	    }
+
+	    if (myInputDone)
+	    {
+		throw new IOException ("unexpected end of multipart data");
+	    }
+
+	    // everything but the last (delimLen - 1) bytes can't be part of
+	    // a delimiter, so it can be passed along
+	    int safeEnd = myEnd - delimLen + 1;
+	    if (safeEnd > myStart)
+	    {
+		if (sink != null)
+		{
+		    sink.write (myBuffer, myStart, safeEnd - myStart);
+		}
+		myStart = safeEnd;
+	    }
+
+	    fill ();
+	}
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private instance classes
+
+    /**
+     * Destination for the content of a part, which holds it in memory
+     * until it gets past the threshold, after which it all goes to a
+     * temporary file.
+     */
+    private final class Sink
+    {
+	/** null-ok; the in-memory content, if it's still in memory */
+	private ByteArrayOutputStream myBytes;
+
+	/** null-ok; the file the content is in, once it isn't in
+	 * memory */
+	private File myFile;
+
+	/** null-ok; the stream writing to {@link #myFile} */
+	private OutputStream myFileOut;
+
+	/** the total amount written */
+	private long mySize;
+
+	/** whether {@link #finish} has been called */
+	private boolean myFinished;
+
+	/**
+	 * Construct an instance.
+	 */
+	public Sink ()
+	{
+	    myBytes = new ByteArrayOutputStream ();
+	    myFile = null;
+	    myFileOut = null;
+	    mySize = 0;
+	    myFinished = false;
+	}
+
+	/**
+	 * Write some content.
+	 *
+	 * @param buf non-null; buffer containing the content
+	 * @param offset offset into the buffer
+	 * @param length number of bytes to write
+	 */
+	public void write (byte[] buf, int offset, int length)
+	    throws IOException
+	{
+	    if (length == 0)
+	    {
+		return;
+	    }
+
+	    mySize += length;
+
+	    if (myBytes != null)
+	    {
+		if (mySize <= myMemoryThreshold)
+		{
+		    myBytes.write (buf, offset, length);
+		    return;
+		}
+
+		myFile = File.createTempFile ("tinyweb", ".part",
+					      mySpillDirectory);
+		myFileOut = new FileOutputStream (myFile);
+		myBytes.writeTo (myFileOut);
+		myBytes = null;
+	    }
+
+	    myFileOut.write (buf, offset, length);
+	}
+
+	/**
+	 * Finish up and make the part.
+	 *
+	 * @param name null-ok; the name of the field
+	 * @param fileName null-ok; the name of the uploaded file, if any
+	 * @param contentType null-ok; the content type, if specified
+	 * @param headers null-ok; map from lower-cased header names to
+	 * values
+	 * @return non-null; the part
+	 */
+	public FormPart finish (String name, String fileName,
+				String contentType, HashMap headers)
+	    throws IOException
+	{
+	    byte[] bytes = null;
+
+	    if (myBytes != null)
+	    {
+		bytes = myBytes.toByteArray ();
+	    }
+	    else
+	    {
+		myFileOut.close ();
+		myFileOut = null;
+	    }
+
+	    myFinished = true;
+	    return new FormPart (name, fileName, contentType, headers,
+				 bytes, myFile, mySize);
+	}
+
+	/**
+	 * Clean up if {@link #finish} was never called, deleting the
+	 * temporary file if one was made. Does nothing otherwise.
+	 */
+	public void abandon ()
+	{
+	    if (myFinished)
+	    {
+		return;
+	    }
+
+	    if (myFileOut != null)
+	    {
+		try
+		{
+		    myFileOut.close ();
+		}
+		catch (IOException ex)
+		{
+		    // ignore it; the file is going away anyway
+		}
+	    }
+
+	    if (myFile != null)
+	    {
+		myFile.delete ();
+	    }
+	}
+    }
+}
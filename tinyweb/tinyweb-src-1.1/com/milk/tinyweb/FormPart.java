@@ -0,0 +1,297 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+
+/**
+ * A field or file from a form submission, as produced by a {@link
+ * FormParser}. The content of a part is either held in memory or, if it
+ * was too big for that, in a temporary file. It is up to the user of a
+ * part whose content landed in a file to either {@link #delete} it once
+ * done or to take the file over (for example, by renaming it).
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+final public class FormPart
+{
+    /** null-ok; the name of the field */
+    private final String myName;
+
+    /** null-ok; the name of the file that was uploaded, if this is
+     * a file part */
+    private final String myFileName;
+
+    /** null-ok; the content type of the part, if specified */
+    private final String myContentType;
+
+    /** null-ok; map from lower-cased header names to values, for parts
+     * that have headers */
+    private final Map myHeaders;
+
+    /** null-ok; the content, if held in memory */
+    private final byte[] myBytes;
+
+    /** null-ok; the file holding the content, if it isn't held in
+     * memory */
+    private final File myFile;
+
+    /** the size of the content */
+    private final long mySize;
+
+
+
+    // ------------------------------------------------------------------------
+    // constructors
+
+    /**
+     * Construct an instance. Exactly one of <code>bytes</code> and
+     * <code>file</code> must be non-<code>null</code>.
+     *
+     * @param name null-ok; the name of the field
+     * @param fileName null-ok; the name of the uploaded file, if any
+     * @param contentType null-ok; the content type, if specified
+     * @param headers null-ok; map from lower-cased header names to
+     * values
+     * @param bytes null-ok; the content, if held in memory
+     * @param file null-ok; the file holding the content, if not held in
+     * memory
+     * @param size the size of the content
+     */
+    FormPart (String name, String fileName, String contentType, 
+	      Map headers, byte[] bytes, File file, long size)
+    {
+	if ((bytes == null) == (file == null))
+	{
+	    throw new IllegalArgumentException ("need exactly one of bytes " +
+						"and file");
+	}
+
+	myName = name;
+	myFileName = fileName;
+	myContentType = contentType;
+	myHeaders = headers;
+	myBytes = bytes;
+	myFile = file;
+	mySize = size;
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // public instance methods
+
+    // superclass's javadoc suffices
+    public String toString ()
+    {
+	return "FormPart[" + myName + 
+	    ((myFileName == null) ? "" : (", file " + myFileName)) +
+	    ", " + mySize + " bytes" + 
+	    ((myFile == null) ? "" : (" in " + myFile)) + "]";
+    }
+
+    /**
+     * Get the name of the field.
+     *
+     * @return null-ok; the name, or <code>null</code> if the part wasn't
+     * named
+     */
+    public String getName ()
+    {
+	return myName;
+    }
+
+    /**
+     * Get the name of the file that was uploaded, as given by the
+     * client. This is <code>null</code> for parts that aren't files.
+     * Note that the name comes straight from the client, so it should
+     * be treated with suspicion.
+     *
+     * @return null-ok; the file name
+     */
+    public String getFileName ()
+    {
+	return myFileName;
+    }
+
+    /**
+     * Get the content type of the part, if one was specified.
+     *
+     * @return null-ok; the content type
+     */
+    public String getContentType ()
+    {
+	return myContentType;
+    }
+
+    /**
+     * Get the value of the given header of the part. The name is compared
+     * case-insensitively.
+     *
+     * @param name non-null; the name of the header
+     * @return null-ok; the value, or <code>null</code> if there is no
+     * such header
+     */
+    public String getHeader (String name)
+    {
+	if (myHeaders == null)
+	{
+	    return null;
+	}
+
+	return (String) myHeaders.get (name.toLowerCase ());
+    }
+
+    /**
+     * Get the size of the content of the part.
+     *
+     * @return the size, in bytes
+     */
+    public long getSize ()
+    {
+	return mySize;
+    }
+
+    /**
+     * Return whether the content of the part is held in memory.
+     *
+     * @return <code>true</code> if the content is in memory, or
+     * <code>false</code> if it's in a file
+     */
+    public boolean isInMemory ()
+    {
+	return (myBytes != null);
+    }
+
+    /**
+     * Get the file holding the content of the part, if it was too big
+     * to hold in memory.
+     *
+     * @return null-ok; the file, or <code>null</code> if the content is
+     * held in memory
+     */
+    public File getFile ()
+    {
+	return myFile;
+    }
+
+    /**
+     * Get a stream that reads the content of the part.
+     *
+     * @return non-null; the stream
+     */
+    public InputStream getInputStream ()
+	throws IOException
+    {
+	if (myBytes != null)
+	{
+	    return new ByteArrayInputStream (myBytes);
+	}
+
+	return new FileInputStream (myFile);
+    }
+
+    /**
+     * Get the content of the part as an array of bytes. For a part whose
+     * content is in a file, this reads the whole file, so it is best
+     * avoided for those.
+     *
+     * @return non-null; the content
+     */
+    public byte[] getBytes ()
+	throws IOException
+    {
+	if (myBytes != null)
+	{
+	    return myBytes.clone ();
+	}
+
+	byte[] result = new byte[(int) mySize];
+	InputStream in = new FileInputStream (myFile);
+
+	try
+	{
+	    int at = 0;
+	    while (at < result.length)
+	    {
+		int amt = in.read (result, at, result.length - at);
+		if (amt == -1)
+		{
+		    throw new IOException ("file shrunk: " + myFile);
+		}
+		at += amt;
+	    }
+	}
+	finally
+	{
+	    in.close ();
+	}
+
+	return result;
+    }
+
+    /**
+     * Get the content of the part as a string, decoded as UTF-8.
+     *
+     * @return non-null; the content
+     */
+    public String getString ()
+	throws IOException
+    {
+	return getString ("UTF-8");
+    }
+
+    /**
+     * Get the content of the part as a string, decoded with the given
+     * character encoding.
+     *
+     * @param encoding non-null; the name of the encoding
+     * @return non-null; the content
+     */
+    public String getString (String encoding)
+	throws IOException, UnsupportedEncodingException
+    {
+	if (myBytes != null)
+	{
+	    return new String (myBytes, encoding);
+	}
+
+	return new String (getBytes (), encoding);
+    }
+
+    /**
+     * Delete the file holding the content of the part, if any. It is
+     * safe to call this on any part.
+     */
+    public void delete ()
+    {
+	if (myFile != null)
+	{
+	    myFile.delete ();
+	}
+    }
+}
@@ -22,8 +22,7 @@ package com.milk.tinyweb;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
 
 /**
  * This class encapsulates all the data associated with a single HTTP
@@ -51,6 +50,28 @@ public class HttpRequest
     /** constant representing a <code>POST</code> request */
     static public final int REQUEST_POST = 3;
 
+    /** the maximum number of bytes allowed in the request line and
+     * headers combined */
+    static final int MAX_HEADER_SIZE = 65536;
+
+    /** non-null; the bytes of the request line prefix for
+     * <code>GET</code> */
+    static private final byte[] TheGetBytes = asciiBytes ("GET ");
+
+    /** non-null; the bytes of the request line prefix for
+     * <code>HEAD</code> */
+    static private final byte[] TheHeadBytes = asciiBytes ("HEAD ");
+
+    /** non-null; the bytes of the request line prefix for
+     * <code>POST</code> */
+    static private final byte[] ThePostBytes = asciiBytes ("POST ");
+
+    /** non-null; the bytes of the request line suffix for HTTP/1.1 */
+    static private final byte[] TheVersion11Bytes = asciiBytes (" HTTP/1.1");
+
+    /** non-null; the bytes of the request line suffix for HTTP/1.0 */
+    static private final byte[] TheVersion10Bytes = asciiBytes (" HTTP/1.0");
+
     /** non-null; the HTTP version, as an interned string */
     private String myHttpVersion;
 
@@ -75,6 +96,9 @@ public class HttpRequest
      */
     private InputStream myEntityInputStream;
 
+    /** null-ok; the route that this request was matched to, if any */
+    private String myRoute;
+
 
 
     // ------------------------------------------------------------------------
@@ -146,6 +170,7 @@ public class HttpRequest
 	myHeaderNames = headerNames;
 	myHeaderValues = headerValues;
 	myErrorCode = 0;
+	myRoute = null;
 	setEntityInputStream (entityInputStream);
     }
 
@@ -302,6 +327,36 @@ public class HttpRequest
 	return myEntityInputStream;
     }
 
+    /**
+     * Get the route that this request was matched to. This is the path
+     * that the document or handler serving the request was put at (see
+     * {@link TinyWebServer#putDocument}), with <code>"*"</code> for
+     * wildcard components. It is <code>null</code> until the request has
+     * been routed, and stays <code>null</code> if nothing matched.
+     *
+     * @return null-ok; the route, or <code>null</code> if there is none
+     */
+    public String getRoute ()
+    {
+	return myRoute;
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // package instance methods
+
+    /**
+     * Set the route that this request was matched to. This is called by
+     * {@link RouteTable#resolve}.
+     *
+     * @param route null-ok; the route
+     */
+    void setRoute (String route)
+    {
+	myRoute = route;
+    }
+
 
 
     // ------------------------------------------------------------------------
@@ -339,6 +394,7 @@ public class HttpRequest
 	myHeaderValues = new String[] { errorMsg };
 	myEntityInputStream = null;
 	myErrorCode = errorCode;
+	myRoute = null;
     }
 
     /**
@@ -408,7 +464,11 @@ public class HttpRequest
     // public static methods
 
     /**
-     * Read in a request from the given input stream.
+     * Read in a request from the given input stream. If the stream is a
+     * {@link RequestInputStream}, then the headers get read in bulk
+     * through its buffer. Otherwise, they get read a byte at a time, so
+     * as not to read past the end of the headers and into the entity (or
+     * the subsequent request).
      *
      * @param stream non-null; the stream to read from
      * @return a newly-constructed request, based on the contents of the
@@ -417,80 +477,194 @@ public class HttpRequest
     public static HttpRequest read (InputStream stream)
 	throws IOException
     {
-	InputStreamReader r = new InputStreamReader (stream);
-	String firstLine = null;
-	ArrayList headers = new ArrayList (20);
-
-	// Note: We can't use a Buffered* class here because it will end up
-	// reading too much, in particular, it can end up reading past the
-	// end of the headers and into the content, and possibly into the
-	// subsequent request. Buffering, if at all, either needs to happen
-	// above or below this layer
-	char[] lineBuf = new char[200];
-	int lineMax = lineBuf.length;
-	int lineLen;
+	if (stream instanceof RequestInputStream)
+	{
+	    return ((RequestInputStream) stream).readRequest ();
+	}
+
+	byte[] buf = new byte[200];
+	int len = 0;
+	int lineStart = 0;
+	boolean gotLine = false;
+
+	for (;;)
+	{
+	    int c = stream.read ();
+	    if (c == -1)
+	    {
+		// the parser will complain about this
+		break;
+	    }
+
+	    if (len == buf.length)
+	    {
+		if (len >= MAX_HEADER_SIZE)
+		{
+		    return new HttpRequest ("1.1", 400, 
+					    "Bad headers (too long)");
+		}
+
+		// gotta grow the buffer
+		byte[] newBuf = new byte[len * 2];
+		System.arraycopy (buf, 0, newBuf, 0, len);
+		buf = newBuf;
+	    }
+
+	    buf[len] = (byte) c;
+	    len++;
+
+	    if (c != '\n')
+	    {
+		continue;
+	    }
+
+	    int lineLen = len - 1 - lineStart;
+	    if ((lineLen > 0) && (buf[len - 2] == '\r'))
+	    {
+		lineLen--;
+	    }
+
+	    if (lineLen != 0)
+	    {
+		gotLine = true;
+	    }
+	    else if (gotLine)
+	    {
+		// it's the end of the headers
+		break;
+	    }
+
+	    lineStart = len;
+	}
+
+	return parse (buf, 0, len, stream);
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // package static methods
+
+    /**
+     * Find the end of the headers (the blank line after the request line
+     * and header lines) in the given range of a buffer. Blank lines
+     * before the request line are skipped, just like {@link #parse}
+     * does.
+     *
+     * @param buf non-null; the buffer to look in
+     * @param start the offset of the first byte to look at
+     * @param end the offset just past the last byte to look at
+     * @return the offset just past the end of the headers, or
+     * <code>-1</code> if the headers aren't complete
+     */
+    static int findHeaderEnd (byte[] buf, int start, int end)
+    {
+	boolean gotLine = false;
+	int lineStart = start;
+
+	for (int i = start; i < end; i++)
+	{
+	    if (buf[i] != '\n')
+	    {
+		continue;
+	    }
+
+	    int lineLen = i - lineStart;
+	    if ((lineLen > 0) && (buf[i - 1] == '\r'))
+	    {
+		lineLen--;
+	    }
+
+	    if (lineLen != 0)
+	    {
+		gotLine = true;
+	    }
+	    else if (gotLine)
+	    {
+		return i + 1;
+	    }
+
+	    lineStart = i + 1;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Parse a request out of the given range of a buffer, which should
+     * hold the request line and headers, up to and including the blank
+     * line that ends them (see {@link #findHeaderEnd}). Running out of
+     * bytes before the blank line is treated just like the input ending
+     * there. The parsing is done directly on the bytes, and the only
+     * strings made are the ones that the request keeps, that is, the
+     * path and the header names and values.
+     *
+     * @param buf non-null; the buffer to parse
+     * @param start the offset of the first byte of the request
+     * @param end the offset just past the last byte of the request
+     * @param entity null-ok; the raw stream to read the entity body
+     * from, positioned just after the headers
+     * @return non-null; a newly-constructed request
+     */
+    static HttpRequest parse (byte[] buf, int start, int end, 
+			      InputStream entity)
+    {
+	int firstStart = -1;
+	int firstEnd = -1;
+	String[] names = new String[16];
+	String[] values = new String[16];
+	int hcount = 0;
+	int at = start;
 
 	for (;;)
 	{
-	    // read a line
-	    boolean gotEOL = false;
-	    lineLen = 0;
-	    for (;;)
+	    // find the end of the line, checking the characters on the way
+	    int lineStart = at;
+	    int lineEnd = -1;
+	    while (at < end)
 	    {
-		int c = stream.read ();
+		int c = buf[at] & 0xff;
 		if (c == '\r')
 		{
-		    c = stream.read ();
-		    if (c != '\n')
+		    if (((at + 1) == end) || (buf[at + 1] != '\n'))
 		    {
 			// error: newline expected after cr
 			return new HttpRequest ( 
-                            "1.1", 
+			    "1.1", 
 			    400,
 			    "Bad headers (no newline after cr)");
 		    }
-		    gotEOL = true;
+		    lineEnd = at;
+		    at += 2;
 		    break;
 		}
 		else if (c == '\n')
 		{
 		    // lenient about the protocol; officially this isn't
 		    // acceptable but many clients are bad
-		    gotEOL = true;
+		    lineEnd = at;
+		    at++;
 		    break;
 		}
 		else if ((c != '\t') && ((c < ' ') || (c >= 0x7f)))
 		{
-		    String msg = 
-			(c == -1) 
-			? "Bad headers (early end of input)"
-			: "Bad headers (bad character in input)";
-		    
-		    return new HttpRequest ("1.1", 400, msg);
-		}
-
-		if (lineLen == lineMax)
-		{
-		    // gotta grow the buffer
-		    char[] newBuf = new char[lineMax * 2];
-		    System.arraycopy (lineBuf, 0, newBuf, 0, lineMax);
-		    lineBuf = newBuf;
-		    lineMax = lineBuf.length;
+		    return new HttpRequest ( 
+			"1.1", 
+			400,
+			"Bad headers (bad character in input)");
 		}
-
-		lineBuf[lineLen] = (char) c;
-		lineLen++;
+		at++;
 	    }
 
-	    if (! gotEOL)
+	    if (lineEnd == -1)
 	    {
-		// end of headers and end of input
-		break;
+		return new HttpRequest ("1.1", 400,
+					"Bad headers (early end of input)");
 	    }
 
-	    if (lineLen == 0)
+	    if (lineEnd == lineStart)
 	    {
-		if (firstLine == null)
+		if (firstStart == -1)
 		{
 		    // protocol leniency: it's an extra blank line before
 		    // the request
@@ -503,81 +677,79 @@ public class HttpRequest
 		}
 	    }
 
-	    String oneLine = new String (lineBuf, 0, lineLen);
-	    
-	    if (firstLine == null)
+	    if (firstStart == -1)
 	    {
 		// it's the http command (e.g., "GET /foo HTTP/1.1")
-		firstLine = oneLine;
+		firstStart = lineStart;
+		firstEnd = lineEnd;
 		continue;
 	    }
 
 	    // it's a header line (or a continuation thereof)
 
-	    char c = oneLine.charAt (0);
+	    byte c = buf[lineStart];
 	    if ((c == ' ') || (c == '\t'))
 	    {
 		// it's a continuation from a previous line
-		int lasth = headers.size ();
-		if (lasth == 0)
+		if (hcount == 0)
 		{
 		    // error: it's a "continuation" at the start of the
 		    // headers
 		    return new HttpRequest (
-                        "1.1", 
-                        400,
+			"1.1", 
+			400,
 			"Bad headers (continuation at start of headers)");
 		}
-		else
-		{
-		    lasth--;
-		    String hval = 
-			(String) headers.get (lasth) +
-			' ' +
-			oneLine.trim ();
-		    headers.set (lasth, hval);
-		}
+
+		values[hcount - 1] = 
+		    values[hcount - 1] + 
+		    ' ' +
+		    trimmedString (buf, lineStart, lineEnd);
 		continue;
 	    }
 
 	    // it's a new header line; parse it into name and value
 
-	    int colonAt = oneLine.indexOf (':');
+	    int colonAt = indexOf (buf, lineStart, lineEnd, ':');
 	    if (colonAt == -1)
 	    {
 		return new HttpRequest (
-                    "1.1", 
-                    400,
+		    "1.1", 
+		    400,
 		    "Bad headers (colon not found on line)");
 	    }
 
-	    String name = oneLine.substring (0, colonAt).trim ();
-	    String value = oneLine.substring (colonAt + 1).trim ();
-	    headers.add (name);
-	    headers.add (value);
-	}
-	
-	if (firstLine == null)
-	{
-	    return new HttpRequest ("1.1", 400, "Empty Request");
+	    if (hcount == names.length)
+	    {
+		String[] newNames = new String[hcount * 2];
+		String[] newValues = new String[hcount * 2];
+		System.arraycopy (names, 0, newNames, 0, hcount);
+		System.arraycopy (values, 0, newValues, 0, hcount);
+		names = newNames;
+		values = newValues;
+	    }
+
+	    names[hcount] = trimmedString (buf, lineStart, colonAt);
+	    values[hcount] = trimmedString (buf, colonAt + 1, lineEnd);
+	    hcount++;
 	}
 
-	// at this point firstLine should look something like this:
+	// at this point the first line should look something like this:
 	// "GET /foo HTTP/1.1"
 
-	int firstSpace = firstLine.indexOf (' ');
-	int lastSpace = firstLine.lastIndexOf (' ');
+	int firstSpace = indexOf (buf, firstStart, firstEnd, ' ');
+	int lastSpace = lastIndexOf (buf, firstStart, firstEnd, ' ');
 	if ((firstSpace == -1) || (firstSpace == lastSpace))
 	{
 	    return new HttpRequest ("1.1", 400, "Bad Request Line");
 	}
 
 	String httpVer;
-	if (firstLine.endsWith (" HTTP/1.1"))
+	if (endsWith (buf, firstStart, firstEnd, TheVersion11Bytes))
 	{
 	    httpVer = "1.1";
 	}
-	else if (firstLine.endsWith (" HTTP/1.0"))
+	else if (endsWith (buf, firstStart, firstEnd, TheVersion10Bytes))
 	{
 	    httpVer = "1.0";
 	}
@@ -589,15 +761,15 @@ public class HttpRequest
 	}
 
 	int method;
-	if (firstLine.startsWith ("GET "))
+	if (startsWith (buf, firstStart, firstEnd, TheGetBytes))
 	{
 	    method = REQUEST_GET;
 	}
-	else if (firstLine.startsWith ("HEAD "))
+	else if (startsWith (buf, firstStart, firstEnd, TheHeadBytes))
 	{
 	    method = REQUEST_HEAD;
 	}
-	else if (firstLine.startsWith ("POST "))
+	else if (startsWith (buf, firstStart, firstEnd, ThePostBytes))
 	{
 	    method = REQUEST_POST;
 	}
@@ -608,7 +780,7 @@ public class HttpRequest
 				    "Unsupported Request Method");
 	}
 
-	String doc = firstLine.substring (firstSpace + 1, lastSpace).trim ();
+	String doc = trimmedString (buf, firstSpace + 1, lastSpace);
 
 	if (doc.length () == 0)
 	{
@@ -637,15 +809,154 @@ public class HttpRequest
 	    return new HttpRequest (httpVer, 400, "Bad Document Name");
 	}
 
-	int hcount = headers.size () / 2;
-	String[] hnames = new String[hcount];
-	String[] hvalues = new String[hcount];
-	for (int i = 0; i < hnames.length; i++)
+	if (hcount != names.length)
+	{
+	    String[] newNames = new String[hcount];
+	    String[] newValues = new String[hcount];
+	    System.arraycopy (names, 0, newNames, 0, hcount);
+	    System.arraycopy (values, 0, newValues, 0, hcount);
+	    names = newNames;
+	    values = newValues;
+	}
+
+	return new HttpRequest (httpVer, method, doc, names, values, entity);
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private static methods
+
+    /**
+     * Make a string out of the given range of a buffer of (ASCII) bytes,
+     * with whitespace trimmed from both ends, the same as {@link
+     * String#trim} would.
+     *
+     * @param buf non-null; the buffer
+     * @param start the offset of the first byte
+     * @param end the offset just past the last byte
+     * @return non-null; the corresponding string
+     */
+    static private String trimmedString (byte[] buf, int start, int end)
+    {
+	while ((start < end) && ((buf[start] & 0xff) <= ' '))
+	{
+	    start++;
+	}
+
+	while ((end > start) && ((buf[end - 1] & 0xff) <= ' '))
+	{
+	    end--;
+	}
+
+	return new String (buf, start, end - start, 
+			   StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Find the first occurrence of the given byte in the given range of
+     * a buffer.
+     *
+     * @param buf non-null; the buffer
+     * @param start the offset of the first byte to look at
+     * @param end the offset just past the last byte to look at
+     * @param b the byte to look for
+     * @return the offset of the byte, or <code>-1</code> if not found
+     */
+    static private int indexOf (byte[] buf, int start, int end, int b)
+    {
+	for (int i = start; i < end; i++)
+	{
+	    if (buf[i] == b)
+	    {
+		return i;
+	    }
+	}
+
+	return -1;
+    }
+
+    /**
+     * Find the last occurrence of the given byte in the given range of
+     * a buffer.
+     *
+     * @param buf non-null; the buffer
+     * @param start the offset of the first byte to look at
+     * @param end the offset just past the last byte to look at
+     * @param b the byte to look for
+     * @return the offset of the byte, or <code>-1</code> if not found
+     */
+    static private int lastIndexOf (byte[] buf, int start, int end, int b)
+    {
+	for (int i = end - 1; i >= start; i--)
+	{
+	    if (buf[i] == b)
+	    {
+		return i;
+	    }
+	}
+
+	return -1;
+    }
+
+    /**
+     * Return whether the given range of a buffer starts with the given
+     * bytes.
+     *
+     * @param buf non-null; the buffer
+     * @param start the offset of the first byte of the range
+     * @param end the offset just past the last byte of the range
+     * @param prefix non-null; the bytes to look for
+     * @return <code>true</code> iff the range starts with the bytes
+     */
+    static private boolean startsWith (byte[] buf, int start, int end,
+				       byte[] prefix)
+    {
+	if ((end - start) < prefix.length)
+	{
+	    return false;
+	}
+
+	for (int i = 0; i < prefix.length; i++)
 	{
-	    hnames[i] = (String) headers.get (i * 2);
-	    hvalues[i] = (String) headers.get (i * 2 + 1);
+	    if (buf[start + i] != prefix[i])
+	    {
+		return false;
+	    }
 	}
 
-	return new HttpRequest (httpVer, method, doc, hnames, hvalues, stream);
+	return true;
+    }
+
+    /**
+     * Return whether the given range of a buffer ends with the given
+     * bytes.
+     *
+     * @param buf non-null; the buffer
+     * @param start the offset of the first byte of the range
+     * @param end the offset just past the last byte of the range
+     * @param suffix non-null; the bytes to look for
+     * @return <code>true</code> iff the range ends with the bytes
+     */
+    static private boolean endsWith (byte[] buf, int start, int end,
+				     byte[] suffix)
+    {
+	if ((end - start) < suffix.length)
+	{
+	    return false;
+	}
+
+	return startsWith (buf, end - suffix.length, end, suffix);
+    }
+
+    /**
+     * Get the bytes of the given (ASCII) string.
+     *
+     * @param s non-null; the string
+     * @return non-null; its bytes
+     */
+    static private byte[] asciiBytes (String s)
+    {
+	return s.getBytes (StandardCharsets.ISO_8859_1);
     }
 }
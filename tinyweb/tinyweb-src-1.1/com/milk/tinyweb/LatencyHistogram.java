@@ -0,0 +1,251 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies, in the style of an HDR histogram: values are
+ * counted in buckets whose width grows with their magnitude, so that any
+ * value is represented to within a fixed relative precision (here, about
+ * 3%) no matter how big it is, while the whole thing takes a fixed and
+ * modest amount of space. Values are recorded in nanoseconds but kept
+ * in microseconds, up to a maximum of about twelve days. Recording takes
+ * no locks, so an instance can be shared freely between threads, but as
+ * a consequence the various values read out of an instance while it is
+ * being recorded into aren't necessarily consistent with each other.
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+final public class LatencyHistogram
+{
+    /** the number of bits of precision kept for each value */
+    static private final int PRECISION_BITS = 6;
+
+    /** the number of values counted exactly (that is, in buckets of
+     * width one) */
+    static private final int LINEAR_COUNT = 1 << PRECISION_BITS;
+
+    /** the number of buckets for each power of two beyond the linear
+     * ones */
+    static private final int HALF_COUNT = LINEAR_COUNT / 2;
+
+    /** the largest value (usec) that can be distinguished; bigger ones
+     * get counted as this */
+    static private final long MAX_VALUE = (1L << 40) - 1;
+
+    /** the total number of buckets */
+    static private final int BUCKET_COUNT = bucketFor (MAX_VALUE) + 1;
+
+    /** non-null; the count of values in each bucket */
+    private final AtomicLongArray myCounts;
+
+    /** non-null; the total number of values recorded */
+    private final LongAdder myTotalCount;
+
+    /** non-null; the sum of all values recorded (usec) */
+    private final LongAdder myTotalValue;
+
+    /** non-null; the largest value recorded (usec) */
+    private final AtomicLong myMax;
+
+
+
+    // ------------------------------------------------------------------------
+    // constructors
+
+    /**
+     * Construct an empty instance.
+     */
+    public LatencyHistogram ()
+    {
+	myCounts = new AtomicLongArray (BUCKET_COUNT);
+	myTotalCount = new LongAdder ();
+	myTotalValue = new LongAdder ();
+	myMax = new AtomicLong (0);
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // public instance methods
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos the latency, in nanoseconds; negative values are taken
+     * to be <code>0</code>
+     */
+    public void record (long nanos)
+    {
+	long usec = (nanos < 0) ? 0 : (nanos / 1000);
+
+	if (usec > MAX_VALUE)
+	{
+	    usec = MAX_VALUE;
+	}
+
+	myCounts.incrementAndGet (bucketFor (usec));
+	myTotalCount.increment ();
+	myTotalValue.add (usec);
+
+	for (;;)
+	{
+	    long max = myMax.get ();
+	    if ((usec <= max) || myMax.compareAndSet (max, usec))
+	    {
+		break;
+	    }
+	}
+    }
+
+    /**
+     * Get the number of values recorded.
+     *
+     * @return the count
+     */
+    public long getCount ()
+    {
+	return myTotalCount.sum ();
+    }
+
+    /**
+     * Get the mean of the values recorded.
+     *
+     * @return the mean, in microseconds, or <code>0</code> if nothing has
+     * been recorded
+     */
+    public long getMean ()
+    {
+	long count = myTotalCount.sum ();
+	return (count == 0) ? 0 : (myTotalValue.sum () / count);
+    }
+
+    /**
+     * Get the largest value recorded.
+     *
+     * @return the maximum, in microseconds, or <code>0</code> if nothing
+     * has been recorded
+     */
+    public long getMax ()
+    {
+	return myMax.get ();
+    }
+
+    /**
+     * Get the value at the given percentile. That is, get the smallest
+     * value such that at least the given percentage of the recorded
+     * values are no greater than it, to within the precision of this
+     * class.
+     *
+     * @param percentile the percentile; must be in the range
+     * <code>(0..100]</code>
+     * @return the value, in microseconds, or <code>0</code> if nothing has
+     * been recorded
+     */
+    public long getPercentile (double percentile)
+    {
+	if ((percentile <= 0) || (percentile > 100))
+	{
+	    throw new IllegalArgumentException ("percentile out of range");
+	}
+
+	long count = myTotalCount.sum ();
+
+	if (count == 0)
+	{
+	    return 0;
+	}
+
+	long want = (long) Math.ceil (count * (percentile / 100.0));
+	long seen = 0;
+	long max = myMax.get ();
+
+	for (int i = 0; i < BUCKET_COUNT; i++)
+	{
+	    seen += myCounts.get (i);
+	    if (seen >= want)
+	    {
+		long result = highestValueFor (i);
+		return (result < max) ? result : max;
+	    }
+	}
+
+	// values were recorded while we were looking
+	return max;
+    }
+
+    // superclass's javadoc suffices
+    public String toString ()
+    {
+	return "LatencyHistogram[count=" + getCount () + 
+	    ", mean=" + getMean () + ", p50=" + getPercentile (50) +
+	    ", p99=" + getPercentile (99) + ", max=" + getMax () + "]";
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private static methods
+
+    /**
+     * Get the index of the bucket that the given value goes in.
+     *
+     * @param value the value; must be in the range
+     * <code>[0..MAX_VALUE]</code>
+     * @return the bucket index
+     */
+    static private int bucketFor (long value)
+    {
+	if (value < LINEAR_COUNT)
+	{
+	    return (int) value;
+	}
+
+	// keep the top PRECISION_BITS bits of the value
+	int shift = 64 - Long.numberOfLeadingZeros (value) - PRECISION_BITS;
+	int top = (int) (value >>> shift);
+
+	return LINEAR_COUNT + ((shift - 1) * HALF_COUNT) + (top - HALF_COUNT);
+    }
+
+    /**
+     * Get the highest value that goes in the given bucket.
+     *
+     * @param bucket the bucket index
+     * @return the highest value for that bucket
+     */
+    static private long highestValueFor (int bucket)
+    {
+	if (bucket < LINEAR_COUNT)
+	{
+	    return bucket;
+	}
+
+	int n = bucket - LINEAR_COUNT;
+	int shift = (n / HALF_COUNT) + 1;
+	long top = (n % HALF_COUNT) + HALF_COUNT;
+
+	return ((top + 1) << shift) - 1;
+    }
+}
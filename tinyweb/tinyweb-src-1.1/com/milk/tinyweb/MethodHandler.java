@@ -21,13 +21,26 @@
 package com.milk.tinyweb;
 
 import com.milk.util.EmbeddedException;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaConversionException;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 
 /**
  * This is a document handler which delegates to a particular method
  * of a given object, whose signature (other than the name) should
- * be the same as {@link DocumentHandler#handleRequest}.
+ * be the same as {@link DocumentHandler#handleRequest}. A method that
+ * produces a lot of output, or produces it a bit at a time, can return
+ * a {@link StreamingDocument}, so that its output gets written to the
+ * client as it goes rather than being built up in memory first.
+ *
+ * <p>The method is bound once, when the handler is constructed, to a
+ * generated implementation of a small functional interface, so each
+ * request is a direct call to the target method, with no reflection,
+ * argument array, or exception unwrapping along the way.</p>
  *
  * @author Dan Bornstein, danfuzz@milk.com
  */
@@ -40,12 +53,20 @@ implements DocumentHandler
 
     /** return type for the <code>handleRequest</code>-like methods */
     static private final Class theReturnType = Document.class;
-    
-    /** non-null; the target object to delegate to */
-    private Object myTarget;
 
-    /** non-null; the method to call on the target */
-    private Method myMethod;
+    /** non-null; the type of the bound <code>handleRequest</code> call */
+    static private final MethodType theCallType =
+	MethodType.methodType (theReturnType, theSignature);
+
+    /** non-null; lookup used to bind target methods */
+    static private final MethodHandles.Lookup theLookup =
+	MethodHandles.lookup ();
+
+    /** non-null; the logger to report binding trouble to */
+    static private final TinyWebLogger theLogger = new StandardLogger ();
+    
+    /** non-null; the bound call to the target's method */
+    private final Invoker myInvoker;
 
 
 
@@ -120,10 +141,21 @@ implements DocumentHandler
 		}
 	    }
 	    
+	    MethodHandler mh;
+	    try
+	    {
+		mh = new MethodHandler (target, meths[i]);
+	    }
+	    catch (IllegalArgumentException ex)
+	    {
+		// the method isn't accessible, so it can't be a handler
+		continue;
+	    }
+
 	    char c1 = Character.toLowerCase (name.charAt (6));
 	    String docName = urlPrefix + c1 + name.substring (7) + urlSuffix;
 
-	    server.putDocument (docName, new MethodHandler (target, name));
+	    server.putDocument (docName, mh);
 	}
     }
 
@@ -151,13 +183,12 @@ implements DocumentHandler
 	    throw new NullPointerException ("methodName == null");
 	}
 
-	myTarget = target;
-
 	Class cls = target.getClass ();
+	Method method;
 
 	try
 	{
-	    myMethod = cls.getMethod (methodName, theSignature);
+	    method = cls.getMethod (methodName, theSignature);
 	}
 	catch (NoSuchMethodException ex)
 	{
@@ -165,11 +196,13 @@ implements DocumentHandler
 						"with appropriate signature");
 	}
 
-	if (myMethod.getReturnType () != theReturnType)
+	if (method.getReturnType () != theReturnType)
 	{
 	    throw new IllegalArgumentException ("named method not found " +
 						"with appropriate signature");
 	}
+
+	myInvoker = bind (target, method);
     }
 
     /**
@@ -181,6 +214,8 @@ implements DocumentHandler
      * @param target non-null; the target object to delegate to
      * @param method non-null; the method to call on
      * the target to respond to {@link DocumentHandler#handleRequest}
+     * @throws IllegalArgumentException thrown if the method isn't
+     * accessible
      */
     private MethodHandler (Object target, Method method)
     {
@@ -194,43 +229,145 @@ implements DocumentHandler
 	    throw new NullPointerException ("method == null");
 	}
 
-	myTarget = target;
-	myMethod = method;
+	myInvoker = bind (target, method);
     }
 
 
 
     // ------------------------------------------------------------------------
-    // public instance methods
+    // private static methods
 
-    // interface's javadoc suffices
-    public Document handleRequest (String query, String partialPath,
-				   HttpRequest request)
+    /**
+     * Bind the given method on the given target, preferably to a
+     * generated implementation of {@link Invoker} that calls the method
+     * directly. If that isn't possible (if the target's class isn't
+     * visible from this class's loader, or the method declares checked
+     * exceptions, which have to get wrapped), this falls back to an
+     * {@link Invoker} wrapped around a bound method handle. So does a
+     * failure to generate the implementation, which also gets
+     * logged.
+     *
+     * @param target non-null; the target object to delegate to
+     * @param method non-null; the method to call, presumed to have the
+     * right signature
+     * @return non-null; the bound call
+     * @throws IllegalArgumentException thrown if the method isn't
+     * accessible
+     */
+    static private Invoker bind (Object target, Method method)
     {
+	MethodHandle mh;
+
 	try
 	{
-	    Object result = 
-		myMethod.invoke (myTarget, 
-				 new Object[] { query, partialPath, request });
-
-	    return (Document) result;
+	    mh = theLookup.unreflect (method);
 	}
 	catch (IllegalAccessException ex)
 	{
-	    throw new EmbeddedException (ex);
+	    throw new IllegalArgumentException ("named method not " +
+						"accessible");
 	}
-	catch (InvocationTargetException ex)
+
+	Class cls = method.getDeclaringClass ();
+
+	if (! (isVisible (cls) && throwsOnlyUnchecked (method)))
 	{
-	    Throwable t = ex.getTargetException ();
-	    if (t instanceof RuntimeException)
-	    {
-		throw (RuntimeException) t;
-	    }
-	    else
+	    return new HandleInvoker (mh.bindTo (target));
+	}
+
+	CallSite site;
+
+	try
+	{
+	    site = LambdaMetafactory.metafactory (
+		theLookup,
+		"handleRequest",
+		MethodType.methodType (Invoker.class, cls),
+		theCallType,
+		mh,
+		theCallType);
+	}
+	catch (LambdaConversionException ex)
+	{
+	    theLogger.error ("MethodHandler: couldn't bind " + method +
+			     " directly; calling it through a method handle",
+			     ex);
+	    return new HandleInvoker (mh.bindTo (target));
+	}
+
+	try
+	{
+	    return (Invoker) site.getTarget ().invoke (target);
+	}
+	catch (RuntimeException ex)
+	{
+	    throw ex;
+	}
+	catch (Error ex)
+	{
+	    throw ex;
+	}
+	catch (Throwable ex)
+	{
+	    // shouldn't happen; the factory just makes an instance
+	    throw new EmbeddedException ("shouldn't happen", ex);
+	}
+    }
+
+    /**
+     * Return whether the given method declares only unchecked
+     * exceptions, if any.
+     *
+     * @param method non-null; the method in question
+     * @return whether it declares only unchecked exceptions
+     */
+    static private boolean throwsOnlyUnchecked (Method method)
+    {
+	Class[] types = method.getExceptionTypes ();
+
+	for (int i = 0; i < types.length; i++)
+	{
+	    if (! (RuntimeException.class.isAssignableFrom (types[i])
+		   || Error.class.isAssignableFrom (types[i])))
 	    {
-		throw new EmbeddedException (t);
+		return false;
 	    }
 	}
+
+	return true;
+    }
+
+    /**
+     * Return whether the given class is visible by name from this class's
+     * loader, which is a requirement for calling its methods from a
+     * generated class.
+     *
+     * @param cls non-null; the class in question
+     * @return whether it is visible
+     */
+    static private boolean isVisible (Class cls)
+    {
+	try
+	{
+	    ClassLoader loader = MethodHandler.class.getClassLoader ();
+	    return Class.forName (cls.getName (), false, loader) == cls;
+	}
+	catch (ClassNotFoundException ex)
+	{
+	    return false;
+	}
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // public instance methods
+
+    // interface's javadoc suffices
+    public Document handleRequest (String query, String partialPath,
+				   HttpRequest request)
+    {
+	return myInvoker.handleRequest (query, partialPath, request);
     }
 
     // interface's javadoc suffices
@@ -238,4 +375,73 @@ implements DocumentHandler
     {
 	throw new RuntimeException ("putDocument() not supported.");
     }
+
+
+
+    // ------------------------------------------------------------------------
+    // private static classes
+
+    /**
+     * Interface for a call to a target's <code>handleRequest</code>-like
+     * method, with the target already bound in. Implementations are
+     * generated by {@link #bind}.
+     */
+    static private interface Invoker
+    {
+	/**
+	 * Call the target method.
+	 *
+	 * @param query null-ok; the query string
+	 * @param partialPath non-null; the partial path
+	 * @param request non-null; the request
+	 * @return the target method's result
+	 */
+	public Document handleRequest (String query, String partialPath,
+				       HttpRequest request);
+    }
+
+    /**
+     * Fallback implementation of {@link Invoker}, which calls through a
+     * bound method handle.
+     */
+    static private final class HandleInvoker
+    implements Invoker
+    {
+	/** non-null; the handle to call, with the target bound in */
+	private final MethodHandle myHandle;
+
+	/**
+	 * Construct an instance.
+	 *
+	 * @param handle non-null; the handle to call, with the target
+	 * bound in
+	 */
+	public HandleInvoker (MethodHandle handle)
+	{
+	    myHandle = handle.asType (theCallType);
+	}
+
+	// interface's javadoc suffices
+	public Document handleRequest (String query, String partialPath,
+				       HttpRequest request)
+	{
+	    try
+	    {
+		return (Document) 
+		    myHandle.invokeExact (query, partialPath, request);
+	    }
+	    catch (RuntimeException ex)
+	    {
+		throw ex;
+	    }
+	    catch (Error ex)
+	    {
+		throw ex;
+	    }
+	    catch (Throwable ex)
+	    {
+		throw new EmbeddedException (ex);
+	    }
+	}
+    }
 }
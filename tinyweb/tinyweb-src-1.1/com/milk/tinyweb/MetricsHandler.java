@@ -0,0 +1,317 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Document handler which reports the current state of a {@link
+ * ServerMetrics}. A request for the handler itself gets a plain text
+ * report, and a request for <code>"json"</code> underneath it gets the
+ * same information as a JSON object. For example, after
+ *
+ * <pre>
+ * server.putDocument ("/metrics", 
+ *                     new MetricsHandler (server.getMetrics ()));
+ * </pre>
+ *
+ * the text report is at <code>/metrics</code> and the JSON one is at
+ * <code>/metrics/json</code>. Latencies are reported in microseconds.
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+final public class MetricsHandler
+implements DocumentHandler
+{
+    /** non-null; the percentiles reported for each histogram */
+    static private final double[] ThePercentiles = { 50, 90, 99, 99.9 };
+
+    /** non-null; the names of the percentiles, as used in reports */
+    static private final String[] ThePercentileNames = 
+	{ "p50", "p90", "p99", "p999" };
+
+    /** non-null; extra headers for the reports, which shouldn't get
+     * cached */
+    static private final Map TheExtraHeaders;
+
+    static
+    {
+	TreeMap headers = new TreeMap ();
+	headers.put ("Cache-Control", "no-cache");
+	TheExtraHeaders = headers;
+    }
+
+    /** non-null; the metrics to report on */
+    private final ServerMetrics myMetrics;
+
+
+
+    // ------------------------------------------------------------------------
+    // constructors
+
+    /**
+     * Construct an instance.
+     *
+     * @param metrics non-null; the metrics to report on
+     */
+    public MetricsHandler (ServerMetrics metrics)
+    {
+	if (metrics == null)
+	{
+	    throw new NullPointerException ("metrics == null");
+	}
+
+	myMetrics = metrics;
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // public instance methods
+
+    // interface's javadoc suffices
+    public Document handleRequest (String query, String partialPath,
+				   HttpRequest request)
+    {
+	String contentType;
+	String text;
+
+	if ((partialPath == null) || (partialPath.length () == 0))
+	{
+	    contentType = "text/plain; charset=utf-8";
+	    text = makeText ();
+	}
+	else if (partialPath.equals ("json"))
+	{
+	    contentType = "application/json";
+	    text = makeJson ();
+	}
+	else
+	{
+	    return null;
+	}
+
+	return new StaticDocument (contentType, System.currentTimeMillis (),
+				   text.getBytes (StandardCharsets.UTF_8),
+				   200, "OK", TheExtraHeaders);
+    }
+
+    // interface's javadoc suffices
+    public void putDocument (String partialPath, DocumentHandler doc)
+    {
+	throw new RuntimeException ("putDocument() not supported.");
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private instance methods
+
+    /**
+     * Make the plain text report.
+     *
+     * @return non-null; the report
+     */
+    private String makeText ()
+    {
+	StringBuffer sb = new StringBuffer ();
+
+	sb.append ("requests: " + myMetrics.getRequestCount () + "\n");
+	sb.append ("active-connections: " + 
+		   myMetrics.getActiveConnections () + "\n");
+	sb.append ("queue-depth: " + myMetrics.getQueueDepth () + "\n");
+	sb.append ("bytes-in: " + myMetrics.getBytesIn () + "\n");
+	sb.append ("bytes-out: " + myMetrics.getBytesOut () + "\n");
+
+	sb.append ('\n');
+	Iterator i = myMetrics.getResultCounts ().entrySet ().iterator ();
+	while (i.hasNext ())
+	{
+	    Map.Entry one = (Map.Entry) i.next ();
+	    sb.append ("result " + one.getKey () + ": " + one.getValue () + 
+		       "\n");
+	}
+
+	sb.append ('\n');
+	i = myMetrics.getRouteCounts ().entrySet ().iterator ();
+	while (i.hasNext ())
+	{
+	    Map.Entry one = (Map.Entry) i.next ();
+	    sb.append ("route " + one.getKey () + ": " + one.getValue () + 
+		       "\n");
+	}
+
+	sb.append ('\n');
+	appendText (sb, "parse-usec", myMetrics.getParseTimes ());
+	appendText (sb, "handler-usec", myMetrics.getHandlerTimes ());
+	appendText (sb, "write-usec", myMetrics.getWriteTimes ());
+
+	return sb.toString ();
+    }
+
+    /**
+     * Make the JSON report.
+     *
+     * @return non-null; the report
+     */
+    private String makeJson ()
+    {
+	StringBuffer sb = new StringBuffer ();
+
+	sb.append ("{\"requests\":" + myMetrics.getRequestCount ());
+	sb.append (",\"activeConnections\":" + 
+		   myMetrics.getActiveConnections ());
+	sb.append (",\"queueDepth\":" + myMetrics.getQueueDepth ());
+	sb.append (",\"bytesIn\":" + myMetrics.getBytesIn ());
+	sb.append (",\"bytesOut\":" + myMetrics.getBytesOut ());
+
+	sb.append (",\"results\":");
+	appendJson (sb, myMetrics.getResultCounts ());
+	sb.append (",\"routes\":");
+	appendJson (sb, myMetrics.getRouteCounts ());
+
+	sb.append (",\"latencyUsec\":{\"parse\":");
+	appendJson (sb, myMetrics.getParseTimes ());
+	sb.append (",\"handler\":");
+	appendJson (sb, myMetrics.getHandlerTimes ());
+	sb.append (",\"write\":");
+	appendJson (sb, myMetrics.getWriteTimes ());
+	sb.append ("}}\n");
+
+	return sb.toString ();
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private static methods
+
+    /**
+     * Append a line of text describing the given histogram.
+     *
+     * @param sb non-null; where to append to
+     * @param name non-null; the name of the histogram
+     * @param hist non-null; the histogram
+     */
+    static private void appendText (StringBuffer sb, String name, 
+				    LatencyHistogram hist)
+    {
+	sb.append (name + ": count=" + hist.getCount () + 
+		   " mean=" + hist.getMean ());
+
+	for (int i = 0; i < ThePercentiles.length; i++)
+	{
+	    sb.append (" " + ThePercentileNames[i] + "=" + 
+		       hist.getPercentile (ThePercentiles[i]));
+	}
+
+	sb.append (" max=" + hist.getMax () + "\n");
+    }
+
+    /**
+     * Append a JSON object describing the given histogram.
+     *
+     * @param sb non-null; where to append to
+     * @param hist non-null; the histogram
+     */
+    static private void appendJson (StringBuffer sb, LatencyHistogram hist)
+    {
+	sb.append ("{\"count\":" + hist.getCount () + 
+		   ",\"mean\":" + hist.getMean ());
+
+	for (int i = 0; i < ThePercentiles.length; i++)
+	{
+	    sb.append (",\"" + ThePercentileNames[i] + "\":" + 
+		       hist.getPercentile (ThePercentiles[i]));
+	}
+
+	sb.append (",\"max\":" + hist.getMax () + "}");
+    }
+
+    /**
+     * Append a JSON object with the contents of the given map, whose
+     * values are all numbers.
+     *
+     * @param sb non-null; where to append to
+     * @param map non-null; the map
+     */
+    static private void appendJson (StringBuffer sb, Map map)
+    {
+	sb.append ('{');
+
+	Iterator i = map.entrySet ().iterator ();
+	boolean first = true;
+	while (i.hasNext ())
+	{
+	    Map.Entry one = (Map.Entry) i.next ();
+
+	    if (! first)
+	    {
+		sb.append (',');
+	    }
+
+	    appendJsonString (sb, one.getKey ().toString ());
+	    sb.append (':');
+	    sb.append (one.getValue ());
+	    first = false;
+	}
+
+	sb.append ('}');
+    }
+
+    /**
+     * Append the given string as a quoted JSON string.
+     *
+     * @param sb non-null; where to append to
+     * @param str non-null; the string
+     */
+    static private void appendJsonString (StringBuffer sb, String str)
+    {
+	sb.append ('\"');
+
+	int len = str.length ();
+	for (int i = 0; i < len; i++)
+	{
+	    char c = str.charAt (i);
+
+	    if ((c == '\"') || (c == '\\'))
+	    {
+		sb.append ('\\');
+		sb.append (c);
+	    }
+	    else if (c < 0x20)
+	    {
+		String hex = Integer.toHexString (c);
+		sb.append ("\\u0000".substring (0, 6 - hex.length ()));
+		sb.append (hex);
+	    }
+	    else
+	    {
+		sb.append (c);
+	    }
+	}
+
+	sb.append ('\"');
+    }
+}
@@ -0,0 +1,1534 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb;
+
+import com.milk.util.EmbeddedException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Selector-based connection engine for {@link TinyWebServer}. Rather than
+ * dedicating a thread to each connection, this multiplexes accepting,
+ * request reading, and response writing over a small fixed set of event
+ * loop threads, each with its own <code>Selector</code>. The first loop
+ * also does the accepting, and hands new connections out to all the loops
+ * round-robin.
+ *
+ * <p>Once a complete request (headers plus entity, if any) has been read,
+ * it is dispatched to the server's {@link DocumentHandler} tree on the
+ * event loop thread itself, so handlers that take a long time to produce
+ * their document will hold up the other connections on the same loop.
+ * Responses whose length is known and reasonably small are rendered into
+ * memory and written without blocking. The content of (non-dynamic)
+ * {@link FileDocument}s, and of single ranges of them, is transferred
+ * straight from the file to the socket, also without blocking. Anything
+ * else (such as a large in-memory document, a dynamically growing file,
+ * or a {@link StreamingDocument}) is handed off to one of a bounded pool
+ * of threads, which writes the response with plain blocking I/O, after
+ * which the connection comes back to its loop (or gets closed, if it
+ * isn't to persist). If all of those threads are busy, the request is
+ * instead answered with <code>503 Service Unavailable</code>, just as
+ * the thread-per-connection engine does when its workers are all
+ * busy.</p>
+ *
+ * <p>If the server allows persistent connections, then once a response
+ * has been completely written, any further input on the connection is
+ * treated as the next request. Pipelined requests are thus answered in
+ * order, one at a time.</p>
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+final class NioEngine
+{
+    /** true if this code should spit out debug messages, cause this to be
+     * true by defining the property
+     * <code>com.milk.tinyweb.NioEngine.debug</code> to be
+     * <code>"true"</code>. */
+    static private final boolean DEBUG =
+	Boolean.getBoolean ("com.milk.tinyweb.NioEngine.debug");
+
+    /** the initial size of a connection's input buffer */
+    static private final int INITIAL_BUF_SIZE = 4096;
+
+    /** the maximum size of a request, headers plus entity */
+    static private final int MAX_REQUEST_SIZE = 1024 * 1024;
+
+    /** the maximum content length of a response that will get written
+     * from memory; bigger ones get handed off to a blocking thread */
+    static private final long MAX_BUFFERED_RESPONSE = 256 * 1024;
+
+    /** how long (msec) a connection may sit without completing its
+     * request before it gets timed out; this matches the socket timeout
+     * used by the thread-per-connection engine */
+    static private final long READ_TIMEOUT_MSEC = 10000;
+
+    /** how long (msec) the loops wait in <code>select()</code> before
+     * checking for timeouts */
+    static private final long SELECT_TIMEOUT_MSEC = 1000;
+
+    /** how long (msec) an idle handoff thread sticks around */
+    static private final long HANDOFF_IDLE_MSEC = 60000;
+
+    /** the maximum number of cached documents that may be waiting to
+     * get compressed */
+    static private final int MAX_PENDING_COMPRESSIONS = 32;
+
+    /** non-null; the server this instance serves for */
+    private final TinyWebServer myServer;
+
+    /** non-null; the metrics of the server */
+    private final ServerMetrics myMetrics;
+
+    /** non-null; the channel to accept connections from */
+    private final ServerSocketChannel myChannel;
+
+    /** non-null; the logger to use */
+    private final TinyWebLogger myLogger;
+
+    /** non-null; the event loops */
+    private final EventLoop[] myLoops;
+
+    /** non-null; the threads which write handed-off responses */
+    private final ThreadPoolExecutor myHandoffPool;
+
+    /** non-null; the thread which compresses cached documents, so that
+     * the event loops don't have to */
+    private final ThreadPoolExecutor myCompressPool;
+
+    /** index of the loop to hand the next accepted connection to */
+    private int myNextLoop;
+
+    // ------------------------------------------------------------------------
+    // constructors
+
+    /**
+     * Construct an instance. This starts the event loop threads, but
+     * connections won't be accepted until {@link #startAccepting} is
+     * called.
+     *
+     * @param server non-null; the server this instance serves for
+     * @param channel non-null; the (bound) channel to accept connections
+     * from
+     * @param loopCount the number of event loop threads to use
+     * @param handoffCount the maximum number of threads to use for
+     * writing handed-off responses
+     * @param logger non-null; the logger to use
+     */
+    public NioEngine (TinyWebServer server, ServerSocketChannel channel,
+		      int loopCount, int handoffCount, TinyWebLogger logger)
+    {
+	if (server == null)
+	{
+	    throw new NullPointerException ("server == null");
+	}
+
+	if (channel == null)
+	{
+	    throw new NullPointerException ("channel == null");
+	}
+
+	if (loopCount < 1)
+	{
+	    throw new IllegalArgumentException ("loopCount < 1");
+	}
+
+	if (handoffCount < 1)
+	{
+	    throw new IllegalArgumentException ("handoffCount < 1");
+	}
+
+	if (logger == null)
+	{
+	    throw new NullPointerException ("logger == null");
+	}
+
+	myServer = server;
+	myMetrics = server.getMetrics ();
+	myChannel = channel;
+	myLogger = logger;
+	myNextLoop = 0;
+
+	try
+	{
+	    myChannel.configureBlocking (false);
+	}
+	catch (IOException ex)
+	{
+	    throw new EmbeddedException ("Couldn't make channel " +
+					 "non-blocking", ex);
+	}
+
+	myHandoffPool =
+	    new ThreadPoolExecutor (handoffCount, handoffCount,
+				    HANDOFF_IDLE_MSEC, TimeUnit.MILLISECONDS,
+				    new SynchronousQueue (),
+				    threadFactory ("handoff"));
+	myHandoffPool.allowCoreThreadTimeOut (true);
+
+	myCompressPool =
+	    new ThreadPoolExecutor (1, 1,
+				    HANDOFF_IDLE_MSEC, TimeUnit.MILLISECONDS,
+				    new LinkedBlockingQueue (
+					MAX_PENDING_COMPRESSIONS),
+				    threadFactory ("compress"));
+	myCompressPool.allowCoreThreadTimeOut (true);
+
+	myLoops = new EventLoop[loopCount];
+	for (int i = 0; i < loopCount; i++)
+	{
+	    myLoops[i] = new EventLoop (i);
+	}
+    }
+
+    // ------------------------------------------------------------------------
+    // public instance methods
+
+    /**
+     * Return a string form for this instance.
+     *
+     * @return a string form
+     */
+    public String toString ()
+    {
+	return "NioEngine[" + myServer + "]";
+    }
+
+    /**
+     * Start accepting connections. This returns immediately; the first
+     * event loop will do the actual accepting.
+     */
+    public void startAccepting ()
+    {
+	myLoops[0].setAccepting (true);
+    }
+
+    /**
+     * Stop accepting connections. By the time this method returns, no
+     * new connections will be accepted. Connections that have already been
+     * accepted continue to be serviced.
+     */
+    public void stopAccepting ()
+    {
+	myLoops[0].setAccepting (false);
+    }
+
+    /**
+     * Shut this instance down. This stops accepting, and the event loops
+     * exit once all their pending connections have been completed. This
+     * doesn't close the server channel; that's up to the caller.
+     */
+    public void close ()
+    {
+	stopAccepting ();
+
+	for (int i = 0; i < myLoops.length; i++)
+	{
+	    myLoops[i].shutdown ();
+	}
+
+	// responses already handed off still get finished
+	myHandoffPool.shutdown ();
+	myCompressPool.shutdown ();
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private instance methods
+
+    /**
+     * Hand a newly-accepted connection to one of the event loops.
+     *
+     * @param chan non-null; the connection's channel
+     */
+    private void dispatch (SocketChannel chan)
+    {
+	try
+	{
+	    chan.configureBlocking (false);
+	}
+	catch (IOException ex)
+	{
+	    myLogger.error (this + " couldn't make connection non-blocking",
+			    ex);
+	    closeQuietly (chan);
+	    return;
+	}
+
+	EventLoop loop = myLoops[myNextLoop];
+	myNextLoop = (myNextLoop + 1) % myLoops.length;
+
+	loop.addConnection (chan);
+    }
+
+    /**
+     * Make a factory for the daemon threads of one of this instance's
+     * pools.
+     *
+     * @param what non-null; what the threads are for, for their names
+     * @return non-null; the factory
+     */
+    private ThreadFactory threadFactory (final String what)
+    {
+	return new ThreadFactory ()
+	{
+	    public Thread newThread (Runnable r)
+	    {
+		Thread t = new Thread (r, NioEngine.this + " " + what);
+		t.setDaemon (true);
+		return t;
+	    }
+	};
+    }
+
+    /**
+     * Close the given channel, ignoring any problems in doing so.
+     *
+     * @param chan non-null; the channel to close
+     */
+    private void closeQuietly (SocketChannel chan)
+    {
+	try
+	{
+	    chan.close ();
+	}
+	catch (IOException ex)
+	{
+	    // ignore it
+	    if (DEBUG)
+	    {
+		myLogger.error (this + " had trouble closing " + chan, ex);
+	    }
+	}
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private instance classes
+
+    /**
+     * An event loop thread, along with its selector.
+     */
+    private class EventLoop
+	extends Thread
+    {
+	/** non-null; the selector for this loop */
+	private Selector mySelector;
+
+	/** non-null; list of <code>Runnable</code>s to run on this loop's
+	 * thread at the next opportunity */
+	private ArrayList myTasks;
+
+	/** non-null; list of {@link Connection}s whose responses are to be
+	 * handed off to blocking threads once their keys are fully
+	 * cancelled */
+	private ArrayList myHandoffs;
+
+	/** null-ok; the key for the server channel, if this loop has ever
+	 * accepted */
+	private SelectionKey myAcceptKey;
+
+	/** the number of handed-off responses which haven't yet finished
+	 * (see {@link Connection#startHandoff}) */
+	private int myHandoffCount;
+
+	/** true if this loop should exit once it has no connections */
+	private boolean myShutdown;
+
+	/** the time of the last timeout check */
+	private long myLastSweep;
+
+	/**
+	 * Construct an instance. It is a daemon thread and immediately
+	 * starts running.
+	 *
+	 * @param index the index of this loop, for naming purposes
+	 */
+	public EventLoop (int index)
+	{
+	    super (NioEngine.this + ": loop " + index);
+
+	    try
+	    {
+		mySelector = Selector.open ();
+	    }
+	    catch (IOException ex)
+	    {
+		throw new EmbeddedException ("Couldn't open selector", ex);
+	    }
+
+	    myTasks = new ArrayList ();
+	    myHandoffs = new ArrayList ();
+	    myAcceptKey = null;
+	    myHandoffCount = 0;
+	    myShutdown = false;
+	    myLastSweep = System.currentTimeMillis ();
+	    setDaemon (true);
+	    this.start ();
+	}
+
+	/**
+	 * Arrange for the given task to be run on this loop's thread.
+	 *
+	 * @param task non-null; the task to run
+	 */
+	public void addTask (Runnable task)
+	{
+	    synchronized (myTasks)
+	    {
+		myTasks.add (task);
+	    }
+
+	    mySelector.wakeup ();
+	}
+
+	/**
+	 * Start or stop accepting on this loop. This waits for the
+	 * change to take effect.
+	 *
+	 * @param accepting whether or not to accept
+	 */
+	public void setAccepting (final boolean accepting)
+	{
+	    final boolean[] done = new boolean[] { false };
+
+	    addTask (new Runnable ()
+	    {
+		public void run ()
+		{
+		    try
+		    {
+			if (myAcceptKey == null)
+			{
+			    if (accepting)
+			    {
+				myAcceptKey =
+				    myChannel.register (mySelector,
+							SelectionKey.OP_ACCEPT);
+			    }
+			}
+			else
+			{
+			    myAcceptKey.interestOps (
+				accepting ? SelectionKey.OP_ACCEPT : 0);
+			}
+		    }
+		    catch (IOException ex)
+		    {
+			myLogger.error (EventLoop.this + " couldn't " +
+					"register for accepting", ex);
+		    }
+		    finally
+		    {
+			synchronized (done)
+			{
+			    done[0] = true;
+			    done.notifyAll ();
+			}
+		    }
+		}
+	    });
+
+	    synchronized (done)
+	    {
+		while (! done[0])
+		{
+		    try
+		    {
+			done.wait ();
+		    }
+		    catch (InterruptedException ex)
+		    {
+			// ignore it
+		    }
+		}
+	    }
+	}
+
+	/**
+	 * Add a newly-accepted connection to this loop.
+	 *
+	 * @param chan non-null; the (non-blocking) channel for the
+	 * connection
+	 */
+	public void addConnection (final SocketChannel chan)
+	{
+	    addTask (new Runnable ()
+	    {
+		public void run ()
+		{
+		    try
+		    {
+			Connection conn = new Connection (chan);
+			conn.myKey =
+			    chan.register (mySelector,
+					   SelectionKey.OP_READ,
+					   conn);
+			myMetrics.connectionOpened ();
+		    }
+		    catch (IOException ex)
+		    {
+			myLogger.error (EventLoop.this + " couldn't " +
+					"register connection", ex);
+			closeQuietly (chan);
+		    }
+		}
+	    });
+	}
+
+	/**
+	 * Ask this loop to exit once it has no more connections.
+	 */
+	public void shutdown ()
+	{
+	    addTask (new Runnable ()
+	    {
+		public void run ()
+		{
+		    myShutdown = true;
+		    if (myAcceptKey != null)
+		    {
+			myAcceptKey.cancel ();
+			myAcceptKey = null;
+		    }
+		}
+	    });
+	}
+
+	/**
+	 * Run the loop.
+	 */
+	public void run ()
+	{
+	    if (DEBUG)
+	    {
+		myLogger.debug (this + " now running");
+	    }
+
+	    try
+	    {
+		for (;;)
+		{
+		    runTasks ();
+
+		    if (myShutdown && (myHandoffCount == 0)
+			&& mySelector.keys ().isEmpty ())
+		    {
+			break;
+		    }
+
+		    try
+		    {
+			loopOnce ();
+		    }
+		    catch (Exception ex)
+		    {
+			myLogger.error (this +
+					": Exception made it to top-level",
+					ex);
+		    }
+		}
+	    }
+	    finally
+	    {
+		try
+		{
+		    mySelector.close ();
+		}
+		catch (IOException ex)
+		{
+		    // ignore it
+		}
+
+		if (DEBUG)
+		{
+		    myLogger.debug (this + " now terminated");
+		}
+	    }
+	}
+
+	/**
+	 * Run all pending tasks.
+	 */
+	private void runTasks ()
+	{
+	    Object[] tasks;
+
+	    synchronized (myTasks)
+	    {
+		if (myTasks.isEmpty ())
+		{
+		    return;
+		}
+
+		tasks = myTasks.toArray ();
+		myTasks.clear ();
+	    }
+
+	    for (int i = 0; i < tasks.length; i++)
+	    {
+		try
+		{
+		    ((Runnable) tasks[i]).run ();
+		}
+		catch (RuntimeException ex)
+		{
+		    myLogger.error (this + ": Exception in task", ex);
+		}
+	    }
+	}
+
+	/**
+	 * Do one round of selecting and processing.
+	 */
+	private void loopOnce ()
+	    throws IOException
+	{
+	    mySelector.select (SELECT_TIMEOUT_MSEC);
+
+	    Iterator i = mySelector.selectedKeys ().iterator ();
+	    while (i.hasNext ())
+	    {
+		SelectionKey key = (SelectionKey) i.next ();
+		i.remove ();
+
+		if (! key.isValid ())
+		{
+		    continue;
+		}
+
+		if (key == myAcceptKey)
+		{
+		    acceptAll ();
+		    continue;
+		}
+
+		Connection conn = (Connection) key.attachment ();
+
+		try
+		{
+		    if (key.isReadable ())
+		    {
+			conn.doRead ();
+		    }
+		    else if (key.isWritable ())
+		    {
+			conn.doWrite ();
+		    }
+		}
+		catch (IOException ex)
+		{
+		    if (DEBUG)
+		    {
+			myLogger.error (this + " got exception on " +
+					conn.myChannel, ex);
+		    }
+		    conn.close ();
+		}
+		catch (RuntimeException ex)
+		{
+		    myLogger.error (this + " got exception on " +
+				    conn.myChannel, ex);
+		    conn.close ();
+		}
+	    }
+
+	    if (! myHandoffs.isEmpty ())
+	    {
+		// the keys of the handed-off connections have been
+		// cancelled, but they aren't actually deregistered
+		// until the next select operation, and a channel can't
+		// be made blocking until it's deregistered
+		mySelector.selectNow ();
+		for (int j = 0; j < myHandoffs.size (); j++)
+		{
+		    ((Connection) myHandoffs.get (j)).startHandoff ();
+		}
+		myHandoffs.clear ();
+	    }
+
+	    long now = System.currentTimeMillis ();
+	    if ((now - myLastSweep) >= SELECT_TIMEOUT_MSEC)
+	    {
+		sweepTimeouts (now);
+		myLastSweep = now;
+	    }
+	}
+
+	/**
+	 * Accept all pending connections.
+	 */
+	private void acceptAll ()
+	{
+	    for (;;)
+	    {
+		SocketChannel chan;
+
+		try
+		{
+		    chan = myChannel.accept ();
+		}
+		catch (IOException ex)
+		{
+		    myLogger.error (this + " got exception accepting " +
+				    "connection", ex);
+		    return;
+		}
+
+		if (chan == null)
+		{
+		    return;
+		}
+
+		if (DEBUG)
+		{
+		    myLogger.debug (this + " accepted connection " + chan);
+		}
+
+		dispatch (chan);
+	    }
+	}
+
+	/**
+	 * Time out connections which have been sitting around for too
+	 * long.
+	 *
+	 * @param now the current time
+	 */
+	private void sweepTimeouts (long now)
+	{
+	    Iterator i = mySelector.keys ().iterator ();
+	    while (i.hasNext ())
+	    {
+		SelectionKey key = (SelectionKey) i.next ();
+		Object att = key.attachment ();
+
+		if (! (key.isValid () && (att instanceof Connection)))
+		{
+		    continue;
+		}
+
+		Connection conn = (Connection) att;
+		long idle = now - conn.myLastActive;
+
+		if (conn.isBetweenRequests ())
+		{
+		    if (idle >= myServer.getKeepAliveTimeout ())
+		    {
+			// the normal way for a persistent connection to end
+			conn.close ();
+		    }
+		    continue;
+		}
+
+		if (idle < READ_TIMEOUT_MSEC)
+		{
+		    continue;
+		}
+
+		if (conn.myOutput == null)
+		{
+		    // see rfc2616 sec 10.4.9
+		    conn.respond (null, "1.1", HttpRequest.REQUEST_GET,
+				  TinyWebServer.makeErrorDocument (
+				      408, "Request Timed Out"),
+				  false);
+		}
+		else
+		{
+		    // the client isn't reading the response
+		    conn.close ();
+		}
+	    }
+	}
+
+	/**
+	 * Per-connection state.
+	 */
+	private class Connection
+	{
+	    /** non-null; the channel for the connection */
+	    public final SocketChannel myChannel;
+
+	    /** null-ok; the key for the connection */
+	    public SelectionKey myKey;
+
+	    /** non-null; buffer of bytes read */
+	    private byte[] myInput;
+
+	    /** the number of valid bytes in {@link #myInput} */
+	    private int myInputLen;
+
+	    /** null-ok; the response being written, if any; if there is
+	     * a file or content buffer being transferred, this is just the
+	     * headers */
+	    public ByteBuffer myOutput;
+
+	    /** null-ok; the content being written directly out of the
+	     * document's own buffer, if any */
+	    private ByteBuffer myContent;
+
+	    /** null-ok; the file whose content is being transferred, if
+	     * any */
+	    private FileChannel myFile;
+
+	    /** the position in {@link #myFile} to transfer from next */
+	    private long myFilePosition;
+
+	    /** the number of bytes of {@link #myFile} left to transfer */
+	    private long myFileLeft;
+
+	    /** the last time there was any activity on this connection */
+	    public long myLastActive;
+
+	    /** the number of requests that have been read on this
+	     * connection */
+	    private int myRequestCount;
+
+	    /** the number of bytes of input taken up by the request
+	     * currently being responded to */
+	    private int myConsumed;
+
+	    /** whether the connection is to be kept open after the
+	     * current response */
+	    private boolean myKeepAlive;
+
+	    /** null-ok; the HTTP version of the response to hand off to
+	     * a blocking thread, if any */
+	    private String myHandoffVersion;
+
+	    /** null-ok; the request of the response to hand off, if it
+	     * could be parsed */
+	    private HttpRequest myHandoffRequest;
+
+	    /** the request method of the response to hand off */
+	    private int myHandoffMethod;
+
+	    /** null-ok; the document of the response to hand off */
+	    private Document myHandoffDoc;
+
+	    /** whether the connection is to be kept open after the
+	     * response to hand off */
+	    private boolean myHandoffKeepAlive;
+
+	    /** when (per <code>System.nanoTime()</code>) the first byte
+	     * of the current request arrived */
+	    private long myRequestStart;
+
+	    /** the time (nsec) taken to read the headers of the current
+	     * request, or <code>-1</code> if not applicable */
+	    private long myParseNanos;
+
+	    /** the time (nsec) taken by the handler for the current
+	     * request, or <code>-1</code> if not applicable */
+	    private long myHandlerNanos;
+
+	    /** null-ok; the route of the current request, if any */
+	    private String myRoute;
+
+	    /** the result code of the response being written */
+	    private int myResultCode;
+
+	    /** when (per <code>System.nanoTime()</code>) the response
+	     * being written was started */
+	    private long myWriteStart;
+
+	    /** null-ok; the request the response being written is for,
+	     * if it could be parsed */
+	    private HttpRequest myLogRequest;
+
+	    /** null-ok; the document of the response being written, which
+	     * is to be logged once it's done; <code>null</code> if there
+	     * is nothing to log */
+	    private Document myLogDoc;
+
+	    /** the number of bytes of the response being written that
+	     * come after the headers */
+	    private long myLogBytes;
+
+	    /** whether this connection has been closed */
+	    private boolean myClosed;
+
+	    /**
+	     * Construct an instance.
+	     *
+	     * @param chan non-null; the channel for the connection
+	     */
+	    public Connection (SocketChannel chan)
+	    {
+		myChannel = chan;
+		myKey = null;
+		myInput = new byte[INITIAL_BUF_SIZE];
+		myInputLen = 0;
+		myOutput = null;
+		myContent = null;
+		myFile = null;
+		myFilePosition = 0;
+		myFileLeft = 0;
+		myLastActive = System.currentTimeMillis ();
+		myRequestCount = 0;
+		myConsumed = 0;
+		myKeepAlive = false;
+		myHandoffVersion = null;
+		myHandoffRequest = null;
+		myHandoffMethod = HttpRequest.REQUEST_ERROR;
+		myHandoffDoc = null;
+		myHandoffKeepAlive = false;
+		myRequestStart = 0;
+		myParseNanos = -1;
+		myHandlerNanos = -1;
+		myRoute = null;
+		myResultCode = 0;
+		myWriteStart = 0;
+		myLogRequest = null;
+		myLogDoc = null;
+		myLogBytes = 0;
+		myClosed = false;
+	    }
+
+	    /**
+	     * Read what's available on the channel, and respond if
+	     * that completes a request.
+	     */
+	    public void doRead ()
+		throws IOException
+	    {
+		if (myInputLen == myInput.length)
+		{
+		    // gotta grow the buffer
+		    byte[] newBuf = new byte[myInput.length * 2];
+		    System.arraycopy (myInput, 0, newBuf, 0, myInputLen);
+		    myInput = newBuf;
+		}
+
+		ByteBuffer bb =
+		    ByteBuffer.wrap (myInput, myInputLen,
+				     myInput.length - myInputLen);
+		int amt = myChannel.read (bb);
+
+		if (amt == -1)
+		{
+		    // the client gave up on us
+		    close ();
+		    return;
+		}
+
+		if (myInputLen == 0)
+		{
+		    // the start of a new request
+		    myRequestStart = System.nanoTime ();
+		}
+
+		myInputLen += amt;
+		myMetrics.addBytesIn (amt);
+		myLastActive = System.currentTimeMillis ();
+		processInput ();
+	    }
+
+	    /**
+	     * Write as much of the response as will go without blocking.
+	     * If it's all been written, then either close the connection or
+	     * get ready for the next request.
+	     */
+	    public void doWrite ()
+		throws IOException
+	    {
+		myLastActive = System.currentTimeMillis ();
+
+		if (myOutput.hasRemaining ())
+		{
+		    myMetrics.addBytesOut (myChannel.write (myOutput));
+		    if (myOutput.hasRemaining ())
+		    {
+			return;
+		    }
+		}
+
+		if (myContent != null)
+		{
+		    myMetrics.addBytesOut (myChannel.write (myContent));
+		    if (myContent.hasRemaining ())
+		    {
+			return;
+		    }
+		    myContent = null;
+		}
+
+		while (myFileLeft > 0)
+		{
+		    long amt = 
+			myFile.transferTo (myFilePosition, myFileLeft, 
+					   myChannel);
+
+		    if (amt > 0)
+		    {
+			myFilePosition += amt;
+			myFileLeft -= amt;
+			myMetrics.addBytesOut (amt);
+			continue;
+		    }
+
+		    if (myFilePosition >= myFile.size ())
+		    {
+			// the file must have shrunk out from under us;
+			// there's no way to finish the response properly
+			close ();
+		    }
+
+		    // otherwise, the socket can't take any more for now
+		    return;
+		}
+
+		recordResponse ();
+		finishResponse ();
+	    }
+
+	    /**
+	     * Return whether this connection is idle, waiting for a
+	     * subsequent request.
+	     *
+	     * @return <code>true</code> if this connection is between
+	     * requests
+	     */
+	    public boolean isBetweenRequests ()
+	    {
+		return (myRequestCount != 0) && (myInputLen == 0)
+		    && (myOutput == null);
+	    }
+
+	    /**
+	     * Clean up after a response has been completely written, and
+	     * either close the connection or get ready for the next
+	     * request.
+	     */
+	    private void finishResponse ()
+	    {
+		closeFile ();
+
+		if (! myKeepAlive)
+		{
+		    close ();
+		    return;
+		}
+
+		// drop the request that was just responded to, keeping
+		// anything after it (that is, pipelined requests)
+		myInputLen -= myConsumed;
+		System.arraycopy (myInput, myConsumed, myInput, 0, myInputLen);
+		myConsumed = 0;
+		myOutput = null;
+		myKeepAlive = false;
+		myKey.interestOps (SelectionKey.OP_READ);
+
+		if (myInputLen != 0)
+		{
+		    // the next request is already here
+		    myRequestStart = System.nanoTime ();
+
+		    // process the next request via a task rather than
+		    // directly, so that a long run of pipelined requests
+		    // doesn't turn into deep recursion
+		    addTask (new Runnable ()
+		    {
+			public void run ()
+			{
+			    if (myKey.isValid ())
+			    {
+				processInput ();
+			    }
+			}
+		    });
+		}
+	    }
+
+	    /**
+	     * Record the response that was just written in the metrics and
+	     * the access log, and forget about the request it was for.
+	     */
+	    private void recordResponse ()
+	    {
+		myMetrics.recordResponse (myRoute, myResultCode, myParseNanos,
+					  myHandlerNanos,
+					  System.nanoTime () - myWriteStart);
+		myRoute = null;
+		myParseNanos = -1;
+		myHandlerNanos = -1;
+		logResponse (myLogBytes);
+	    }
+
+	    /**
+	     * Log the response being written, if it hasn't been logged
+	     * already.
+	     *
+	     * @param bytes the number of bytes sent after the headers, or
+	     * <code>-1</code> if the response couldn't be completely
+	     * written
+	     */
+	    private void logResponse (long bytes)
+	    {
+		if (myLogDoc != null)
+		{
+		    myServer.logAccess (myChannel.socket (), myLogRequest, 
+					myLogDoc, bytes);
+		    myLogRequest = null;
+		    myLogDoc = null;
+		}
+	    }
+
+	    /**
+	     * Close this connection.
+	     */
+	    public void close ()
+	    {
+		if (myKey != null)
+		{
+		    myKey.cancel ();
+		}
+
+		// a response that was cut short still gets logged
+		logResponse (-1);
+		closeFile ();
+		closeQuietly (myChannel);
+
+		if (! myClosed)
+		{
+		    myClosed = true;
+		    myMetrics.connectionClosed ();
+		}
+	    }
+
+	    /**
+	     * Close the file being transferred, if any.
+	     */
+	    private void closeFile ()
+	    {
+		if (myFile == null)
+		{
+		    return;
+		}
+
+		try
+		{
+		    myFile.close ();
+		}
+		catch (IOException ex)
+		{
+		    // ignore it
+		}
+
+		myFile = null;
+		myFileLeft = 0;
+	    }
+
+	    /**
+	     * Respond with the given document. If the response is small
+	     * enough, it gets rendered into memory and written by the
+	     * event loop, as does the content of a document that can be
+	     * transferred from a file or written out of its own buffer.
+	     * Otherwise, the connection gets handed off to a thread which
+	     * does a blocking write. Either way, the response gets logged
+	     * once it has been written.
+	     *
+	     * @param request null-ok; the request being responded to, if
+	     * it could be parsed
+	     * @param httpVer non-null; the HTTP protocol version
+	     * @param method the request method
+	     * @param doc non-null; the document to respond with
+	     * @param keepAlive whether the connection is to be kept open
+	     * after the response
+	     */
+	    public void respond (HttpRequest request, String httpVer,
+				 int method, Document doc, boolean keepAlive)
+	    {
+		myResultCode = doc.getResultCode ();
+		myWriteStart = System.nanoTime ();
+
+		long len = doc.getContentLength ();
+		boolean content = TinyWebServer.hasContent (method, doc, len);
+		FileChannel file = null;
+		ByteBuffer buf = null;
+
+		if (content && (len > 0))
+		{
+		    buf = doc.getContentBuffer ();
+
+		    if (buf == null)
+		    {
+			try
+			{
+			    file = doc.openTransferChannel ();
+			}
+			catch (IOException ex)
+			{
+			    // the file must have disappeared; go the regular
+			    // route, which will deal with it one way or
+			    // another
+			    file = null;
+			}
+		    }
+		}
+
+		if ((file == null)
+		    && (buf == null)
+		    && content
+		    && ((len == Document.CONTENT_LENGTH_UNKNOWN)
+			|| (len > MAX_BUFFERED_RESPONSE)))
+		{
+		    myHandoffVersion = httpVer;
+		    myHandoffRequest = request;
+		    myHandoffMethod = method;
+		    myHandoffDoc = doc;
+		    myHandoffKeepAlive = keepAlive;
+		    myKey.cancel ();
+		    myHandoffs.add (this);
+		    return;
+		}
+
+		myLogRequest = request;
+		myLogDoc = doc;
+		ByteArrayOutputStream baos =
+		    new ByteArrayOutputStream (
+			((len > 0) && (file == null) && (buf == null))
+			? ((int) len + 1000) : 1000);
+
+		try
+		{
+		    myServer.writeHeaders (httpVer, baos, doc, len, keepAlive);
+
+		    if (buf != null)
+		    {
+			myContent = buf;
+			myLogBytes = buf.remaining ();
+		    }
+		    else if (file != null)
+		    {
+			myFile = file;
+			myFilePosition = doc.getTransferStart ();
+			myFileLeft = len;
+			myLogBytes = len;
+		    }
+		    else
+		    {
+			myLogBytes = 
+			    myServer.writeContent (httpVer, baos, null, method,
+						   doc, len);
+		    }
+		}
+		catch (Exception ex)
+		{
+		    myLogger.error (EventLoop.this + " got exception " +
+				    "during response to " + myChannel, ex);
+		    if (file != null)
+		    {
+			myFile = file;
+		    }
+		    close ();
+		    return;
+		}
+
+		myOutput = ByteBuffer.wrap (baos.toByteArray ());
+		myKeepAlive = keepAlive;
+		myKey.interestOps (SelectionKey.OP_WRITE);
+
+		try
+		{
+		    // most of the time, it'll all go out right away
+		    doWrite ();
+		}
+		catch (IOException ex)
+		{
+		    if (DEBUG)
+		    {
+			myLogger.error (EventLoop.this + " got exception " +
+					"on " + myChannel, ex);
+		    }
+		    close ();
+		}
+	    }
+
+	    /**
+	     * Hand a response off to a thread from the handoff pool, which
+	     * writes it with blocking I/O. This must only be called once
+	     * the key has been deregistered. Once the response has been
+	     * written, the connection comes back to this loop if it is to
+	     * be kept open. If the pool's threads are all busy, the
+	     * connection gets answered with a <code>503</code> instead.
+	     */
+	    public void startHandoff ()
+	    {
+		final String httpVer = myHandoffVersion;
+		final HttpRequest request = myHandoffRequest;
+		final int method = myHandoffMethod;
+		final Document doc = myHandoffDoc;
+		final boolean keepAlive = myHandoffKeepAlive;
+		myHandoffVersion = null;
+		myHandoffRequest = null;
+		myHandoffDoc = null;
+		myHandoffKeepAlive = false;
+
+		try
+		{
+		    myChannel.configureBlocking (true);
+		}
+		catch (IOException ex)
+		{
+		    myLogger.error (EventLoop.this + " couldn't make " +
+				    "connection blocking", ex);
+		    myServer.logAccess (myChannel.socket (), request, doc, -1);
+		    close ();
+		    return;
+		}
+
+		Runnable r = new Runnable ()
+		{
+		    public void run ()
+		    {
+			boolean kept = false;
+
+			try
+			{
+			    kept = myServer.httpResponse (httpVer,
+							  myChannel.socket (),
+							  request,
+							  method,
+							  doc,
+							  keepAlive);
+			    recordResponse ();
+			    if (kept)
+			    {
+				myChannel.configureBlocking (false);
+			    }
+			}
+			catch (IOException ex)
+			{
+			    kept = false;
+			}
+			finally
+			{
+			    final boolean resume = kept;
+			    addTask (new Runnable ()
+			    {
+				public void run ()
+				{
+				    myHandoffCount--;
+				    if (resume)
+				    {
+					resumeAfterHandoff ();
+				    }
+				    else
+				    {
+					close ();
+				    }
+				}
+			    });
+			}
+		    }
+		};
+
+		try
+		{
+		    myHandoffPool.execute (r);
+		}
+		catch (RejectedExecutionException ex)
+		{
+		    rejectHandoff (request, httpVer, method);
+		    return;
+		}
+
+		myHandoffCount++;
+	    }
+
+	    /**
+	     * Answer a request whose response couldn't be handed off with
+	     * an indication that the server is overloaded, and close the
+	     * connection once that has been written. This must be called
+	     * on this loop's thread, with the key deregistered.
+	     *
+	     * @param request null-ok; the request being responded to, if
+	     * it could be parsed
+	     * @param httpVer non-null; the HTTP protocol version
+	     * @param method the request method
+	     */
+	    private void rejectHandoff (HttpRequest request, String httpVer, 
+					int method)
+	    {
+		if (DEBUG)
+		{
+		    myLogger.debug (EventLoop.this + " overloaded; " +
+				    "rejecting " + myChannel);
+		}
+
+		try
+		{
+		    myChannel.configureBlocking (false);
+		    myKey = myChannel.register (mySelector, 0, this);
+		}
+		catch (IOException ex)
+		{
+		    myLogger.error (EventLoop.this + " couldn't " +
+				    "reregister connection", ex);
+		    close ();
+		    return;
+		}
+
+		respond (request, httpVer, method, 
+			 TinyWebServer.makeUnavailableDocument (), false);
+	    }
+
+	    /**
+	     * Take back a connection whose handed-off response was
+	     * completely written and which is to be kept open, and get it
+	     * ready for the next request. This must be called on this
+	     * loop's thread, with the channel back in non-blocking mode.
+	     */
+	    private void resumeAfterHandoff ()
+	    {
+		try
+		{
+		    myKey = myChannel.register (mySelector,
+						SelectionKey.OP_READ,
+						this);
+		}
+		catch (IOException ex)
+		{
+		    myLogger.error (EventLoop.this + " couldn't " +
+				    "reregister connection", ex);
+		    close ();
+		    return;
+		}
+
+		myLastActive = System.currentTimeMillis ();
+		myKeepAlive = true;
+		finishResponse ();
+	    }
+
+	    /**
+	     * Process the input read so far, responding if it amounts to
+	     * a complete request.
+	     */
+	    private void processInput ()
+	    {
+		int headerEnd = 
+		    HttpRequest.findHeaderEnd (myInput, 0, myInputLen);
+
+		if (headerEnd == -1)
+		{
+		    if (myInputLen >= MAX_REQUEST_SIZE)
+		    {
+			respondTooLarge ("1.1", null);
+		    }
+		    return;
+		}
+
+		// stop paying attention to input while the request gets
+		// processed
+		myKey.interestOps (0);
+
+		HttpRequest request = parse (headerEnd);
+		myConsumed = headerEnd;
+
+		if (request.getErrorCode () == 0)
+		{
+		    String cl = request.getHeader ("content-length");
+		    long total = headerEnd;
+		    if (cl != null)
+		    {
+			total += Long.parseLong (cl);
+		    }
+
+		    if (total > MAX_REQUEST_SIZE)
+		    {
+			respondTooLarge (request.getHttpVersion (), request);
+			return;
+		    }
+
+		    if (total > myInputLen)
+		    {
+			// the entity is incomplete; wait for more
+			myKey.interestOps (SelectionKey.OP_READ);
+			return;
+		    }
+
+		    myConsumed = (int) total;
+		}
+
+		myRequestCount++;
+		long parsed = System.nanoTime ();
+		Document doc = myServer.documentFor (request, myCompressPool);
+		myParseNanos = parsed - myRequestStart;
+		myHandlerNanos = System.nanoTime () - parsed;
+		myRoute = request.getRoute ();
+		respond (request,
+			 request.getHttpVersion (),
+			 request.getRequestMethod (),
+			 doc,
+			 myServer.shouldKeepAlive (request, doc, 
+						   myRequestCount));
+	    }
+
+	    /**
+	     * Respond to a request that is too large to handle, and close
+	     * the connection afterwards.
+	     *
+	     * @param httpVer non-null; the HTTP protocol version
+	     * @param request null-ok; the request, if it could be parsed
+	     */
+	    private void respondTooLarge (String httpVer, HttpRequest request)
+	    {
+		Document doc = TinyWebServer.makeErrorDocument (
+		    413, "Request Entity Too Large");
+		respond (request, httpVer, HttpRequest.REQUEST_GET, doc, false);
+	    }
+
+	    /**
+	     * Parse a request out of the input, with the headers ending at
+	     * the given offset. The request's entity stream (if any) reads
+	     * the input that follows the headers.
+	     *
+	     * @param headerEnd the offset just past the end of the headers
+	     * @return non-null; the request
+	     */
+	    private HttpRequest parse (int headerEnd)
+	    {
+		return HttpRequest.parse (
+		    myInput, 0, headerEnd,
+		    new ByteArrayInputStream (myInput, headerEnd,
+					      myInputLen - headerEnd));
+	    }
+	}
+    }
+}
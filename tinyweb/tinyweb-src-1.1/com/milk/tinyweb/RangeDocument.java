@@ -0,0 +1,557 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb;
+
+import com.milk.util.EmbeddedException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Document which consists of one or more byte ranges of another
+ * document, as a <code>206 Partial Content</code> response to a request
+ * with a <code>Range</code> header (see rfc2616 sec 14.35). A single range
+ * is sent as-is with a <code>Content-Range</code> header, and multiple
+ * ranges are sent as a <code>multipart/byteranges</code> entity (see
+ * rfc2616 sec 19.2). Use {@link #forRequest} to make instances.
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+final class RangeDocument
+extends Document
+{
+    /** the maximum number of ranges to honor in a single request; any
+     * more than this and the <code>Range</code> header gets ignored */
+    static private final int MAX_RANGES = 16;
+
+    /** non-null; the document the ranges are of */
+    private final Document myTarget;
+
+    /** the full content length of the target */
+    private final long myTargetLength;
+
+    /** non-null; the offsets of the starts of the ranges */
+    private final long[] myOffsets;
+
+    /** non-null; the byte counts of the ranges */
+    private final long[] myCounts;
+
+    /** null-ok; the encoded headers preceding each part, if this is a
+     * multi-range instance */
+    private final byte[][] myPartHeaders;
+
+    /** null-ok; the encoded final boundary, if this is a multi-range
+     * instance */
+    private final byte[] myTrailer;
+
+    /** the content length of this instance */
+    private final long myLength;
+
+
+
+    // ------------------------------------------------------------------------
+    // constructors
+
+    /**
+     * Construct an instance.
+     *
+     * @param contentType non-null; the MIME content type of the document
+     * @param extraHeaders null-ok; map of additional response headers
+     * @param target non-null; the document the ranges are of
+     * @param targetLength the full content length of the target
+     * @param offsets non-null; the offsets of the starts of the ranges
+     * @param counts non-null; the byte counts of the ranges
+     * @param partHeaders null-ok; the encoded headers preceding each
+     * part, if there are multiple ranges
+     * @param trailer null-ok; the encoded final boundary, if there are
+     * multiple ranges
+     */
+    private RangeDocument (String contentType, Map extraHeaders,
+			   Document target, long targetLength,
+			   long[] offsets, long[] counts,
+			   byte[][] partHeaders, byte[] trailer)
+    {
+	super (contentType, target.getLastModified (), 206, "Partial Content",
+	       extraHeaders);
+
+	myTarget = target;
+	myTargetLength = targetLength;
+	myOffsets = offsets;
+	myCounts = counts;
+	myPartHeaders = partHeaders;
+	myTrailer = trailer;
+
+	long len = 0;
+	for (int i = 0; i < counts.length; i++)
+	{
+	    len += counts[i];
+	    if (partHeaders != null)
+	    {
+		len += partHeaders[i].length;
+	    }
+	}
+
+	if (trailer != null)
+	{
+	    len += trailer.length;
+	}
+
+	myLength = len;
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // public instance methods
+
+    // superclass's javadoc suffices
+    public long getContentLength ()
+    {
+	return myLength;
+    }
+
+    /**
+     * Get the entity tag. This is the tag of the target document, since
+     * it is still the target document that this instance is a
+     * representation of.
+     *
+     * @return null-ok; the entity tag for the target document
+     */
+    public String getETag ()
+    {
+	return myTarget.getETag ();
+    }
+
+    // superclass's javadoc suffices
+    public void writeBytes (OutputStream stream, long contentLength)
+	throws IOException
+    {
+	for (int i = 0; i < myOffsets.length; i++)
+	{
+	    if (myPartHeaders != null)
+	    {
+		stream.write (myPartHeaders[i]);
+	    }
+
+	    myTarget.writeRange (stream, myTargetLength,
+				 myOffsets[i], myCounts[i]);
+	}
+
+	if (myTrailer != null)
+	{
+	    stream.write (myTrailer);
+	}
+    }
+
+    // superclass's javadoc suffices
+    public void writeBytes (WritableByteChannel channel, long contentLength)
+	throws IOException
+    {
+	for (int i = 0; i < myOffsets.length; i++)
+	{
+	    if (myPartHeaders != null)
+	    {
+		writeFully (channel, myPartHeaders[i]);
+	    }
+
+	    myTarget.writeRange (channel, myTargetLength,
+				 myOffsets[i], myCounts[i]);
+	}
+
+	if (myTrailer != null)
+	{
+	    writeFully (channel, myTrailer);
+	}
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // package instance methods
+
+    /**
+     * Open a channel for transferring the bytes of this instance
+     * directly. This is only possible for single-range instances whose
+     * target can itself be transferred directly.
+     *
+     * @return null-ok; the channel, or <code>null</code> if this instance
+     * can't be transferred directly
+     */
+    FileChannel openTransferChannel ()
+	throws IOException
+    {
+	if (myPartHeaders != null)
+	{
+	    return null;
+	}
+
+	return myTarget.openTransferChannel ();
+    }
+
+    // superclass's javadoc suffices
+    long getTransferStart ()
+    {
+	return myTarget.getTransferStart () + myOffsets[0];
+    }
+
+    /**
+     * Get a buffer holding the bytes of this instance. This is only
+     * possible for single-range instances whose target itself has a
+     * buffer.
+     *
+     * @return null-ok; the buffer, or <code>null</code> if this instance
+     * doesn't have one
+     */
+    ByteBuffer getContentBuffer ()
+    {
+	if (myPartHeaders != null)
+	{
+	    return null;
+	}
+
+	ByteBuffer buf = myTarget.getContentBuffer ();
+
+	if (buf == null)
+	{
+	    return null;
+	}
+
+	int start = buf.position () + (int) myOffsets[0];
+	buf.limit (start + (int) myCounts[0]);
+	buf.position (start);
+	return buf;
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // package static methods
+
+    /**
+     * Get the document to respond with, given the <code>Range</code> and
+     * <code>If-Range</code> headers of the given request and the full
+     * document it asks for. If the request doesn't ask for a range, or if
+     * the range can't be honored (for example, because the document is of
+     * unknown length, or the range is malformed, or the
+     * <code>If-Range</code> condition fails), then this just returns the
+     * given document. If none of the requested ranges overlap the
+     * document, then this returns a <code>416</code> document. Otherwise,
+     * it returns an instance of this class.
+     *
+     * @param request non-null; the request
+     * @param doc non-null; the full document
+     * @return non-null; the document to respond with
+     */
+    static Document forRequest (HttpRequest request, Document doc)
+    {
+	String range = request.getHeader ("range");
+
+	if ((range == null)
+	    || (request.getRequestMethod () != HttpRequest.REQUEST_GET)
+	    || (doc.getResultCode () != 200))
+	{
+	    return doc;
+	}
+
+	long len = doc.getContentLength ();
+
+	if (len < 0)
+	{
+	    return doc;
+	}
+
+	String ifRange = request.getHeader ("if-range");
+
+	if ((ifRange != null) && !ifRangeMatches (ifRange, doc))
+	{
+	    // the client's copy is stale, so it gets the whole thing
+	    return doc;
+	}
+
+	ArrayList ranges = parseRanges (range, len);
+
+	if (ranges == null)
+	{
+	    // malformed or excessive; rfc2616 sec 14.35.1 says to ignore it
+	    return doc;
+	}
+
+	int count = ranges.size ();
+
+	if (count == 0)
+	{
+	    TreeMap headers = new TreeMap ();
+	    headers.put ("Content-Range", "bytes */" + len);
+	    return new StaticDocument (doc.getLastModified (), 416,
+				       "Requested Range Not Satisfiable",
+				       headers);
+	}
+
+	long[] offsets = new long[count];
+	long[] counts = new long[count];
+
+	for (int i = 0; i < count; i++)
+	{
+	    long[] one = (long[]) ranges.get (i);
+	    offsets[i] = one[0];
+	    counts[i] = one[1] - one[0] + 1;
+	}
+
+	TreeMap headers = new TreeMap ();
+	Map eh = doc.getExtraHeaders ();
+	if (eh != null)
+	{
+	    headers.putAll (eh);
+	}
+
+	if (count == 1)
+	{
+	    headers.put ("Content-Range",
+			 contentRange (offsets[0], counts[0], len));
+	    return new RangeDocument (doc.getContentType (), headers,
+				      doc, len, offsets, counts, null, null);
+	}
+
+	String boundary =
+	    "TinyWebBoundary" +
+	    Long.toHexString (Double.doubleToLongBits (Math.random ()));
+	byte[][] partHeaders = new byte[count][];
+
+	for (int i = 0; i < count; i++)
+	{
+	    partHeaders[i] =
+		encode (((i == 0) ? "--" : "\r\n--") + boundary + "\r\n" +
+			"Content-Type: " + doc.getContentType () + "\r\n" +
+			"Content-Range: " +
+			contentRange (offsets[i], counts[i], len) + "\r\n" +
+			"\r\n");
+	}
+
+	return new RangeDocument ("multipart/byteranges; boundary=" + boundary,
+				  headers, doc, len, offsets, counts,
+				  partHeaders,
+				  encode ("\r\n--" + boundary + "--\r\n"));
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private static methods
+
+    /**
+     * Parse the given <code>Range</code> header value against a document
+     * of the given length. The result is a list of <code>long[]</code>s,
+     * each of which contains the (inclusive) first and last byte
+     * positions of a satisfiable range, in the order they were
+     * requested. Unsatisfiable ranges are left out, and so the result may
+     * be empty. If the value is malformed, or names too many ranges, this
+     * returns <code>null</code>.
+     *
+     * @param value non-null; the header value
+     * @param len the length of the document
+     * @return null-ok; the list of satisfiable ranges, or
+     * <code>null</code> if the value is malformed
+     */
+    static private ArrayList parseRanges (String value, long len)
+    {
+	value = value.trim ();
+
+	if (! value.regionMatches (true, 0, "bytes=", 0, 6))
+	{
+	    return null;
+	}
+
+	ArrayList result = new ArrayList ();
+	int specs = 0;
+	int at = 6;
+	int valueLen = value.length ();
+
+	while (at < valueLen)
+	{
+	    int commaAt = value.indexOf (',', at);
+	    if (commaAt == -1)
+	    {
+		commaAt = valueLen;
+	    }
+
+	    String one = value.substring (at, commaAt).trim ();
+	    at = commaAt + 1;
+
+	    if (one.length () == 0)
+	    {
+		// rfc2616 sec 2.1 allows empty list elements
+		continue;
+	    }
+
+	    specs++;
+	    if (specs > MAX_RANGES)
+	    {
+		return null;
+	    }
+
+	    int dashAt = one.indexOf ('-');
+	    if (dashAt == -1)
+	    {
+		return null;
+	    }
+
+	    long first;
+	    long last;
+
+	    try
+	    {
+		String firstStr = one.substring (0, dashAt).trim ();
+		String lastStr = one.substring (dashAt + 1).trim ();
+
+		if (firstStr.length () == 0)
+		{
+		    // suffix range: the last N bytes
+		    long suffix = Long.parseLong (lastStr);
+		    if (suffix < 0)
+		    {
+			return null;
+		    }
+		    first = (suffix >= len) ? 0 : (len - suffix);
+		    last = len - 1;
+		    if (suffix == 0)
+		    {
+			// unsatisfiable
+			continue;
+		    }
+		}
+		else
+		{
+		    first = Long.parseLong (firstStr);
+		    last = (lastStr.length () == 0) ?
+			(len - 1) : Long.parseLong (lastStr);
+		    if ((first < 0) || (last < first))
+		    {
+			return null;
+		    }
+		    if (last >= len)
+		    {
+			last = len - 1;
+		    }
+		}
+	    }
+	    catch (NumberFormatException ex)
+	    {
+		return null;
+	    }
+
+	    if (first < len)
+	    {
+		result.add (new long[] { first, last });
+	    }
+	}
+
+	if (specs == 0)
+	{
+	    return null;
+	}
+
+	return result;
+    }
+
+    /**
+     * Return whether the given <code>If-Range</code> header value
+     * matches the given document, which is to say whether the client's
+     * partial copy is still current (see rfc2616 sec 14.27). The value is
+     * either a strong entity tag or a date.
+     *
+     * @param value non-null; the header value
+     * @param doc non-null; the document
+     * @return <code>true</code> if the value matches the document
+     */
+    static private boolean ifRangeMatches (String value, Document doc)
+    {
+	value = value.trim ();
+
+	if (value.startsWith ("\"") || value.startsWith ("W/"))
+	{
+	    // weak tags never match here, and that falls out naturally
+	    return value.equals (doc.getETag ());
+	}
+
+	long date = TinyWebServer.parseHttpDate (value);
+
+	// http dates only have a resolution of a second
+	return (date != -1) &&
+	    ((date / 1000) == (doc.getLastModified () / 1000));
+    }
+
+    /**
+     * Get the <code>Content-Range</code> header value for the given
+     * range.
+     *
+     * @param offset the offset of the first byte
+     * @param count the number of bytes
+     * @param len the full length of the document
+     * @return non-null; the header value
+     */
+    static private String contentRange (long offset, long count, long len)
+    {
+	return "bytes " + offset + '-' + (offset + count - 1) + '/' + len;
+    }
+
+    /**
+     * Encode the given string as ISO-8859-1 bytes.
+     *
+     * @param s non-null; the string to encode
+     * @return non-null; the encoded form
+     */
+    static private byte[] encode (String s)
+    {
+	try
+	{
+	    return s.getBytes ("ISO-8859-1");
+	}
+	catch (UnsupportedEncodingException ex)
+	{
+	    // shouldn't happen; all VMs are supposed to support
+	    // ISO-8859-1
+	    throw new EmbeddedException ("shouldn't happen", ex);
+	}
+    }
+
+    /**
+     * Write all of the given bytes to the given (blocking) channel.
+     *
+     * @param channel non-null; the channel to write to
+     * @param bytes non-null; the bytes to write
+     */
+    static private void writeFully (WritableByteChannel channel, byte[] bytes)
+	throws IOException
+    {
+	ByteBuffer buf = ByteBuffer.wrap (bytes);
+
+	while (buf.hasRemaining ())
+	{
+	    channel.write (buf);
+	}
+    }
+}
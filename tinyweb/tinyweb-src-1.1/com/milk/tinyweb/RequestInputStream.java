@@ -0,0 +1,318 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffered input stream for reading the requests that arrive on a
+ * (possibly persistent) connection. The request line and headers of each
+ * request get read in bulk into a buffer which is reused for the life
+ * of the connection, and they get parsed right out of that buffer (see
+ * {@link #readRequest}). Whatever gets read past the end of the headers
+ * stays in the buffer, and since the request's entity is read from this
+ * stream as well, the over-read bytes get handed to the entity (or to the
+ * next request, for pipelined requests) before any more are read from the
+ * underlying stream.
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+final public class RequestInputStream
+extends InputStream
+{
+    /** the initial size of the buffer */
+    static private final int INITIAL_BUF_SIZE = 4096;
+
+    /** null-ok; the underlying stream to read from, or <code>null</code>
+     * if this instance has been closed */
+    private InputStream myRawStream;
+
+    /** non-null; the buffer */
+    private byte[] myBuffer;
+
+    /** the offset of the next byte to be read from the buffer */
+    private int myPos;
+
+    /** the offset just past the last valid byte in the buffer */
+    private int myLimit;
+
+    /** the total number of bytes read from the underlying stream */
+    private long myByteCount;
+
+    // ------------------------------------------------------------------------
+    // constructors
+
+    /**
+     * Construct an instance.
+     *
+     * @param rawStream non-null; the raw (presumably network) stream to
+     * get data from
+     */
+    public RequestInputStream (InputStream rawStream)
+    {
+	if (rawStream == null)
+	{
+	    throw new NullPointerException ("rawStream = null");
+	}
+
+	myRawStream = rawStream;
+	myBuffer = new byte[INITIAL_BUF_SIZE];
+	myPos = 0;
+	myLimit = 0;
+	myByteCount = 0;
+    }
+
+    // ------------------------------------------------------------------------
+    // public instance methods
+
+    /**
+     * Read the next request from this stream. The entity of the result
+     * (if any) reads from this stream, and it must be read or closed
+     * before another request is read.
+     *
+     * @return non-null; the request, which may be an errorful one if the
+     * input didn't make sense
+     */
+    public HttpRequest readRequest ()
+	throws IOException
+    {
+	for (;;)
+	{
+	    int start = myPos;
+	    int end = HttpRequest.findHeaderEnd (myBuffer, start, myLimit);
+
+	    if (end != -1)
+	    {
+		myPos = end;
+		return HttpRequest.parse (myBuffer, start, end, this);
+	    }
+
+	    if ((myLimit - myPos) >= HttpRequest.MAX_HEADER_SIZE)
+	    {
+		myPos = myLimit;
+		return new HttpRequest ("1.1", 400, "Bad headers (too long)");
+	    }
+
+	    if (! fill ())
+	    {
+		// end of input; let the parser make sense of what's there
+		myPos = myLimit;
+		return HttpRequest.parse (myBuffer, start, myLimit, this);
+	    }
+	}
+    }
+
+    /**
+     * Get the total number of bytes that have been read from the
+     * underlying stream so far (including any that are still in the
+     * buffer).
+     *
+     * @return the number of bytes read
+     */
+    public long getByteCount ()
+    {
+	return myByteCount;
+    }
+
+    /**
+     * Wait until there is at least one byte available to be read from
+     * this stream, or until the end of input is reached.
+     *
+     * @return <code>true</code> if there is something to read, or
+     * <code>false</code> if the end of input was reached
+     */
+    public boolean awaitInput ()
+	throws IOException
+    {
+	return (myPos < myLimit) || fill ();
+    }
+
+    // superclass's documentation suffices
+    public int available ()
+	throws IOException
+    {
+	if (myRawStream == null)
+	{
+	    throw new IOException ("stream is closed");
+	}
+
+	return (myLimit - myPos) + myRawStream.available ();
+    }
+
+    // superclass's documentation suffices
+    public void close ()
+	throws IOException
+    {
+	if (myRawStream == null)
+	{
+	    return;
+	}
+
+	myRawStream.close ();
+	myRawStream = null;
+    }
+
+    // superclass's documentation suffices
+    public int read ()
+	throws IOException
+    {
+	if ((myPos == myLimit) && !fill ())
+	{
+	    return -1;
+	}
+
+	int result = myBuffer[myPos] & 0xff;
+	myPos++;
+	return result;
+    }
+
+    // superclass's documentation suffices
+    public int read (byte[] b, int off, int len)
+	throws IOException
+    {
+	if (b == null)
+	{
+	    throw new NullPointerException ("b = null");
+	}
+
+	if ((off < 0) || (len < 0) || ((off + len) > b.length))
+	{
+	    throw new IndexOutOfBoundsException ();
+	}
+
+	if (len == 0)
+	{
+	    return 0;
+	}
+
+	if (myPos == myLimit)
+	{
+	    if (myRawStream == null)
+	    {
+		throw new IOException ("stream is closed");
+	    }
+
+	    if (len >= myBuffer.length)
+	    {
+		// no point in copying through the buffer
+		int amt = myRawStream.read (b, off, len);
+		if (amt > 0)
+		{
+		    myByteCount += amt;
+		}
+		return amt;
+	    }
+
+	    if (! fill ())
+	    {
+		return -1;
+	    }
+	}
+
+	int amt = myLimit - myPos;
+	if (amt > len)
+	{
+	    amt = len;
+	}
+
+	System.arraycopy (myBuffer, myPos, b, off, amt);
+	myPos += amt;
+	return amt;
+    }
+
+    // superclass's documentation suffices
+    public long skip (long n)
+	throws IOException
+    {
+	if (myRawStream == null)
+	{
+	    throw new IOException ("stream is closed");
+	}
+
+	if (n <= 0)
+	{
+	    return 0;
+	}
+
+	int buffered = myLimit - myPos;
+	if (buffered == 0)
+	{
+	    long amt = myRawStream.skip (n);
+	    myByteCount += amt;
+	    return amt;
+	}
+
+	if (n > buffered)
+	{
+	    n = buffered;
+	}
+
+	myPos += (int) n;
+	return n;
+    }
+
+    // ------------------------------------------------------------------------
+    // private instance methods
+
+    /**
+     * Read more bytes from the underlying stream into the buffer,
+     * blocking until at least one byte is read. Bytes that haven't yet
+     * been consumed get moved to the start of the buffer, and the buffer
+     * gets grown if it's full.
+     *
+     * @return <code>true</code> if bytes were read, or <code>false</code>
+     * if the end of input was reached
+     */
+    private boolean fill ()
+	throws IOException
+    {
+	if (myRawStream == null)
+	{
+	    throw new IOException ("stream is closed");
+	}
+
+	if (myPos != 0)
+	{
+	    myLimit -= myPos;
+	    System.arraycopy (myBuffer, myPos, myBuffer, 0, myLimit);
+	    myPos = 0;
+	}
+
+	if (myLimit == myBuffer.length)
+	{
+	    byte[] newBuf = new byte[myBuffer.length * 2];
+	    System.arraycopy (myBuffer, 0, newBuf, 0, myLimit);
+	    myBuffer = newBuf;
+	}
+
+	int amt = myRawStream.read (myBuffer, myLimit, 
+				    myBuffer.length - myLimit);
+	if (amt <= 0)
+	{
+	    return false;
+	}
+
+	myLimit += amt;
+	myByteCount += amt;
+	return true;
+    }
+}
@@ -0,0 +1,554 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb;
+
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+/**
+ * Immutable table of the documents and handlers of a server, arranged
+ * as a trie of path components. Instances are never modified; {@link
+ * #withDocument} instead returns a new instance that shares whatever
+ * it can with the original, so an instance may be used by any number
+ * of threads at once without any locking. {@link TinyWebServer} keeps
+ * its routes in one of these and replaces it on every {@link
+ * TinyWebServer#putDocument}.
+ *
+ * <p>A path is resolved in a single pass, one component at a time.
+ * Each component is matched exactly if possible, or otherwise against
+ * a wildcard (a component registered as <code>"*"</code>), which
+ * matches any single component; exact matches always take precedence,
+ * and there is no backtracking if one leads nowhere. As soon as a
+ * registered handler is reached, it is handed the rest of the path
+ * (that is, it acts as a prefix match), and a {@link Document} only
+ * matches if there is no rest of the path. Intermediate components
+ * that have nothing registered at them directly act like {@link
+ * VirtualDirectory}s: a request for one of them gets its
+ * <code>"index.html"</code>, if any, or else a directory listing.
+ * Components that contain no <code>%</code> forms are matched in
+ * place, so in particular, resolving a request for a {@link Document}
+ * whose path has no <code>%</code> forms or query doesn't allocate
+ * anything. Resolving a request also sets its route (see {@link
+ * HttpRequest#getRoute}), which is the path of the node the request
+ * ended up at.</p>
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+final public class RouteTable
+{
+    /** non-null; the path component which matches any single component */
+    static public final String WILDCARD = "*";
+
+    /** non-null; the table with nothing in it */
+    static public final RouteTable EMPTY = new RouteTable (Node.EMPTY);
+
+    /** non-null; the root of the trie */
+    private final Node myRoot;
+
+
+
+    // ------------------------------------------------------------------------
+    // constructors
+
+    /**
+     * Construct an instance. This is private since instances are made
+     * from {@link #EMPTY} via {@link #withDocument}.
+     *
+     * @param root non-null; the root of the trie
+     */
+    private RouteTable (Node root)
+    {
+	myRoot = root;
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // public instance methods
+
+    /**
+     * Get the table that is this one with a document or handler put at
+     * the given absolute path, replacing anything that was at or under
+     * that path. Passing just <code>"/"</code> for the path replaces the
+     * whole table. If there is already a handler registered along the
+     * path, then this instead asks that handler to put the document at
+     * the rest of the path (which may well throw an exception, depending
+     * on the handler), and this instance itself is returned.
+     *
+     * @param path non-null; the absolute path to the document or
+     * handler; must begin with a slash
+     * @param doc non-null; the document or handler to put
+     * @return non-null; the resulting table
+     */
+    public RouteTable withDocument (String path, DocumentHandler doc)
+    {
+	if (path == null)
+	{
+	    throw new NullPointerException ("path == null");
+	}
+
+	if (doc == null)
+	{
+	    throw new NullPointerException ("doc == null");
+	}
+
+	if (! path.startsWith ("/"))
+	{
+	    throw new IllegalArgumentException ("path doesn't start with " +
+						"\"/\"");
+	}
+
+	// split the path into components, also keeping track of the raw
+	// (unexpanded) path left after each, for the sake of existing
+	// handlers that have to be delegated to
+
+	ArrayList names = new ArrayList ();
+	ArrayList rests = new ArrayList ();
+	String rest = (path.length () == 1) ? null : path.substring (1);
+
+	rests.add (rest);
+	while (rest != null)
+	{
+	    String[] parsed = URLUtils.parseFirstComponent (rest);
+
+	    if (parsed == null)
+	    {
+		throw new RuntimeException ("Could not parse path: " + path);
+	    }
+
+	    if (parsed[0].length () == 0)
+	    {
+		throw new RuntimeException ("Empty component detected");
+	    }
+
+	    rest = parsed[2];
+	    names.add (parsed[0]);
+	    rests.add (rest);
+	}
+
+	String[] nameArr = (String[]) names.toArray (new String[0]);
+	Node node = myRoot;
+
+	for (int i = 0; (i < nameArr.length) && (node != null); i++)
+	{
+	    if (node.myHandler != null)
+	    {
+		// there's a handler in the way; it gets to deal with it
+		node.myHandler.putDocument ((String) rests.get (i), doc);
+		return this;
+	    }
+
+	    node = node.getExact (nameArr[i]);
+	}
+
+	return new RouteTable (put (myRoot, nameArr, 0, doc, "/"));
+    }
+
+    /**
+     * Resolve the given absolute path, returning the document to serve
+     * for it, if any. This will return <code>null</code> if nothing
+     * matches the path, or if a matching handler itself returns
+     * <code>null</code>. Unless nothing matched, this sets the route of
+     * the request.
+     *
+     * @param path non-null; the absolute path to resolve; must begin
+     * with a slash
+     * @param request non-null; the request being served, to pass to
+     * handlers
+     * @return null-ok; the document for the path, or <code>null</code>
+     * if there is none
+     */
+    public Document resolve (String path, HttpRequest request)
+    {
+	int len = path.length ();
+	Node node = myRoot;
+	String query = null;
+
+	// the start of the rest of the path, or -1 if there is no rest
+	// (as opposed to an empty rest, for paths ending with a slash)
+	int at = (len == 1) ? -1 : 1;
+
+	for (;;)
+	{
+	    if (node.myHandler != null)
+	    {
+		String rest = (at == -1) ? null : path.substring (at);
+		request.setRoute (node.myRoute);
+		return node.myHandler.handleRequest (query, rest, request);
+	    }
+
+	    if (node.isEmpty ())
+	    {
+		// only possible for the root of an empty table
+		return null;
+	    }
+
+	    if ((at == -1) || (at == len))
+	    {
+		// the directory itself
+		Node index = node.getExact ("index.html");
+		if (index == null)
+		{
+		    request.setRoute (node.myRoute);
+		    return makeDirectoryDocument (node);
+		}
+
+		node = index;
+		query = null;
+		at = -1;
+		continue;
+	    }
+
+	    int slashAt = path.indexOf ('/', at);
+	    int end = (slashAt == -1) ? len : slashAt;
+	    int nameEnd = end;
+	    int quesAt = path.indexOf ('?', at);
+
+	    if ((quesAt != -1) && (quesAt < end))
+	    {
+		nameEnd = quesAt;
+		query = path.substring (quesAt + 1, end);
+	    }
+	    else
+	    {
+		query = null;
+	    }
+
+	    Node child;
+	    int pctAt = path.indexOf ('%', at);
+
+	    if ((pctAt != -1) && (pctAt < nameEnd))
+	    {
+		// there's a % form that has to be expanded first
+		String name = 
+		    URLUtils.expandPercent (path.substring (at, nameEnd));
+		if (name == null)
+		{
+		    // it was a bad path
+		    return null;
+		}
+		child = node.get (name);
+	    }
+	    else
+	    {
+		child = node.find (path, at, nameEnd);
+	    }
+
+	    if (child == null)
+	    {
+		return null;
+	    }
+
+	    node = child;
+	    at = (slashAt == -1) ? -1 : (slashAt + 1);
+	}
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private static methods
+
+    /**
+     * Get the node that is the given one with the given document or
+     * handler put at the given path underneath it.
+     *
+     * @param node null-ok; the original node, if any
+     * @param names non-null; the expanded components of the path
+     * @param at the index into <code>names</code> of the first component
+     * of the path underneath <code>node</code>
+     * @param doc non-null; the document or handler to put
+     * @param route non-null; the route of <code>node</code>
+     * @return non-null; the resulting node
+     */
+    static private Node put (Node node, String[] names, int at, 
+			     DocumentHandler doc, String route)
+    {
+	if (at == names.length)
+	{
+	    return new Node (route, doc);
+	}
+
+	if (node == null)
+	{
+	    node = new Node (route, null);
+	}
+
+	String name = names[at];
+	String childRoute = 
+	    route.endsWith ("/") ? (route + name) : (route + '/' + name);
+	Node child = put (node.getExact (name), names, at + 1, doc, 
+			  childRoute);
+
+	return node.with (name, child);
+    }
+
+    /**
+     * Make a directory listing document for the given node.
+     *
+     * @param node non-null; the node to list
+     * @return non-null; the listing
+     */
+    static private Document makeDirectoryDocument (Node node)
+    {
+	TreeMap map = new TreeMap ();
+
+	for (int i = 0; i < node.myNames.length; i++)
+	{
+	    Node one = node.myChildren[i];
+	    map.put (node.myNames[i], 
+		     (one.myHandler != null) ? (Object) one.myHandler : one);
+	}
+
+	return VirtualDirectory.makeDirectoryDocument (map);
+    }
+
+    /**
+     * Compare the given name with the given region of a string, in the
+     * same manner as <code>String.compareTo()</code>.
+     *
+     * @param name non-null; the name
+     * @param str non-null; the string containing the region
+     * @param start the start of the region
+     * @param end the end of the region (exclusive)
+     * @return the usual comparison result
+     */
+    static private int compare (String name, String str, int start, int end)
+    {
+	int nameLen = name.length ();
+	int len = end - start;
+	int count = (nameLen < len) ? nameLen : len;
+
+	for (int i = 0; i < count; i++)
+	{
+	    char c1 = name.charAt (i);
+	    char c2 = str.charAt (start + i);
+	    if (c1 != c2)
+	    {
+		return c1 - c2;
+	    }
+	}
+
+	return nameLen - len;
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private static classes
+
+    /**
+     * A node of the trie. A node either has a handler registered at it
+     * directly, or has children, but never both.
+     */
+    static private final class Node
+    {
+	/** non-null; the root node with nothing in it */
+	static public final Node EMPTY = 
+	    new Node ("/", null, new String[0], new Node[0], null);
+
+	/** non-null; the route of this node; that is, the path it is at */
+	public final String myRoute;
+
+	/** null-ok; the handler registered at this node, if any */
+	public final DocumentHandler myHandler;
+
+	/** non-null; the names of the exact-match children, in sorted
+	 * order */
+	public final String[] myNames;
+
+	/** non-null; the exact-match children, in the same order as
+	 * {@link #myNames} */
+	public final Node[] myChildren;
+
+	/** null-ok; the wildcard child, if any */
+	public final Node myWildcard;
+
+	/**
+	 * Construct an instance with the given contents.
+	 *
+	 * @param route non-null; the route of the node
+	 * @param handler null-ok; the handler registered at this node
+	 * @param names non-null; the names of the children, in sorted order
+	 * @param children non-null; the children
+	 * @param wildcard null-ok; the wildcard child
+	 */
+	private Node (String route, DocumentHandler handler, String[] names, 
+		      Node[] children, Node wildcard)
+	{
+	    myRoute = route;
+	    myHandler = handler;
+	    myNames = names;
+	    myChildren = children;
+	    myWildcard = wildcard;
+	}
+
+	/**
+	 * Construct an instance with just a handler, or with nothing at
+	 * all.
+	 *
+	 * @param route non-null; the route of the node
+	 * @param handler null-ok; the handler
+	 */
+	public Node (String route, DocumentHandler handler)
+	{
+	    this (route, handler, EMPTY.myNames, EMPTY.myChildren, null);
+	}
+
+	/**
+	 * Return whether this node has nothing in it.
+	 *
+	 * @return <code>true</code> if this node has no handler and no
+	 * children
+	 */
+	public boolean isEmpty ()
+	{
+	    return (myHandler == null) && (myNames.length == 0)
+		&& (myWildcard == null);
+	}
+
+	/**
+	 * Get the child to use for the given (expanded) component. This
+	 * falls back to the wildcard child if there is no exact match.
+	 *
+	 * @param name non-null; the component
+	 * @return null-ok; the child, or <code>null</code> if there is none
+	 */
+	public Node get (String name)
+	{
+	    return find (name, 0, name.length ());
+	}
+
+	/**
+	 * Get the child registered at exactly the given (expanded)
+	 * component, with no fallback. For {@link #WILDCARD}, this is the
+	 * wildcard child.
+	 *
+	 * @param name non-null; the component
+	 * @return null-ok; the child, or <code>null</code> if there is none
+	 */
+	public Node getExact (String name)
+	{
+	    if (name.equals (WILDCARD))
+	    {
+		return myWildcard;
+	    }
+
+	    int idx = indexOf (name, 0, name.length ());
+	    return (idx >= 0) ? myChildren[idx] : null;
+	}
+
+	/**
+	 * Get the child to use for the component in the given region of
+	 * a string. This falls back to the wildcard child if there is no
+	 * exact match.
+	 *
+	 * @param str non-null; the string containing the component
+	 * @param start the start of the component
+	 * @param end the end of the component (exclusive)
+	 * @return null-ok; the child, or <code>null</code> if there is none
+	 */
+	public Node find (String str, int start, int end)
+	{
+	    int idx = indexOf (str, start, end);
+	    return (idx >= 0) ? myChildren[idx] : myWildcard;
+	}
+
+	/**
+	 * Get the node that is this one with the given child put at the
+	 * given component, replacing the handler, if any.
+	 *
+	 * @param name non-null; the component
+	 * @param child non-null; the child
+	 * @return non-null; the resulting node
+	 */
+	public Node with (String name, Node child)
+	{
+	    if (name.equals (WILDCARD))
+	    {
+		return new Node (myRoute, null, myNames, myChildren, child);
+	    }
+
+	    int idx = indexOf (name, 0, name.length ());
+	    String[] names;
+	    Node[] children;
+
+	    if (idx >= 0)
+	    {
+		names = myNames;
+		children = myChildren.clone ();
+	    }
+	    else
+	    {
+		idx = -(idx + 1);
+		int len = myNames.length;
+		names = new String[len + 1];
+		children = new Node[len + 1];
+		System.arraycopy (myNames, 0, names, 0, idx);
+		System.arraycopy (myChildren, 0, children, 0, idx);
+		System.arraycopy (myNames, idx, names, idx + 1, len - idx);
+		System.arraycopy (myChildren, idx, children, idx + 1, 
+				  len - idx);
+		names[idx] = name;
+	    }
+
+	    children[idx] = child;
+	    return new Node (myRoute, null, names, children, myWildcard);
+	}
+
+	/**
+	 * Find the index of the exact-match child for the component in
+	 * the given region of a string, by binary search.
+	 *
+	 * @param str non-null; the string containing the component
+	 * @param start the start of the component
+	 * @param end the end of the component (exclusive)
+	 * @return the index of the child if found, or <code>(-(insertion
+	 * point) - 1)</code> if not
+	 */
+	private int indexOf (String str, int start, int end)
+	{
+	    int low = 0;
+	    int high = myNames.length - 1;
+
+	    while (low <= high)
+	    {
+		int mid = (low + high) >>> 1;
+		int cmp = compare (myNames[mid], str, start, end);
+
+		if (cmp < 0)
+		{
+		    low = mid + 1;
+		}
+		else if (cmp > 0)
+		{
+		    high = mid - 1;
+		}
+		else
+		{
+		    return mid;
+		}
+	    }
+
+	    return -(low + 1);
+	}
+    }
+}
@@ -0,0 +1,401 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running measurements of the traffic handled by a {@link
+ * TinyWebServer}: counts of requests by route and by result code, bytes
+ * read and written, the number of connections being handled and waiting
+ * to be handled, and histograms of how long each phase of responding to
+ * a request takes. Every server has one of these (see {@link
+ * TinyWebServer#getMetrics}), and it can be made visible over HTTP by
+ * putting a {@link MetricsHandler} on the server. Everything is updated
+ * without locking, so the various values read out of an instance while
+ * the server is busy aren't necessarily consistent with each other.
+ *
+ * <p>The route of a request is the path its document or handler was put
+ * at (see {@link TinyWebServer#putDocument}), so that, for example, all
+ * the files served by a {@link FileSystemHandler} count under the same
+ * route. Requests that didn't match anything count under {@link
+ * #NO_ROUTE}. The three phases of a request are reading it, getting the
+ * document from the handler, and writing the response. Reading is timed
+ * from when the first byte of the request arrives, except for the first
+ * request on a connection handled by one of the thread-per-connection
+ * engines, which is timed from when the connection is picked up by its
+ * thread; for those engines, this covers just the headers, but the
+ * selector-based engine reads the whole request, entity and all, before
+ * handing it to a handler.</p>
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+final public class ServerMetrics
+{
+    /** non-null; the route that requests which didn't match anything
+     * are counted under */
+    static public final String NO_ROUTE = "(none)";
+
+    /** one more than the highest result code that gets counted */
+    static private final int MAX_RESULT_CODE = 600;
+
+    /** non-null; map from routes to the {@link LongAdder}s counting
+     * their requests */
+    private final ConcurrentHashMap myRouteCounts;
+
+    /** non-null; the number of responses with each result code */
+    private final AtomicLongArray myResultCounts;
+
+    /** non-null; the total number of responses */
+    private final LongAdder myRequestCount;
+
+    /** non-null; the number of bytes read */
+    private final LongAdder myBytesIn;
+
+    /** non-null; the number of bytes written */
+    private final LongAdder myBytesOut;
+
+    /** non-null; the number of connections currently being handled */
+    private final AtomicInteger myActiveConnections;
+
+    /** null-ok; the queue of connections waiting to be handled, if the
+     * server has one */
+    private volatile BlockingQueue myQueue;
+
+    /** non-null; the times taken to read request headers */
+    private final LatencyHistogram myParseTimes;
+
+    /** non-null; the times taken by handlers */
+    private final LatencyHistogram myHandlerTimes;
+
+    /** non-null; the times taken to write responses */
+    private final LatencyHistogram myWriteTimes;
+
+
+
+    // ------------------------------------------------------------------------
+    // constructors
+
+    /**
+     * Construct an instance, with everything zeroed out.
+     */
+    public ServerMetrics ()
+    {
+	myRouteCounts = new ConcurrentHashMap ();
+	myResultCounts = new AtomicLongArray (MAX_RESULT_CODE);
+	myRequestCount = new LongAdder ();
+	myBytesIn = new LongAdder ();
+	myBytesOut = new LongAdder ();
+	myActiveConnections = new AtomicInteger (0);
+	myQueue = null;
+	myParseTimes = new LatencyHistogram ();
+	myHandlerTimes = new LatencyHistogram ();
+	myWriteTimes = new LatencyHistogram ();
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // public instance methods
+
+    /**
+     * Get the total number of requests responded to.
+     *
+     * @return the request count
+     */
+    public long getRequestCount ()
+    {
+	return myRequestCount.sum ();
+    }
+
+    /**
+     * Get the number of requests responded to for the given route.
+     *
+     * @param route non-null; the route
+     * @return the request count for that route
+     */
+    public long getRouteCount (String route)
+    {
+	LongAdder count = (LongAdder) myRouteCounts.get (route);
+	return (count == null) ? 0 : count.sum ();
+    }
+
+    /**
+     * Get the numbers of requests responded to for all the routes that
+     * have had any.
+     *
+     * @return non-null; a new map from routes to <code>Long</code>
+     * counts, sorted by route
+     */
+    public Map getRouteCounts ()
+    {
+	TreeMap result = new TreeMap ();
+	Iterator i = myRouteCounts.entrySet ().iterator ();
+
+	while (i.hasNext ())
+	{
+	    Map.Entry one = (Map.Entry) i.next ();
+	    result.put (one.getKey (), 
+			Long.valueOf (((LongAdder) one.getValue ()).sum ()));
+	}
+
+	return result;
+    }
+
+    /**
+     * Get the number of responses with the given result code.
+     *
+     * @param code the result code
+     * @return the number of responses with that code
+     */
+    public long getResultCount (int code)
+    {
+	if ((code < 0) || (code >= MAX_RESULT_CODE))
+	{
+	    return 0;
+	}
+
+	return myResultCounts.get (code);
+    }
+
+    /**
+     * Get the numbers of responses for all the result codes that have
+     * had any.
+     *
+     * @return non-null; a new map from <code>Integer</code> result codes
+     * to <code>Long</code> counts, sorted by result code
+     */
+    public Map getResultCounts ()
+    {
+	TreeMap result = new TreeMap ();
+
+	for (int i = 0; i < MAX_RESULT_CODE; i++)
+	{
+	    long count = myResultCounts.get (i);
+	    if (count != 0)
+	    {
+		result.put (Integer.valueOf (i), Long.valueOf (count));
+	    }
+	}
+
+	return result;
+    }
+
+    /**
+     * Get the number of bytes read from clients.
+     *
+     * @return the number of bytes read
+     */
+    public long getBytesIn ()
+    {
+	return myBytesIn.sum ();
+    }
+
+    /**
+     * Get the number of bytes written to clients.
+     *
+     * @return the number of bytes written
+     */
+    public long getBytesOut ()
+    {
+	return myBytesOut.sum ();
+    }
+
+    /**
+     * Get the number of connections currently being handled.
+     *
+     * @return the number of active connections
+     */
+    public int getActiveConnections ()
+    {
+	return myActiveConnections.get ();
+    }
+
+    /**
+     * Get the number of accepted connections waiting for a worker
+     * thread. This is always <code>0</code> for the connection engines
+     * which don't use a pool of worker threads.
+     *
+     * @return the number of waiting connections
+     */
+    public int getQueueDepth ()
+    {
+	BlockingQueue queue = myQueue;
+	return (queue == null) ? 0 : queue.size ();
+    }
+
+    /**
+     * Get the histogram of times taken to read and parse request
+     * headers.
+     *
+     * @return non-null; the histogram
+     */
+    public LatencyHistogram getParseTimes ()
+    {
+	return myParseTimes;
+    }
+
+    /**
+     * Get the histogram of times taken by handlers to come up with
+     * documents.
+     *
+     * @return non-null; the histogram
+     */
+    public LatencyHistogram getHandlerTimes ()
+    {
+	return myHandlerTimes;
+    }
+
+    /**
+     * Get the histogram of times taken to write responses.
+     *
+     * @return non-null; the histogram
+     */
+    public LatencyHistogram getWriteTimes ()
+    {
+	return myWriteTimes;
+    }
+
+    // superclass's javadoc suffices
+    public String toString ()
+    {
+	return "ServerMetrics[" + getRequestCount () + " requests, " +
+	    getActiveConnections () + " active, " + getBytesIn () + 
+	    " bytes in, " + getBytesOut () + " bytes out]";
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // package instance methods
+
+    /**
+     * Record a response. Phases that don't apply (for example, because
+     * the request couldn't even be read) are passed as negative times.
+     *
+     * @param route null-ok; the route of the request, or
+     * <code>null</code> if it didn't match anything
+     * @param resultCode the result code of the response
+     * @param parseNanos the time taken to read the request headers
+     * (nsec), or <code>-1</code>
+     * @param handlerNanos the time taken by the handler (nsec), or
+     * <code>-1</code>
+     * @param writeNanos the time taken to write the response (nsec), or
+     * <code>-1</code>
+     */
+    void recordResponse (String route, int resultCode, long parseNanos,
+			 long handlerNanos, long writeNanos)
+    {
+	if (route == null)
+	{
+	    route = NO_ROUTE;
+	}
+
+	LongAdder count = (LongAdder) myRouteCounts.get (route);
+
+	if (count == null)
+	{
+	    LongAdder newCount = new LongAdder ();
+	    count = (LongAdder) myRouteCounts.putIfAbsent (route, newCount);
+	    if (count == null)
+	    {
+		count = newCount;
+	    }
+	}
+
+	count.increment ();
+	myRequestCount.increment ();
+
+	if ((resultCode >= 0) && (resultCode < MAX_RESULT_CODE))
+	{
+	    myResultCounts.incrementAndGet (resultCode);
+	}
+
+	if (parseNanos >= 0)
+	{
+	    myParseTimes.record (parseNanos);
+	}
+
+	if (handlerNanos >= 0)
+	{
+	    myHandlerTimes.record (handlerNanos);
+	}
+
+	if (writeNanos >= 0)
+	{
+	    myWriteTimes.record (writeNanos);
+	}
+    }
+
+    /**
+     * Count some bytes as having been read.
+     *
+     * @param count the number of bytes
+     */
+    void addBytesIn (long count)
+    {
+	myBytesIn.add (count);
+    }
+
+    /**
+     * Count some bytes as having been written.
+     *
+     * @param count the number of bytes
+     */
+    void addBytesOut (long count)
+    {
+	myBytesOut.add (count);
+    }
+
+    /**
+     * Note that a connection has started being handled.
+     */
+    void connectionOpened ()
+    {
+	myActiveConnections.incrementAndGet ();
+    }
+
+    /**
+     * Note that a connection is no longer being handled.
+     */
+    void connectionClosed ()
+    {
+	myActiveConnections.decrementAndGet ();
+    }
+
+    /**
+     * Set the queue of connections waiting for worker threads, whose
+     * size is reported by {@link #getQueueDepth}.
+     *
+     * @param queue null-ok; the queue, if any
+     */
+    void setQueue (BlockingQueue queue)
+    {
+	myQueue = queue;
+    }
+}
@@ -97,8 +97,22 @@ extends InputStream
 
 	// skip the rest of the input on the raw stream, if any, so that 
 	// the stream is "positioned" past the end of the entity, in
-	// case this stream is being used for multiple requests
-	myRawStream.skip (myBytesLeft);
+	// case this stream is being used for multiple requests; note
+	// that skip() is allowed to skip less than asked for
+	long left = myBytesLeft;
+	while (left > 0)
+	{
+	    long amt = myRawStream.skip (left);
+	    if (amt <= 0)
+	    {
+		if (myRawStream.read () == -1)
+		{
+		    break;
+		}
+		amt = 1;
+	    }
+	    left -= amt;
+	}
 
 	myRawStream = null;
     }
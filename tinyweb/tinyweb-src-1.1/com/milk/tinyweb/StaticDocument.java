@@ -36,6 +36,22 @@ extends Document
     /** the bytes of the document */
     private final byte[] myBytes;
 
+    /** null-ok; the bytes of the document compressed with the
+     * <code>gzip</code> coding, if they've been asked for */
+    private volatile byte[] myGzipBytes;
+
+    /** null-ok; the bytes of the document compressed with the
+     * <code>deflate</code> coding, if they've been asked for */
+    private volatile byte[] myDeflateBytes;
+
+    /** null-ok; the cache which holds this instance, which gets told
+     * about the memory taken up by the compressed bytes */
+    private volatile FileCache myCache;
+
+    /** null-ok; the key this instance is held under in {@link
+     * #myCache} */
+    private volatile String myCacheKey;
+
     // ------------------------------------------------------------------------
     // constructors
 
@@ -154,4 +170,110 @@ extends Document
 	    stream.write (myBytes);
 	}
     }
+
+    // superclass's javadoc suffices
+    public void writeRange (OutputStream stream, long contentLength,
+			    long offset, long count)
+	throws IOException
+    {
+	if (myBytes != null)
+	{
+	    stream.write (myBytes, (int) offset, (int) count);
+	}
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // package instance methods
+
+    /**
+     * Note that this instance is held by the given cache under the
+     * given key, so that the memory taken up by its compressed bytes
+     * can be accounted for there.
+     *
+     * @param cache non-null; the cache
+     * @param key non-null; the key
+     */
+    void setCache (FileCache cache, String key)
+    {
+	myCacheKey = key;
+	myCache = cache;
+    }
+
+    /**
+     * Return whether this instance is held by a {@link FileCache}, and
+     * so is likely to get used again.
+     *
+     * @return <code>true</code> if this instance is cached
+     */
+    boolean isCached ()
+    {
+	return myCache != null;
+    }
+
+    /**
+     * Get the bytes of this instance compressed with the given content
+     * coding, if they've already been made.
+     *
+     * @param encoding non-null; the content coding; one of the
+     * constants defined by {@link CompressedDocument}
+     * @return null-ok; the compressed bytes, or <code>null</code> if
+     * they haven't been made yet
+     */
+    byte[] peekCompressedBytes (String encoding)
+    {
+	return encoding.equals (CompressedDocument.GZIP) 
+	    ? myGzipBytes : myDeflateBytes;
+    }
+
+    /**
+     * Get the bytes of this instance compressed with the given content
+     * coding. They get compressed the first time they're asked for and
+     * kept after that, so that an instance that is kept in a cache only
+     * gets compressed once (and the cache counts them against its
+     * limit). This must only be called on instances with content.
+     *
+     * @param encoding non-null; the content coding; one of the
+     * constants defined by {@link CompressedDocument}
+     * @return non-null; the compressed bytes
+     */
+    byte[] getCompressedBytes (String encoding)
+    {
+	boolean gzip = encoding.equals (CompressedDocument.GZIP);
+	byte[] result = gzip ? myGzipBytes : myDeflateBytes;
+
+	if (result == null)
+	{
+	    // if two threads get here at once, they'll both do the work,
+	    // but only the first one's result gets kept (and counted)
+	    result = CompressedDocument.compress (myBytes, encoding);
+
+	    synchronized (this)
+	    {
+		byte[] already = gzip ? myGzipBytes : myDeflateBytes;
+		if (already != null)
+		{
+		    return already;
+		}
+
+		if (gzip)
+		{
+		    myGzipBytes = result;
+		}
+		else
+		{
+		    myDeflateBytes = result;
+		}
+
+		FileCache cache = myCache;
+		if (cache != null)
+		{
+		    cache.addBytes (myCacheKey, this, result.length);
+		}
+	    }
+	}
+
+	return result;
+    }
 }
@@ -0,0 +1,142 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Document whose content is written incrementally as the response goes
+ * out, rather than being built up in its entirety beforehand. Its length
+ * is unknown, so HTTP/1.1 clients get it with the chunked transfer
+ * coding (which lets the connection be kept open afterwards), and
+ * HTTP/1.0 clients get it delimited by the connection closing.
+ * Subclasses implement {@link #writeContent} to produce the content. The
+ * stream that method is given is buffered; anything written to it goes
+ * out once the buffer fills up or the stream is flushed, so flushing is
+ * how a subclass gets partial content to the client promptly (for
+ * example, to show progress during a long computation). This is
+ * particularly useful as the return value from the target methods of
+ * a {@link MethodHandler}:
+ *
+ * <pre>
+ * public Document handleCount (String query, String partialPath,
+ *                              HttpRequest request)
+ * {
+ *     return new StreamingDocument ("text/plain")
+ *     {
+ *         protected void writeContent (OutputStream stream)
+ *             throws IOException
+ *         {
+ *             for (int i = 0; i &lt; 10; i++)
+ *             {
+ *                 stream.write (("count " + i + "\n").getBytes ());
+ *                 stream.flush ();
+ *                 doSomethingSlow ();
+ *             }
+ *         }
+ *     };
+ * }
+ * </pre>
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+public abstract class StreamingDocument
+extends Document
+{
+    /** the size of the buffer that content gets written through */
+    static private final int BUF_SIZE = 8192;
+
+
+
+    // ------------------------------------------------------------------------
+    // constructors
+
+    /**
+     * Construct an instance with explicit result code and message.
+     *
+     * @param contentType non-null; the MIME content type of the document
+     * @param lastModified the last modified date of the document
+     * @param resultCode the three-digit result code
+     * @param resultMsg non-null; the result message
+     * @param extraHeaders null-ok; map of additional response headers, if
+     * any; if non-<code>null</code>, must be a map of <code>String</code>s
+     * to <code>String</code>s; and it must not be modified once it is
+     * handed to this constructor
+     */
+    public StreamingDocument (String contentType, long lastModified,
+			      int resultCode, String resultMsg, 
+			      Map extraHeaders)
+    {
+	super (contentType, lastModified, resultCode, resultMsg, extraHeaders);
+    }
+
+    /**
+     * Construct an instance which represents a normal contentful
+     * document. That is, the result code is <code>200</code> and there
+     * are no extra headers. The modification date is taken to be the
+     * current time.
+     *
+     * @param contentType non-null; the MIME content type of the document
+     */
+    public StreamingDocument (String contentType)
+    {
+	super (contentType, System.currentTimeMillis ());
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // public instance methods
+
+    // superclass's javadoc suffices
+    final public long getContentLength ()
+    {
+	return CONTENT_LENGTH_UNKNOWN;
+    }
+
+    // superclass's javadoc suffices
+    final public void writeBytes (OutputStream stream, long contentLength)
+	throws IOException
+    {
+	BufferedOutputStream bos = new BufferedOutputStream (stream, BUF_SIZE);
+	writeContent (bos);
+	bos.flush ();
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // abstract protected instance methods
+
+    /**
+     * Write the content of this instance to the given stream. This is
+     * called (at most once per response) once the response headers have
+     * been sent. The stream must not be closed; flushing it sends along
+     * what has been written so far.
+     *
+     * @param stream non-null; the stream to write to
+     */
+    abstract protected void writeContent (OutputStream stream)
+	throws IOException;
+}
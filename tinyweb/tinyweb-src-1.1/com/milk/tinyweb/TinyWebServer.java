@@ -22,18 +22,42 @@ package com.milk.tinyweb;
 
 import com.milk.util.EmbeddedException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.FilterOutputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.text.SimpleDateFormat;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.Iterator;
+import java.util.Locale;
 import java.util.Map;
-import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * This is a very simple HTTP server. One registers objects at
@@ -49,9 +73,35 @@ import java.util.TimeZone;
  */
 public final class TinyWebServer
 {
-    /** the maximum number of simultaneous connections that may be
-     * actively handled */
-    static private final int MAX_CONNECTIONS = 20;
+    /** constant for the connection engine which services each accepted
+     * connection on its own thread, with blocking I/O */
+    static public final int ENGINE_THREADS = 0;
+
+    /** constant for the connection engine which multiplexes all
+     * connections over a small fixed set of threads, using
+     * <code>java.nio</code> selectors */
+    static public final int ENGINE_NIO = 1;
+
+    /** constant for the connection engine which services each accepted
+     * connection on its own virtual thread, with blocking I/O; this
+     * requires a VM which supports virtual threads, and acts just like
+     * <code>ENGINE_THREADS</code> on one that doesn't */
+    static public final int ENGINE_VIRTUAL_THREADS = 2;
+
+    /** the default maximum number of connections that may be actively
+     * handled at once by the thread-per-connection engine */
+    static private final int DEFAULT_MAX_WORKERS = 20;
+
+    /** the default maximum number of accepted connections that may be
+     * waiting for a worker thread */
+    static private final int DEFAULT_QUEUE_SIZE = 50;
+
+    /** how long (msec) an idle worker thread sticks around */
+    static private final long WORKER_IDLE_MSEC = 60000;
+
+    /** the number of seconds that overloaded responses suggest waiting
+     * before retrying */
+    static private final int RETRY_AFTER_SECS = 5;
 
     /** true if this code should spit out debug messages, cause this to be
      * true by defining the property
@@ -60,18 +110,104 @@ public final class TinyWebServer
     static private final boolean DEBUG =
 	Boolean.getBoolean ("com.milk.tinyweb.TinyWebServer.debug");
 
-    /** date object to use for formatting dates in HTTP headers */
-    static private final Date TheDateToFormat = new Date ();
-
     /** date formatter to use for formatting dates in HTTP headers;
-     * see rfc2616 section 3.3.1 */
-    static private final SimpleDateFormat TheDateFormatter =
-	new SimpleDateFormat ("EEE, dd MMM yyyy HH:mm:ss zzz");
-
-    static
+     * see rfc2616 section 3.3.1; unlike a <code>SimpleDateFormat</code>,
+     * this is immutable, so it needn't be synchronized on */
+    static private final DateTimeFormatter TheDateFormatter =
+	DateTimeFormatter.ofPattern ("EEE, dd MMM yyyy HH:mm:ss 'GMT'", 
+				     Locale.US).withZone (ZoneOffset.UTC);
+
+    /** date formatters to use for parsing dates in HTTP headers, in the
+     * three allowed formats (rfc1123, rfc850, and asctime); see rfc2616
+     * section 3.3.1; these are immutable too, so any number of threads
+     * may parse at once. Two-digit rfc850 years are taken to be between
+     * 1970 and 2069. */
+    static private final DateTimeFormatter[] TheDateParsers =
     {
-	TheDateFormatter.setTimeZone (TimeZone.getTimeZone ("GMT"));
-    }
+	DateTimeFormatter.RFC_1123_DATE_TIME,
+	new DateTimeFormatterBuilder ()
+	    .appendPattern ("EEEE, dd-MMM-")
+	    .appendValueReduced (ChronoField.YEAR, 2, 2, 1970)
+	    .appendPattern (" HH:mm:ss 'GMT'")
+	    .toFormatter (Locale.US)
+	    .withZone (ZoneOffset.UTC),
+	DateTimeFormatter.ofPattern ("EEE MMM ppd HH:mm:ss yyyy", Locale.US)
+	    .withZone (ZoneOffset.UTC)
+    };
+
+    /** non-null; preencoded line terminator */
+    static private final byte[] TheCrlf = asciiBytes ("\r\n");
+
+    /** non-null; preencoded <code>Server</code> header line */
+    static private final byte[] TheServerLine = 
+	asciiBytes ("Server: milk.com TinyWebServer\r\n");
+
+    /** non-null; preencoded <code>Expires</code> header line for
+     * uncacheable responses */
+    static private final byte[] TheExpiresLine = asciiBytes ("Expires: 0\r\n");
+
+    /** non-null; preencoded <code>Connection</code> header line for
+     * kept-alive connections */
+    static private final byte[] TheKeepAliveLine = 
+	asciiBytes ("Connection: keep-alive\r\n");
+
+    /** non-null; preencoded <code>Connection</code> header line for
+     * connections that are to be closed */
+    static private final byte[] TheCloseLine = 
+	asciiBytes ("Connection: close\r\n");
+
+    /** non-null; preencoded HTTP/1.1 cache-defeating header line */
+    static private final byte[] TheNoCacheLine = 
+	asciiBytes ("Cache-control: no-cache\r\n");
+
+    /** non-null; preencoded HTTP/1.0 cache-defeating header line */
+    static private final byte[] ThePragmaLine = 
+	asciiBytes ("Pragma: no-cache\r\n");
+
+    /** non-null; preencoded <code>Accept-Ranges</code> header line */
+    static private final byte[] TheAcceptRangesLine = 
+	asciiBytes ("Accept-Ranges: bytes\r\n");
+
+    /** non-null; preencoded <code>Transfer-Encoding</code> header line
+     * for chunked responses */
+    static private final byte[] TheChunkedLine = 
+	asciiBytes ("Transfer-Encoding: chunked\r\n");
+
+    /** non-null; preencoded <code>Vary</code> header line, for responses
+     * that could have been compressed */
+    static private final byte[] TheVaryLine = 
+	asciiBytes ("Vary: Accept-Encoding\r\n");
+
+    /** non-null; preencoded <code>ETag</code> header prefix */
+    static private final byte[] TheETagPrefix = asciiBytes ("ETag: ");
+
+    /** non-null; preencoded <code>Last-Modified</code> header prefix */
+    static private final byte[] TheLastModifiedPrefix = 
+	asciiBytes ("Last-Modified: ");
+
+    /** non-null; preencoded <code>Content-Type</code> header prefix */
+    static private final byte[] TheContentTypePrefix = 
+	asciiBytes ("Content-Type: ");
+
+    /** non-null; preencoded <code>Content-Length</code> header prefix */
+    static private final byte[] TheContentLengthPrefix = 
+	asciiBytes ("Content-Length: ");
+
+    /** non-null; cache of preencoded HTTP/1.1 status lines, indexed by
+     * result code; elements are {@link StatusLine}s, filled in as they
+     * are first needed */
+    static private final AtomicReferenceArray The11StatusLines =
+	new AtomicReferenceArray (1000);
+
+    /** non-null; cache of preencoded HTTP/1.0 status lines, just like
+     * {@link #The11StatusLines} */
+    static private final AtomicReferenceArray The10StatusLines =
+	new AtomicReferenceArray (1000);
+
+    /** null-ok; the most recently made <code>Date</code> header line;
+     * it gets replaced (without locking, since it's immutable) once the
+     * second it's for has passed */
+    static private volatile DateLine TheDateLine = null;
 
     /** the port to listen on, or <code>0</code> during construction
      * if an arbitrary port is to be chosen */
@@ -80,12 +216,61 @@ public final class TinyWebServer
     /** non-null; the logger to use */
     private TinyWebLogger myLogger;
 
-    /** null-ok; the top-level document handler */
-    private DocumentHandler myTopLevelHandler;
+    /** non-null; the table of documents and handlers; replaced (while
+     * synchronized on {@link #mySynch}) but never modified, so requests
+     * can be routed without locking */
+    private volatile RouteTable myRoutes;
+
+    /** the connection engine in use; one of the <code>ENGINE_</code>
+     * constants */
+    private int myEngine;
 
     /** the server socket */
     private ServerSocket myServerSocket;
 
+    /** null-ok; the selector-based engine, if {@link #myEngine} is
+     * <code>ENGINE_NIO</code> and the server has ever been started */
+    private NioEngine myNioEngine;
+
+    /** the number of event loop threads to use for the selector-based
+     * engine */
+    private int myEventLoopCount;
+
+    /** the maximum number of requests to service on a single connection;
+     * <code>1</code> means that connections are never kept alive */
+    private int myMaxRequestsPerConnection;
+
+    /** how long (msec) a kept-alive connection may sit idle between
+     * requests before it gets closed */
+    private int myKeepAliveTimeout;
+
+    /** whether responses get compressed for clients that can take it */
+    private boolean myCompression;
+
+    /** whether documents whose content isn't held in memory get
+     * compressed as they're written, when compression is enabled */
+    private boolean myOnTheFlyCompression;
+
+    /** non-null; the measurements of this instance's traffic */
+    private ServerMetrics myMetrics;
+
+    /** null-ok; the access log to log responses to, if any */
+    private volatile AccessLog myAccessLog;
+
+    /** the number of worker threads to keep around even when idle */
+    private int myCoreWorkers;
+
+    /** the maximum number of worker threads */
+    private int myMaxWorkers;
+
+    /** the maximum number of accepted connections waiting for a worker */
+    private int myQueueSize;
+
+    /** null-ok; the executor which runs connections for the
+     * thread-per-connection engines, if one has ever been started; for
+     * <code>ENGINE_THREADS</code> this is a pool of worker threads */
+    private ExecutorService myWorkers;
+
     /** true if this instance is currently running */
     private boolean myIsRunning;
 
@@ -166,7 +351,57 @@ public final class TinyWebServer
      */
     public TinyWebServer (int port, TinyWebLogger logger)
     {
+	this (port, logger, ENGINE_THREADS);
+    }
+
+    /**
+     * Construct an instance that uses the given logger, port, and
+     * connection engine. This is just like {@link #TinyWebServer(int,
+     * TinyWebLogger)}, except that the way connections get serviced may
+     * be specified. <code>ENGINE_THREADS</code> (the default) runs each
+     * connection on a thread of its own, taken from a bounded pool (see
+     * {@link #setWorkerPool}), which is simple but means that the number
+     * of connections that can be serviced at once is limited by the
+     * number of threads. <code>ENGINE_VIRTUAL_THREADS</code> is the same,
+     * except that each connection gets a virtual thread (with no limit
+     * on their number), which lets the same simple blocking code hold
+     * huge numbers of slow clients; it requires a VM that supports
+     * virtual threads, and falls back to <code>ENGINE_THREADS</code>
+     * otherwise. <code>ENGINE_NIO</code> instead multiplexes accepting,
+     * request reading, and response writing over a small fixed set of
+     * event loop threads (see {@link #setEventLoopCount}); it reads each
+     * request, entity and all, into memory before dispatching it, so it
+     * rejects requests bigger than a megabyte. Either way, requests are
+     * dispatched to the same tree of {@link DocumentHandler}s.
+     *
+     * @param port the port to listen on 
+     * @param logger null-ok; the logger to use 
+     * @param engine the connection engine to use; one of the
+     * <code>ENGINE_</code> constants defined by this class
+     */
+    public TinyWebServer (int port, TinyWebLogger logger, int engine)
+    {
+	if ((engine != ENGINE_THREADS) && (engine != ENGINE_NIO)
+	    && (engine != ENGINE_VIRTUAL_THREADS))
+	{
+	    throw new IllegalArgumentException ("engine = " + engine);
+	}
+
 	myPort = port;
+	myEngine = engine;
+	myNioEngine = null;
+	myEventLoopCount = 
+	    Math.min (4, Runtime.getRuntime ().availableProcessors ());
+	myMaxRequestsPerConnection = 1;
+	myKeepAliveTimeout = 15000;
+	myCompression = true;
+	myOnTheFlyCompression = (engine != ENGINE_NIO);
+	myMetrics = new ServerMetrics ();
+	myAccessLog = null;
+	myCoreWorkers = DEFAULT_MAX_WORKERS;
+	myMaxWorkers = DEFAULT_MAX_WORKERS;
+	myQueueSize = DEFAULT_QUEUE_SIZE;
+	myWorkers = null;
 	
 	if (logger == null)
 	{
@@ -177,14 +412,24 @@ public final class TinyWebServer
 	    myLogger = logger;
 	}
 
-	myTopLevelHandler = null;
+	myRoutes = RouteTable.EMPTY;
 	myIsRunning = false;
 	myShouldStop = false;
 	myThread = null;
 
 	try
 	{
-	    myServerSocket = new ServerSocket (myPort);
+	    if (engine == ENGINE_NIO)
+	    {
+		ServerSocketChannel ssc = ServerSocketChannel.open ();
+		myServerSocket = ssc.socket ();
+		myServerSocket.bind (new InetSocketAddress (myPort));
+	    }
+	    else
+	    {
+		myServerSocket = new ServerSocket (myPort);
+	    }
+
 	    if (myPort == 0)
 	    {
 		myPort = myServerSocket.getLocalPort ();
@@ -230,6 +475,10 @@ public final class TinyWebServer
 	sb.append (myServerSocket);
 	sb.append (", port=");
 	sb.append (myPort);
+	sb.append (", engine=");
+	sb.append ((myEngine == ENGINE_NIO) ? "nio" :
+		   (myEngine == ENGINE_VIRTUAL_THREADS) ? "virtual" : 
+		   "threads");
 	sb.append (", isRunning=");
 	sb.append (myIsRunning);
 	sb.append ("]");
@@ -260,6 +509,192 @@ public final class TinyWebServer
 	}
     }
 
+    /**
+     * Set the number of event loop threads used by the selector-based
+     * engine. This must be called before the first call to {@link
+     * #start}, and it only matters if this instance was constructed to
+     * use <code>ENGINE_NIO</code>. It defaults to the number of
+     * available processors, but no more than four.
+     *
+     * @param count the number of event loop threads; must be
+     * <code>&gt;= 1</code>
+     */
+    public void setEventLoopCount (int count)
+    {
+	if (count < 1)
+	{
+	    throw new IllegalArgumentException ("count < 1");
+	}
+
+	synchronized (mySynch)
+	{
+	    if (myNioEngine != null)
+	    {
+		throw new IllegalStateException (this + " already started");
+	    }
+
+	    myEventLoopCount = count;
+	}
+    }
+
+    /**
+     * Set the size of the pool of worker threads used by the
+     * thread-per-connection engine, and the number of accepted
+     * connections that may wait for a worker. This must be called before
+     * the first call to {@link #start}, and it only matters if this
+     * instance was constructed to use <code>ENGINE_THREADS</code> (or
+     * <code>ENGINE_VIRTUAL_THREADS</code>, on a VM which doesn't support
+     * virtual threads). Workers beyond the core number are only started
+     * when the queue is full, and all workers go away after sitting idle
+     * for a minute.
+     * When all workers are busy and the queue is full, new connections
+     * are immediately answered with <code>503 Service Unavailable</code>
+     * (with a <code>Retry-After</code> header) and closed, so that the
+     * connections already admitted still get timely service. By default,
+     * there are up to twenty workers (all of them core) and a queue of
+     * fifty. Note that a worker stays with its connection for as long as
+     * the connection is kept alive (see {@link
+     * #setMaxRequestsPerConnection}). With <code>ENGINE_NIO</code>, the
+     * maximum number of workers instead bounds the number of threads
+     * that write responses which can't be written by the event loops;
+     * requests that need such a thread while all of them are busy get
+     * the same <code>503</code> response.
+     *
+     * @param coreWorkers the number of workers to start before
+     * queueing; must be <code>&gt;= 1</code>
+     * @param maxWorkers the maximum number of workers; must be
+     * <code>&gt;= coreWorkers</code>
+     * @param queueSize the maximum number of connections waiting for a
+     * worker; must be <code>&gt;= 0</code>
+     */
+    public void setWorkerPool (int coreWorkers, int maxWorkers, int queueSize)
+    {
+	if (coreWorkers < 1)
+	{
+	    throw new IllegalArgumentException ("coreWorkers < 1");
+	}
+
+	if (maxWorkers < coreWorkers)
+	{
+	    throw new IllegalArgumentException ("maxWorkers < coreWorkers");
+	}
+
+	if (queueSize < 0)
+	{
+	    throw new IllegalArgumentException ("queueSize < 0");
+	}
+
+	synchronized (mySynch)
+	{
+	    if (myWorkers != null)
+	    {
+		throw new IllegalStateException (this + " already started");
+	    }
+
+	    myCoreWorkers = coreWorkers;
+	    myMaxWorkers = maxWorkers;
+	    myQueueSize = queueSize;
+	}
+    }
+
+    /**
+     * Set the maximum number of requests that will be serviced on a
+     * single connection. By default, this is <code>1</code>, which means
+     * that every response is sent with <code>Connection: close</code> and
+     * the connection is closed afterwards. Setting it higher enables
+     * persistent connections (see rfc2616 sec 8.1): HTTP/1.1 clients get
+     * them unless they ask otherwise, and HTTP/1.0 clients get them if
+     * they ask with <code>Connection: keep-alive</code>. Requests
+     * pipelined on a persistent connection are answered in order. A
+     * connection is closed anyway once it has serviced the maximum number
+     * of requests, or if the response has no well-defined end; that is,
+     * its content length is unknown and the client is HTTP/1.0 (HTTP/1.1
+     * clients get such responses with the chunked transfer coding).
+     *
+     * @param max the maximum number of requests per connection; must
+     * be <code>&gt;= 1</code>
+     */
+    public void setMaxRequestsPerConnection (int max)
+    {
+	if (max < 1)
+	{
+	    throw new IllegalArgumentException ("max < 1");
+	}
+
+	myMaxRequestsPerConnection = max;
+    }
+
+    /**
+     * Set how long a persistent connection may sit idle, waiting for its
+     * next request, before the server closes it. It's fifteen seconds by
+     * default. This only matters if persistent connections have been
+     * enabled with {@link #setMaxRequestsPerConnection}.
+     *
+     * @param msec the new timeout; must be <code>&gt; 0</code>
+     */
+    public void setKeepAliveTimeout (int msec)
+    {
+	if (msec <= 0)
+	{
+	    throw new IllegalArgumentException ("msec <= 0");
+	}
+
+	myKeepAliveTimeout = msec;
+    }
+
+    /**
+     * Set whether responses get compressed for clients that can take
+     * it. By default, they do. When enabled, documents of textual
+     * content types get sent with the <code>gzip</code> or
+     * <code>deflate</code> content coding (whichever the client
+     * prefers) to clients that list one of those in their
+     * <code>Accept-Encoding</code> header. Documents whose content
+     * is held in memory (such as the ones made by {@link
+     * Document#makeHTML} and {@link Document#makeText}) get compressed
+     * up front; the rest get compressed as they're written, and sent
+     * with the chunked transfer coding, which means that HTTP/1.0
+     * clients only get the former kind compressed. The latter kind can
+     * be turned off on its own; see {@link #setOnTheFlyCompression}.
+     *
+     * @param compression whether to compress responses
+     */
+    public void setCompression (boolean compression)
+    {
+	myCompression = compression;
+    }
+
+    /**
+     * Set whether, when compression is enabled (see {@link
+     * #setCompression}), documents whose content isn't held in memory
+     * get compressed as they're written. By default, they do, except
+     * with <code>ENGINE_NIO</code>: its event loops can't compress on
+     * the fly, so every such response would take up one of its handoff
+     * threads (see {@link #setWorkerPool}) for the whole time it is
+     * being written. Either way, documents held in memory (including
+     * files held by a {@link FileCache}) get compressed just once, and
+     * precompressed files get served by {@link FileSystemHandler} as
+     * they are.
+     *
+     * @param onTheFly whether to compress documents as they're written
+     */
+    public void setOnTheFlyCompression (boolean onTheFly)
+    {
+	myOnTheFlyCompression = onTheFly;
+    }
+
+    /**
+     * Set the access log to log responses to, or <code>null</code> to
+     * stop logging them. This may be called at any time. The log
+     * doesn't get closed when this instance does; that's up to the
+     * caller.
+     *
+     * @param log null-ok; the access log to use
+     */
+    public void setAccessLog (AccessLog log)
+    {
+	myAccessLog = log;
+    }
+
     /**
      * Close this instance. This means that the server no longer listens
      * for requests on the port it used, and the port becomes available for
@@ -282,6 +717,29 @@ public final class TinyWebServer
 		return;
 	    }
 
+	    if (myNioEngine != null)
+	    {
+		myNioEngine.close ();
+		myNioEngine = null;
+	    }
+
+	    if (myWorkers != null)
+	    {
+		// connections in progress get to finish, but queued ones
+		// are abandoned
+		ArrayList queued = new ArrayList ();
+		myWorkers.shutdown ();
+		if (myWorkers instanceof ThreadPoolExecutor)
+		{
+		    ((ThreadPoolExecutor) myWorkers).getQueue ().drainTo (queued);
+		}
+		for (int i = 0; i < queued.size (); i++)
+		{
+		    ((ConnectionHandler) queued.get (i)).abandon ();
+		}
+		myWorkers = null;
+	    }
+
 	    try
 	    {
 		myServerSocket.close ();
@@ -377,7 +835,40 @@ public final class TinyWebServer
 		return;
 	    }
 
-	    myThread = new ServerThread ();
+	    if (myEngine == ENGINE_NIO)
+	    {
+		if (myNioEngine == null)
+		{
+		    myNioEngine = new NioEngine (this, 
+						 myServerSocket.getChannel (),
+						 myEventLoopCount,
+						 myMaxWorkers,
+						 myLogger);
+		}
+		myNioEngine.startAccepting ();
+	    }
+	    else
+	    {
+		if (myWorkers == null)
+		{
+		    if (myEngine == ENGINE_VIRTUAL_THREADS)
+		    {
+			myWorkers = makeVirtualThreadExecutor ();
+			if (myWorkers == null)
+			{
+			    myLogger.error (this + ": virtual threads not " +
+					    "available; using a worker pool");
+			}
+		    }
+
+		    if (myWorkers == null)
+		    {
+			myWorkers = makeWorkerPool ();
+		    }
+		}
+		myThread = new ServerThread ();
+	    }
+
 	    myIsRunning = true;
 	}
     }
@@ -392,6 +883,16 @@ public final class TinyWebServer
     {
 	synchronized (mySynch)
 	{
+	    if (myEngine == ENGINE_NIO)
+	    {
+		if (myIsRunning)
+		{
+		    myNioEngine.stopAccepting ();
+		    myIsRunning = false;
+		}
+		return;
+	    }
+
 	    while (myIsRunning)
 	    {
 		myShouldStop = true;
@@ -422,6 +923,18 @@ public final class TinyWebServer
 	return myIsRunning;
     }
 
+    /**
+     * Get the measurements of this instance's traffic. These can also be
+     * served over HTTP by putting a {@link MetricsHandler} on this
+     * instance.
+     *
+     * @return non-null; the metrics
+     */
+    public ServerMetrics getMetrics ()
+    {
+	return myMetrics;
+    }
+
     /**
      * Put a document or handler at the given absolute path, replacing a
      * pre-existing entity if there is one already at the given path. If
@@ -431,7 +944,10 @@ public final class TinyWebServer
      * result in an exception being thrown. The given path should begin
      * with a slash. Passing in just <code>"/"</code> for the path
      * indicates that the given document or handler is to be used for the
-     * root of the server.
+     * root of the server. A path component of <code>"*"</code> matches
+     * any single component that doesn't have something registered at it
+     * exactly. See {@link RouteTable} for the details of how requests
+     * are matched against paths.
      *
      * @param path non-null; the absolute path to the document or handler
      * @param doc non-null; the document or handler to store 
@@ -454,399 +970,1397 @@ public final class TinyWebServer
 						"\"/\"");
 	}
 
-	if (path.length () == 1)
-	{
-	    myTopLevelHandler = doc;
-	}
-	else
+	synchronized (mySynch)
 	{
-	    if (myTopLevelHandler == null)
-	    {
-		myTopLevelHandler = new VirtualDirectory ();
-	    }
-
-	    myTopLevelHandler.putDocument (path.substring (1), doc);
+	    myRoutes = myRoutes.withDocument (path, doc);
 	}
     }
     
 
 
     // ------------------------------------------------------------------------
-    // private instance methods
+    // package instance methods
 
     /**
-     * Get the document for the given request and return it, or return
-     * <code>null</code> if there is no such document.
+     * Get the document to respond with for the given (already read)
+     * request. This never returns <code>null</code>; requests which were
+     * errorful, which can't be honored, which don't correspond to any
+     * document, or whose handlers fail all result in an appropriate error
+     * document. This is used by all the connection engines.
      *
-     * @param req non-null; the request to serve
-     * @return null-ok; the document or <code>null</code> if there is no
-     * document for the given path 
+     * @param request non-null; the request to serve
+     * @param background null-ok; where to make the compressed form of
+     * an in-memory document the first time it's needed, if that
+     * shouldn't be done on the calling thread; until it has been made,
+     * the document gets sent uncompressed
+     * @return non-null; the document to respond with
      */
-    private Document getDocument (HttpRequest req)
+    Document documentFor (HttpRequest request, Executor background)
     {
-	// ask the top-level handler, or return null if there is none
-
-	if (myTopLevelHandler == null)
+	if (DEBUG)
 	{
-	    return null;
+	    myLogger.debug (this.toString () + " got request:");
+	    myLogger.debug (request.toDebugString ("  "));
 	}
 
-	String path = req.getPath ();
+	int errorCode = request.getErrorCode ();
 
-	if (path.length () == 1)
+	if (errorCode != 0)
 	{
-	    // this is what the DocumentHandler protocol expects
-	    path = null;
+	    // the request was errorful; abort! abort!
+	    return makeErrorDocument (errorCode, request.getErrorMsg ());
 	}
-	else
+
+	// the only thing in the headers we care about, per-rfc (rfc2616
+	// sec 14.20), is that we need to reject a request if it contains
+	// an "Expect" header (since we don't *really* want to deal with
+	// that header, and this is what we can minimally get away with)
+	if (request.getHeader ("expect") != null)
 	{
-	    path = path.substring (1);
+	    return makeErrorDocument (417, 
+				      "Server cannot honor Expect header");
 	}
 
-	return myTopLevelHandler.handleRequest (null, path, req);
-    }
-
-    /**
-     * Do everything needed for a single connection.
-     */
-    private void handleNewConnection ()
-    {
-	Socket s = null;
-
 	try
 	{
-	    synchronized (mySynch)
+	    Document doc = getDocument (request);
+
+	    if (doc == null)
 	    {
-		if (myShouldStop)
-		{
-		    return;
-		}
+		return makeErrorDocument (404, "Document Not Found");
 	    }
-	    s = myServerSocket.accept ();
-	}
-	catch (InterruptedIOException ex)
-	{
-	    // probably because we were requested to shutdown, or because
-	    // of the one-minute timeout to workaround the fact that
-	    // Thread.interrupt() won't reliably interrupt a call to
-	    // accept()
-	    return;
+
+	    if (myCompression)
+	    {
+		doc = CompressedDocument.forRequest (request, doc,
+						     myOnTheFlyCompression,
+						     background);
+	    }
+
+	    doc = checkNotModified (request, doc);
+	    return RangeDocument.forRequest (request, doc);
 	}
-	catch (IOException ex)
+	catch (RuntimeException ex)
 	{
-	    myLogger.error (this + " got exception accepting connection",
-			    ex);
-	    return;
+	    myLogger.error ("Error while processing request", ex);
+	    return makeErrorDocument (500, "Error while processing request");
 	}
+    }
 
-	if (DEBUG)
+    /**
+     * Log a response to the access log, if there is one. This is used by
+     * all the connection engines, once the response has been written
+     * (or writing it has failed).
+     *
+     * @param sock non-null; the socket for the connection
+     * @param request null-ok; the request being responded to, or
+     * <code>null</code> if it couldn't be read
+     * @param doc non-null; the document that was sent in response
+     * @param bytes the number of bytes sent after the headers, or
+     * <code>-1</code> if the response couldn't be completely written
+     */
+    void logAccess (Socket sock, HttpRequest request, Document doc, 
+		    long bytes)
+    {
+	AccessLog log = myAccessLog;
+
+	if (log == null)
 	{
-	    myLogger.debug (this + " accepted connection " + s);
+	    return;
 	}
 
-	// do the rest in a thread
-	new ConnectionThread (s);
+	log.log (sock.getInetAddress (), request, doc.getResultCode (),
+		 bytes);
     }
 
     /**
-     * Read a HTTP request from the given socket and return a
-     * corresponding object, or return <code>null</code> if there was
-     * no valid request to be found.
+     * Get the keep-alive timeout.
      *
-     * @param sock non-null; the socket to deal with
-     * @return null-ok; an array consisting of the method, the document
-     * being requested, and the HTTP version; or <code>null</code> if the
-     * request is invalid 
+     * @see #setKeepAliveTimeout
+     *
+     * @return the keep-alive timeout, in msec
      */
-    private HttpRequest httpReadRequest (Socket sock)
+    int getKeepAliveTimeout ()
     {
-	HttpRequest request;
+	return myKeepAliveTimeout;
+    }
 
-	try
-	{
-	    sock.setSoTimeout (10000);
-	    request = HttpRequest.read (sock.getInputStream ());
-	}
-	catch (InterruptedIOException ex)
+    /**
+     * Decide whether the connection that the given request came in on
+     * should be kept open after responding with the given document.
+     *
+     * @param request non-null; the request
+     * @param doc non-null; the document to be sent in response
+     * @param count the number of requests serviced on the connection so
+     * far, including this one
+     * @return <code>true</code> if the connection should be kept open
+     */
+    boolean shouldKeepAlive (HttpRequest request, Document doc, int count)
+    {
+	if ((count >= myMaxRequestsPerConnection) || !myIsRunning)
 	{
-	    // see rfc2616 sec 10.4.9
-	    httpErrorResponse ("1.1", sock, 408, "Request Timed Out");
-	    return null;
+	    return false;
 	}
-	catch (IOException ex)
+
+	if (request.getErrorCode () != 0)
 	{
-	    httpErrorResponse ("1.1", sock, 400, "Error Reading Request");
-	    return null;
+	    // there's no telling where the next request would start
+	    return false;
 	}
 
-	if (DEBUG)
+	if ((doc.getContentLength () == Document.CONTENT_LENGTH_UNKNOWN)
+	    && (request.getRequestMethod () != HttpRequest.REQUEST_HEAD)
+	    && !isChunked (request.getHttpVersion (), 
+			   Document.CONTENT_LENGTH_UNKNOWN))
 	{
-	    myLogger.debug (this.toString () + " got request:");
-	    myLogger.debug (request.toDebugString ("  "));
+	    // the only way to delimit the content is to close the
+	    // connection after it
+	    return false;
 	}
 
-	String httpVer = request.getHttpVersion ();
-	int errorCode = request.getErrorCode ();
+	// see rfc2616 sec 8.1.2.1 and sec 19.6.2
 
-	if (errorCode != 0)
+	if (hasConnectionToken (request, "close"))
 	{
-	    // the request was errorful; abort! abort!
-	    httpErrorResponse (httpVer,
-			       sock, 
-			       errorCode,
-			       request.getErrorMsg ());
-	    return null;
+	    return false;
 	}
 
-	// the only thing in the headers we care about, per-rfc (rfc2616
-	// sec 14.20), is that we need to reject a request if it contains
-	// an "Expect" header (since we don't *really* want to deal with
-	// that header, and this is what we can minimally get away with)
-	if (request.getHeader ("expect") != null)
+	if (request.getHttpVersion () == "1.0")
 	{
-	    httpErrorResponse (httpVer, sock, 417, 
-			       "Server cannot honor Expect header");
+	    return hasConnectionToken (request, "keep-alive");
+	}
+
+	return true;
+    }
+
+    /**
+     * Write the content (if appropriate) of an HTTP response for the
+     * given document to the given stream, following the headers written
+     * by {@link #writeHeaders}. If a channel is given, then the content
+     * is written to it rather than to the stream, which lets documents
+     * avoid copying the content through the heap (see {@link
+     * Document#writeBytes(WritableByteChannel, long)}); in that case the
+     * stream and channel must lead to the same place, and the channel
+     * must be in blocking mode. Content of unknown length goes out with
+     * the chunked transfer coding to clients that can take it (see
+     * {@link #isChunked}). This neither closes the stream nor catches
+     * exceptions; that's up to the caller.
+     *
+     * @param httpVer non-null; the HTTP protocol verion
+     * @param os non-null; the stream to write to
+     * @param chan null-ok; the channel to write the content to
+     * @param method the request method
+     * @param doc non-null; the document to output 
+     * @param contentLength the content length of the document, as
+     * returned by {@link Document#getContentLength}
+     * @return the number of bytes written, including any chunk framing
+     */
+    long writeContent (String httpVer, OutputStream os, 
+		       WritableByteChannel chan, int method, Document doc, 
+		       long contentLength)
+	throws IOException
+    {
+	CountingOutputStream counter = new CountingOutputStream (os);
+	long channelCount = 0;
+
+	if (hasContent (method, doc, contentLength))
+	{
+	    if (isChunked (httpVer, contentLength))
+	    {
+		ChunkedOutputStream cos = new ChunkedOutputStream (counter);
+		doc.writeBytes (cos, contentLength);
+		cos.finish ();
+		counter.flush ();
+	    }
+	    else if (chan != null)
+	    {
+		doc.writeBytes (chan, contentLength);
+		channelCount = contentLength;
+	    }
+	    else
+	    {
+		doc.writeBytes (counter, contentLength);
+		counter.flush ();
+	    }
+	}
+
+	return counter.getCount () + channelCount;
+    }
+
+    /**
+     * Write the status line and headers of an HTTP response for the
+     * given document to the given stream, and flush it.
+     *
+     * @param httpVer non-null; the HTTP protocol verion
+     * @param os non-null; the stream to write to
+     * @param doc non-null; the document to output 
+     * @param contentLength the content length of the document, as
+     * returned by {@link Document#getContentLength}
+     * @param keepAlive whether the connection is to be kept open
+     * after the response
+     * @return the number of bytes written
+     */
+    int writeHeaders (String httpVer, OutputStream os, Document doc, 
+		      long contentLength, boolean keepAlive)
+	throws IOException
+    {
+	DateLine dateLine = currentDateLine ();
+	String lastModString = httpDateString (doc.getLastModified ());
+	int resCode = doc.getResultCode ();
+	String resMsg = doc.getResultMsg ();
+
+	if (DEBUG)
+	{
+	    myLogger.debug (this + " response: " + resCode + ' ' + resMsg);
+	    myLogger.debug ("  Date: " + dateLine.myString);
+	    myLogger.debug ("  Last-Modified: " + lastModString);
+
+	    if (contentLength != Document.CONTENT_LENGTH_NONE)
+	    {
+		myLogger.debug ("  Content-Type: " + doc.getContentType ());
+		if (contentLength >= 0)
+		{
+		    myLogger.debug ("  Content-Length: " + contentLength);
+		}
+	    }
+
+	    Map eh = doc.getExtraHeaders ();
+	    if (eh != null)
+	    {
+		Iterator i = eh.keySet ().iterator ();
+		while (i.hasNext ())
+		{
+		    String one = (String) i.next ();
+		    myLogger.debug ("  " + one + ": " + eh.get (one));
+		}
+	    }
+	}
+
+	// the whole header block gets built up here and then written all
+	// at once; the fixed parts of it are all preencoded
+	HeaderBuffer hb = new HeaderBuffer ();
+	hb.append (statusLine (httpVer, resCode, resMsg));
+	hb.append (dateLine.myBytes);
+	hb.append (TheServerLine);
+
+	// documents which specify their own caching policy get to have
+	// it; everything else is marked as uncacheable
+	boolean defaultCaching = 
+	    !(hasExtraHeader (doc, "cache-control")
+	      || hasExtraHeader (doc, "expires"));
+
+	if (defaultCaching)
+	{
+	    hb.append (TheExpiresLine);
+	}
+ 
+	if (keepAlive)
+	{
+	    hb.append (TheKeepAliveLine);
+	}
+	else if (httpVer != "1.0")
+	{
+	    hb.append (TheCloseLine);
+	}
+
+	if (defaultCaching)
+	{
+	    hb.append ((httpVer != "1.0") ? TheNoCacheLine : ThePragmaLine);
+	}
+
+	String etag = doc.getETag ();
+	if (etag != null)
+	{
+	    hb.append (TheETagPrefix);
+	    hb.append (etag);
+	    hb.append (TheCrlf);
+	}
+
+	if ((resCode == 200) && (contentLength >= 0))
+	{
+	    hb.append (TheAcceptRangesLine);
+	}
+
+	// a response that could have been compressed depends on the
+	// client's Accept-Encoding whether or not it actually was, and
+	// shared caches have to be told so, lest they hand the wrong form
+	// to the next client (compressed forms already say so themselves)
+	boolean varyCoding =
+	    ((resCode == 200) || (resCode == 206))
+	    && (contentLength != Document.CONTENT_LENGTH_NONE)
+	    && CompressedDocument.isCompressible (doc.getContentType ())
+	    && !hasExtraHeader (doc, "content-encoding");
+
+	Map eh = doc.getExtraHeaders ();
+	if (eh != null)
+	{
+	    Iterator i = eh.keySet ().iterator ();
+	    while (i.hasNext ())
+	    {
+		String one = (String) i.next ();
+		String value = String.valueOf (eh.get (one));
+		if (varyCoding && one.equalsIgnoreCase ("vary"))
+		{
+		    if (value.toLowerCase ().indexOf ("accept-encoding") == -1)
+		    {
+			value = value + ", Accept-Encoding";
+		    }
+		    varyCoding = false;
+		}
+		hb.append (one);
+		hb.append (": ");
+		hb.append (value);
+		hb.append (TheCrlf);
+	    }
+	}
+
+	if (varyCoding)
+	{
+	    hb.append (TheVaryLine);
+	}
+
+	hb.append (TheLastModifiedPrefix);
+	hb.append (lastModString);
+	hb.append (TheCrlf);
+
+	if (contentLength != Document.CONTENT_LENGTH_NONE)
+	{
+	    hb.append (TheContentTypePrefix);
+	    hb.append (doc.getContentType ());
+	    hb.append (TheCrlf);
+
+	    if (contentLength >= 0)
+	    {
+		hb.append (TheContentLengthPrefix);
+		hb.append (Long.toString (contentLength));
+		hb.append (TheCrlf);
+	    }
+	    else if (isChunked (httpVer, contentLength))
+	    {
+		hb.append (TheChunkedLine);
+	    }
+	}
+
+	hb.append (TheCrlf);
+	hb.writeTo (os);
+	os.flush ();
+	return hb.length ();
+    }
+
+    /**
+     * Generate an HTTP response, for a request that couldn't be read
+     * (or wasn't). This closes the socket when the response is
+     * complete.
+     *
+     * @param httpVer non-null; the HTTP protocol verion
+     * @param sock non-null; the socket to use
+     * @param doc non-null; the document to output 
+     * message
+     */
+    void httpResponse (String httpVer, Socket sock, Document doc)
+    {
+	httpResponse (httpVer, sock, null, HttpRequest.REQUEST_GET, doc, 
+		      false);
+    }
+
+    /**
+     * Generate an HTTP response, and log it once it has been written.
+     * This closes the socket when the response is complete, unless the
+     * connection is to be kept alive and the response was successfully
+     * written.
+     *
+     * @param httpVer non-null; the HTTP protocol verion
+     * @param sock non-null; the socket to use
+     * @param request null-ok; the request being responded to, if it
+     * could be read
+     * @param method the request method
+     * @param doc non-null; the document to output 
+     * @param keepAlive whether the connection is to be kept open
+     * after the response
+     * @return <code>true</code> if the connection was kept open
+     */
+    boolean httpResponse (String httpVer, Socket sock, HttpRequest request,
+			  int method, Document doc, boolean keepAlive)
+    {
+	boolean written = false;
+
+	try
+	{
+	    OutputStream os = sock.getOutputStream ();
+	    long contentLength = doc.getContentLength ();
+	    int headerCount = 
+		writeHeaders (httpVer, os, doc, contentLength, keepAlive);
+	    myMetrics.addBytesOut (headerCount);
+	    long count = writeContent (httpVer, os, sock.getChannel (), 
+				       method, doc, contentLength);
+	    myMetrics.addBytesOut (count);
+	    written = true;
+	    logAccess (sock, request, doc, count);
+
+	    if (keepAlive)
+	    {
+		return true;
+	    }
+	}
+	catch (IOException ex)
+	{
+	    String msg = ex.getMessage ();
+	    Class cls = ex.getClass ();
+	    String extra = 
+		(cls == IOException.class) ? 
+		"" : 
+		(" (" + cls.getName () + ")");
+
+	    myLogger.error ("ERROR: " + this + " got IOException" + extra + 
+			    " during response to " + sock + ": " + msg);
+        }
+	catch (Exception ex)
+	{
+	    myLogger.error (this + " got exception during response to " + sock,
+			    ex);
+	}
+
+	if (! written)
+	{
+	    logAccess (sock, request, doc, -1);
+	}
+
+	shutdownConnection (sock);
+	return false;
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private instance methods
+
+    /**
+     * Check the given document against the conditional headers
+     * (<code>If-None-Match</code> and <code>If-Modified-Since</code>) of
+     * the given request, returning a <code>304 Not Modified</code>
+     * document if the client's cached copy is still good, or just
+     * returning the given document if not. Per rfc2616 sec 14.26, an
+     * <code>If-None-Match</code> header takes precedence over an
+     * <code>If-Modified-Since</code> header.
+     *
+     * @param request non-null; the request
+     * @param doc non-null; the document that was found for the request
+     * @return non-null; the document to respond with
+     */
+    private Document checkNotModified (HttpRequest request, Document doc)
+    {
+	int method = request.getRequestMethod ();
+
+	if (((method != HttpRequest.REQUEST_GET)
+	     && (method != HttpRequest.REQUEST_HEAD))
+	    || (doc.getResultCode () != 200))
+	{
+	    return doc;
+	}
+
+	String etag = doc.getETag ();
+	String ifNoneMatch = request.getHeader ("if-none-match");
+	boolean notModified;
+
+	if (ifNoneMatch != null)
+	{
+	    notModified = (etag != null) && eTagListMatches (ifNoneMatch, etag);
+	}
+	else
+	{
+	    String ifModifiedSince = request.getHeader ("if-modified-since");
+	    long since = 
+		(ifModifiedSince == null) ? -1 : parseHttpDate (ifModifiedSince);
+
+	    // http dates only have a resolution of a second
+	    notModified = 
+		(since != -1) 
+		&& ((doc.getLastModified () / 1000) <= (since / 1000));
+	}
+
+	if (! notModified)
+	{
+	    return doc;
+	}
+
+	if (DEBUG)
+	{
+	    myLogger.debug (this + " document not modified");
+	}
+
+	// rfc2616 sec 10.3.5 says to repeat the entity tag and any
+	// caching headers; the document's extra headers are a close
+	// enough approximation of the latter
+	TreeMap headers = new TreeMap ();
+	Map eh = doc.getExtraHeaders ();
+	if (eh != null)
+	{
+	    headers.putAll (eh);
+	}
+
+	if (etag != null)
+	{
+	    headers.put ("ETag", etag);
+	}
+
+	return new StaticDocument (doc.getLastModified (), 304, "Not Modified",
+				   headers);
+    }
+
+    /**
+     * Get the document for the given request and return it, or return
+     * <code>null</code> if there is no such document.
+     *
+     * @param req non-null; the request to serve
+     * @return null-ok; the document or <code>null</code> if there is no
+     * document for the given path 
+     */
+    private Document getDocument (HttpRequest req)
+    {
+	return myRoutes.resolve (req.getPath (), req);
+    }
+
+    /**
+     * Do everything needed for a single connection.
+     */
+    private void handleNewConnection ()
+    {
+	Socket s = null;
+
+	try
+	{
+	    synchronized (mySynch)
+	    {
+		if (myShouldStop)
+		{
+		    return;
+		}
+	    }
+	    s = myServerSocket.accept ();
+	}
+	catch (InterruptedIOException ex)
+	{
+	    // probably because we were requested to shutdown, or because
+	    // of the one-minute timeout to workaround the fact that
+	    // Thread.interrupt() won't reliably interrupt a call to
+	    // accept()
+	    return;
+	}
+	catch (IOException ex)
+	{
+	    myLogger.error (this + " got exception accepting connection",
+			    ex);
+	    return;
+	}
+
+	if (DEBUG)
+	{
+	    myLogger.debug (this + " accepted connection " + s);
+	}
+
+	// do the rest in a worker thread, if there's room
+	try
+	{
+	    myWorkers.execute (new ConnectionHandler (s));
+	}
+	catch (RejectedExecutionException ex)
+	{
+	    rejectConnection (s);
+	}
+    }
+
+    /**
+     * Make the pool of worker threads for the thread-per-connection
+     * engine.
+     *
+     * @return non-null; the pool
+     */
+    private ThreadPoolExecutor makeWorkerPool ()
+    {
+	BlockingQueue queue;
+
+	if (myQueueSize == 0)
+	{
+	    queue = new SynchronousQueue ();
+	}
+	else
+	{
+	    queue = new ArrayBlockingQueue (myQueueSize);
+	}
+
+	ThreadFactory factory = new ThreadFactory ()
+	{
+	    public Thread newThread (Runnable r)
+	    {
+		Thread t = new Thread (r, TinyWebServer.this + " worker");
+		t.setDaemon (true);
+		return t;
+	    }
+	};
+
+	ThreadPoolExecutor result = 
+	    new ThreadPoolExecutor (myCoreWorkers, myMaxWorkers, 
+				    WORKER_IDLE_MSEC, TimeUnit.MILLISECONDS, 
+				    queue, factory);
+	result.allowCoreThreadTimeOut (true);
+	myMetrics.setQueue (queue);
+	return result;
+    }
+
+    /**
+     * Respond to the given just-accepted connection with an indication
+     * that the server is overloaded, and close it. This is done on the
+     * accepting thread, without waiting for the request, which is okay
+     * since the response is small enough to fit in the socket's send
+     * buffer.
+     *
+     * @param sock non-null; the socket for the connection
+     */
+    private void rejectConnection (Socket sock)
+    {
+	if (DEBUG)
+	{
+	    myLogger.debug (this + " overloaded; rejecting " + sock);
+	}
+
+	Document doc = makeUnavailableDocument ();
+
+	long start = System.nanoTime ();
+	httpResponse ("1.1", sock, doc);
+	myMetrics.recordResponse (null, 503, -1, -1, 
+				  System.nanoTime () - start);
+    }
+
+    /**
+     * Shut down the given connection.
+     *
+     * @param sock non-null; the socket for the connection
+     */
+    private void shutdownConnection (Socket sock)
+    {
+	try
+	{
+	    sock.shutdownOutput ();
+	    sock.shutdownInput ();
+	}
+	catch (IOException ex)
+	{
+	    myLogger.error(this + " got exception during response to " + sock,
+			   ex);
+	}
+    }
+
+    /**
+     * Wait for the start of a subsequent request on a persistent
+     * connection. If the client closes the connection or it sits idle
+     * for too long, then this shuts it down.
+     *
+     * @param sock non-null; the socket for the connection
+     * @param in non-null; the stream to read from
+     * @return <code>true</code> if there's another request to read
+     */
+    private boolean awaitNextRequest (Socket sock, RequestInputStream in)
+    {
+	boolean gotInput;
+
+	try
+	{
+	    sock.setSoTimeout (myKeepAliveTimeout);
+	    gotInput = in.awaitInput ();
+	}
+	catch (IOException ex)
+	{
+	    // most likely timed out, which is the normal way for a
+	    // persistent connection to end
+	    gotInput = false;
+	}
+
+	if (! gotInput)
+	{
+	    shutdownConnection (sock);
+	    return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Read a HTTP request from the given socket and return a
+     * corresponding object, or return <code>null</code> if there was
+     * no valid request to be found. In the latter case, an error response
+     * will have already been sent.
+     *
+     * @param sock non-null; the socket to deal with
+     * @param in non-null; the stream to read from
+     * @return null-ok; the request, or <code>null</code> if the request
+     * couldn't be read
+     */
+    private HttpRequest httpReadRequest (Socket sock, RequestInputStream in)
+    {
+	try
+	{
+	    sock.setSoTimeout (10000);
+	    return in.readRequest ();
+	}
+	catch (InterruptedIOException ex)
+	{
+	    // see rfc2616 sec 10.4.9
+	    httpErrorResponse ("1.1", sock, 408, "Request Timed Out");
 	    return null;
 	}
+	catch (IOException ex)
+	{
+	    httpErrorResponse ("1.1", sock, 400, "Error Reading Request");
+	    return null;
+	}
+    }
+
+    /**
+     * Generate an HTTP error response on the given socket and
+     * close the connection.
+     *
+     * @param httpVer non-null; the HTTP protocol verion
+     * @param sock the socket to use
+     * @param code the error code
+     * @param msg the message string to use
+     */
+    private void httpErrorResponse (String httpVer, Socket sock, int code, 
+				    String msg)
+    {
+	Document doc = makeErrorDocument (code, msg);
+	long start = System.nanoTime ();
+	httpResponse (httpVer, sock, doc);
+	myMetrics.recordResponse (null, code, -1, -1, 
+				  System.nanoTime () - start);
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // package static methods
+
+    /**
+     * Return whether the given document has an extra header with the
+     * given name. The comparison is done case-insensitively.
+     *
+     * @param doc non-null; the document
+     * @param name non-null; the header name
+     * @return <code>true</code> if the document has such a header
+     */
+    static boolean hasExtraHeader (Document doc, String name)
+    {
+	Map eh = doc.getExtraHeaders ();
+
+	if (eh == null)
+	{
+	    return false;
+	}
+
+	Iterator i = eh.keySet ().iterator ();
+	while (i.hasNext ())
+	{
+	    if (((String) i.next ()).equalsIgnoreCase (name))
+	    {
+		return true;
+	    }
+	}
+
+	return false;
+    }
+
+    /**
+     * Return whether a response with content of the given length should
+     * be sent with the chunked transfer coding (see rfc2616 sec 3.6.1).
+     * That's the case when the length is unknown, and the client is
+     * HTTP/1.1 (HTTP/1.0 clients don't understand the coding, so for
+     * them the content is delimited by closing the connection).
+     *
+     * @param httpVer non-null; the HTTP protocol version, as an interned
+     * string
+     * @param contentLength the content length of the document, as
+     * returned by {@link Document#getContentLength}
+     * @return <code>true</code> if the response should be chunked
+     */
+    static boolean isChunked (String httpVer, long contentLength)
+    {
+	return (contentLength == Document.CONTENT_LENGTH_UNKNOWN)
+	    && (httpVer != "1.0");
+    }
+
+    /**
+     * Return whether a response with the given document should include
+     * its content.
+     *
+     * @param method the request method
+     * @param doc non-null; the document to output 
+     * @param contentLength the content length of the document, as
+     * returned by {@link Document#getContentLength}
+     * @return <code>true</code> if the content should be written
+     */
+    static boolean hasContent (int method, Document doc, long contentLength)
+    {
+	return ((method != HttpRequest.REQUEST_HEAD) 
+		|| (doc instanceof ErrorDocument))
+	    && (contentLength != Document.CONTENT_LENGTH_NONE);
+    }
+
+    /**
+     * Make an error document with the given code and message.
+     *
+     * @param code the error code
+     * @param msg non-null; the message string to use
+     * @return non-null; the error document
+     */
+    static Document makeErrorDocument (int code, String msg)
+    {
+	return makeErrorDocument (code, msg, null);
+    }
+
+    /**
+     * Make an error document with the given code, message, and extra
+     * headers.
+     *
+     * @param code the error code
+     * @param msg non-null; the message string to use
+     * @param extraHeaders null-ok; map of additional response headers, if
+     * any; if non-<code>null</code>, must be a map of <code>String</code>s
+     * to <code>String</code>s
+     * @return non-null; the error document
+     */
+    static Document makeErrorDocument (int code, String msg, Map extraHeaders)
+    {
+	StringBuffer sb = new StringBuffer (1000);
+
+	sb.append ("<html>\n" +
+		   "<head><title>");
+	sb.append (code);
+	sb.append (' ');
+	sb.append (msg);
+	sb.append ("</title></head>\n" +
+		   "<body><h1>");
+	sb.append (code);
+	sb.append (' ');
+	sb.append (msg);
+	sb.append ("</h1>\n" + 
+		   "<p>Deal with it, okay?</p></body>\n" +
+		   "</html>\n");
+
+	try
+	{
+	    return new ErrorDocument (sb.toString ().getBytes ("ISO-8859-1"),
+				      code, msg, extraHeaders);
+	}
+	catch (UnsupportedEncodingException ex)
+	{
+	    // shouldn't happen; all VMs are supposed to support
+	    // ISO-8859-1
+	    throw new EmbeddedException ("shouldn't happen", ex);
+	}
+    }
+
+    /**
+     * Make the error document used to tell a client that the server is
+     * too busy to deal with it right now.
+     *
+     * @return non-null; the error document
+     */
+    static Document makeUnavailableDocument ()
+    {
+	TreeMap headers = new TreeMap ();
+	headers.put ("Retry-After", Integer.toString (RETRY_AFTER_SECS));
+	return makeErrorDocument (503, "Service Unavailable", headers);
+    }
+
+    /**
+     * Parse the given HTTP-compliant date, in any of the three formats
+     * listed in rfc2616 sec 3.3.1, returning <code>-1</code> if it can't
+     * be parsed.
+     *
+     * @param date non-null; the date string
+     * @return the time it represents, or <code>-1</code> if it couldn't be
+     * parsed
+     */
+    static long parseHttpDate (String date)
+    {
+	date = date.trim ();
+
+	for (int i = 0; i < TheDateParsers.length; i++)
+	{
+	    try
+	    {
+		return Instant.from (TheDateParsers[i].parse (date))
+		    .toEpochMilli ();
+	    }
+	    catch (DateTimeException ex)
+	    {
+		// try the next format
+	    }
+	}
+
+	return -1;
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private static methods
+
+    /**
+     * Make an executor which runs each task on a new virtual thread, or
+     * return <code>null</code> if this VM doesn't support virtual
+     * threads. This is done reflectively, so that this class can still
+     * be compiled and run on VMs which predate them.
+     *
+     * @return null-ok; the executor, or <code>null</code> if virtual
+     * threads aren't available
+     */
+    static private ExecutorService makeVirtualThreadExecutor ()
+    {
+	try
+	{
+	    Method m = Executors.class.getMethod 
+		("newVirtualThreadPerTaskExecutor", new Class[0]);
+	    return (ExecutorService) m.invoke (null, new Object[0]);
+	}
+	catch (NoSuchMethodException ex)
+	{
+	    // too old a VM
+	    return null;
+	}
+	catch (InvocationTargetException ex)
+	{
+	    // a VM where they're a not-enabled preview feature
+	    return null;
+	}
+	catch (IllegalAccessException ex)
+	{
+	    // shouldn't happen
+	    return null;
+	}
+    }
+
+    /**
+     * Return whether the given list of entity tags (as found in an
+     * <code>If-None-Match</code> header) matches the given entity tag.
+     * The comparison is the weak one (see rfc2616 sec 13.3.3), and a
+     * list of just <code>*</code> matches anything.
+     *
+     * @param list non-null; the list of entity tags
+     * @param etag non-null; the entity tag to look for
+     * @return <code>true</code> if the tag is matched
+     */
+    static private boolean eTagListMatches (String list, String etag)
+    {
+	int at = 0;
+	int len = list.length ();
+	while (at < len)
+	{
+	    int commaAt = list.indexOf (',', at);
+	    if (commaAt == -1)
+	    {
+		commaAt = len;
+	    }
+
+	    String one = list.substring (at, commaAt).trim ();
+	    if (one.startsWith ("W/"))
+	    {
+		one = one.substring (2);
+	    }
+
+	    if (one.equals ("*") || one.equals (etag))
+	    {
+		return true;
+	    }
+
+	    at = commaAt + 1;
+	}
+
+	return false;
+    }
+
+    /**
+     * Return whether the <code>Connection</code> header of the given
+     * request contains the given token. The comparison is done
+     * case-insensitively.
+     *
+     * @param request non-null; the request
+     * @param token non-null; the token to look for
+     * @return <code>true</code> if the token is present
+     */
+    static private boolean hasConnectionToken (HttpRequest request, 
+					       String token)
+    {
+	String value = request.getHeader ("connection");
+
+	if (value == null)
+	{
+	    return false;
+	}
+
+	int at = 0;
+	int len = value.length ();
+	while (at < len)
+	{
+	    int commaAt = value.indexOf (',', at);
+	    if (commaAt == -1)
+	    {
+		commaAt = len;
+	    }
+
+	    String one = value.substring (at, commaAt).trim ();
+	    if (one.equalsIgnoreCase (token))
+	    {
+		return true;
+	    }
+
+	    at = commaAt + 1;
+	}
 
-	return request;
+	return false;
     }
 
     /**
-     * Respond with the given document, as found by calling {@link
-     * #getDocument} or respond with an error if the named document doesn't
-     * exist. The <code>request</code> parameter contains all the
-     * information from the original request. This method closes the socket
-     * when the response is complete.
+     * Format the given time as an HTTP-compliant date.
      *
-     * @param sock non-null; the socket to respond on
-     * @param request non-null; the original request
+     * @param time the time
+     * @return the formatted version
      */
-    private void httpDocResponse (Socket sock, HttpRequest request)
+    static private String httpDateString (long time)
     {
-	String httpVer = request.getHttpVersion ();
+	return TheDateFormatter.format (Instant.ofEpochMilli (time));
+    }    
 
-	try
+    /**
+     * Get the <code>Date</code> header line for the current time, making
+     * a new one if the second has changed since the last one was made.
+     * Two threads may race to make the new one, which is harmless.
+     *
+     * @return non-null; the current date line
+     */
+    static private DateLine currentDateLine ()
+    {
+	long now = System.currentTimeMillis ();
+	long second = now / 1000;
+	DateLine result = TheDateLine;
+
+	if ((result == null) || (result.mySecond != second))
 	{
-	    Document doc = getDocument (request);
+	    result = new DateLine (second, httpDateString (second * 1000));
+	    TheDateLine = result;
+	}
 
-	    if (doc == null)
-	    {
-		httpErrorResponse (httpVer, sock, 404, "Document Not Found");
-		return;
-	    }
+	return result;
+    }
+
+    /**
+     * Get the preencoded status line for the given version, result code,
+     * and message. The ones for the usual versions and result codes get
+     * cached, so that they only get encoded the first time they're
+     * needed (or if a different message gets used with the same code).
+     *
+     * @param httpVer non-null; the HTTP protocol version
+     * @param code the result code
+     * @param msg non-null; the result message
+     * @return non-null; the encoded status line, including the line
+     * terminator
+     */
+    static private byte[] statusLine (String httpVer, int code, String msg)
+    {
+	AtomicReferenceArray cache;
 
-	    httpResponse (request.getHttpVersion (), 
-			  sock, 
-			  request.getRequestMethod (), 
-			  doc);
+	if (httpVer == "1.1")
+	{
+	    cache = The11StatusLines;
 	}
-	catch (RuntimeException ex)
+	else if (httpVer == "1.0")
 	{
-	    myLogger.error ("Error while processing request", ex);
-	    httpErrorResponse (httpVer, sock, 500, 
-			       "Error while processing request");
+	    cache = The10StatusLines;
+	}
+	else
+	{
+	    cache = null;
+	}
+
+	if ((cache == null) || (code < 0) || (code >= cache.length ()))
+	{
+	    return asciiBytes ("HTTP/" + httpVer + ' ' + code + ' ' + msg +
+			       "\r\n");
+	}
+
+	StatusLine line = (StatusLine) cache.get (code);
+	if ((line == null) || !line.myMsg.equals (msg))
+	{
+	    line = new StatusLine (msg, 
+				   asciiBytes ("HTTP/" + httpVer + ' ' + 
+					       code + ' ' + msg + "\r\n"));
+	    cache.set (code, line);
 	}
+
+	return line.myBytes;
     }
 
     /**
-     * Generate an HTTP error response on the given socket and
-     * close the connection.
+     * Encode the given string as bytes, one per character, as is done
+     * for HTTP headers.
      *
-     * @param httpVer non-null; the HTTP protocol verion
-     * @param sock the socket to use
-     * @param code the error code
-     * @param msg the message string to use
+     * @param s non-null; the string to encode
+     * @return non-null; the encoded form
      */
-    private void httpErrorResponse (String httpVer, Socket sock, int code, 
-				    String msg)
+    static private byte[] asciiBytes (String s)
     {
-	StringBuffer sb = new StringBuffer (1000);
+	return s.getBytes (StandardCharsets.ISO_8859_1);
+    }
 
-	sb.append ("<html>\n" +
-		   "<head><title>");
-	sb.append (code);
-	sb.append (' ');
-	sb.append (msg);
-	sb.append ("</title></head>\n" +
-		   "<body><h1>");
-	sb.append (code);
-	sb.append (' ');
-	sb.append (msg);
-	sb.append ("</h1>\n" + 
-		   "<p>Deal with it, okay?</p></body>\n" +
-		   "</html>\n");
-	Document doc = Document.makeHTML (sb.toString (), code, msg);
 
-	httpResponse (httpVer, sock, HttpRequest.REQUEST_GET, doc);
+
+    // ------------------------------------------------------------------------
+    // private static classes
+
+    /**
+     * A preencoded <code>Date</code> header line, along with the second
+     * it's for. Instances are immutable.
+     */
+    static private final class DateLine
+    {
+	/** the second (since the epoch) this instance is for */
+	public final long mySecond;
+
+	/** non-null; the formatted date */
+	public final String myString;
+
+	/** non-null; the complete encoded header line */
+	public final byte[] myBytes;
+
+	/**
+	 * Construct an instance.
+	 *
+	 * @param second the second this instance is for
+	 * @param string non-null; the formatted date
+	 */
+	public DateLine (long second, String string)
+	{
+	    mySecond = second;
+	    myString = string;
+	    myBytes = asciiBytes ("Date: " + string + "\r\n");
+	}
     }
 
     /**
-     * Generate an HTTP response. This closes the socket when the
-     * response is complete.
-     *
-     * @param httpVer non-null; the HTTP protocol verion
-     * @param sock non-null; the socket to use
-     * @param method the request method
-     * @param doc non-null; the document to output 
-     * message
+     * A preencoded status line, along with the message it was made
+     * with. Instances are immutable.
      */
-    private void httpResponse (String httpVer, Socket sock, 
-			       int method, Document doc)
+    static private final class StatusLine
     {
-	String lastModString = httpDateString (doc.getLastModified ());
-	String nowString = httpDateString (System.currentTimeMillis ());
-	long contentLength = doc.getContentLength ();
-	int resCode = doc.getResultCode ();
-	String resMsg = doc.getResultMsg ();
+	/** non-null; the result message */
+	public final String myMsg;
 
-	if (DEBUG)
+	/** non-null; the complete encoded status line */
+	public final byte[] myBytes;
+
+	/**
+	 * Construct an instance.
+	 *
+	 * @param msg non-null; the result message
+	 * @param bytes non-null; the complete encoded status line
+	 */
+	public StatusLine (String msg, byte[] bytes)
 	{
-	    myLogger.debug (this + " response: " + resCode + ' ' + resMsg);
-	    myLogger.debug ("  Date: " + nowString);
-	    myLogger.debug ("  Last-Modified: " + lastModString);
+	    myMsg = msg;
+	    myBytes = bytes;
+	}
+    }
 
-	    if (contentLength != Document.CONTENT_LENGTH_NONE)
-	    {
-		myLogger.debug ("  Content-Type: " + doc.getContentType ());
-		if (contentLength >= 0)
-		{
-		    myLogger.debug ("  Content-Length: " + contentLength);
-		}
-	    }
+    /**
+     * Growable buffer into which a block of headers gets built, so that
+     * it can be written with a single call.
+     */
+    static private final class HeaderBuffer
+    {
+	/** non-null; the bytes */
+	private byte[] myBytes;
 
-	    Map eh = doc.getExtraHeaders ();
-	    if (eh != null)
-	    {
-		Iterator i = eh.keySet ().iterator ();
-		while (i.hasNext ())
-		{
-		    String one = (String) i.next ();
-		    myLogger.debug ("  " + one + ": " + eh.get (one));
-		}
-	    }
+	/** the number of bytes in use */
+	private int myLength;
+
+	/**
+	 * Construct an instance.
+	 */
+	public HeaderBuffer ()
+	{
+	    myBytes = new byte[400];
+	    myLength = 0;
 	}
 
-	try
+	/**
+	 * Append the given bytes.
+	 *
+	 * @param bytes non-null; the bytes to append
+	 */
+	public void append (byte[] bytes)
 	{
-	    OutputStream os = sock.getOutputStream ();
-	    PrintWriter p = new PrintWriter (os);
-	    p.print ("HTTP/");
-	    p.print (httpVer);
-	    p.print (' ');
-	    p.print (resCode);
-	    p.print (' ');
-	    p.print (resMsg);
-	    p.println ('\r');
-
-	    p.print ("Date: ");
-	    p.print (nowString);
-	    p.println ('\r');
-
-	    p.println ("Server: milk.com TinyWebServer\r");
-	    p.println ("Expires: 0\r");
- 
-	    if (httpVer != "1.0")
-	    {
-		p.println ("Connection: close\r");
-		p.println ("Cache-control: no-cache\r");
-	    }
-	    else
-	    {
-		p.println ("Pragma: no-cache\r");
-	    }
+	    ensureRoom (bytes.length);
+	    System.arraycopy (bytes, 0, myBytes, myLength, bytes.length);
+	    myLength += bytes.length;
+	}
 
-	    Map eh = doc.getExtraHeaders ();
-	    if (eh != null)
+	/**
+	 * Append the given string, one byte per character.
+	 *
+	 * @param s non-null; the string to append
+	 */
+	public void append (String s)
+	{
+	    int len = s.length ();
+	    ensureRoom (len);
+
+	    for (int i = 0; i < len; i++)
 	    {
-		Iterator i = eh.keySet ().iterator ();
-		while (i.hasNext ())
-		{
-		    String one = (String) i.next ();
-		    p.print (one);
-		    p.print (": ");
-		    p.print (eh.get (one));
-		    p.println ('\r');
-		}
+		char c = s.charAt (i);
+		myBytes[myLength + i] = (byte) ((c < 0x100) ? c : '?');
 	    }
 
-	    p.print ("Last-Modified: ");
-	    p.print (lastModString);
-	    p.println ('\r');
+	    myLength += len;
+	}
 
-	    if (contentLength != Document.CONTENT_LENGTH_NONE)
-	    {
-		p.print ("Content-Type: ");
-		p.print (doc.getContentType ());
-		p.println ('\r');
+	/**
+	 * Get the number of bytes in this instance.
+	 *
+	 * @return the number of bytes
+	 */
+	public int length ()
+	{
+	    return myLength;
+	}
 
-		if (contentLength >= 0)
-		{
-		    p.print ("Content-Length: ");
-		    p.print (contentLength);
-		    p.println ('\r');
-		}
-	    }
+	/**
+	 * Write the contents of this instance to the given stream.
+	 *
+	 * @param os non-null; the stream to write to
+	 */
+	public void writeTo (OutputStream os)
+	    throws IOException
+	{
+	    os.write (myBytes, 0, myLength);
+	}
 
-	    p.println ('\r');
-	    p.flush ();
+	/**
+	 * Make sure there is room for the given number of additional
+	 * bytes.
+	 *
+	 * @param amount the number of bytes
+	 */
+	private void ensureRoom (int amount)
+	{
+	    int needed = myLength + amount;
 
-	    if ((method != HttpRequest.REQUEST_HEAD)
-		&& (contentLength != Document.CONTENT_LENGTH_NONE))
+	    if (needed > myBytes.length)
 	    {
-		doc.writeBytes (os, contentLength);
-		os.flush ();
+		int newSize = Math.max (needed, myBytes.length * 2);
+		byte[] newBytes = new byte[newSize];
+		System.arraycopy (myBytes, 0, newBytes, 0, myLength);
+		myBytes = newBytes;
 	    }
 	}
-	catch (IOException ex)
-	{
-	    String msg = ex.getMessage ();
-	    Class cls = ex.getClass ();
-	    String extra = 
-		(cls == IOException.class) ? 
-		"" : 
-		(" (" + cls.getName () + ")");
+    }
 
-	    myLogger.error ("ERROR: " + this + " got IOException" + extra + 
-			    " during response to " + sock + ": " + msg);
-        }
-	catch (Exception ex)
+    /**
+     * Document class for the server's own error responses. These have
+     * their content sent even in response to <code>HEAD</code> requests.
+     */
+    static private final class ErrorDocument
+	extends Document
+    {
+	/** non-null; the bytes of the document */
+	private final byte[] myBytes;
+
+	/**
+	 * Construct an instance.
+	 *
+	 * @param bytes non-null; the bytes of the (HTML) document
+	 * @param code the error code
+	 * @param msg non-null; the message string
+	 * @param extraHeaders null-ok; map of additional response headers
+	 */
+	public ErrorDocument (byte[] bytes, int code, String msg, 
+			      Map extraHeaders)
 	{
-	    myLogger.error (this + " got exception during response to " + sock,
-			    ex);
+	    super ("text/html; charset=iso-8859-1",
+		   System.currentTimeMillis (),
+		   code,
+		   msg,
+		   extraHeaders);
+	    myBytes = bytes;
 	}
 
-	try
+	// superclass's javadoc suffices
+	public long getContentLength ()
 	{
-	    sock.shutdownOutput ();
-	    sock.shutdownInput ();
+	    return myBytes.length;
 	}
-	catch (IOException ex)
+
+	// superclass's javadoc suffices
+	public void writeBytes (OutputStream stream, long contentLength)
+	    throws IOException
 	{
-	    myLogger.error(this + " got exception during response to " + sock,
-			   ex);
+	    stream.write (myBytes);
 	}
     }
 
-
-
-    // ------------------------------------------------------------------------
-    // private static methods
-
     /**
-     * Format the given time as an HTTP-compliant date.
-     *
-     * @param time the time
-     * @return the formatted version
+     * Output stream which passes everything through to another one,
+     * keeping count of the bytes. It doesn't close the underlying
+     * stream.
      */
-    static private String httpDateString (long time)
+    static private final class CountingOutputStream
+	extends FilterOutputStream
     {
-	synchronized (TheDateFormatter)
+	/** the number of bytes written so far */
+	private long myCount;
+
+	/**
+	 * Construct an instance.
+	 *
+	 * @param out non-null; the stream to write to
+	 */
+	public CountingOutputStream (OutputStream out)
 	{
-	    TheDateToFormat.setTime (time);
-	    return TheDateFormatter.format (TheDateToFormat);
+	    super (out);
+	    myCount = 0;
 	}
-    }    
+
+	/**
+	 * Get the number of bytes written so far.
+	 *
+	 * @return the count
+	 */
+	public long getCount ()
+	{
+	    return myCount;
+	}
+
+	// superclass's javadoc suffices
+	public void write (int b)
+	    throws IOException
+	{
+	    out.write (b);
+	    myCount++;
+	}
+
+	// superclass's javadoc suffices
+	public void write (byte[] b, int off, int len)
+	    throws IOException
+	{
+	    out.write (b, off, len);
+	    myCount += len;
+	}
+
+	// superclass's javadoc suffices
+	public void close ()
+	    throws IOException
+	{
+	    flush ();
+	}
+    }
 
 
 
@@ -918,35 +2432,116 @@ public final class TinyWebServer
     }
 
     /**
-     * This is the thread class for handling established connections.
+     * This is the class for handling established connections, which is
+     * run by one of the worker threads.
      */
-    private class ConnectionThread
-	extends Thread
+    private class ConnectionHandler
+	implements Runnable
     {
 	/** non-null; the socket to use */
 	private Socket mySocket;
 
-	public ConnectionThread (Socket sock)
+	/**
+	 * Construct an instance.
+	 *
+	 * @param sock non-null; the socket to use
+	 */
+	public ConnectionHandler (Socket sock)
 	{
-	    super (TinyWebServer.this + ": " + sock);
 	    mySocket = sock;
-	    ConnectionThread.this.start ();
 	}
 
+	// superclass's javadoc suffices
+	public String toString ()
+	{
+	    return TinyWebServer.this + ": " + mySocket;
+	}
+
+	/**
+	 * Give up on the connection without servicing it. This is called
+	 * for connections still waiting in the queue when the server
+	 * gets closed.
+	 */
+	public void abandon ()
+	{
+	    shutdownConnection (mySocket);
+	}
+
+	// interface's javadoc suffices
 	public void run ()
 	{
+	    RequestInputStream in = null;
+	    long bytesCounted = 0;
+	    myMetrics.connectionOpened ();
+
 	    try
 	    {
-		HttpRequest request = httpReadRequest (mySocket);
-		if (request != null)
+		in = new RequestInputStream (mySocket.getInputStream ());
+
+		int count = 0;
+		for (;;)
 		{
-		    httpDocResponse (mySocket, request);
+		    count++;
+
+		    if ((count > 1) && !awaitNextRequest (mySocket, in))
+		    {
+			break;
+		    }
+
+		    long start = System.nanoTime ();
+		    HttpRequest request = httpReadRequest (mySocket, in);
+		    if (request == null)
+		    {
+			break;
+		    }
+
+		    long parsed = System.nanoTime ();
+		    Document doc = documentFor (request, null);
+		    long handled = System.nanoTime ();
+		    boolean keepAlive = shouldKeepAlive (request, doc, count);
+		    keepAlive = httpResponse (request.getHttpVersion (), 
+					      mySocket, 
+					      request,
+					      request.getRequestMethod (), 
+					      doc,
+					      keepAlive);
+		    myMetrics.recordResponse (request.getRoute (),
+					      doc.getResultCode (),
+					      parsed - start,
+					      handled - parsed,
+					      System.nanoTime () - handled);
+
+		    long bytesRead = in.getByteCount ();
+		    myMetrics.addBytesIn (bytesRead - bytesCounted);
+		    bytesCounted = bytesRead;
+
+		    if (! keepAlive)
+		    {
+			break;
+		    }
+
+		    // skip whatever of the entity the handler didn't
+		    // read, so the next request can be found
+		    InputStream entity = request.getEntityInputStream ();
+		    if (entity != null)
+		    {
+			entity.close ();
+		    }
 		}
 	    }
 	    catch (Exception ex)
 	    {
 		myLogger.error (this + ": Exception made it to top-level", ex);
 	    }
+	    finally
+	    {
+		if (in != null)
+		{
+		    myMetrics.addBytesIn (in.getByteCount () - bytesCounted);
+		}
+
+		myMetrics.connectionClosed ();
+	    }
 	}
     }
 }
@@ -21,6 +21,7 @@
 package com.milk.tinyweb;
 
 import java.util.Iterator;
+import java.util.SortedMap;
 import java.util.TreeMap;
 
 /**
@@ -31,13 +32,22 @@ import java.util.TreeMap;
  * with it, then that document will be returned when the directory itself
  * is requested; otherwise, a directory listing will be returned.
  *
+ * <p>The map of contents is replaced rather than modified when something
+ * is put in an instance, so looking things up never needs to lock.
+ * (The handler tree of a {@link TinyWebServer} itself is kept in a
+ * {@link RouteTable} instead, but instances of this class may still be
+ * put in it.)</p>
+ *
  * @author Dan Bornstein, danfuzz@milk.com
  */
 final public class VirtualDirectory
 implements DocumentHandler
 {
-    /** map from path components to documents or handlers */
-    private TreeMap myMap;
+    /** non-null; map from path components to documents or handlers;
+     * never modified once it has been assigned here, but replaced
+     * wholesale (while synchronized on this instance) by {@link
+     * #putDocument} */
+    private volatile TreeMap myMap;
 
     // ------------------------------------------------------------------------
     // constructors
@@ -54,61 +64,21 @@ implements DocumentHandler
     // public instance methods
 
     // interface's javadoc suffices
-    public synchronized Document handleRequest (String query, 
-						String partialPath,
-						HttpRequest request)
+    public Document handleRequest (String query, String partialPath,
+				   HttpRequest request)
     {
 	if ((partialPath == null) || (partialPath.length () == 0))
 	{
 	    // they want the contents of the directory itself
-	    if (myMap.get ("index.html") != null)
+	    TreeMap map = myMap;
+	    if (map.get ("index.html") == null)
 	    {
-		// there's an "index.html" registered; use it
-		return handleRequest (query, "index.html", request);
+		// no index.html; create a directory listing
+		return makeDirectoryDocument (map);
 	    }
 
-	    // no index.html; create a directory listing
-
-	    StringBuffer sb = new StringBuffer ();
-	    sb.append ("<html>\n" +
-		       "<head>\n" +
-		       "<title>Directory</title>\n" +
-		       "</head>\n" +
-		       "<body>\n" +
-		       "<h1>Directory</h1>\n");
-
-	    sb.append ("<code><a href=\"..\">..</a></code> " +
-		       "(Parent Directory)<br>\n");
-
-	    Iterator keys = myMap.keySet ().iterator ();
-	    while (keys.hasNext ())
-	    {
-		String one = (String) keys.next ();
-		boolean isDir = ! (myMap.get (one) instanceof Document);
-
-		sb.append ("<code><a href=\"");
-		sb.append (URLUtils.escapePathComponent (one));
-
-		if (isDir)
-		{
-		    sb.append ('/');
-		}
-
-		sb.append ("\">");
-		sb.append (HTMLUtils.literalToHtml (one));
-
-		if (isDir)
-		{
-		    sb.append ('/');
-		}
-
-		sb.append ("</a></code><br>\n");
-	    }
-
-	    sb.append ("</body>\n" +
-		       "</html>\n");
-
-	    return Document.makeHTML (sb.toString ());
+	    // there's an "index.html" registered; use it
+	    return handleRequest (query, "index.html", request);
 	}
 
 	String[] parsed = URLUtils.parseFirstComponent (partialPath);
@@ -129,8 +99,7 @@ implements DocumentHandler
     }
 
     // interface's javadoc suffices
-    public synchronized void putDocument (String partialPath, 
-					  DocumentHandler doc)
+    public void putDocument (String partialPath, DocumentHandler doc)
     {
 	if (partialPath == null)
 	{
@@ -155,23 +124,88 @@ implements DocumentHandler
 	    throw new RuntimeException ("Empty component detected");
 	}
 
-	if (parsed[2] == null)
+	DocumentHandler found;
+
+	synchronized (this)
 	{
-	    // we need to put something in this instance directly; do so
-	    myMap.put (parsed[0], doc);
-	    return;
-	}
+	    if (parsed[2] == null)
+	    {
+		// we need to put something in this instance directly; do so
+		TreeMap map = new TreeMap (myMap);
+		map.put (parsed[0], doc);
+		myMap = map;
+		return;
+	    }
 
-	DocumentHandler found = (DocumentHandler) myMap.get (parsed[0]);
+	    found = (DocumentHandler) myMap.get (parsed[0]);
 
-	if (found == null)
-	{
-	    // need to create a new intermediate directory
-	    found = new VirtualDirectory ();
-	    myMap.put (parsed[0], found);
+	    if (found == null)
+	    {
+		// need to create a new intermediate directory
+		found = new VirtualDirectory ();
+		TreeMap map = new TreeMap (myMap);
+		map.put (parsed[0], found);
+		myMap = map;
+	    }
 	}
 
 	// recurse to do the actual put
 	found.putDocument (parsed[2], doc);
     }
+
+    // ------------------------------------------------------------------------
+    // package static methods
+
+    /**
+     * Create and return a directory listing document for the given
+     * contents. Entries which are {@link Document}s are listed as
+     * plain files, and everything else is listed as a subdirectory.
+     *
+     * @param map non-null; map from path components to the documents,
+     * handlers, or other objects at them
+     * @return non-null; a directory listing document
+     */
+    static Document makeDirectoryDocument (SortedMap map)
+    {
+	StringBuffer sb = new StringBuffer ();
+	sb.append ("<html>\n" +
+		   "<head>\n" +
+		   "<title>Directory</title>\n" +
+		   "</head>\n" +
+		   "<body>\n" +
+		   "<h1>Directory</h1>\n");
+
+	sb.append ("<code><a href=\"..\">..</a></code> " +
+		   "(Parent Directory)<br>\n");
+
+	Iterator keys = map.keySet ().iterator ();
+	while (keys.hasNext ())
+	{
+	    String one = (String) keys.next ();
+	    boolean isDir = ! (map.get (one) instanceof Document);
+
+	    sb.append ("<code><a href=\"");
+	    sb.append (URLUtils.escapePathComponent (one));
+
+	    if (isDir)
+	    {
+		sb.append ('/');
+	    }
+
+	    sb.append ("\">");
+	    sb.append (HTMLUtils.literalToHtml (one));
+
+	    if (isDir)
+	    {
+		sb.append ('/');
+	    }
+
+	    sb.append ("</a></code><br>\n");
+	}
+
+	sb.append ("</body>\n" +
+		   "</html>\n");
+
+	return Document.makeHTML (sb.toString ());
+    }
 }
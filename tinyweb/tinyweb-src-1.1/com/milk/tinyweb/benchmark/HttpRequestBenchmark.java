@@ -0,0 +1,122 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb.benchmark;
+
+import com.milk.tinyweb.HttpRequest;
+import com.milk.tinyweb.RequestInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of {@link HttpRequest#read}, reading a request both from a
+ * plain stream (a byte at a time) and from a {@link RequestInputStream}
+ * (in bulk), for a bare request and for one with a typical browser's
+ * worth of headers.
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class HttpRequestBenchmark
+{
+    /** a request with nothing but the request line and a host */
+    static private final String MINIMAL_REQUEST =
+	"GET /index.html HTTP/1.1\r\n" +
+	"Host: localhost\r\n" +
+	"\r\n";
+
+    /** a request with the headers a browser would typically send */
+    static private final String BROWSER_REQUEST =
+	"GET /some/deeper/path/page.html?x=1&y=two HTTP/1.1\r\n" +
+	"Host: www.example.com\r\n" +
+	"User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:120.0) " +
+	"Gecko/20100101 Firefox/120.0\r\n" +
+	"Accept: text/html,application/xhtml+xml,application/xml;" +
+	"q=0.9,*/*;q=0.8\r\n" +
+	"Accept-Language: en-US,en;q=0.5\r\n" +
+	"Accept-Encoding: gzip, deflate\r\n" +
+	"Referer: http://www.example.com/some/deeper/path/\r\n" +
+	"Cookie: session=0123456789abcdef; prefs=compact\r\n" +
+	"Connection: keep-alive\r\n" +
+	"If-Modified-Since: Sat, 01 Jan 2000 00:00:00 GMT\r\n" +
+	"\r\n";
+
+    /** which request to read; either <code>"minimal"</code> or
+     * <code>"browser"</code> */
+    @Param ({ "minimal", "browser" })
+    public String request;
+
+    /** non-null; the bytes of the request to read */
+    private byte[] myBytes;
+
+    /**
+     * Set up the request bytes.
+     */
+    @Setup
+    public void setUp ()
+    {
+	String text =
+	    request.equals ("minimal") ? MINIMAL_REQUEST : BROWSER_REQUEST;
+	myBytes = text.getBytes (StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Read a request from a plain stream.
+     *
+     * @return the request, so that it doesn't get optimized away
+     */
+    @Benchmark
+    public HttpRequest readPlain ()
+	throws IOException
+    {
+	return HttpRequest.read (new ByteArrayInputStream (myBytes));
+    }
+
+    /**
+     * Read a request from a {@link RequestInputStream}.
+     *
+     * @return the request, so that it doesn't get optimized away
+     */
+    @Benchmark
+    public HttpRequest readBuffered ()
+	throws IOException
+    {
+	return HttpRequest.read (
+	    new RequestInputStream (new ByteArrayInputStream (myBytes)));
+    }
+}
@@ -0,0 +1,344 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb.benchmark;
+
+import com.milk.tinyweb.StaticDocument;
+import com.milk.tinyweb.TinyWebServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end benchmark of a {@link TinyWebServer} serving a static
+ * document over the loopback interface, reporting both throughput and
+ * the distribution of request latencies. The server is started once per
+ * trial, and each benchmark thread acts as a separate client, so the
+ * concurrency is set with JMH's thread count (for example, <code>-t
+ * 16</code>). Clients either reuse one persistent connection for all
+ * their requests (with the server set up to allow that) or make a new
+ * connection per request.
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+@BenchmarkMode ({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit (TimeUnit.MILLISECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (1)
+public class LoopbackBenchmark
+{
+    // ------------------------------------------------------------------------
+    // public instance methods
+
+    /**
+     * Make one request and read the whole response.
+     *
+     * @param client non-null; the per-thread client state
+     * @return the number of body bytes read, so that it doesn't get
+     * optimized away
+     */
+    @Benchmark
+    public int get (Client client)
+	throws IOException
+    {
+	return client.get ();
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // public static classes
+
+    /**
+     * The server, shared by all the benchmark threads.
+     */
+    @State (Scope.Benchmark)
+    static public class Server
+    {
+	/** the connection engine to use; one of <code>"threads"</code>,
+	 * <code>"nio"</code>, or <code>"virtual"</code> */
+	@Param ({ "threads", "nio", "virtual" })
+	public String engine;
+
+	/** the size of the document to serve, in bytes */
+	@Param ({ "128", "65536" })
+	public int size;
+
+	/** whether clients reuse one connection for all their requests */
+	@Param ({ "true", "false" })
+	public boolean keepAlive;
+
+	/** null-ok; the running server */
+	private TinyWebServer myServer;
+
+	/**
+	 * Start the server.
+	 */
+	@Setup (Level.Trial)
+	public void setUp ()
+	{
+	    int eng;
+
+	    if (engine.equals ("threads"))
+	    {
+		eng = TinyWebServer.ENGINE_THREADS;
+	    }
+	    else if (engine.equals ("nio"))
+	    {
+		eng = TinyWebServer.ENGINE_NIO;
+	    }
+	    else if (engine.equals ("virtual"))
+	    {
+		eng = TinyWebServer.ENGINE_VIRTUAL_THREADS;
+	    }
+	    else
+	    {
+		throw new IllegalArgumentException ("engine = " + engine);
+	    }
+
+	    byte[] bytes = new byte[size];
+	    for (int i = 0; i < size; i++)
+	    {
+		bytes[i] = (byte) ('a' + (i % 26));
+	    }
+
+	    myServer = new TinyWebServer (0, null, eng);
+	    myServer.putDocument ("/doc",
+				  new StaticDocument ("text/plain", 0, bytes));
+	    myServer.setMaxRequestsPerConnection (
+		keepAlive ? Integer.MAX_VALUE : 1);
+
+	    // so that stopping a thread-based server at the end of the
+	    // trial doesn't have to wait out the default timeout
+	    myServer.setAcceptTimeout (100);
+	    myServer.start ();
+	}
+
+	/**
+	 * Stop the server.
+	 */
+	@TearDown (Level.Trial)
+	public void tearDown ()
+	{
+	    myServer.close ();
+	    myServer = null;
+	}
+
+	/**
+	 * Get the port the server is listening on.
+	 *
+	 * @return the port
+	 */
+	public int getPort ()
+	{
+	    return myServer.getPort ();
+	}
+    }
+
+    /**
+     * The state of one client, that is, of one benchmark thread.
+     */
+    @State (Scope.Thread)
+    static public class Client
+    {
+	/** whether to reuse one connection for all requests */
+	private boolean myKeepAlive;
+
+	/** the port to connect to */
+	private int myPort;
+
+	/** null-ok; the current connection, if any */
+	private Socket mySocket;
+
+	/** null-ok; the input stream of {@link #mySocket} */
+	private InputStream myIn;
+
+	/** null-ok; the output stream of {@link #mySocket} */
+	private OutputStream myOut;
+
+	/** non-null; the bytes of the request to send */
+	private byte[] myRequest;
+
+	/** non-null; buffer to read responses into */
+	private byte[] myBuffer;
+
+	/**
+	 * Set up the client.
+	 *
+	 * @param server non-null; the server to talk to
+	 */
+	@Setup (Level.Trial)
+	public void setUp (Server server)
+	{
+	    String req =
+		"GET /doc HTTP/1.1\r\n" +
+		"Host: localhost\r\n" +
+		(server.keepAlive ? "" : "Connection: close\r\n") +
+		"\r\n";
+
+	    myKeepAlive = server.keepAlive;
+	    myPort = server.getPort ();
+	    myRequest = req.getBytes (StandardCharsets.ISO_8859_1);
+	    myBuffer = new byte[16384];
+	}
+
+	/**
+	 * Close the connection, if any.
+	 */
+	@TearDown (Level.Trial)
+	public void tearDown ()
+	    throws IOException
+	{
+	    disconnect ();
+	}
+
+	/**
+	 * Make one request and read the whole response.
+	 *
+	 * @return the number of body bytes read
+	 */
+	public int get ()
+	    throws IOException
+	{
+	    if (mySocket == null)
+	    {
+		mySocket = new Socket (InetAddress.getLoopbackAddress (),
+				       myPort);
+		mySocket.setTcpNoDelay (true);
+		myIn = mySocket.getInputStream ();
+		myOut = mySocket.getOutputStream ();
+	    }
+
+	    myOut.write (myRequest);
+	    myOut.flush ();
+
+	    int result = readResponse ();
+
+	    if (! myKeepAlive)
+	    {
+		disconnect ();
+	    }
+
+	    return result;
+	}
+
+	/**
+	 * Close the connection, if any.
+	 */
+	private void disconnect ()
+	    throws IOException
+	{
+	    if (mySocket != null)
+	    {
+		mySocket.close ();
+		mySocket = null;
+		myIn = null;
+		myOut = null;
+	    }
+	}
+
+	/**
+	 * Read a response, consisting of headers (which must include a
+	 * <code>Content-Length</code>) and the body.
+	 *
+	 * @return the number of body bytes read
+	 */
+	private int readResponse ()
+	    throws IOException
+	{
+	    byte[] buf = myBuffer;
+	    int len = 0;
+	    int headerEnd = -1;
+
+	    // read until the end of the headers
+	    while (headerEnd == -1)
+	    {
+		if (len == buf.length)
+		{
+		    throw new IOException ("response headers too long");
+		}
+
+		int amt = myIn.read (buf, len, buf.length - len);
+		if (amt == -1)
+		{
+		    throw new IOException ("unexpected end of response");
+		}
+
+		int from = (len < 3) ? 0 : (len - 3);
+		len += amt;
+
+		for (int i = from; i <= (len - 4); i++)
+		{
+		    if ((buf[i] == '\r') && (buf[i + 1] == '\n') &&
+			(buf[i + 2] == '\r') && (buf[i + 3] == '\n'))
+		    {
+			headerEnd = i + 4;
+			break;
+		    }
+		}
+	    }
+
+	    String headers =
+		new String (buf, 0, headerEnd, StandardCharsets.ISO_8859_1);
+	    int clAt = headers.toLowerCase ().indexOf ("\r\ncontent-length:");
+	    if (clAt == -1)
+	    {
+		throw new IOException ("response without content-length");
+	    }
+
+	    int valueAt = clAt + 17;
+	    int valueEnd = headers.indexOf ('\r', valueAt);
+	    int contentLength =
+		Integer.parseInt (headers.substring (valueAt, valueEnd).trim ());
+
+	    // read (and discard) the rest of the body
+	    int left = contentLength - (len - headerEnd);
+	    while (left > 0)
+	    {
+		int amt = myIn.read (buf, 0, Math.min (left, buf.length));
+		if (amt == -1)
+		{
+		    throw new IOException ("unexpected end of response");
+		}
+		left -= amt;
+	    }
+
+	    return contentLength;
+	}
+    }
+}
@@ -0,0 +1,157 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb.benchmark;
+
+import com.milk.tinyweb.Document;
+import com.milk.tinyweb.HttpRequest;
+import com.milk.tinyweb.RouteTable;
+import com.milk.tinyweb.StaticDocument;
+import com.milk.tinyweb.VirtualDirectory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of routing a path to a document, both by walking a tree of
+ * {@link VirtualDirectory}s and by looking it up in a {@link RouteTable}
+ * (which is what the server does). Both are set up with the same
+ * three-level tree, with a configurable number of entries at each
+ * level.
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class RoutingBenchmark
+{
+    /** the number of entries at each level of the tree */
+    @Param ({ "4", "32" })
+    public int fanOut;
+
+    /** non-null; the root of the directory tree */
+    private VirtualDirectory myDirectory;
+
+    /** non-null; the route table */
+    private RouteTable myRoutes;
+
+    /** non-null; the paths to look up, relative to the root */
+    private String[] myPaths;
+
+    /** non-null; the same paths, but absolute */
+    private String[] myAbsolutePaths;
+
+    /** non-null; the request to pass along to handlers */
+    private HttpRequest myRequest;
+
+    /** the index of the next path to look up */
+    private int myAt;
+
+    /**
+     * Build the tree, in both forms.
+     */
+    @Setup
+    public void setUp ()
+	throws IOException
+    {
+	StaticDocument doc =
+	    new StaticDocument ("text/plain", 0,
+				"hello".getBytes (StandardCharsets.UTF_8));
+
+	myDirectory = new VirtualDirectory ();
+	myRoutes = RouteTable.EMPTY;
+	myPaths = new String[fanOut * fanOut * fanOut];
+	myAbsolutePaths = new String[myPaths.length];
+
+	int at = 0;
+	for (int i = 0; i < fanOut; i++)
+	{
+	    for (int j = 0; j < fanOut; j++)
+	    {
+		for (int k = 0; k < fanOut; k++)
+		{
+		    String path = "dir" + i + "/sub" + j + "/file" + k + ".html";
+		    myDirectory.putDocument (path, doc);
+		    myRoutes = myRoutes.withDocument ("/" + path, doc);
+		    myPaths[at] = path;
+		    myAbsolutePaths[at] = "/" + path;
+		    at++;
+		}
+	    }
+	}
+
+	byte[] req = "GET / HTTP/1.0\r\n\r\n".getBytes (
+	    StandardCharsets.ISO_8859_1);
+	myRequest = HttpRequest.read (new ByteArrayInputStream (req));
+	myAt = 0;
+    }
+
+    /**
+     * Get the index of the next path to look up, cycling through all of
+     * them.
+     *
+     * @return the index
+     */
+    private int nextIndex ()
+    {
+	int at = myAt;
+	myAt = (at + 1) % myPaths.length;
+	return at;
+    }
+
+    /**
+     * Route through the directory tree.
+     *
+     * @return the document, so that it doesn't get optimized away
+     */
+    @Benchmark
+    public Document virtualDirectory ()
+    {
+	return myDirectory.handleRequest (null, myPaths[nextIndex ()],
+					  myRequest);
+    }
+
+    /**
+     * Route through the route table.
+     *
+     * @return the document, so that it doesn't get optimized away
+     */
+    @Benchmark
+    public Document routeTable ()
+    {
+	return myRoutes.resolve (myAbsolutePaths[nextIndex ()], myRequest);
+    }
+}
@@ -0,0 +1,148 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb.benchmark;
+
+import com.milk.tinyweb.URLUtils;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the string-munging methods of {@link URLUtils} that get
+ * called on every request. Each has a case where there's nothing to
+ * change (which ought to be the fast path) and one where there's real
+ * work to do.
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class URLUtilsBenchmark
+{
+    /** a path component with nothing to expand or escape; not
+     * <code>final</code>, so that it doesn't get constant-folded */
+    public String plainComponent = "some-ordinary_file.name.html";
+
+    /** a path component with several <code>%</code> forms */
+    public String percentComponent = "a%20file%20with%2Fodd%3Fchars%25.txt";
+
+    /** a path component with several characters that need escaping */
+    public String unsafeComponent = "a file with/odd?chars%.txt";
+
+    /** a typical query string */
+    public String query =
+	"name=Dan+Bornstein&city=San%20Francisco&tag=a&tag=b&tag=c&page=3";
+
+    /** a path that's already canonical */
+    public String canonicalPath = "/some/deeper/path/page.html";
+
+    /** a path with all the things that canonicalization gets rid of */
+    public String messyPath = "some//deeper/./path/../path/page.html";
+
+    /**
+     * Expand a component with no <code>%</code> forms.
+     *
+     * @return the result, so that it doesn't get optimized away
+     */
+    @Benchmark
+    public String expandPercentPlain ()
+    {
+	return URLUtils.expandPercent (plainComponent);
+    }
+
+    /**
+     * Expand a component with several <code>%</code> forms.
+     *
+     * @return the result, so that it doesn't get optimized away
+     */
+    @Benchmark
+    public String expandPercentEscaped ()
+    {
+	return URLUtils.expandPercent (percentComponent);
+    }
+
+    /**
+     * Escape a component with nothing to escape.
+     *
+     * @return the result, so that it doesn't get optimized away
+     */
+    @Benchmark
+    public String escapePathComponentPlain ()
+    {
+	return URLUtils.escapePathComponent (plainComponent);
+    }
+
+    /**
+     * Escape a component with several unsafe characters.
+     *
+     * @return the result, so that it doesn't get optimized away
+     */
+    @Benchmark
+    public String escapePathComponentUnsafe ()
+    {
+	return URLUtils.escapePathComponent (unsafeComponent);
+    }
+
+    /**
+     * Parse a query string.
+     *
+     * @return the result, so that it doesn't get optimized away
+     */
+    @Benchmark
+    public TreeMap parseQueryString ()
+    {
+	return URLUtils.parseQueryString (query);
+    }
+
+    /**
+     * Canonicalize a path that's already canonical.
+     *
+     * @return the result, so that it doesn't get optimized away
+     */
+    @Benchmark
+    public String canonicalPathClean ()
+    {
+	return URLUtils.canonicalPath (canonicalPath);
+    }
+
+    /**
+     * Canonicalize a path that needs it.
+     *
+     * @return the result, so that it doesn't get optimized away
+     */
+    @Benchmark
+    public String canonicalPathMessy ()
+    {
+	return URLUtils.canonicalPath (messyPath);
+    }
+}
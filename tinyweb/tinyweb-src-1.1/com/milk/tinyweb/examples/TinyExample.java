@@ -40,6 +40,9 @@ import java.io.InputStream;
  * accept all URLs and simply dump the requests to the console</dd>
  * <dt><code>--port=<i>num</i></code></dt>
  * <dd>the port number to take requests on</dd>
+ * <dt><code>--engine=<i>name</i></code></dt>
+ * <dd>the connection engine to use, one of <code>"threads"</code> (the
+ * default), <code>"virtual"</code>, or <code>"nio"</code></dd>
  * </dl>
  *
  * @author Dan Bornstein, danfuzz@milk.com
@@ -58,6 +61,7 @@ final public class TinyExample
     {
 	String base = null;
 	int port = -1;
+	int engine = TinyWebServer.ENGINE_THREADS;
 
 	for (int i = 0; i < args.length; i++)
 	{
@@ -75,6 +79,27 @@ final public class TinyExample
 		    System.exit (1);
 		}
 	    }
+	    else if (args[i].startsWith ("--engine="))
+	    {
+		String engStr = args[i].substring (args[i].indexOf ('=') + 1);
+		if (engStr.equals ("threads"))
+		{
+		    engine = TinyWebServer.ENGINE_THREADS;
+		}
+		else if (engStr.equals ("virtual"))
+		{
+		    engine = TinyWebServer.ENGINE_VIRTUAL_THREADS;
+		}
+		else if (engStr.equals ("nio"))
+		{
+		    engine = TinyWebServer.ENGINE_NIO;
+		}
+		else
+		{
+		    System.err.println ("Bad value for --engine option.");
+		    System.exit (1);
+		}
+	    }
 	    else
 	    {
 		System.err.println ("Unknown option: " + args[i]);
@@ -94,7 +119,7 @@ final public class TinyExample
 	    System.exit (1);
 	}
 
-	TinyWebServer tws = new TinyWebServer (port);
+	TinyWebServer tws = new TinyWebServer (port, null, engine);
 
 	if (base.equals ("dump"))
 	{
@@ -0,0 +1,279 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb.testing;
+
+import com.milk.tinyweb.AccessLog;
+import com.milk.tinyweb.HttpRequest;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the class {@link AccessLog}.
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+public final class TestAccessLog
+extends TestCase
+{
+    // ------------------------------------------------------------------------
+    // constructor
+
+    /**
+     * Construct an instance.
+     *
+     * @param name the name of the test, passed to the test framework
+     */
+    public TestAccessLog (String name)
+    {
+	super (name);
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // public test methods
+
+    /**
+     * Test the Common Log Format.
+     */
+    public void testCommon ()
+	throws Exception
+    {
+	File f = makeTempFile ();
+	AccessLog log = new AccessLog (f, AccessLog.FORMAT_COMMON);
+	InetAddress addr = InetAddress.getByName ("127.0.0.1");
+
+	log.log (addr, makeRequest ("/foo.txt", "http://blort/"), 200, 1234);
+	log.log (addr, makeRequest ("/a\"b", null), 404, 0);
+	log.log (null, null, 408, 10);
+	log.flush ();
+
+	String[] lines = readFile (f).split ("\n");
+	assertEquals (3, lines.length);
+	assertTrue (lines[0].startsWith ("127.0.0.1 - - ["));
+	assertTrue (lines[0].endsWith ("] \"GET /foo.txt HTTP/1.1\" " +
+				       "200 1234"));
+	assertTrue (lines[1].endsWith ("] \"GET /a\\\"b HTTP/1.1\" 404 -"));
+	assertTrue (lines[2].startsWith ("- - - ["));
+	assertTrue (lines[2].endsWith ("] \"-\" 408 10"));
+
+	log.close ();
+	assertEquals (0, log.getDropCount ());
+    }
+
+    /**
+     * Test the Combined Log Format.
+     */
+    public void testCombined ()
+	throws Exception
+    {
+	File f = makeTempFile ();
+	AccessLog log = new AccessLog (f, AccessLog.FORMAT_COMBINED);
+	InetAddress addr = InetAddress.getByName ("10.1.2.3");
+
+	log.log (addr, makeRequest ("/foo.txt", "http://blort/"), 200, 1234);
+	log.log (addr, makeRequest ("/bar.txt", null), 200, 5);
+	log.close ();
+
+	String[] lines = readFile (f).split ("\n");
+	assertEquals (2, lines.length);
+	assertTrue (lines[0].startsWith ("10.1.2.3 - - ["));
+	assertTrue (lines[0].endsWith ("\" 200 1234 \"http://blort/\" " +
+				       "\"Test\\xe9Agent/1.0\""));
+	assertTrue (lines[1].endsWith ("\" 200 5 \"-\" " +
+				       "\"Test\\xe9Agent/1.0\""));
+    }
+
+    /**
+     * Test that the file gets rolled over.
+     */
+    public void testRollOver ()
+	throws Exception
+    {
+	File f = makeTempFile ();
+	File f1 = new File (f.getPath () + ".1");
+	File f2 = new File (f.getPath () + ".2");
+	File f3 = new File (f.getPath () + ".3");
+	f1.deleteOnExit ();
+	f2.deleteOnExit ();
+	f3.deleteOnExit ();
+
+	AccessLog log = 
+	    new AccessLog (f, AccessLog.FORMAT_COMMON, 16,
+			   AccessLog.POLICY_BLOCK, 100, 2);
+	InetAddress addr = InetAddress.getByName ("127.0.0.1");
+
+	for (int i = 0; i < 10; i++)
+	{
+	    log.log (addr, makeRequest ("/" + i, null), 200, 1);
+	    log.flush ();
+	}
+
+	log.close ();
+
+	// every line is more than half the max size, so each file gets
+	// one line
+	assertTrue (readFile (f).indexOf ("\"GET /9 ") != -1);
+	assertTrue (readFile (f1).indexOf ("\"GET /8 ") != -1);
+	assertTrue (readFile (f2).indexOf ("\"GET /7 ") != -1);
+	assertFalse (f3.exists ());
+    }
+
+    /**
+     * Test that the blocking policy doesn't lose anything, even with
+     * a tiny buffer and several threads logging at once.
+     */
+    public void testBlock ()
+	throws Exception
+    {
+	File f = makeTempFile ();
+	final AccessLog log = 
+	    new AccessLog (f, AccessLog.FORMAT_COMMON, 4,
+			   AccessLog.POLICY_BLOCK, 0, 0);
+	final InetAddress addr = InetAddress.getByName ("127.0.0.1");
+	Thread[] threads = new Thread[4];
+
+	for (int i = 0; i < threads.length; i++)
+	{
+	    threads[i] = new Thread ()
+	    {
+		public void run ()
+		{
+		    for (int j = 0; j < 500; j++)
+		    {
+			log.log (addr, makeRequest ("/x", null), 200, 1);
+		    }
+		}
+	    };
+	    threads[i].start ();
+	}
+
+	for (int i = 0; i < threads.length; i++)
+	{
+	    threads[i].join ();
+	}
+
+	log.close ();
+
+	assertEquals (2000, readFile (f).split ("\n").length);
+	assertEquals (0, log.getDropCount ());
+    }
+
+    /**
+     * Test that closing works and that entries logged after closing are
+     * ignored.
+     */
+    public void testClose ()
+	throws Exception
+    {
+	File f = makeTempFile ();
+	AccessLog log = new AccessLog (f, AccessLog.FORMAT_COMMON);
+
+	log.log (null, makeRequest ("/1", null), 200, 1);
+	log.close ();
+	log.close ();
+	log.log (null, makeRequest ("/2", null), 200, 1);
+	log.flush ();
+
+	assertEquals (1, readFile (f).split ("\n").length);
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private helper methods
+
+    /**
+     * Make a <code>GET</code> request for the given path.
+     *
+     * @param path non-null; the path
+     * @param referer null-ok; the <code>Referer</code> header value
+     * @return non-null; the request
+     */
+    private static HttpRequest makeRequest (String path, String referer)
+    {
+	String[] names;
+	String[] values;
+
+	if (referer == null)
+	{
+	    names = new String[] { "user-agent" };
+	    values = new String[] { "Test\u00e9Agent/1.0" };
+	}
+	else
+	{
+	    names = new String[] { "user-agent", "referer" };
+	    values = new String[] { "Test\u00e9Agent/1.0", referer };
+	}
+
+	return new HttpRequest ("1.1", HttpRequest.REQUEST_GET, path,
+				names, values, null);
+    }
+
+    /**
+     * Make a temporary file, which gets deleted on exit.
+     *
+     * @return non-null; the file
+     */
+    private static File makeTempFile ()
+	throws IOException
+    {
+	File f = File.createTempFile ("TestAccessLog", ".log");
+	f.deleteOnExit ();
+	return f;
+    }
+
+    /**
+     * Read the given file as a string.
+     *
+     * @param f non-null; the file to read
+     * @return non-null; the contents
+     */
+    private static String readFile (File f)
+	throws IOException
+    {
+	FileInputStream fis = new FileInputStream (f);
+	byte[] bytes = new byte[(int) f.length ()];
+	int at = 0;
+
+	try
+	{
+	    while (at < bytes.length)
+	    {
+		int amt = fis.read (bytes, at, bytes.length - at);
+		if (amt == -1)
+		{
+		    break;
+		}
+		at += amt;
+	    }
+	}
+	finally
+	{
+	    fis.close ();
+	}
+
+	return new String (bytes, 0, at, "ISO-8859-1");
+    }
+}
@@ -0,0 +1,339 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb.testing;
+
+import com.milk.tinyweb.BundleBuilder;
+import com.milk.tinyweb.BundleHandler;
+import com.milk.tinyweb.Document;
+import com.milk.tinyweb.FileDocument;
+import com.milk.tinyweb.HttpRequest;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.zip.GZIPInputStream;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the classes {@link BundleHandler} and {@link
+ * BundleBuilder}.
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+public final class TestBundleHandler
+extends TestCase
+{
+    /** null-ok; the directory tree that bundles get made from */
+    private File myDir;
+
+    /** null-ok; the bundle file */
+    private File myBundle;
+
+    // ------------------------------------------------------------------------
+    // constructor
+
+    /**
+     * Construct an instance.
+     *
+     * @param name the name of the test, passed to the test framework
+     */
+    public TestBundleHandler (String name)
+    {
+	super (name);
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // public test methods
+
+    /**
+     * Make a little directory tree to bundle up.
+     */
+    public void setUp ()
+	throws IOException
+    {
+	myDir = File.createTempFile ("TestBundleHandler", "");
+	myDir.delete ();
+	myDir.mkdir ();
+
+	StringBuffer sb = new StringBuffer ();
+	for (int i = 0; i < 200; i++)
+	{
+	    sb.append ("line number " + i + "\n");
+	}
+
+	writeFile ("index.html", "<html>top</html>");
+	writeFile ("big.txt", sb.toString ());
+	writeFile ("sub/index.html", "<html>sub</html>");
+	writeFile ("sub/with space.txt", "spacey");
+
+	myBundle = File.createTempFile ("TestBundleHandler", ".bundle");
+    }
+
+    /**
+     * Clean up the files made by {@link #setUp}.
+     */
+    public void tearDown ()
+    {
+	deleteTree (myDir);
+	myBundle.delete ();
+    }
+
+    /**
+     * Test the constructor, including expected failures due to bad
+     * arguments.
+     */
+    public void testConstructor ()
+	throws IOException
+    {
+	try
+	{
+	    new BundleHandler (null);
+	    fail ("constructor failed to fail (1)");
+	}
+	catch (NullPointerException ex)
+	{
+	    // expected
+	}
+
+	// the (empty) bundle file isn't a bundle
+	try
+	{
+	    new BundleHandler (myBundle);
+	    fail ("constructor failed to fail (2)");
+	}
+	catch (IOException ex)
+	{
+	    // expected
+	}
+
+	assertEquals (4, BundleBuilder.build (myDir, myBundle, false));
+	assertEquals (4, new BundleHandler (myBundle).getFileCount ());
+    }
+
+    /**
+     * Test the method {@link BundleHandler#putDocument}. This just makes
+     * sure it fails, since it's not supposed to be supported.
+     */
+    public void testPutDocument ()
+	throws IOException
+    {
+	BundleBuilder.build (myDir, myBundle, false);
+	BundleHandler bh = new BundleHandler (myBundle);
+
+	try
+	{
+	    bh.putDocument ("foo", Document.makeText ("x"));
+	    fail ("putDocument failed to fail");
+	}
+	catch (RuntimeException ex)
+	{
+	    // expected
+	}
+    }
+
+    /**
+     * Test the method {@link BundleHandler#handleRequest}.
+     */
+    public void testHandleRequest ()
+	throws IOException
+    {
+	BundleBuilder.build (myDir, myBundle, false);
+	BundleHandler bh = new BundleHandler (myBundle);
+	HttpRequest req = request (null);
+
+	assertEquals ("<html>top</html>", content (bh, null, req));
+	assertEquals ("<html>top</html>", content (bh, "", req));
+	assertEquals ("<html>sub</html>", content (bh, "sub/", req));
+	assertEquals ("spacey", content (bh, "sub/with%20space.txt", req));
+	assertEquals ("line number 0\n",
+		      content (bh, "big.txt", req).substring (0, 14));
+
+	Document doc = bh.handleRequest (null, "big.txt", req);
+	assertEquals (FileDocument.nameToContentType ("big.txt"),
+		      doc.getContentType ());
+	assertEquals (new File (myDir, "big.txt").length (),
+		      doc.getContentLength ());
+
+	assertNull (bh.handleRequest (null, "sub", req));
+	assertNull (bh.handleRequest (null, "nonexistent.txt", req));
+	assertNull (bh.handleRequest (null, "sub/nonexistent/", req));
+    }
+
+    /**
+     * Test that <code>gzip</code>ped forms get served to clients that
+     * can take them, and only then.
+     */
+    public void testGzip ()
+	throws IOException
+    {
+	BundleBuilder.build (myDir, myBundle, true);
+	BundleHandler bh = new BundleHandler (myBundle);
+	String expected = content (bh, "big.txt", request (null));
+
+	Document doc = bh.handleRequest (null, "big.txt", request ("gzip"));
+	assertEquals ("gzip",
+		      doc.getExtraHeaders ().get ("Content-Encoding"));
+	assertTrue (doc.getContentLength () < expected.length ());
+
+	ByteArrayOutputStream baos = new ByteArrayOutputStream ();
+	doc.writeBytes (baos, doc.getContentLength ());
+	GZIPInputStream gis =
+	    new GZIPInputStream (
+	        new ByteArrayInputStream (baos.toByteArray ()));
+	ByteArrayOutputStream unzipped = new ByteArrayOutputStream ();
+	byte[] buf = new byte[1000];
+	for (;;)
+	{
+	    int amt = gis.read (buf);
+	    if (amt == -1)
+	    {
+		break;
+	    }
+	    unzipped.write (buf, 0, amt);
+	}
+	assertEquals (expected, unzipped.toString ("ISO-8859-1"));
+
+	// too small to be worth compressing
+	doc = bh.handleRequest (null, "sub/with%20space.txt",
+				request ("gzip"));
+	assertNull (doc.getExtraHeaders ());
+    }
+
+    /**
+     * Test writing ranges of documents, to both streams and channels.
+     */
+    public void testWriteRange ()
+	throws IOException
+    {
+	BundleBuilder.build (myDir, myBundle, false);
+	BundleHandler bh = new BundleHandler (myBundle);
+	Document doc = bh.handleRequest (null, "big.txt", request (null));
+	long len = doc.getContentLength ();
+
+	ByteArrayOutputStream baos = new ByteArrayOutputStream ();
+	doc.writeRange (baos, len, 5, 6);
+	assertEquals ("number", baos.toString ("ISO-8859-1"));
+
+	baos.reset ();
+	doc.writeRange (Channels.newChannel (baos), len, 14, 4);
+	assertEquals ("line", baos.toString ("ISO-8859-1"));
+
+	// writing the whole thing twice should work the same both times
+	baos.reset ();
+	doc.writeBytes (Channels.newChannel (baos), len);
+	doc.writeBytes (baos, len);
+	assertEquals (len * 2, baos.size ());
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private instance methods
+
+    /**
+     * Write a file under the test directory, making directories as
+     * needed.
+     *
+     * @param path non-null; the path of the file, relative to the test
+     * directory
+     * @param content non-null; the content of the file
+     */
+    private void writeFile (String path, String content)
+	throws IOException
+    {
+	File f = new File (myDir, path);
+	f.getParentFile ().mkdirs ();
+
+	FileOutputStream fos = new FileOutputStream (f);
+	fos.write (content.getBytes ("ISO-8859-1"));
+	fos.close ();
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private static methods
+
+    /**
+     * Make a request, with the given <code>Accept-Encoding</code>
+     * header, if any.
+     *
+     * @param acceptEncoding null-ok; the header value
+     * @return non-null; the request
+     */
+    static private HttpRequest request (String acceptEncoding)
+	throws IOException
+    {
+	String text = "GET /x HTTP/1.1\r\n" +
+	    ((acceptEncoding == null) ? "" :
+	     ("Accept-Encoding: " + acceptEncoding + "\r\n")) +
+	    "\r\n";
+
+	return HttpRequest.read (
+	    new ByteArrayInputStream (text.getBytes ("ISO-8859-1")));
+    }
+
+    /**
+     * Get the content of the document that the given handler returns
+     * for the given path, as a string.
+     *
+     * @param bh non-null; the handler
+     * @param path null-ok; the path
+     * @param req non-null; the request
+     * @return non-null; the content
+     */
+    static private String content (BundleHandler bh, String path,
+				   HttpRequest req)
+	throws IOException
+    {
+	Document doc = bh.handleRequest (null, path, req);
+	assertNotNull (doc);
+
+	ByteArrayOutputStream baos = new ByteArrayOutputStream ();
+	doc.writeBytes (baos, doc.getContentLength ());
+	return baos.toString ("ISO-8859-1");
+    }
+
+    /**
+     * Delete the given file, and if it's a directory, everything under
+     * it.
+     *
+     * @param file non-null; the file to delete
+     */
+    static private void deleteTree (File file)
+    {
+	File[] files = file.listFiles ();
+
+	if (files != null)
+	{
+	    for (int i = 0; i < files.length; i++)
+	    {
+		deleteTree (files[i]);
+	    }
+	}
+
+	file.delete ();
+    }
+}
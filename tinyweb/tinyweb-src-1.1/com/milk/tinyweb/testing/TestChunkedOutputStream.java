@@ -0,0 +1,219 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb.testing;
+
+import com.milk.tinyweb.ChunkedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the class {@link ChunkedOutputStream}.
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+public final class TestChunkedOutputStream
+extends TestCase
+{
+    // ------------------------------------------------------------------------
+    // constructor
+
+    /**
+     * Construct an instance.
+     *
+     * @param name the name of the test, passed to the test framework
+     */
+    public TestChunkedOutputStream (String name)
+    {
+	super (name);
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // public test methods
+
+    /**
+     * Test the constructors, including expected failures due to
+     * bad arguments.
+     */
+    public void testConstructor ()
+    {
+	// should fail if the stream is null
+	try
+	{
+	    new ChunkedOutputStream (null);
+	    fail ("constructor failed to fail");
+	}
+	catch (NullPointerException ex)
+	{
+	    // expected
+	}
+
+	// should fail if the chunk size isn't positive
+	try
+	{
+	    new ChunkedOutputStream (new ByteArrayOutputStream (), 0);
+	    fail ("constructor failed to fail");
+	}
+	catch (IllegalArgumentException ex)
+	{
+	    // expected
+	}
+
+	// the rest should succeed
+
+	new ChunkedOutputStream (new ByteArrayOutputStream ());
+	new ChunkedOutputStream (new ByteArrayOutputStream (), 1);
+    }
+
+    /**
+     * Test the exact bytes written for a few simple cases.
+     */
+    public void testFormat ()
+	throws Exception
+    {
+	ByteArrayOutputStream baos = new ByteArrayOutputStream ();
+	ChunkedOutputStream cos = new ChunkedOutputStream (baos);
+	cos.finish ();
+	assertEquals ("0\r\n\r\n", baos.toString ("ISO-8859-1"));
+
+	baos.reset ();
+	cos = new ChunkedOutputStream (baos);
+	cos.write ("hello".getBytes ("ISO-8859-1"));
+	cos.write (new byte[0]);
+	cos.flush ();
+	cos.flush ();
+	cos.write ('!');
+	cos.finish ();
+	cos.finish ();
+	assertEquals ("5\r\nhello\r\n1\r\n!\r\n0\r\n\r\n", 
+		      baos.toString ("ISO-8859-1"));
+
+	// small chunks; a big write to an empty buffer is a chunk of
+	// its own
+	baos.reset ();
+	cos = new ChunkedOutputStream (baos, 4);
+	cos.write ('a');
+	cos.write ("bcdefghij".getBytes ("ISO-8859-1"));
+	cos.flush ();
+	cos.write ("klmnopqrstuvwxyz".getBytes ("ISO-8859-1"));
+	cos.close ();
+	assertEquals ("4\r\nabcd\r\n4\r\nefgh\r\n2\r\nij\r\n" +
+		      "10\r\nklmnopqrstuvwxyz\r\n0\r\n\r\n", 
+		      baos.toString ("ISO-8859-1"));
+
+	// can't write after finishing
+	try
+	{
+	    cos.write ('x');
+	    fail ("write() after finish() failed to fail");
+	}
+	catch (IOException ex)
+	{
+	    // expected
+	}
+    }
+
+    /**
+     * Test that various sizes and mixes of writes all decode to what
+     * was written.
+     */
+    public void testRoundTrip ()
+	throws Exception
+    {
+	byte[] bytes = new byte[100000];
+	for (int i = 0; i < bytes.length; i++)
+	{
+	    bytes[i] = (byte) (i * 7);
+	}
+
+	ByteArrayOutputStream baos = new ByteArrayOutputStream ();
+	for (int step = 1; step < bytes.length; step = step * 3 + 1)
+	{
+	    baos.reset ();
+	    ChunkedOutputStream cos = new ChunkedOutputStream (baos, 1000);
+	    for (int at = 0; at < bytes.length; at += step)
+	    {
+		int amt = Math.min (step, bytes.length - at);
+		if (amt == 1)
+		{
+		    cos.write (bytes[at]);
+		}
+		else
+		{
+		    cos.write (bytes, at, amt);
+		}
+	    }
+	    cos.finish ();
+
+	    byte[] decoded = decode (baos.toByteArray ());
+	    assertEquals (bytes.length, decoded.length);
+	    for (int i = 0; i < bytes.length; i++)
+	    {
+		assertEquals (bytes[i], decoded[i]);
+	    }
+	}
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private static methods
+
+    /**
+     * Decode the given chunked bytes, checking the format along the way.
+     *
+     * @param bytes non-null; the chunked bytes
+     * @return non-null; the decoded bytes
+     */
+    static private byte[] decode (byte[] bytes)
+    {
+	ByteArrayOutputStream result = new ByteArrayOutputStream ();
+	int at = 0;
+
+	for (;;)
+	{
+	    int size = 0;
+	    while (bytes[at] != '\r')
+	    {
+		size = size * 16 + Character.digit ((char) bytes[at], 16);
+		at++;
+	    }
+	    assertEquals ('\n', bytes[at + 1]);
+	    at += 2;
+
+	    if (size == 0)
+	    {
+		assertEquals ('\r', bytes[at]);
+		assertEquals ('\n', bytes[at + 1]);
+		assertEquals (bytes.length, at + 2);
+		return result.toByteArray ();
+	    }
+
+	    result.write (bytes, at, size);
+	    at += size;
+	    assertEquals ('\r', bytes[at]);
+	    assertEquals ('\n', bytes[at + 1]);
+	    at += 2;
+	}
+    }
+}
@@ -0,0 +1,299 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb.testing;
+
+import com.milk.tinyweb.Document;
+import com.milk.tinyweb.FileCache;
+import com.milk.tinyweb.FileDocument;
+import com.milk.tinyweb.FileSystemHandler;
+import com.milk.tinyweb.HttpRequest;
+import com.milk.tinyweb.StaticDocument;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.TreeMap;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the class {@link FileCache}.
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+public final class TestFileCache
+extends TestCase
+{
+    // ------------------------------------------------------------------------
+    // constructor
+
+    /**
+     * Construct an instance.
+     *
+     * @param name the name of the test, passed to the test framework
+     */
+    public TestFileCache (String name)
+    {
+	super (name);
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // public test methods
+
+    /**
+     * Test the constructor, including expected failures due to
+     * bad arguments.
+     */
+    public void testConstructor ()
+    {
+	try
+	{
+	    new FileCache (0, 100, 10);
+	    fail ("constructor failed to fail");
+	}
+	catch (IllegalArgumentException ex)
+	{
+	    // expected
+	}
+
+	try
+	{
+	    new FileCache (10, 0, 0);
+	    fail ("constructor failed to fail");
+	}
+	catch (IllegalArgumentException ex)
+	{
+	    // expected
+	}
+
+	try
+	{
+	    new FileCache (10, 100, 101);
+	    fail ("constructor failed to fail");
+	}
+	catch (IllegalArgumentException ex)
+	{
+	    // expected
+	}
+
+	try
+	{
+	    new FileCache (10, 100, -1);
+	    fail ("constructor failed to fail");
+	}
+	catch (IllegalArgumentException ex)
+	{
+	    // expected
+	}
+
+	// the rest should succeed
+	new FileCache (1, 1, 0);
+	new FileCache (10, 100, 100);
+    }
+
+    /**
+     * Test the method {@link FileCache#getDocument}, including the
+     * hit and miss counts and invalidation of out-of-date files.
+     */
+    public void testGetDocument ()
+	throws IOException
+    {
+	FileCache fc = new FileCache (10, 1000, 100);
+	File f = makeTempFile ("Milk is yummy.");
+
+	Document doc = fc.getDocument (f, null);
+	assertTrue (doc instanceof StaticDocument);
+	assertEquals ("Milk is yummy.", contentOf (doc));
+	assertTrue (doc.getContentType ().startsWith ("text/plain"));
+	assertEquals (f.lastModified (), doc.getLastModified ());
+	assertEquals (0, fc.getHitCount ());
+	assertEquals (1, fc.getMissCount ());
+	assertEquals (1, fc.getCount ());
+	assertEquals (14, fc.getByteCount ());
+
+	assertSame (doc, fc.getDocument (f, null));
+	assertSame (doc, fc.getDocument (f, null));
+	assertEquals (2, fc.getHitCount ());
+	assertEquals (1, fc.getMissCount ());
+
+	// a change to the file should be noticed
+	writeFile (f, "Milk is super-yummy.");
+	f.setLastModified (f.lastModified () + 5000);
+	doc = fc.getDocument (f, null);
+	assertEquals ("Milk is super-yummy.", contentOf (doc));
+	assertEquals (2, fc.getMissCount ());
+	assertEquals (1, fc.getCount ());
+	assertEquals (20, fc.getByteCount ());
+	assertEquals (0, fc.getEvictionCount ());
+
+	// as should a change in headers
+	Document doc2 = fc.getDocument (f, new TreeMap ());
+	assertNotSame (doc, doc2);
+	assertEquals (3, fc.getMissCount ());
+	assertEquals (1, fc.getCount ());
+
+	// too big to cache
+	File big = makeTempFile ("This is more than one hundred bytes. " +
+				 "This is more than one hundred bytes. " +
+				 "This is more than one hundred bytes.");
+	assertNull (fc.getDocument (big, null));
+	assertEquals (4, fc.getMissCount ());
+	assertEquals (1, fc.getCount ());
+
+	// nonexistent
+	big.delete ();
+	assertNull (fc.getDocument (big, null));
+
+	fc.clear ();
+	assertEquals (0, fc.getCount ());
+	assertEquals (0, fc.getByteCount ());
+
+	f.delete ();
+    }
+
+    /**
+     * Test eviction when the count and byte limits are exceeded.
+     */
+    public void testEviction ()
+	throws IOException
+    {
+	FileCache fc = new FileCache (3, 20, 10);
+	File[] files = new File[5];
+
+	for (int i = 0; i < files.length; i++)
+	{
+	    files[i] = makeTempFile ("12345678".substring (0, i + 4));
+	}
+
+	// count limit
+	fc.getDocument (files[0], null);
+	fc.getDocument (files[1], null);
+	fc.getDocument (files[2], null);
+	fc.getDocument (files[0], null); // now files[1] is eldest
+	assertEquals (0, fc.getEvictionCount ());
+	fc.getDocument (files[3], null);
+	assertEquals (1, fc.getEvictionCount ());
+	assertEquals (3, fc.getCount ());
+	assertEquals (4 + 6 + 7, fc.getByteCount ());
+
+	long hits = fc.getHitCount ();
+	fc.getDocument (files[0], null);
+	assertEquals (hits + 1, fc.getHitCount ());
+	fc.getDocument (files[1], null);
+	assertEquals (hits + 1, fc.getHitCount ());
+
+	// count limit again; files[3] should go
+	fc.getDocument (files[4], null);
+	assertEquals (4 + 5 + 8, fc.getByteCount ());
+	assertEquals (3, fc.getCount ());
+
+	// byte limit; files[4] should go
+	fc.clear ();
+	fc.getDocument (files[4], null);
+	fc.getDocument (files[3], null);
+	fc.getDocument (files[2], null);
+	assertEquals (2, fc.getCount ());
+	assertEquals (7 + 6, fc.getByteCount ());
+
+	for (int i = 0; i < files.length; i++)
+	{
+	    files[i].delete ();
+	}
+    }
+
+    /**
+     * Test the use of a cache by {@link FileSystemHandler}.
+     */
+    public void testFileSystemHandler ()
+	throws IOException
+    {
+	File f = makeTempFile ("Leche.");
+	FileSystemHandler fsh = new FileSystemHandler (f.getParentFile ());
+	FileCache fc = new FileCache (10, 1000, 100);
+	HttpRequest req = new HttpRequest ("1.1", 500, "Boo");
+
+	Document doc = fsh.handleRequest (null, f.getName (), req);
+	assertTrue (doc instanceof FileDocument);
+
+	fsh.setFileCache (fc);
+	doc = fsh.handleRequest (null, f.getName (), req);
+	assertTrue (doc instanceof StaticDocument);
+	assertSame (doc, fsh.handleRequest (null, f.getName (), req));
+	assertEquals (1, fc.getHitCount ());
+
+	// queries bypass the cache
+	doc = fsh.handleRequest (null, f.getName () + "?offset=2", req);
+	assertTrue (doc instanceof FileDocument);
+	assertEquals (4, doc.getContentLength ());
+
+	f.delete ();
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // static private methods
+
+    /**
+     * Create a temporary file which contains the given string and
+     * return a <code>File</code> representing it.
+     *
+     * @param contents non-null; the contents of the file-to-be
+     * @return non-null; a reference to the created file
+     */
+    static private File makeTempFile (String contents)
+	throws IOException
+    {
+	File f = File.createTempFile ("TestFileCache", ".txt");
+	f.deleteOnExit ();
+	writeFile (f, contents);
+	return f;
+    }
+
+    /**
+     * Write the given string to the given file.
+     *
+     * @param file non-null; the file to write to
+     * @param str non-null; the string to write
+     */
+    static private void writeFile (File file, String str)
+	throws IOException
+    {
+	FileWriter fw = new FileWriter (file);
+	fw.write (str);
+	fw.close ();
+    }
+
+    /**
+     * Get the content of the given document as a string.
+     *
+     * @param doc non-null; the document
+     * @return non-null; its content
+     */
+    static private String contentOf (Document doc)
+	throws IOException
+    {
+	ByteArrayOutputStream baos = new ByteArrayOutputStream ();
+	doc.writeBytes (baos, doc.getContentLength ());
+	return new String (baos.toByteArray (), "ISO-8859-1");
+    }
+}
@@ -26,6 +26,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 import junit.framework.TestCase;
 
@@ -153,6 +155,114 @@ extends TestCase
 	assertEquals (0, baos.size ());
     }
 
+    /**
+     * Test that {@link FileDocument#writeRange} fails rather than
+     * sending a short range when the file shrinks after its length has
+     * been taken.
+     */
+    public void testWriteRangeShrunk ()
+	throws Exception
+    {
+	ByteArrayOutputStream baos = new ByteArrayOutputStream (32000);
+	File f = makeTempFile (randomBytes (20000));
+	FileDocument fd = new FileDocument (f, null);
+	long length = fd.getContentLength ();
+
+	FileOutputStream fos = new FileOutputStream (f);
+	fos.write (randomBytes (1000));
+	fos.close ();
+
+	try
+	{
+	    fd.writeRange (baos, length, 500, 10000);
+	    fail ("writeRange failed to fail");
+	}
+	catch (IOException ex)
+	{
+	    // expected
+	}
+
+	f.delete ();
+    }
+
+    /**
+     * Test the channel form of {@link FileDocument#writeBytes}, which
+     * transfers directly from the file. This tests the
+     * <code>offset</code> query parameter, but not any others. 
+     */
+    public void testWriteBytesChannel ()
+	throws Exception
+    {
+	ByteArrayOutputStream baos = new ByteArrayOutputStream (32000);
+	WritableByteChannel chan = Channels.newChannel (baos);
+	int length = 0;
+
+	while (length < 200000)
+	{
+	    byte[] b = randomBytes (length);
+	    File f = makeTempFile (b);
+
+	    FileDocument fd = new FileDocument (f, null);
+	    baos.reset ();
+	    fd.writeBytes (chan, fd.getContentLength ());
+	    assertTrue (Arrays.equals (b, baos.toByteArray ()));
+
+	    fd = new FileDocument (f, "offset=831");
+	    baos.reset ();
+	    fd.writeBytes (chan, fd.getContentLength ());
+	    assertTrue (Arrays.equals (expectedBytes (b, 831), 
+				       baos.toByteArray ()));
+
+	    fd = new FileDocument (f, "offset=-3412");
+	    baos.reset ();
+	    fd.writeBytes (chan, fd.getContentLength ());
+	    assertTrue (Arrays.equals (expectedBytes (b, -3412), 
+				       baos.toByteArray ()));
+
+	    f.delete ();
+	    length = length * 3 + 15;
+	}
+
+	// now try the file-not-found case
+	File f = makeTempFile (new byte[0]);
+	f.delete ();
+	FileDocument fd = new FileDocument (f, null);
+	baos.reset ();
+	fd.writeBytes (chan, fd.getContentLength ());
+	assertEquals (0, baos.size ());
+    }
+
+    /**
+     * Test that the channel form of {@link FileDocument#writeBytes}
+     * fails rather than sending a short response when the file shrinks
+     * after its length has been taken.
+     */
+    public void testWriteBytesChannelShrunk ()
+	throws Exception
+    {
+	ByteArrayOutputStream baos = new ByteArrayOutputStream (32000);
+	WritableByteChannel chan = Channels.newChannel (baos);
+	File f = makeTempFile (randomBytes (20000));
+	FileDocument fd = new FileDocument (f, null);
+	long length = fd.getContentLength ();
+
+	FileOutputStream fos = new FileOutputStream (f);
+	fos.write (randomBytes (1000));
+	fos.close ();
+
+	try
+	{
+	    fd.writeBytes (chan, length);
+	    fail ("writeBytes failed to fail");
+	}
+	catch (IOException ex)
+	{
+	    // expected
+	}
+
+	f.delete ();
+    }
+
     /** 
      * Test the use of the <code>dynamic</code> query parameter.
      */
@@ -0,0 +1,387 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb.testing;
+
+import com.milk.tinyweb.FormParser;
+import com.milk.tinyweb.FormPart;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the class {@link FormParser}.
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+public final class TestFormParser
+extends TestCase
+{
+    /** the content type used for the multipart tests */
+    static private final String MULTIPART_TYPE =
+	"multipart/form-data; boundary=\"xyzzy\"";
+
+    /** the content type used for the urlencoded tests */
+    static private final String URLENCODED_TYPE =
+	"application/x-www-form-urlencoded";
+
+    // ------------------------------------------------------------------------
+    // constructor
+
+    /**
+     * Construct an instance.
+     *
+     * @param name the name of the test, passed to the test framework
+     */
+    public TestFormParser (String name)
+    {
+	super (name);
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // public test methods
+
+    /**
+     * Test the constructor, including expected failures due to bad
+     * arguments.
+     */
+    public void testConstructor ()
+    {
+	try
+	{
+	    new FormParser (stream (""), "text/plain", 10, null);
+	    fail ("constructor failed to fail (1)");
+	}
+	catch (IllegalArgumentException ex)
+	{
+	    // expected
+	}
+
+	try
+	{
+	    new FormParser (stream (""), "multipart/form-data", 10, null);
+	    fail ("constructor failed to fail (2)");
+	}
+	catch (IllegalArgumentException ex)
+	{
+	    // expected
+	}
+
+	try
+	{
+	    new FormParser (stream (""), URLENCODED_TYPE, -1, null);
+	    fail ("constructor failed to fail (3)");
+	}
+	catch (IllegalArgumentException ex)
+	{
+	    // expected
+	}
+
+	new FormParser (stream (""), URLENCODED_TYPE, 10, null);
+	new FormParser (stream (""), MULTIPART_TYPE, 10, null);
+    }
+
+    /**
+     * Test the method {@link FormParser#isFormContentType}.
+     */
+    public void testIsFormContentType ()
+    {
+	assertTrue (FormParser.isFormContentType (URLENCODED_TYPE));
+	assertTrue (FormParser.isFormContentType (MULTIPART_TYPE));
+	assertTrue (FormParser.isFormContentType (
+	    "Application/X-WWW-Form-UrlEncoded; charset=UTF-8"));
+	assertFalse (FormParser.isFormContentType ("text/html"));
+	assertFalse (FormParser.isFormContentType (null));
+    }
+
+    /**
+     * Test parsing of urlencoded forms.
+     */
+    public void testUrlEncoded ()
+	throws IOException
+    {
+	FormParser fp =
+	    new FormParser (
+		stream ("a=1&b+c=two+words&&empty=&d=%41%62%e2%82%ac&"),
+		URLENCODED_TYPE, 100, null);
+
+	assertPart (fp.next (), "a", "1");
+	assertPart (fp.next (), "b c", "two words");
+	assertPart (fp.next (), "empty", "");
+	assertPart (fp.next (), "d", "Ab\u20ac");
+	assertNull (fp.next ());
+	assertNull (fp.next ());
+    }
+
+    /**
+     * Test that urlencoded fields without an <code>=</code> get an
+     * empty value, as they do when parsing a query string.
+     */
+    public void testUrlEncodedNoValue ()
+	throws IOException
+    {
+	FormParser fp =
+	    new FormParser (stream ("flag&x=1&b"), URLENCODED_TYPE, 100, 
+			    null);
+
+	assertPart (fp.next (), "flag", "");
+	assertPart (fp.next (), "x", "1");
+	assertPart (fp.next (), "b", "");
+	assertNull (fp.next ());
+
+	fp = new FormParser (stream ("novalue"), URLENCODED_TYPE, 100, null);
+	assertPart (fp.next (), "novalue", "");
+	assertNull (fp.next ());
+    }
+
+    /**
+     * Test that malformed urlencoded forms get rejected.
+     */
+    public void testUrlEncodedErrors ()
+    {
+	String[] bad = { "a=%4", "a=%zz", "a%4", "%zz=1" };
+
+	for (int i = 0; i < bad.length; i++)
+	{
+	    FormParser fp =
+		new FormParser (stream (bad[i]), URLENCODED_TYPE, 100, null);
+	    try
+	    {
+		while (fp.next () != null)
+		{
+		    // just keep going
+		}
+		fail ("parser failed to fail on " + bad[i]);
+	    }
+	    catch (IOException ex)
+	    {
+		// expected
+	    }
+	}
+    }
+
+    /**
+     * Test parsing of multipart forms, including a preamble, a file part,
+     * and a stream that only hands back one byte at a time.
+     */
+    public void testMultipart ()
+	throws IOException
+    {
+	String body =
+	    "this is the preamble\r\n" +
+	    "--xyzzy\r\n" +
+	    "Content-Disposition: form-data; name=\"field\"\r\n" +
+	    "\r\n" +
+	    "some value\r\n" +
+	    "--xyzzy\r\n" +
+	    "Content-Disposition: form-data; name=\"upload\"; " +
+	    "filename=\"a \\\"b\\\".txt\"\r\n" +
+	    "Content-Type: text/plain\r\n" +
+	    "\r\n" +
+	    "line one\r\n--xyzz\r\nline two\r\n" +
+	    "--xyzzy--\r\n" +
+	    "this is the epilogue\r\n";
+
+	for (int i = 0; i < 2; i++)
+	{
+	    InputStream in = stream (body);
+	    if (i == 1)
+	    {
+		in = new TrickleInputStream (in);
+	    }
+
+	    FormParser fp = new FormParser (in, MULTIPART_TYPE, 100, null);
+	    FormPart part = fp.next ();
+	    assertPart (part, "field", "some value");
+	    assertNull (part.getFileName ());
+
+	    part = fp.next ();
+	    assertPart (part, "upload", "line one\r\n--xyzz\r\nline two");
+	    assertEquals ("a \"b\".txt", part.getFileName ());
+	    assertEquals ("text/plain", part.getContentType ());
+	    assertEquals ("text/plain", part.getHeader ("CONTENT-TYPE"));
+	    assertNull (fp.next ());
+	}
+    }
+
+    /**
+     * Test that part content past the threshold gets spilled to a file.
+     */
+    public void testSpill ()
+	throws IOException
+    {
+	StringBuffer sb = new StringBuffer ();
+	for (int i = 0; i < 5000; i++)
+	{
+	    sb.append ("0123456789");
+	}
+	String big = sb.toString ();
+
+	String body =
+	    "--xyzzy\r\n" +
+	    "Content-Disposition: form-data; name=\"small\"\r\n" +
+	    "\r\n" +
+	    "tiny\r\n" +
+	    "--xyzzy\r\n" +
+	    "Content-Disposition: form-data; name=\"big\"; " +
+	    "filename=\"big.txt\"\r\n" +
+	    "\r\n" +
+	    big + "\r\n" +
+	    "--xyzzy--";
+
+	FormParser fp =
+	    new FormParser (stream (body), MULTIPART_TYPE, 1000, null);
+
+	FormPart part = fp.next ();
+	assertPart (part, "small", "tiny");
+	assertTrue (part.isInMemory ());
+
+	part = fp.next ();
+	assertFalse (part.isInMemory ());
+	File file = part.getFile ();
+	assertTrue (file.exists ());
+	assertEquals (big.length (), file.length ());
+	assertPart (part, "big", big);
+	part.delete ();
+	assertFalse (file.exists ());
+
+	assertNull (fp.next ());
+    }
+
+    /**
+     * Test that truncated multipart forms get rejected.
+     */
+    public void testMultipartErrors ()
+    {
+	String[] bad = {
+	    "",
+	    "--xyzzy\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\nabc",
+	    "--xyzzy\r\nContent-Disposition: form-data; name=\"a\"",
+	    "--xyzzyjunk\r\n\r\nabc\r\n--xyzzy--"
+	};
+
+	for (int i = 0; i < bad.length; i++)
+	{
+	    FormParser fp =
+		new FormParser (stream (bad[i]), MULTIPART_TYPE, 100, null);
+	    try
+	    {
+		while (fp.next () != null)
+		{
+		    // just keep going
+		}
+		fail ("parser failed to fail on case " + i);
+	    }
+	    catch (IOException ex)
+	    {
+		// expected
+	    }
+	}
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private static methods
+
+    /**
+     * Make a stream of the ISO-8859-1 bytes of the given string.
+     *
+     * @param s non-null; the string
+     * @return non-null; the stream
+     */
+    static private InputStream stream (String s)
+    {
+	try
+	{
+	    return new ByteArrayInputStream (s.getBytes ("ISO-8859-1"));
+	}
+	catch (IOException ex)
+	{
+	    // shouldn't happen
+	    throw new RuntimeException (ex.toString ());
+	}
+    }
+
+    /**
+     * Assert that the given part has the given name and content.
+     *
+     * @param part null-ok; the part
+     * @param name non-null; the expected name
+     * @param content non-null; the expected content
+     */
+    static private void assertPart (FormPart part, String name,
+				    String content)
+	throws IOException
+    {
+	assertNotNull (part);
+	assertEquals (name, part.getName ());
+	assertEquals (content, part.getString ());
+	assertEquals (part.getBytes ().length, part.getSize ());
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private static classes
+
+    /**
+     * Stream which hands back at most one byte per read.
+     */
+    static private class TrickleInputStream
+    extends InputStream
+    {
+	/** non-null; the stream to read from */
+	private final InputStream myStream;
+
+	/**
+	 * Construct an instance.
+	 *
+	 * @param stream non-null; the stream to read from
+	 */
+	public TrickleInputStream (InputStream stream)
+	{
+	    myStream = stream;
+	}
+
+	// superclass's documentation suffices
+	public int read ()
+	    throws IOException
+	{
+	    return myStream.read ();
+	}
+
+	// superclass's documentation suffices
+	public int read (byte[] b, int off, int len)
+	    throws IOException
+	{
+	    if (len == 0)
+	    {
+		return 0;
+	    }
+
+	    return myStream.read (b, off, 1);
+	}
+    }
+}
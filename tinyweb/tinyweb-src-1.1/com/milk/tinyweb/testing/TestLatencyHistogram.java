@@ -0,0 +1,149 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb.testing;
+
+import com.milk.tinyweb.LatencyHistogram;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the class {@link LatencyHistogram}.
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+public final class TestLatencyHistogram
+extends TestCase
+{
+    // ------------------------------------------------------------------------
+    // constructor
+
+    /**
+     * Construct an instance.
+     *
+     * @param name the name of the test, passed to the test framework
+     */
+    public TestLatencyHistogram (String name)
+    {
+	super (name);
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // public test methods
+
+    /**
+     * Test an empty instance.
+     */
+    public void testEmpty ()
+    {
+	LatencyHistogram hist = new LatencyHistogram ();
+
+	assertEquals (0, hist.getCount ());
+	assertEquals (0, hist.getMean ());
+	assertEquals (0, hist.getMax ());
+	assertEquals (0, hist.getPercentile (50));
+	assertEquals (0, hist.getPercentile (100));
+    }
+
+    /**
+     * Test recording small values, which are all kept exactly.
+     */
+    public void testSmall ()
+    {
+	LatencyHistogram hist = new LatencyHistogram ();
+
+	for (int i = 1; i <= 50; i++)
+	{
+	    hist.record (i * 1000L);
+	}
+
+	assertEquals (50, hist.getCount ());
+	assertEquals (25, hist.getMean ());
+	assertEquals (50, hist.getMax ());
+	assertEquals (1, hist.getPercentile (1));
+	assertEquals (25, hist.getPercentile (50));
+	assertEquals (45, hist.getPercentile (90));
+	assertEquals (50, hist.getPercentile (100));
+
+	// nanoseconds get truncated, and negatives count as zero
+	hist.record (999);
+	hist.record (-5);
+	assertEquals (52, hist.getCount ());
+	assertEquals (0, hist.getPercentile (1));
+    }
+
+    /**
+     * Test recording a wide range of values, which are kept to within
+     * a few percent.
+     */
+    public void testPrecision ()
+    {
+	long[] values = 
+	{
+	    100, 1000, 12345, 65432, 1000000, 123456789, 987654321987L
+	};
+
+	for (int i = 0; i < values.length; i++)
+	{
+	    LatencyHistogram hist = new LatencyHistogram ();
+	    hist.record (values[i] * 1000);
+	    hist.record (values[i] * 1000 + 999);
+	    hist.record (1000);
+
+	    long got = hist.getPercentile (50);
+	    assertTrue ("value " + values[i] + " got " + got, 
+			got >= values[i]);
+	    assertTrue ("value " + values[i] + " got " + got, 
+			got <= (values[i] + (values[i] / 30)));
+	    assertEquals (values[i], hist.getMax ());
+	    assertEquals (values[i], hist.getPercentile (100));
+	    assertEquals (1, hist.getPercentile (33));
+	}
+    }
+
+    /**
+     * Test the range checks of {@link LatencyHistogram#getPercentile}.
+     */
+    public void testPercentileRange ()
+    {
+	LatencyHistogram hist = new LatencyHistogram ();
+
+	try
+	{
+	    hist.getPercentile (0);
+	    fail ("getPercentile failed to fail (1)");
+	}
+	catch (IllegalArgumentException ex)
+	{
+	    // expected
+	}
+
+	try
+	{
+	    hist.getPercentile (100.5);
+	    fail ("getPercentile failed to fail (2)");
+	}
+	catch (IllegalArgumentException ex)
+	{
+	    // expected
+	}
+    }
+}
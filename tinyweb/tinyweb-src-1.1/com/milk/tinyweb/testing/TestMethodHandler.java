@@ -23,6 +23,8 @@ package com.milk.tinyweb.testing;
 import com.milk.tinyweb.Document;
 import com.milk.tinyweb.HttpRequest;
 import com.milk.tinyweb.MethodHandler;
+import com.milk.util.EmbeddedException;
+import java.io.IOException;
 import junit.framework.TestCase;
 
 /**
@@ -156,6 +158,37 @@ extends TestCase
 	assertSame (doc, mb.getDocument ());
     }
 
+    /**
+     * Test that exceptions thrown by the target method make it out of
+     * {@link MethodHandler#handleRequest}: unchecked ones as-is, and
+     * checked ones wrapped in an {@link EmbeddedException}.
+     */
+    public void testHandleRequestExceptions ()
+    {
+	MethBunch mb = new MethBunch ();
+	HttpRequest req = new HttpRequest ("1.1", 321, "Blort!");
+
+	try
+	{
+	    new MethodHandler (mb, "blort").handleRequest ("q", "p", req);
+	    fail ("handleRequest failed to fail (1)");
+	}
+	catch (IllegalStateException ex)
+	{
+	    assertEquals ("blort", ex.getMessage ());
+	}
+
+	try
+	{
+	    new MethodHandler (mb, "zorch").handleRequest ("q", "p", req);
+	    fail ("handleRequest failed to fail (2)");
+	}
+	catch (EmbeddedException ex)
+	{
+	    assertTrue (ex.getEmbeddedException () instanceof IOException);
+	}
+    }
+
 
 
     // ------------------------------------------------------------------------
@@ -233,6 +266,17 @@ extends TestCase
 	    return myDocument;
 	}
 
+	public Document blort (String q, String p, HttpRequest r)
+	{
+	    throw new IllegalStateException ("blort");
+	}
+
+	public Document zorch (String q, String p, HttpRequest r)
+	    throws IOException
+	{
+	    throw new IOException ("zorch");
+	}
+
 	/** This is to make sure that the right overloaded method is
 	 * chosen. */
 	public void baz (String q)
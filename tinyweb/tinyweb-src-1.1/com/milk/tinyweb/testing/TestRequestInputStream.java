@@ -0,0 +1,307 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb.testing;
+
+import com.milk.tinyweb.HttpRequest;
+import com.milk.tinyweb.RequestInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the class {@link RequestInputStream}.
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+public final class TestRequestInputStream
+extends TestCase
+{
+    // ------------------------------------------------------------------------
+    // constructor
+
+    /**
+     * Construct an instance.
+     *
+     * @param name the name of the test, passed to the test framework
+     */
+    public TestRequestInputStream (String name)
+    {
+	super (name);
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // public test methods
+
+    /**
+     * Test the constructor, including expected failures due to
+     * bad arguments.
+     */
+    public void testConstructor ()
+    {
+	// should fail if the stream is null
+	try
+	{
+	    new RequestInputStream (null);
+	    fail ("constructor failed to fail");
+	}
+	catch (NullPointerException ex)
+	{
+	    // expected
+	}
+
+	// the rest should succeed
+
+	new RequestInputStream (new ByteArrayInputStream (new byte[0]));
+    }
+
+    /**
+     * Test the method {@link RequestInputStream#readRequest}, with
+     * several pipelined requests, some with entities, arriving in
+     * dribs and drabs.
+     */
+    public void testReadRequest ()
+	throws Exception
+    {
+	String rstr =
+	    "\r\n" +
+	    "GET /foo/bar HTTP/1.1\r\n" +
+	    "Host: localhost\r\n" +
+	    "X-Long: one\r\n" +
+	    "\ttwo\r\n" +
+	    "\r\n" +
+	    "POST /form HTTP/1.0\n" +
+	    "Content-Length: 5\n" +
+	    "\n" +
+	    "abcde" +
+	    "POST /form2 HTTP/1.1\r\n" +
+	    "Content-Length: 3\r\n" +
+	    "\r\n" +
+	    "xyz" +
+	    "HEAD http://localhost/zorch HTTP/1.1\r\n" +
+	    "\r\n";
+
+	RequestInputStream in = 
+	    new RequestInputStream (new DribbleStream (rstr.getBytes (), 7));
+
+	assertTrue (in.awaitInput ());
+	HttpRequest req = in.readRequest ();
+	assertEquals (0, req.getErrorCode ());
+	assertEquals (HttpRequest.REQUEST_GET, req.getRequestMethod ());
+	assertEquals ("/foo/bar", req.getPath ());
+	assertSame ("1.1", req.getHttpVersion ());
+	assertEquals ("localhost", req.getHeader ("host"));
+	assertEquals ("one two", req.getHeader ("x-long"));
+	assertNull (req.getEntityInputStream ());
+
+	req = in.readRequest ();
+	assertEquals (HttpRequest.REQUEST_POST, req.getRequestMethod ());
+	assertEquals ("/form", req.getPath ());
+	assertSame ("1.0", req.getHttpVersion ());
+	InputStream s = req.getEntityInputStream ();
+	byte[] buf = new byte[10];
+	assertEquals (5, readFully (s, buf));
+	assertEquals ("abcde", new String (buf, 0, 5));
+
+	// this one's entity doesn't get read; closing it skips it
+	req = in.readRequest ();
+	assertEquals ("/form2", req.getPath ());
+	req.getEntityInputStream ().close ();
+
+	req = in.readRequest ();
+	assertEquals (HttpRequest.REQUEST_HEAD, req.getRequestMethod ());
+	assertEquals ("/zorch", req.getPath ());
+
+	assertFalse (in.awaitInput ());
+	assertEquals (-1, in.read ());
+    }
+
+    /**
+     * Test that a request read through {@link HttpRequest#read} with an
+     * instance of this class gets the buffered treatment, and that
+     * errors get reported as with the unbuffered form.
+     */
+    public void testErrors ()
+	throws Exception
+    {
+	String[] bad = 
+	{
+	    "GET /foo HTTP/1.1\r\nFoo: bar",
+	    "GET /foo HTTP/1.1\r\n stuff\r\n\r\n",
+	    "GET /foo HTTP/1.1\r\nfoozort\r\n\r\n",
+	    "GET /foo HTTP/1.1\rX\r\n\r\n",
+	    "GET /f\001o HTTP/1.1\r\n\r\n",
+	    "GET zipple\r\n\r\n",
+	    "GET /foo HTTP/1.2\r\n\r\n",
+	    "BLORT /foo HTTP/1.1\r\n\r\n",
+	    "GET  HTTP/1.1\r\n\r\n",
+	    "GET foo HTTP/1.1\r\n\r\n",
+	    ""
+	};
+
+	int[] codes = { 400, 400, 400, 400, 400, 400, 505, 501, 400, 400, 400 };
+
+	for (int i = 0; i < bad.length; i++)
+	{
+	    byte[] bytes = bad[i].getBytes ();
+	    HttpRequest buffered = 
+		HttpRequest.read (
+		    new RequestInputStream (new ByteArrayInputStream (bytes)));
+	    HttpRequest unbuffered = 
+		HttpRequest.read (new ByteArrayInputStream (bytes));
+	    assertEquals (bad[i], codes[i], buffered.getErrorCode ());
+	    assertEquals (bad[i], codes[i], unbuffered.getErrorCode ());
+	    assertEquals (bad[i], unbuffered.getErrorMsg (), 
+			  buffered.getErrorMsg ());
+	}
+
+	// headers that never end
+	StringBuffer sb = new StringBuffer ();
+	sb.append ("GET /foo HTTP/1.1\r\n");
+	while (sb.length () < 70000)
+	{
+	    sb.append ("X-Filler: blah blah blah blah blah blah\r\n");
+	}
+	RequestInputStream in = 
+	    new RequestInputStream (
+		new ByteArrayInputStream (sb.toString ().getBytes ()));
+	assertEquals (400, in.readRequest ().getErrorCode ());
+    }
+
+    /**
+     * Test reading the bytes that follow a request directly, including
+     * large reads that bypass the buffer.
+     */
+    public void testRead ()
+	throws Exception
+    {
+	byte[] bytes = new byte[100000];
+	String head = "GET / HTTP/1.1\r\n\r\n";
+	System.arraycopy (head.getBytes (), 0, bytes, 0, head.length ());
+	for (int i = head.length (); i < bytes.length; i++)
+	{
+	    bytes[i] = (byte) i;
+	}
+
+	RequestInputStream in = 
+	    new RequestInputStream (new ByteArrayInputStream (bytes));
+	assertEquals ("/", in.readRequest ().getPath ());
+
+	int at = head.length ();
+	assertEquals (bytes[at] & 0xff, in.read ());
+	at++;
+
+	assertEquals (10, in.skip (10));
+	at += 10;
+
+	byte[] buf = new byte[50000];
+	while (at < bytes.length)
+	{
+	    int amt = in.read (buf, 0, buf.length);
+	    assertTrue (amt > 0);
+	    for (int i = 0; i < amt; i++)
+	    {
+		assertEquals (bytes[at + i], buf[i]);
+	    }
+	    at += amt;
+	}
+
+	assertEquals (-1, in.read (buf, 0, buf.length));
+	in.close ();
+
+	try
+	{
+	    in.available ();
+	    fail ("available() on closed stream failed to fail");
+	}
+	catch (IOException ex)
+	{
+	    // expected
+	}
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private static methods
+
+    /**
+     * Read from the given stream until the given buffer is full or the
+     * end of input is reached.
+     *
+     * @param s non-null; the stream to read from
+     * @param buf non-null; the buffer to read into
+     * @return the number of bytes read
+     */
+    static private int readFully (InputStream s, byte[] buf)
+	throws IOException
+    {
+	int at = 0;
+
+	while (at < buf.length)
+	{
+	    int amt = s.read (buf, at, buf.length - at);
+	    if (amt == -1)
+	    {
+		break;
+	    }
+	    at += amt;
+	}
+
+	return at;
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private static classes
+
+    /**
+     * Stream that never returns more than a given number of bytes per
+     * read, like a slow network connection.
+     */
+    static private class DribbleStream
+	extends ByteArrayInputStream
+    {
+	/** the maximum number of bytes per read */
+	private int myMax;
+
+	/**
+	 * Construct an instance.
+	 *
+	 * @param bytes non-null; the bytes to read
+	 * @param max the maximum number of bytes per read
+	 */
+	public DribbleStream (byte[] bytes, int max)
+	{
+	    super (bytes);
+	    myMax = max;
+	}
+
+	// superclass's javadoc suffices
+	public synchronized int read (byte[] b, int off, int len)
+	{
+	    return super.read (b, off, (len > myMax) ? myMax : len);
+	}
+    }
+}
@@ -0,0 +1,333 @@
+// Copyright (c) 2000-2001 Dan Bornstein, danfuzz@milk.com. All rights 
+// reserved, except as follows:
+// 
+// Permission is hereby granted, free of charge, to any person obtaining a
+// copy of this software and associated documentation files (the "Software"),
+// to deal in the Software without restriction, including without limitation
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,
+// and/or sell copies of the Software, and to permit persons to whom the
+// Software is furnished to do so, subject to the condition that the above
+// copyright notice and this permission notice shall be included in all copies
+// or substantial portions of the Software.
+// 
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+// DEALINGS IN THE SOFTWARE.
+
+package com.milk.tinyweb.testing;
+
+import com.milk.tinyweb.Document;
+import com.milk.tinyweb.DocumentHandler;
+import com.milk.tinyweb.HttpRequest;
+import com.milk.tinyweb.RouteTable;
+import com.milk.tinyweb.VirtualDirectory;
+import com.sun.management.ThreadMXBean;
+import java.lang.management.ManagementFactory;
+import junit.framework.TestCase;
+
+/**
+ * Test cases for the class {@link RouteTable}.
+ *
+ * @author Dan Bornstein, danfuzz@milk.com
+ */
+public final class TestRouteTable
+extends TestCase
+{
+    // ------------------------------------------------------------------------
+    // constructor
+
+    /**
+     * Construct an instance.
+     *
+     * @param name the name of the test, passed to the test framework
+     */
+    public TestRouteTable (String name)
+    {
+	super (name);
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // public test methods
+
+    /**
+     * Test the method {@link RouteTable#withDocument}.
+     */
+    public void testWithDocument ()
+    {
+	RouteTable rt = RouteTable.EMPTY;
+	Document doc = Document.makeHTML ("foo");
+
+	RouteTable rt2 = rt.withDocument ("/foo.html", doc);
+	assertNotSame (rt, rt2);
+
+	// the original is untouched
+	HttpRequest req = new HttpRequest ("1.1", 500, "Boo");
+	assertNull (rt.resolve ("/foo.html", req));
+	assertSame (doc, rt2.resolve ("/foo.html", req));
+
+	// failure cases
+
+	try
+	{
+	    rt.withDocument ("/foo", null);
+	    fail ("withDocument failed to fail (1)");
+	}
+	catch (NullPointerException ex)
+	{
+	    // expected
+	}
+
+	try
+	{
+	    rt.withDocument (null, doc);
+	    fail ("withDocument failed to fail (2)");
+	}
+	catch (NullPointerException ex)
+	{
+	    // expected
+	}
+
+	try
+	{
+	    rt.withDocument ("blort", doc);
+	    fail ("withDocument failed to fail (3)");
+	}
+	catch (IllegalArgumentException ex)
+	{
+	    // expected
+	}
+
+	try
+	{
+	    rt.withDocument ("/blort//biff", doc);
+	    fail ("withDocument failed to fail (4)");
+	}
+	catch (RuntimeException ex)
+	{
+	    // expected
+	}
+
+	try
+	{
+	    rt.withDocument ("/blort/", doc);
+	    fail ("withDocument failed to fail (5)");
+	}
+	catch (RuntimeException ex)
+	{
+	    // expected
+	}
+
+	try
+	{
+	    // documents can't have things put in them
+	    rt2.withDocument ("/foo.html/bar", doc);
+	    fail ("withDocument failed to fail (6)");
+	}
+	catch (RuntimeException ex)
+	{
+	    // expected
+	}
+    }
+
+    /**
+     * Test the method {@link RouteTable#resolve} with plain documents and
+     * directories.
+     */
+    public void testResolve ()
+    {
+	Document fooDoc = Document.makeHTML ("foo");
+	Document barDoc = Document.makeHTML ("bar");
+	Document indexDoc = Document.makeHTML ("index");
+	Document spaceDoc = Document.makeHTML ("space");
+	HttpRequest req = new HttpRequest ("1.1", 500, "Boo");
+
+	RouteTable rt = RouteTable.EMPTY;
+	assertNull (rt.resolve ("/", req));
+	assertNull (rt.resolve ("/foo.html", req));
+
+	rt = rt.withDocument ("/foo.html", fooDoc);
+	rt = rt.withDocument ("/foo/bar.html", barDoc);
+	rt = rt.withDocument ("/foo/a%20b.html", spaceDoc);
+
+	assertSame (fooDoc, rt.resolve ("/foo.html", req));
+	assertSame (fooDoc, rt.resolve ("/foo.html?zorch", req));
+	assertSame (barDoc, rt.resolve ("/foo/bar.html", req));
+	assertSame (barDoc, rt.resolve ("/foo/b%61r.html", req));
+	assertSame (spaceDoc, rt.resolve ("/foo/a%20b.html", req));
+
+	// directory listings
+	assertNotNull (rt.resolve ("/", req));
+	assertNotNull (rt.resolve ("/foo", req));
+	assertNotNull (rt.resolve ("/foo/", req));
+	assertNotSame (indexDoc, rt.resolve ("/", req));
+
+	rt = rt.withDocument ("/index.html", indexDoc);
+	assertSame (indexDoc, rt.resolve ("/", req));
+	assertSame (indexDoc, rt.resolve ("/index.html", req));
+
+	assertNull (rt.resolve ("/blort", req));
+	assertNull (rt.resolve ("/blort/biff", req));
+	assertNull (rt.resolve ("/foo/blort", req));
+	assertNull (rt.resolve ("/foo.html/blort", req));
+	assertNull (rt.resolve ("/foo/bar.html/", req));
+	assertNull (rt.resolve ("/foo/%zz", req));
+
+	// replacing a directory with a document
+	rt = rt.withDocument ("/foo", fooDoc);
+	assertSame (fooDoc, rt.resolve ("/foo", req));
+	assertNull (rt.resolve ("/foo/bar.html", req));
+
+	// replacing the whole thing
+	rt = rt.withDocument ("/", barDoc);
+	assertSame (barDoc, rt.resolve ("/", req));
+	assertNull (rt.resolve ("/index.html", req));
+    }
+
+    /**
+     * Test that {@link RouteTable#resolve} doesn't allocate anything
+     * when it finds a plain document for a path with no
+     * <code>%</code> forms in it, as long as the VM can tell.
+     */
+    public void testResolveWithoutAllocating ()
+    {
+	Document barDoc = Document.makeHTML ("bar");
+	HttpRequest req = new HttpRequest ("1.1", 500, "Boo");
+
+	RouteTable rt = RouteTable.EMPTY;
+	rt = rt.withDocument ("/foo/bar/baz.html", barDoc);
+	rt = rt.withDocument ("/foo/a%20b.html", barDoc);
+	String path = "/foo/bar/baz.html";
+	assertSame (barDoc, rt.resolve (path, req));
+
+	ThreadMXBean bean = 
+	    (ThreadMXBean) ManagementFactory.getThreadMXBean ();
+	if (! bean.isThreadAllocatedMemorySupported ())
+	{
+	    return;
+	}
+	bean.setThreadAllocatedMemoryEnabled (true);
+	long id = Thread.currentThread ().getId ();
+
+	for (int i = 0; i < 1000; i++)
+	{
+	    rt.resolve (path, req);
+	}
+
+	long before = bean.getThreadAllocatedBytes (id);
+	for (int i = 0; i < 1000; i++)
+	{
+	    rt.resolve (path, req);
+	}
+	long allocated = bean.getThreadAllocatedBytes (id) - before;
+
+	// a substring per path component would be tens of kilobytes
+	assertTrue ("allocated " + allocated, allocated < 1000);
+    }
+
+    /**
+     * Test the method {@link RouteTable#resolve} with handlers, which
+     * act as prefix matches.
+     */
+    public void testResolveHandler ()
+    {
+	Document doc = Document.makeHTML ("foo");
+	Recorder rec = new Recorder (doc);
+	HttpRequest req = new HttpRequest ("1.1", 500, "Boo");
+	RouteTable rt = RouteTable.EMPTY.withDocument ("/a/b", rec);
+
+	assertSame (doc, rt.resolve ("/a/b", req));
+	assertNull (rec.myQuery);
+	assertNull (rec.myPartialPath);
+	assertSame (req, rec.myRequest);
+
+	assertSame (doc, rt.resolve ("/a/b?x=1", req));
+	assertEquals ("x=1", rec.myQuery);
+	assertNull (rec.myPartialPath);
+
+	assertSame (doc, rt.resolve ("/a/b/", req));
+	assertNull (rec.myQuery);
+	assertEquals ("", rec.myPartialPath);
+
+	assertSame (doc, rt.resolve ("/a/b?y/c%20d/e?f", req));
+	assertEquals ("y", rec.myQuery);
+	assertEquals ("c%20d/e?f", rec.myPartialPath);
+
+	// putting things under a handler goes to the handler
+	VirtualDirectory vd = new VirtualDirectory ();
+	rt = rt.withDocument ("/vd", vd);
+	RouteTable rt2 = rt.withDocument ("/vd/x/y.html", doc);
+	assertSame (rt, rt2);
+	assertSame (doc, vd.handleRequest (null, "x/y.html", req));
+	assertSame (doc, rt.resolve ("/vd/x/y.html", req));
+    }
+
+    /**
+     * Test the method {@link RouteTable#resolve} with wildcards.
+     */
+    public void testResolveWildcard ()
+    {
+	Document starDoc = Document.makeHTML ("star");
+	Document fooDoc = Document.makeHTML ("foo");
+	Document profileDoc = Document.makeHTML ("profile");
+	HttpRequest req = new HttpRequest ("1.1", 500, "Boo");
+
+	RouteTable rt = RouteTable.EMPTY;
+	rt = rt.withDocument ("/x/*", starDoc);
+	rt = rt.withDocument ("/x/foo", fooDoc);
+	rt = rt.withDocument ("/users/*/profile", profileDoc);
+
+	assertSame (starDoc, rt.resolve ("/x/bar", req));
+	assertSame (starDoc, rt.resolve ("/x/baz?q", req));
+	assertSame (fooDoc, rt.resolve ("/x/foo", req));
+	assertNull (rt.resolve ("/x/bar/baz", req));
+	assertSame (profileDoc, rt.resolve ("/users/danfuzz/profile", req));
+	assertSame (profileDoc, rt.resolve ("/users/a%20b/profile", req));
+	assertNull (rt.resolve ("/users/danfuzz/other", req));
+
+	// an intermediate wildcard acts like a directory
+	assertNotNull (rt.resolve ("/users/danfuzz", req));
+	assertNotSame (profileDoc, rt.resolve ("/users/danfuzz", req));
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private helper classes
+
+    /**
+     * Handler that remembers the arguments it was last called with.
+     */
+    private static class Recorder
+    implements DocumentHandler
+    {
+	public String myQuery;
+	public String myPartialPath;
+	public HttpRequest myRequest;
+	private Document myDocument;
+
+	public Recorder (Document doc)
+	{
+	    myDocument = doc;
+	}
+
+	public Document handleRequest (String query, String partialPath,
+				       HttpRequest request)
+	{
+	    myQuery = query;
+	    myPartialPath = partialPath;
+	    myRequest = request;
+	    return myDocument;
+	}
+
+	public void putDocument (String partialPath, DocumentHandler doc)
+	{
+	    throw new RuntimeException ("putDocument() not supported.");
+	}
+    }
+}
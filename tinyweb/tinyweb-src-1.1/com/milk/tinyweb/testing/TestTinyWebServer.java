@@ -20,12 +20,39 @@
 
 package com.milk.tinyweb.testing;
 
+import com.milk.tinyweb.AccessLog;
+import com.milk.tinyweb.BundleBuilder;
+import com.milk.tinyweb.BundleHandler;
 import com.milk.tinyweb.Document;
+import com.milk.tinyweb.FileCache;
+import com.milk.tinyweb.FileDocument;
+import com.milk.tinyweb.FileSystemHandler;
+import com.milk.tinyweb.HttpRequest;
+import com.milk.tinyweb.MethodHandler;
+import com.milk.tinyweb.MetricsHandler;
+import com.milk.tinyweb.ServerMetrics;
+import com.milk.tinyweb.StaticDocument;
+import com.milk.tinyweb.StreamingDocument;
 import com.milk.tinyweb.TinyWebServer;
 import com.milk.util.EmbeddedException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.InetAddress;
+import java.net.Socket;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 import junit.framework.TestCase;
 
 /**
@@ -473,4 +500,1384 @@ extends TestCase
 
 	tws.stop ();
     }
+
+    /**
+     * Test that a {@link TinyWebServer} using the selector-based engine
+     * serves documents just like the default engine does, including
+     * large documents (which get written by a separate thread), and
+     * that stopping and restarting it works.
+     */
+    public void testNioEngine ()
+	throws Exception
+    {
+	TinyWebServer tws = 
+	    new TinyWebServer (0, null, TinyWebServer.ENGINE_NIO);
+
+	byte[] bigBytes = new byte[1000000];
+	for (int i = 0; i < bigBytes.length; i++)
+	{
+	    bigBytes[i] = (byte) ('a' + (i % 26));
+	}
+
+	tws.putDocument ("/foo.txt", Document.makeText ("foo"));
+	tws.putDocument ("/nulldoc", Document.makeNoContent (204, "NullDoc"));
+	tws.putDocument ("/big.txt", 
+			 new StaticDocument ("text/plain", 0, bigBytes));
+	
+	String urlBase = tws.getURL ();
+	tws.start ();
+	assertTrue (tws.isRunning ());
+
+	HttpResponse resp = HttpGetter.getURL (urlBase + "foo.txt", 1000);
+	assertTrue (resp.getResult ().startsWith ("HTTP/1.1 200 "));
+	assertTrue (resp.getHeader ("Content-Type").startsWith ("text/plain"));
+	assertEquals ("close", resp.getHeader ("Connection"));
+	assertNotNull (resp.getHeader ("Date"));
+	assertNotNull (resp.getHeader ("Server"));
+	assertEquals ("3", resp.getHeader ("Content-Length"));
+	assertEquals ("foo", new String (resp.getContent ()));
+
+	resp = HttpGetter.headURL (urlBase + "foo.txt", 1000);
+	assertTrue (resp.getResult ().startsWith ("HTTP/1.1 200 "));
+	assertEquals ("3", resp.getHeader ("Content-Length"));
+	assertTrue (resp.getContent ().length == 0);
+
+	resp = HttpGetter.postURL (urlBase + "nulldoc", 1000);
+	assertTrue (resp.getResult ().equals ("HTTP/1.1 204 NullDoc"));
+	assertNull (resp.getHeader ("Content-Length"));
+	assertTrue (resp.getContent ().length == 0);
+
+	resp = HttpGetter.getURL (urlBase + "zorch.txt", 1000);
+	assertTrue (resp.getResult ().startsWith ("HTTP/1.1 404 "));
+	assertTrue (resp.getContent ().length != 0);
+
+	resp = HttpGetter.getURL (urlBase + "big.txt", 5000);
+	assertTrue (resp.getResult ().startsWith ("HTTP/1.1 200 "));
+	assertEquals ("" + bigBytes.length, resp.getHeader ("Content-Length"));
+	assertTrue (Arrays.equals (bigBytes, resp.getContent ()));
+
+	// files get transferred directly by the event loop
+	File bigFile = File.createTempFile ("tws", ".txt");
+	FileOutputStream fos = new FileOutputStream (bigFile);
+	fos.write (bigBytes);
+	fos.close ();
+	tws.putDocument ("/bigfile.txt", new FileDocument (bigFile, null));
+
+	resp = HttpGetter.getURL (urlBase + "bigfile.txt", 5000);
+	assertTrue (resp.getResult ().startsWith ("HTTP/1.1 200 "));
+	assertEquals ("" + bigBytes.length, resp.getHeader ("Content-Length"));
+	assertTrue (Arrays.equals (bigBytes, resp.getContent ()));
+	bigFile.delete ();
+
+	tws.stop ();
+	assertTrue (! tws.isRunning ());
+
+	try
+	{
+	    HttpGetter.getURL (urlBase + "foo.txt", 1000);
+	    fail ("request should have timed out");
+	}
+	catch (RuntimeException ex)
+	{
+	    assertEquals ("timed out", ex.getMessage ());
+	}
+
+	tws.start ();
+	resp = HttpGetter.getURL (urlBase + "foo.txt", 1000);
+	assertEquals ("foo", new String (resp.getContent ()));
+
+	tws.close ();
+	assertTrue (tws.isClosed ());
+    }
+
+    /**
+     * Test persistent connections, including pipelined requests and the
+     * per-connection request limit, with both engines.
+     */
+    public void testKeepAlive ()
+	throws Exception
+    {
+	doTestKeepAlive (TinyWebServer.ENGINE_THREADS);
+	doTestKeepAlive (TinyWebServer.ENGINE_NIO);
+	doTestKeepAlive (TinyWebServer.ENGINE_VIRTUAL_THREADS);
+    }
+
+    /**
+     * Test the virtual thread engine. Since it falls back to the
+     * regular thread engine on VMs without virtual threads, this works
+     * either way.
+     */
+    public void testVirtualThreadEngine ()
+	throws Exception
+    {
+	TinyWebServer tws = 
+	    new TinyWebServer (0, null, TinyWebServer.ENGINE_VIRTUAL_THREADS);
+	tws.putDocument ("/foo.txt", Document.makeText ("foo"));
+	tws.setAcceptTimeout ((int) 5000);
+	String urlBase = tws.getURL ();
+	tws.start ();
+
+	// a bunch of connections that don't send anything shouldn't get
+	// in the way of one that does (this is kept to fewer connections
+	// than the fallback worker pool has threads)
+	Socket[] idle = new Socket[15];
+	String host = InetAddress.getLocalHost ().getHostName ();
+	for (int i = 0; i < idle.length; i++)
+	{
+	    idle[i] = new Socket (host, tws.getPort ());
+	}
+
+	HttpResponse resp = HttpGetter.getURL (urlBase + "foo.txt", 1000);
+	assertTrue (resp.getResult ().startsWith ("HTTP/1.1 200 "));
+	assertEquals ("foo", new String (resp.getContent ()));
+
+	// e.g., "Sun, 06 Nov 1994 08:49:37 GMT"
+	String date = resp.getHeader ("Date");
+	assertEquals (29, date.length ());
+	assertTrue (date.endsWith (" GMT"));
+
+	for (int i = 0; i < idle.length; i++)
+	{
+	    idle[i].close ();
+	}
+
+	tws.stop ();
+	tws.close ();
+    }
+
+    /**
+     * Test the worker pool limits, including the overload response.
+     */
+    public void testWorkerPool ()
+	throws Exception
+    {
+	TinyWebServer tws = new TinyWebServer (0, null);
+	tws.putDocument ("/foo.txt", Document.makeText ("foo"));
+	tws.setAcceptTimeout ((int) 5000);
+
+	try
+	{
+	    tws.setWorkerPool (0, 1, 1);
+	    fail ("setWorkerPool failed to fail");
+	}
+	catch (IllegalArgumentException ex)
+	{
+	    // expected
+	}
+
+	try
+	{
+	    tws.setWorkerPool (2, 1, 1);
+	    fail ("setWorkerPool failed to fail");
+	}
+	catch (IllegalArgumentException ex)
+	{
+	    // expected
+	}
+
+	try
+	{
+	    tws.setWorkerPool (1, 1, -1);
+	    fail ("setWorkerPool failed to fail");
+	}
+	catch (IllegalArgumentException ex)
+	{
+	    // expected
+	}
+
+	tws.setWorkerPool (1, 1, 1);
+	tws.start ();
+
+	try
+	{
+	    tws.setWorkerPool (1, 1, 1);
+	    fail ("setWorkerPool failed to fail");
+	}
+	catch (IllegalStateException ex)
+	{
+	    // expected
+	}
+
+	String host = InetAddress.getLocalHost ().getHostName ();
+	int port = tws.getPort ();
+
+	// the first connection ties up the one worker by not sending its
+	// request, and the second one waits in the queue
+	Socket first = new Socket (host, port);
+	Socket second = new Socket (host, port);
+
+	String resp = rawRequest (host, port, "GET /foo.txt HTTP/1.1\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.1 503 "));
+	assertEquals ("5", headerValue (resp, "Retry-After"));
+
+	// once the worker is freed up, the queued connection gets serviced
+	first.close ();
+	second.setSoTimeout (5000);
+	OutputStream os = second.getOutputStream ();
+	os.write ("GET /foo.txt HTTP/1.1\r\n\r\n".getBytes ("ISO-8859-1"));
+	os.flush ();
+	InputStream is = second.getInputStream ();
+	ByteArrayOutputStream baos = new ByteArrayOutputStream ();
+	for (;;)
+	{
+	    int b = is.read ();
+	    if (b == -1)
+	    {
+		break;
+	    }
+	    baos.write (b);
+	}
+	second.close ();
+	resp = new String (baos.toByteArray (), "ISO-8859-1");
+	assertTrue (resp.startsWith ("HTTP/1.1 200 "));
+	assertTrue (resp.endsWith ("\r\n\r\nfoo"));
+
+	tws.close ();
+    }
+
+    /**
+     * Test that the NIO engine bounds the number of threads used for
+     * handed-off responses, answering with a <code>503</code> when
+     * they're all busy.
+     */
+    public void testNioHandoffPool ()
+	throws Exception
+    {
+	final CountDownLatch started = new CountDownLatch (1);
+	final CountDownLatch release = new CountDownLatch (1);
+
+	TinyWebServer tws = 
+	    new TinyWebServer (0, null, TinyWebServer.ENGINE_NIO);
+	tws.putDocument ("/foo.txt", Document.makeText ("foo"));
+	tws.putDocument ("/stall", new StreamingDocument ("text/plain")
+	{
+	    protected void writeContent (OutputStream stream)
+		throws IOException
+	    {
+		started.countDown ();
+		try
+		{
+		    release.await ();
+		}
+		catch (InterruptedException ex)
+		{
+		    throw new EmbeddedException ("interrupted", ex);
+		}
+		stream.write ("stalled".getBytes ("ISO-8859-1"));
+	    }
+	});
+	tws.setAcceptTimeout ((int) 5000);
+	tws.setWorkerPool (1, 1, 0);
+	tws.start ();
+
+	String host = InetAddress.getLocalHost ().getHostName ();
+	int port = tws.getPort ();
+
+	// the first request ties up the one handoff thread
+	Socket first = new Socket (host, port);
+	first.setSoTimeout (5000);
+	OutputStream os = first.getOutputStream ();
+	os.write (("GET /stall HTTP/1.1\r\n" +
+		   "Connection: close\r\n\r\n").getBytes ("ISO-8859-1"));
+	os.flush ();
+	assertTrue (started.await (5000, TimeUnit.MILLISECONDS));
+
+	// so another response that needs one gets turned away...
+	String resp = rawRequest (host, port, "GET /stall HTTP/1.1\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.1 503 "));
+	assertEquals ("5", headerValue (resp, "Retry-After"));
+
+	// ...but ones the event loops write themselves don't need one
+	resp = rawRequest (host, port, 
+			   "GET /foo.txt HTTP/1.1\r\n" +
+			   "Connection: close\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.1 200 "));
+
+	release.countDown ();
+	InputStream is = first.getInputStream ();
+	ByteArrayOutputStream baos = new ByteArrayOutputStream ();
+	for (;;)
+	{
+	    int b = is.read ();
+	    if (b == -1)
+	    {
+		break;
+	    }
+	    baos.write (b);
+	}
+	first.close ();
+	resp = new String (baos.toByteArray (), "ISO-8859-1");
+	assertTrue (resp.startsWith ("HTTP/1.1 200 "));
+	assertTrue (resp.indexOf ("stalled") != -1);
+
+	tws.close ();
+    }
+
+    /**
+     * Test byte range requests, with both engines.
+     */
+    public void testRanges ()
+	throws Exception
+    {
+	doTestRanges (TinyWebServer.ENGINE_THREADS);
+	doTestRanges (TinyWebServer.ENGINE_NIO);
+    }
+
+    /**
+     * Test conditional requests and per-handler caching policy.
+     */
+    public void testConditionalGet ()
+	throws Exception
+    {
+	File dir = File.createTempFile ("TestTinyWebServer", ".dir");
+	dir.delete ();
+	dir.mkdir ();
+	dir.deleteOnExit ();
+	File f = new File (dir, "foo.txt");
+	f.deleteOnExit ();
+	FileOutputStream fos = new FileOutputStream (f);
+	fos.write ("florp".getBytes ("ISO-8859-1"));
+	fos.close ();
+	f.setLastModified (1000000000000L);
+
+	FileSystemHandler fsh = new FileSystemHandler (dir);
+	TinyWebServer tws = new TinyWebServer (0, null);
+	tws.putDocument ("/files", fsh);
+	tws.setAcceptTimeout ((int) 5000);
+	tws.start ();
+
+	String host = InetAddress.getLocalHost ().getHostName ();
+	int port = tws.getPort ();
+
+	String resp = rawRequest (host, port,
+				  "GET /files/foo.txt HTTP/1.1\r\n\r\n");
+	String etag = headerValue (resp, "ETag");
+	assertTrue (resp.startsWith ("HTTP/1.1 200 "));
+	assertNotNull (etag);
+	assertEquals ("bytes", headerValue (resp, "Accept-Ranges"));
+	assertEquals ("no-cache", headerValue (resp, "Cache-control"));
+	assertTrue (resp.endsWith ("\r\n\r\nflorp"));
+
+	// matching entity tag
+	resp = rawRequest (host, port,
+			   "GET /files/foo.txt HTTP/1.1\r\n" +
+			   "If-None-Match: \"zorch\", " + etag + "\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.1 304 "));
+	assertEquals (etag, headerValue (resp, "ETag"));
+	assertNull (headerValue (resp, "Content-Length"));
+	assertTrue (resp.endsWith ("\r\n\r\n"));
+
+	// non-matching entity tag wins over a matching date
+	resp = rawRequest (host, port,
+			   "GET /files/foo.txt HTTP/1.1\r\n" +
+			   "If-None-Match: \"zorch\"\r\n" +
+			   "If-Modified-Since: Sun, 09 Sep 2001 01:46:40 GMT" +
+			   "\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.1 200 "));
+
+	// dates in all three formats
+	resp = rawRequest (host, port,
+			   "HEAD /files/foo.txt HTTP/1.1\r\n" +
+			   "If-Modified-Since: Sun, 09 Sep 2001 01:46:40 GMT" +
+			   "\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.1 304 "));
+	resp = rawRequest (host, port,
+			   "GET /files/foo.txt HTTP/1.1\r\n" +
+			   "If-Modified-Since: Sunday, 09-Sep-01 01:46:40 GMT" +
+			   "\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.1 304 "));
+	resp = rawRequest (host, port,
+			   "GET /files/foo.txt HTTP/1.1\r\n" +
+			   "If-Modified-Since: Sun Sep  9 01:46:40 2001" +
+			   "\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.1 304 "));
+
+	// too early, and garbage
+	resp = rawRequest (host, port,
+			   "GET /files/foo.txt HTTP/1.1\r\n" +
+			   "If-Modified-Since: Sun, 09 Sep 2001 01:46:39 GMT" +
+			   "\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.1 200 "));
+	resp = rawRequest (host, port,
+			   "GET /files/foo.txt HTTP/1.1\r\n" +
+			   "If-Modified-Since: blort\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.1 200 "));
+
+	// errors are never "not modified"
+	resp = rawRequest (host, port,
+			   "GET /files/nope.txt HTTP/1.1\r\n" +
+			   "If-None-Match: *\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.1 404 "));
+
+	// a handler-specified caching policy replaces the default
+	fsh.setCacheControl ("public, max-age=3600");
+	resp = rawRequest (host, port,
+			   "GET /files/foo.txt HTTP/1.1\r\n\r\n");
+	assertEquals ("public, max-age=3600", 
+		      headerValue (resp, "Cache-Control"));
+	assertNull (headerValue (resp, "Expires"));
+	assertNull (headerValue (resp, "Cache-control"));
+	resp = rawRequest (host, port,
+			   "GET /files/foo.txt HTTP/1.1\r\n" +
+			   "If-None-Match: " + etag + "\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.1 304 "));
+	assertEquals ("public, max-age=3600", 
+		      headerValue (resp, "Cache-Control"));
+
+	tws.close ();
+	f.delete ();
+	dir.delete ();
+    }
+
+    /**
+     * Test response compression, with both engines.
+     */
+    public void testCompression ()
+	throws Exception
+    {
+	doTestCompression (TinyWebServer.ENGINE_THREADS);
+	doTestCompression (TinyWebServer.ENGINE_NIO);
+    }
+
+    /**
+     * Test {@link StreamingDocument}s served by a {@link MethodHandler},
+     * including the chunked transfer coding and keeping the connection
+     * open afterwards, with both engines.
+     */
+    public void testStreamingDocument ()
+	throws Exception
+    {
+	doTestStreamingDocument (TinyWebServer.ENGINE_THREADS);
+	doTestStreamingDocument (TinyWebServer.ENGINE_NIO);
+    }
+
+    /**
+     * Test that requests get counted in the server's metrics, and that
+     * a {@link MetricsHandler} reports them, with both engines.
+     */
+    public void testMetrics ()
+	throws Exception
+    {
+	doTestMetrics (TinyWebServer.ENGINE_THREADS);
+	doTestMetrics (TinyWebServer.ENGINE_NIO);
+    }
+
+    /**
+     * Test that responses get logged to an {@link AccessLog}, with both
+     * engines.
+     */
+    public void testAccessLog ()
+	throws Exception
+    {
+	doTestAccessLog (TinyWebServer.ENGINE_THREADS);
+	doTestAccessLog (TinyWebServer.ENGINE_NIO);
+    }
+
+    /**
+     * Test serving files out of a {@link BundleHandler}, with both
+     * engines.
+     */
+    public void testBundleHandler ()
+	throws Exception
+    {
+	doTestBundleHandler (TinyWebServer.ENGINE_THREADS);
+	doTestBundleHandler (TinyWebServer.ENGINE_NIO);
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private helper methods
+
+    /**
+     * Do the work of {@link #testKeepAlive} for the given engine.
+     *
+     * @param engine the engine to use
+     */
+    private void doTestKeepAlive (int engine)
+	throws Exception
+    {
+	TinyWebServer tws = new TinyWebServer (0, null, engine);
+	tws.putDocument ("/foo.txt", Document.makeText ("foo"));
+	tws.putDocument ("/bar.txt", Document.makeText ("bar!"));
+	tws.setAcceptTimeout ((int) 5000);
+	tws.setMaxRequestsPerConnection (3);
+	tws.start ();
+
+	String host = InetAddress.getLocalHost ().getHostName ();
+	int port = tws.getPort ();
+
+	// two pipelined requests; the last one asks for the close
+	String resp = 
+	    rawRequest (host, port,
+			"GET /foo.txt HTTP/1.1\r\n\r\n" +
+			"POST /bar.txt HTTP/1.1\r\n" +
+			"Content-Length: 5\r\n\r\n" +
+			"12345" +
+			"GET /foo.txt HTTP/1.1\r\n" +
+			"Connection: close\r\n\r\n");
+	assertEquals (3, countOf (resp, "HTTP/1.1 200 "));
+	assertEquals (2, countOf (resp, "Connection: keep-alive"));
+	assertEquals (1, countOf (resp, "Connection: close"));
+	assertTrue (resp.endsWith ("\r\n\r\nfoo"));
+	assertTrue (resp.indexOf ("\r\n\r\nbar!HTTP/1.1 200 ") != -1);
+
+	// the limit of three requests per connection
+	resp = rawRequest (host, port,
+			   "GET /foo.txt HTTP/1.1\r\n\r\n" +
+			   "GET /foo.txt HTTP/1.1\r\n\r\n" +
+			   "GET /foo.txt HTTP/1.1\r\n\r\n" +
+			   "GET /foo.txt HTTP/1.1\r\n\r\n");
+	assertEquals (3, countOf (resp, "HTTP/1.1 200 "));
+	assertEquals (1, countOf (resp, "Connection: close"));
+
+	// HTTP/1.0 only gets a persistent connection if it asks
+	resp = rawRequest (host, port,
+			   "GET /foo.txt HTTP/1.0\r\n\r\n" +
+			   "GET /foo.txt HTTP/1.0\r\n\r\n");
+	assertEquals (1, countOf (resp, "HTTP/1.0 200 "));
+	assertEquals (0, countOf (resp, "Connection: keep-alive"));
+
+	resp = rawRequest (host, port,
+			   "GET /foo.txt HTTP/1.0\r\n" +
+			   "Connection: Keep-Alive\r\n\r\n" +
+			   "GET /bar.txt HTTP/1.0\r\n\r\n");
+	assertEquals (2, countOf (resp, "HTTP/1.0 200 "));
+	assertEquals (1, countOf (resp, "Connection: keep-alive"));
+	assertTrue (resp.endsWith ("\r\n\r\nbar!"));
+
+	// an idle persistent connection gets closed after the timeout
+	tws.setKeepAliveTimeout (500);
+	long startTime = System.currentTimeMillis ();
+	resp = rawRequest (host, port, "GET /foo.txt HTTP/1.1\r\n\r\n");
+	assertEquals (1, countOf (resp, "Connection: keep-alive"));
+	assertTrue ((System.currentTimeMillis () - startTime) < 4000);
+
+	tws.close ();
+    }
+
+    /**
+     * Do the work of {@link #testStreamingDocument} for the given engine.
+     *
+     * @param engine the engine to use
+     */
+    private void doTestStreamingDocument (int engine)
+	throws Exception
+    {
+	TinyWebServer tws = new TinyWebServer (0, null, engine);
+	tws.putDocument ("/count", new MethodHandler (new Counter (), 
+						       "handleCount"));
+	tws.putDocument ("/foo.txt", Document.makeText ("foo"));
+	tws.setAcceptTimeout ((int) 5000);
+	tws.setMaxRequestsPerConnection (3);
+	tws.start ();
+
+	String host = InetAddress.getLocalHost ().getHostName ();
+	int port = tws.getPort ();
+
+	// each flush makes a chunk, and the connection stays open
+	// for the next request
+	String resp = 
+	    rawRequest (host, port,
+			"GET /count?3 HTTP/1.1\r\n\r\n" +
+			"GET /foo.txt HTTP/1.1\r\n" +
+			"Connection: close\r\n\r\n");
+	assertEquals (2, countOf (resp, "HTTP/1.1 200 "));
+	assertEquals (1, countOf (resp, "Transfer-Encoding: chunked"));
+	assertEquals (1, countOf (resp, "Connection: keep-alive"));
+	assertTrue (resp.indexOf ("\r\n\r\n" +
+				  "8\r\ncount 0\n\r\n" +
+				  "8\r\ncount 1\n\r\n" +
+				  "8\r\ncount 2\n\r\n" +
+				  "0\r\n\r\n" +
+				  "HTTP/1.1 200 ") != -1);
+	assertTrue (resp.endsWith ("\r\n\r\nfoo"));
+
+	// a big one, which has to get through more than one buffer's worth
+	resp = rawRequest (host, port,
+			   "GET /count?5000 HTTP/1.1\r\n\r\n" +
+			   "GET /foo.txt HTTP/1.1\r\n" +
+			   "Connection: close\r\n\r\n");
+	assertEquals (2, countOf (resp, "HTTP/1.1 200 "));
+	assertEquals (5000, countOf (resp, "\r\ncount "));
+	assertTrue (resp.indexOf ("count 4999\n\r\n0\r\n\r\nHTTP/1.1 200 ")
+		    != -1);
+	assertTrue (resp.endsWith ("\r\n\r\nfoo"));
+
+	// HTTP/1.0 gets the plain content, delimited by the close
+	resp = rawRequest (host, port,
+			   "GET /count?2 HTTP/1.0\r\n" +
+			   "Connection: Keep-Alive\r\n\r\n");
+	assertEquals (0, countOf (resp, "Transfer-Encoding: "));
+	assertEquals (0, countOf (resp, "Connection: keep-alive"));
+	assertTrue (resp.endsWith ("\r\n\r\ncount 0\ncount 1\n"));
+
+	tws.close ();
+    }
+
+    /**
+     * Do the work of {@link #testMetrics} for the given engine.
+     *
+     * @param engine the engine to use
+     */
+    private void doTestMetrics (int engine)
+	throws Exception
+    {
+	TinyWebServer tws = new TinyWebServer (0, null, engine);
+	ServerMetrics metrics = tws.getMetrics ();
+	tws.putDocument ("/foo.txt", Document.makeText ("foo"));
+	tws.putDocument ("/dir/*/bar.txt", Document.makeText ("bar!"));
+	tws.putDocument ("/metrics", new MetricsHandler (metrics));
+	tws.setAcceptTimeout ((int) 5000);
+	tws.setMaxRequestsPerConnection (10);
+	tws.start ();
+
+	String host = InetAddress.getLocalHost ().getHostName ();
+	int port = tws.getPort ();
+	String request = 
+	    "GET /foo.txt HTTP/1.1\r\n\r\n" +
+	    "GET /dir/x/bar.txt HTTP/1.1\r\n\r\n" +
+	    "GET /dir/y/bar.txt HTTP/1.1\r\n\r\n" +
+	    "GET /blort HTTP/1.1\r\n" +
+	    "Connection: close\r\n\r\n";
+	String resp = rawRequest (host, port, request);
+	assertEquals (3, countOf (resp, "HTTP/1.1 200 "));
+	assertEquals (1, countOf (resp, "HTTP/1.1 404 "));
+
+	// the server might not quite be done with the connection
+	for (int i = 0; 
+	     (i < 50) && (metrics.getActiveConnections () != 0); 
+	     i++)
+	{
+	    Thread.sleep (100);
+	}
+
+	assertEquals (4, metrics.getRequestCount ());
+	assertEquals (1, metrics.getRouteCount ("/foo.txt"));
+	assertEquals (2, metrics.getRouteCount ("/dir/*/bar.txt"));
+	assertEquals (1, metrics.getRouteCount (ServerMetrics.NO_ROUTE));
+	assertEquals (3, metrics.getResultCount (200));
+	assertEquals (1, metrics.getResultCount (404));
+	assertEquals (request.length (), metrics.getBytesIn ());
+	assertEquals (resp.length (), metrics.getBytesOut ());
+	assertEquals (0, metrics.getActiveConnections ());
+	assertEquals (0, metrics.getQueueDepth ());
+	assertEquals (4, metrics.getParseTimes ().getCount ());
+	assertEquals (4, metrics.getHandlerTimes ().getCount ());
+	assertEquals (4, metrics.getWriteTimes ().getCount ());
+
+	resp = rawRequest (host, port, "GET /metrics HTTP/1.0\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.0 200 "));
+	assertEquals ("text/plain; charset=utf-8", 
+		      headerValue (resp, "Content-Type"));
+	assertTrue (resp.indexOf ("\nrequests: 4\n") != -1);
+	assertTrue (resp.indexOf ("\nresult 404: 1\n") != -1);
+	assertTrue (resp.indexOf ("\nroute /dir/*/bar.txt: 2\n") != -1);
+	assertTrue (resp.indexOf ("\nhandler-usec: count=4 ") != -1);
+
+	// the response is recorded only after it's been written
+	for (int i = 0; (i < 50) && (metrics.getRequestCount () != 5); i++)
+	{
+	    Thread.sleep (100);
+	}
+
+	resp = rawRequest (host, port, 
+			   "GET /metrics/json HTTP/1.0\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.0 200 "));
+	assertEquals ("application/json", headerValue (resp, "Content-Type"));
+	assertTrue (resp.indexOf ("\r\n\r\n{\"requests\":5,") != -1);
+	assertTrue (resp.indexOf ("\"results\":{\"200\":4,\"404\":1}") 
+		    != -1);
+	assertTrue (resp.indexOf ("\"/metrics\":1") != -1);
+	assertTrue (resp.indexOf ("\"write\":{\"count\":5,") != -1);
+
+	resp = rawRequest (host, port, 
+			   "GET /metrics/blort HTTP/1.0\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.0 404 "));
+
+	tws.close ();
+    }
+
+    /**
+     * Do the work of {@link #testAccessLog} for the given engine.
+     *
+     * @param engine the engine to use
+     */
+    private void doTestAccessLog (int engine)
+	throws Exception
+    {
+	File f = File.createTempFile ("TestTinyWebServer", ".log");
+	f.deleteOnExit ();
+	AccessLog log = new AccessLog (f, AccessLog.FORMAT_COMBINED);
+
+	TinyWebServer tws = new TinyWebServer (0, null, engine);
+	tws.putDocument ("/foo.txt", Document.makeText ("foo"));
+	tws.putDocument ("/stream", new StreamingDocument ("text/plain")
+	{
+	    protected void writeContent (OutputStream stream)
+		throws IOException
+	    {
+		stream.write ("hello".getBytes ("ISO-8859-1"));
+	    }
+	});
+	tws.setAccessLog (log);
+	tws.setAcceptTimeout ((int) 5000);
+	tws.setMaxRequestsPerConnection (10);
+	tws.start ();
+
+	String host = InetAddress.getLocalHost ().getHostName ();
+	int port = tws.getPort ();
+	rawRequest (host, port,
+		    "GET /foo.txt HTTP/1.1\r\n" +
+		    "User-Agent: blort/1.0\r\n\r\n" +
+		    "HEAD /foo.txt HTTP/1.1\r\n\r\n" +
+		    "GET /stream HTTP/1.1\r\n\r\n" +
+		    "GET /zorch HTTP/1.1\r\n" +
+		    "Referer: http://example.com/\r\n" +
+		    "Connection: close\r\n\r\n");
+	tws.close ();
+	log.close ();
+
+	FileInputStream fis = new FileInputStream (f);
+	byte[] bytes = new byte[(int) f.length ()];
+	assertEquals (bytes.length, fis.read (bytes));
+	fis.close ();
+
+	String[] lines = new String (bytes, "ISO-8859-1").split ("\n");
+	assertEquals (4, lines.length);
+	assertTrue (lines[0].endsWith ("\"GET /foo.txt HTTP/1.1\" 200 3 " +
+				       "\"-\" \"blort/1.0\""));
+	assertTrue (lines[1].endsWith ("\"HEAD /foo.txt HTTP/1.1\" 200 - " +
+				       "\"-\" \"-\""));
+	// the length isn't known in advance, but what got sent is counted
+	assertTrue (lines[2].endsWith ("\"GET /stream HTTP/1.1\" 200 15 " +
+				       "\"-\" \"-\""));
+	assertTrue (lines[3].indexOf ("\"GET /zorch HTTP/1.1\" 404 ") != -1);
+	assertTrue (lines[3].endsWith (" \"http://example.com/\" \"-\""));
+    }
+
+    /**
+     * Do the work of {@link #testRanges} for the given engine.
+     *
+     * @param engine the engine to use
+     */
+    private void doTestRanges (int engine)
+	throws Exception
+    {
+	byte[] bytes = new byte[300000];
+	for (int i = 0; i < bytes.length; i++)
+	{
+	    bytes[i] = (byte) ('a' + (i % 26));
+	}
+
+	File f = File.createTempFile ("TestTinyWebServer", ".txt");
+	f.deleteOnExit ();
+	FileOutputStream fos = new FileOutputStream (f);
+	fos.write (bytes);
+	fos.close ();
+
+	TinyWebServer tws = new TinyWebServer (0, null, engine);
+	tws.putDocument ("/file.txt", new FileDocument (f, null));
+	tws.putDocument ("/static.txt", 
+			 Document.makeText ("abcdefghijklmnopqrstuvwxyz"));
+	tws.putDocument ("/unknown.txt", new Document ("text/plain", 0)
+	    {
+		public long getContentLength ()
+		{
+		    return CONTENT_LENGTH_UNKNOWN;
+		}
+
+		public void writeBytes (OutputStream stream, long len)
+		    throws IOException
+		{
+		    stream.write ("abcdef".getBytes ("ISO-8859-1"));
+		}
+	    });
+	tws.setAcceptTimeout ((int) 5000);
+	tws.start ();
+
+	String host = InetAddress.getLocalHost ().getHostName ();
+	int port = tws.getPort ();
+
+	// simple single ranges
+	String resp = rawRequest (host, port,
+				  "GET /static.txt HTTP/1.1\r\n" +
+				  "Range: bytes=2-4\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.1 206 "));
+	assertEquals ("bytes 2-4/26", headerValue (resp, "Content-Range"));
+	assertEquals ("3", headerValue (resp, "Content-Length"));
+	assertTrue (resp.endsWith ("\r\n\r\ncde"));
+
+	resp = rawRequest (host, port,
+			   "GET /static.txt HTTP/1.1\r\n" +
+			   "Range: bytes=-3\r\n\r\n");
+	assertEquals ("bytes 23-25/26", headerValue (resp, "Content-Range"));
+	assertTrue (resp.endsWith ("\r\n\r\nxyz"));
+
+	resp = rawRequest (host, port,
+			   "GET /static.txt HTTP/1.1\r\n" +
+			   "Range: bytes=24-1000\r\n\r\n");
+	assertEquals ("bytes 24-25/26", headerValue (resp, "Content-Range"));
+	assertTrue (resp.endsWith ("\r\n\r\nyz"));
+
+	// a large range of a file (transferred directly by the nio engine)
+	resp = rawRequest (host, port,
+			   "GET /file.txt HTTP/1.1\r\n" +
+			   "Range: bytes=1000-\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.1 206 "));
+	assertEquals ("bytes 1000-299999/300000", 
+		      headerValue (resp, "Content-Range"));
+	String body = resp.substring (resp.indexOf ("\r\n\r\n") + 4);
+	assertEquals (299000, body.length ());
+	assertTrue (body.equals (new String (bytes, 1000, 299000, 
+					     "ISO-8859-1")));
+
+	// multiple ranges
+	resp = rawRequest (host, port,
+			   "GET /file.txt HTTP/1.1\r\n" +
+			   "Range: bytes=0-1, 260000-260002\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.1 206 "));
+	String type = headerValue (resp, "Content-Type");
+	assertTrue (type.startsWith ("multipart/byteranges; boundary="));
+	String boundary = type.substring (type.indexOf ('=') + 1);
+	body = resp.substring (resp.indexOf ("\r\n\r\n") + 4);
+	assertEquals (Integer.parseInt (headerValue (resp, "Content-Length")),
+		      body.length ());
+	assertEquals (3, countOf (body, "--" + boundary));
+	assertTrue (body.indexOf ("Content-Range: bytes 0-1/300000\r\n\r\n" +
+				  "ab\r\n--") != -1);
+	assertTrue (body.indexOf ("Content-Range: bytes 260000-260002/300000" +
+				  "\r\n\r\nabc\r\n--") != -1);
+	assertTrue (body.endsWith ("--" + boundary + "--\r\n"));
+
+	// unsatisfiable
+	resp = rawRequest (host, port,
+			   "GET /static.txt HTTP/1.1\r\n" +
+			   "Range: bytes=26-30\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.1 416 "));
+	assertEquals ("bytes */26", headerValue (resp, "Content-Range"));
+
+	// ignored: malformed, not a GET, unknown length, stale If-Range
+	resp = rawRequest (host, port,
+			   "GET /static.txt HTTP/1.1\r\n" +
+			   "Range: bytes=4-2\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.1 200 "));
+	resp = rawRequest (host, port,
+			   "HEAD /static.txt HTTP/1.1\r\n" +
+			   "Range: bytes=2-4\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.1 200 "));
+	resp = rawRequest (host, port,
+			   "GET /unknown.txt HTTP/1.1\r\n" +
+			   "Range: bytes=2-4\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.1 200 "));
+	assertTrue (resp.endsWith ("\r\n\r\n6\r\nabcdef\r\n0\r\n\r\n"));
+	resp = rawRequest (host, port,
+			   "GET /static.txt HTTP/1.1\r\n" +
+			   "Range: bytes=2-4\r\n" +
+			   "If-Range: \"zorch\"\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.1 200 "));
+
+	// current If-Range
+	resp = rawRequest (host, port, "GET /static.txt HTTP/1.1\r\n\r\n");
+	resp = rawRequest (host, port,
+			   "GET /static.txt HTTP/1.1\r\n" +
+			   "Range: bytes=2-4\r\n" +
+			   "If-Range: " + headerValue (resp, "ETag") + 
+			   "\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.1 206 "));
+
+	tws.close ();
+	f.delete ();
+    }
+
+    /**
+     * Do the work of {@link #testCompression} for the given engine.
+     *
+     * @param engine the engine to use
+     */
+    private void doTestCompression (int engine)
+	throws Exception
+    {
+	StringBuffer sb = new StringBuffer ();
+	for (int i = 0; i < 2000; i++)
+	{
+	    sb.append ("line number ");
+	    sb.append (i);
+	    sb.append ('\n');
+	}
+	String text = sb.toString ();
+
+	File dir = File.createTempFile ("TestTinyWebServer", ".dir");
+	dir.delete ();
+	dir.mkdir ();
+	File big = new File (dir, "big.txt");
+	FileOutputStream fos = new FileOutputStream (big);
+	fos.write (text.getBytes ("ISO-8859-1"));
+	fos.close ();
+	File pre = new File (dir, "pre.txt");
+	fos = new FileOutputStream (pre);
+	fos.write (text.getBytes ("ISO-8859-1"));
+	fos.close ();
+	File preGz = new File (dir, "pre.txt.gz");
+	fos = new FileOutputStream (preGz);
+	GZIPOutputStream gos = new GZIPOutputStream (fos);
+	gos.write ("precompressed".getBytes ("ISO-8859-1"));
+	gos.close ();
+	File bin = new File (dir, "bin.gif");
+	fos = new FileOutputStream (bin);
+	fos.write (text.getBytes ("ISO-8859-1"));
+	fos.close ();
+
+	TinyWebServer tws = new TinyWebServer (0, null, engine);
+	tws.putDocument ("/static.txt", Document.makeText (text));
+	tws.putDocument ("/tiny.txt", Document.makeText ("tiny"));
+	tws.putDocument ("/files", new FileSystemHandler (dir));
+	FileCache fc = new FileCache (10, 1000000, 100000);
+	FileSystemHandler cached = new FileSystemHandler (dir);
+	cached.setFileCache (fc);
+	tws.putDocument ("/cached", cached);
+	tws.putDocument ("/lines", new MethodHandler (new Counter (), 
+						       "handleLines"));
+	tws.setAcceptTimeout ((int) 5000);
+	tws.start ();
+
+	String host = InetAddress.getLocalHost ().getHostName ();
+	int port = tws.getPort ();
+	String resp;
+
+	// the selector-based engine's event loops leave the compressing
+	// of cached documents to another thread, and send the
+	// uncompressed form until it's done
+	if (engine == TinyWebServer.ENGINE_NIO)
+	{
+	    resp = rawRequest (host, port,
+			       "GET /cached/big.txt HTTP/1.1\r\n" +
+			       "Accept-Encoding: gzip\r\n\r\n");
+	    assertNull (headerValue (resp, "Content-Encoding"));
+	    assertEquals (text, decodeBody (resp));
+	}
+
+	// documents made afresh for each request get compressed right
+	// away, since there'd be no later request to use the result of
+	// compressing them in the background
+	for (int i = 0; i < 3; i++)
+	{
+	    resp = rawRequest (host, port,
+			       "GET /lines?2000 HTTP/1.1\r\n" +
+			       "Accept-Encoding: gzip\r\n\r\n");
+	    assertEquals ("gzip", headerValue (resp, "Content-Encoding"));
+	    assertNotNull (headerValue (resp, "Content-Length"));
+	    assertEquals (text, decodeBody (resp));
+	}
+
+	// in-memory content gets compressed up front
+	resp = rawRequest (host, port,
+				  "GET /static.txt HTTP/1.0\r\n" +
+				  "Accept-Encoding: gzip, deflate\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.0 200 "));
+	assertEquals ("gzip", headerValue (resp, "Content-Encoding"));
+	assertEquals ("Accept-Encoding", headerValue (resp, "Vary"));
+	assertNotNull (headerValue (resp, "Content-Length"));
+	assertEquals (text, decodeBody (resp));
+
+	resp = rawRequest (host, port,
+			   "GET /static.txt HTTP/1.1\r\n" +
+			   "Accept-Encoding: gzip;q=0.5, deflate\r\n\r\n");
+	assertEquals ("deflate", headerValue (resp, "Content-Encoding"));
+	assertEquals (text, decodeBody (resp));
+
+	// the selector-based engine doesn't compress file content on the
+	// fly unless it's told to
+	if (engine == TinyWebServer.ENGINE_NIO)
+	{
+	    resp = rawRequest (host, port,
+			       "GET /files/big.txt HTTP/1.1\r\n" +
+			       "Accept-Encoding: gzip\r\n\r\n");
+	    assertTrue (resp.startsWith ("HTTP/1.1 200 "));
+	    assertNull (headerValue (resp, "Content-Encoding"));
+	    assertEquals (text, decodeBody (resp));
+	    tws.setOnTheFlyCompression (true);
+	}
+
+	// file content gets compressed on the fly, and chunked
+	resp = rawRequest (host, port,
+			   "GET /files/big.txt HTTP/1.1\r\n" +
+			   "Accept-Encoding: *\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.1 200 "));
+	assertEquals ("gzip", headerValue (resp, "Content-Encoding"));
+	assertEquals ("chunked", headerValue (resp, "Transfer-Encoding"));
+	assertNull (headerValue (resp, "Content-Length"));
+	assertTrue (headerValue (resp, "ETag").endsWith ("-gzip\""));
+	assertEquals (text, decodeBody (resp));
+
+	// ...but not for HTTP/1.0 clients
+	resp = rawRequest (host, port,
+			   "GET /files/big.txt HTTP/1.0\r\n" +
+			   "Accept-Encoding: gzip\r\n\r\n");
+	assertNull (headerValue (resp, "Content-Encoding"));
+	assertEquals (text, decodeBody (resp));
+
+	// precompressed siblings get served as-is
+	resp = rawRequest (host, port,
+			   "GET /files/pre.txt HTTP/1.0\r\n" +
+			   "Accept-Encoding: gzip\r\n\r\n");
+	assertEquals ("gzip", headerValue (resp, "Content-Encoding"));
+	assertTrue (headerValue (resp, "Content-Type").startsWith (
+			"text/plain"));
+	assertEquals ("precompressed", decodeBody (resp));
+	resp = rawRequest (host, port,
+			   "GET /files/pre.txt HTTP/1.1\r\n" +
+			   "Accept-Encoding: deflate\r\n\r\n");
+	assertEquals ("deflate", headerValue (resp, "Content-Encoding"));
+	assertEquals (text, decodeBody (resp));
+
+	// no compression: not asked for, refused, too small, not text,
+	// or ranges requested; all but the non-text one could have been
+	// compressed, though, so they still vary with Accept-Encoding
+	String[] requests = 
+	{
+	    "GET /static.txt HTTP/1.1\r\n\r\n",
+	    "GET /static.txt HTTP/1.1\r\nAccept-Encoding: gzip;q=0\r\n\r\n",
+	    "GET /files/pre.txt HTTP/1.1\r\nAccept-Encoding: identity\r\n\r\n",
+	    "GET /tiny.txt HTTP/1.1\r\nAccept-Encoding: gzip\r\n\r\n",
+	    "GET /files/bin.gif HTTP/1.1\r\nAccept-Encoding: gzip\r\n\r\n",
+	    "GET /static.txt HTTP/1.1\r\nAccept-Encoding: gzip\r\n" +
+	    "Range: bytes=0-\r\n\r\n"
+	};
+	for (int i = 0; i < requests.length; i++)
+	{
+	    resp = rawRequest (host, port, requests[i]);
+	    assertNull (requests[i], headerValue (resp, "Content-Encoding"));
+	    String vary = 
+		(requests[i].indexOf (".gif") == -1) ? "Accept-Encoding" : null;
+	    assertEquals (requests[i], vary, headerValue (resp, "Vary"));
+	}
+
+	// a conditional request for the compressed form
+	resp = rawRequest (host, port,
+			   "GET /files/big.txt HTTP/1.1\r\n" +
+			   "Accept-Encoding: gzip\r\n\r\n");
+	String etag = headerValue (resp, "ETag");
+	resp = rawRequest (host, port,
+			   "GET /files/big.txt HTTP/1.1\r\n" +
+			   "Accept-Encoding: gzip\r\n" +
+			   "If-None-Match: " + etag + "\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.1 304 "));
+
+	// the compressed form of a cached file counts against the cache's
+	// limit
+	resp = awaitCompressed (host, port, "/cached/big.txt", "gzip");
+	assertEquals (text.length () 
+		      + Integer.parseInt (headerValue (resp, "Content-Length")),
+		      fc.getByteCount ());
+
+	// turned off
+	tws.setCompression (false);
+	resp = rawRequest (host, port,
+			   "GET /static.txt HTTP/1.1\r\n" +
+			   "Accept-Encoding: gzip\r\n\r\n");
+	assertNull (headerValue (resp, "Content-Encoding"));
+	assertEquals (text, decodeBody (resp));
+
+	tws.close ();
+	big.delete ();
+	pre.delete ();
+	preGz.delete ();
+	bin.delete ();
+	dir.delete ();
+    }
+
+    /**
+     * Do the work of {@link #testBundleHandler} for the given engine.
+     *
+     * @param engine the engine to use
+     */
+    private void doTestBundleHandler (int engine)
+	throws Exception
+    {
+	StringBuffer sb = new StringBuffer ();
+	for (int i = 0; i < 20000; i++)
+	{
+	    sb.append ("line number ");
+	    sb.append (i);
+	    sb.append ('\n');
+	}
+	String text = sb.toString ();
+
+	File dir = File.createTempFile ("TestTinyWebServer", ".dir");
+	dir.delete ();
+	dir.mkdir ();
+	File big = new File (dir, "big.txt");
+	FileOutputStream fos = new FileOutputStream (big);
+	fos.write (text.getBytes ("ISO-8859-1"));
+	fos.close ();
+	File bundle = File.createTempFile ("TestTinyWebServer", ".bundle");
+	BundleBuilder.build (dir, bundle, true);
+
+	TinyWebServer tws = new TinyWebServer (0, null, engine);
+	tws.putDocument ("/b", new BundleHandler (bundle));
+	tws.setAcceptTimeout ((int) 5000);
+	tws.start ();
+
+	String host = InetAddress.getLocalHost ().getHostName ();
+	int port = tws.getPort ();
+
+	String resp = rawRequest (host, port,
+				  "GET /b/big.txt HTTP/1.1\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.1 200 "));
+	assertNull (headerValue (resp, "Content-Encoding"));
+	assertEquals (text, decodeBody (resp));
+
+	resp = rawRequest (host, port,
+			   "GET /b/big.txt HTTP/1.1\r\n" +
+			   "Accept-Encoding: gzip\r\n\r\n");
+	assertEquals ("gzip", headerValue (resp, "Content-Encoding"));
+	assertNull (headerValue (resp, "Transfer-Encoding"));
+	assertEquals (text, decodeBody (resp));
+
+	resp = rawRequest (host, port,
+			   "GET /b/big.txt HTTP/1.1\r\n" +
+			   "Range: bytes=12-15\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.1 206 "));
+	assertTrue (resp.endsWith ("\r\n\r\n0\nli"));
+
+	resp = rawRequest (host, port, "GET /b/nope.txt HTTP/1.1\r\n\r\n");
+	assertTrue (resp.startsWith ("HTTP/1.1 404 "));
+
+	tws.close ();
+	bundle.delete ();
+	big.delete ();
+	dir.delete ();
+    }
+
+    /**
+     * Request the given path with the given content coding until the
+     * response comes back compressed, which may take a few tries, since
+     * it may get compressed in the background.
+     *
+     * @param host non-null; the host to connect to
+     * @param port the port to connect to
+     * @param path non-null; the path to request
+     * @param encoding non-null; the content coding to ask for
+     * @return non-null; the raw text of the compressed response
+     */
+    private static String awaitCompressed (String host, int port,
+					   String path, String encoding)
+	throws Exception
+    {
+	for (int i = 0; i < 50; i++)
+	{
+	    String resp = rawRequest (host, port,
+				      "GET " + path + " HTTP/1.1\r\n" +
+				      "Accept-Encoding: " + encoding +
+				      "\r\n\r\n");
+	    if (encoding.equals (headerValue (resp, "Content-Encoding")))
+	    {
+		return resp;
+	    }
+	    Thread.sleep (100);
+	}
+
+	fail (path + " never got compressed");
+	return null;
+    }
+
+    /**
+     * Send the given raw request text to the given server, and return
+     * everything it sends back, up to the point where it closes the
+     * connection.
+     *
+     * @param host non-null; the host to connect to
+     * @param port the port to connect to
+     * @param request non-null; the raw request text
+     * @return non-null; the raw response text
+     */
+    private static String rawRequest (String host, int port, String request)
+	throws Exception
+    {
+	Socket sock = new Socket (host, port);
+	sock.setSoTimeout (5000);
+
+	OutputStream os = sock.getOutputStream ();
+	os.write (request.getBytes ("ISO-8859-1"));
+	os.flush ();
+
+	InputStream is = sock.getInputStream ();
+	ByteArrayOutputStream baos = new ByteArrayOutputStream ();
+	byte[] buf = new byte[1000];
+	for (;;)
+	{
+	    int amt = is.read (buf);
+	    if (amt == -1)
+	    {
+		break;
+	    }
+	    baos.write (buf, 0, amt);
+	}
+
+	sock.close ();
+	return new String (baos.toByteArray (), "ISO-8859-1");
+    }
+
+    /**
+     * Get the body of the given raw response text, undoing any transfer
+     * and content codings.
+     *
+     * @param resp non-null; the raw response text
+     * @return non-null; the body
+     */
+    private static String decodeBody (String resp)
+	throws IOException
+    {
+	String body = resp.substring (resp.indexOf ("\r\n\r\n") + 4);
+
+	if ("chunked".equals (headerValue (resp, "Transfer-Encoding")))
+	{
+	    StringBuffer sb = new StringBuffer ();
+	    int at = 0;
+	    for (;;)
+	    {
+		int eol = body.indexOf ("\r\n", at);
+		int size = Integer.parseInt (body.substring (at, eol), 16);
+		at = eol + 2;
+		if (size == 0)
+		{
+		    break;
+		}
+		sb.append (body.substring (at, at + size));
+		at += size + 2;
+	    }
+	    body = sb.toString ();
+	}
+
+	String encoding = headerValue (resp, "Content-Encoding");
+	if (encoding == null)
+	{
+	    return body;
+	}
+
+	InputStream is = 
+	    new ByteArrayInputStream (body.getBytes ("ISO-8859-1"));
+	if (encoding.equals ("gzip"))
+	{
+	    is = new GZIPInputStream (is);
+	}
+	else
+	{
+	    is = new InflaterInputStream (is);
+	}
+
+	ByteArrayOutputStream baos = new ByteArrayOutputStream ();
+	byte[] buf = new byte[1000];
+	for (;;)
+	{
+	    int amt = is.read (buf);
+	    if (amt == -1)
+	    {
+		break;
+	    }
+	    baos.write (buf, 0, amt);
+	}
+
+	return new String (baos.toByteArray (), "ISO-8859-1");
+    }
+
+    /**
+     * Get the value of the named header in the given raw response text,
+     * or <code>null</code> if there is no such header. The name is
+     * matched case-sensitively.
+     *
+     * @param resp non-null; the raw response text
+     * @param name non-null; the header name
+     * @return null-ok; the header value
+     */
+    private static String headerValue (String resp, String name)
+    {
+	int end = resp.indexOf ("\r\n\r\n");
+	int at = resp.indexOf ("\r\n" + name + ": ");
+
+	if ((at == -1) || (at >= end))
+	{
+	    return null;
+	}
+
+	at += name.length () + 4;
+	return resp.substring (at, resp.indexOf ('\r', at));
+    }
+
+    /**
+     * Count the non-overlapping occurrences of a string in another one.
+     *
+     * @param str non-null; the string to search in
+     * @param find non-null; the string to search for
+     * @return the count
+     */
+    private static int countOf (String str, String find)
+    {
+	int count = 0;
+	int at = 0;
+
+	for (;;)
+	{
+	    at = str.indexOf (find, at);
+	    if (at == -1)
+	    {
+		return count;
+	    }
+	    count++;
+	    at += find.length ();
+	}
+    }
+
+
+
+    // ------------------------------------------------------------------------
+    // private helper classes
+
+    /**
+     * Class with methods to be wrapped in instances of {@link
+     * MethodHandler}. One streams out a number of lines given as the
+     * query, flushing after each, and the other makes a new text
+     * document of a number of lines given as the query.
+     */
+    public class Counter
+    {
+	public Counter ()
+	{
+	    // this space intentionally left blank
+	}
+
+	public Document handleCount (String q, String p, HttpRequest r)
+	{
+	    final int count = Integer.parseInt (q);
+
+	    return new StreamingDocument ("text/plain")
+	    {
+		protected void writeContent (OutputStream stream)
+		    throws IOException
+		{
+		    for (int i = 0; i < count; i++)
+		    {
+			stream.write (("count " + i + "\n").getBytes ());
+			stream.flush ();
+		    }
+		}
+	    };
+	}
+
+	public Document handleLines (String q, String p, HttpRequest r)
+	{
+	    int count = Integer.parseInt (q);
+	    StringBuffer sb = new StringBuffer ();
+
+	    for (int i = 0; i < count; i++)
+	    {
+		sb.append ("line number ");
+		sb.append (i);
+		sb.append ('\n');
+	    }
+
+	    return Document.makeText (sb.toString ());
+	}
+    }
 }